@@ -4,35 +4,33 @@ import android.annotation.SuppressLint;
 import android.app.Application;
 import android.content.Context;
 import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 
 import androidx.appcompat.app.AppCompatDelegate;
-import androidx.collection.LruCache;
 
-import com.caverock.androidsvg.SVG;
+import com.google.gson.JsonParseException;
 import com.google.gson.annotations.SerializedName;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import io.snabble.sdk.assetservice.assets.data.source.AssetBlobStore;
+import io.snabble.sdk.assetservice.assets.data.source.AssetManifestJournal;
+import io.snabble.sdk.assetservice.image.data.BitmapDecoder;
+import io.snabble.sdk.assetservice.image.domain.ImageRepository;
 import io.snabble.sdk.utils.Dispatch;
 import io.snabble.sdk.utils.GsonHolder;
 import io.snabble.sdk.utils.Logger;
@@ -50,20 +48,6 @@ import okhttp3.ResponseBody;
  * They change very very rarely and are mostly for context (shop symbol / retailer logo / checkout orientation).
  */
 public class Assets {
-    private static final LruCache<String, Bitmap> memoryCache;
-
-    static {
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemory / 8;
-        Logger.d("setup lru cache " + (cacheSize / 1024) + " MB");
-        memoryCache = new LruCache<String, Bitmap>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
-                return bitmap.getByteCount() / 1024;
-            }
-        };
-    }
-
     private enum Variant {
         @SerializedName("1x")
         MDPI("1x", 1.0f),
@@ -103,18 +87,13 @@ public class Assets {
         ApiAsset[] files;
     }
 
-    private class Asset {
-        public String filePath;
-        public String hash;
-
-        public Asset(String filePath, String hash) {
-            this.filePath = filePath;
-            this.hash = hash;
-        }
+    private static class LegacyAsset {
+        String filePath;
+        String hash;
     }
 
-    private class Manifest {
-        Map<String, Asset> assets;
+    private static class LegacyManifest {
+        Map<String, LegacyAsset> assets;
     }
 
     private interface DownloadCallback {
@@ -130,17 +109,18 @@ public class Assets {
     }
 
     private final Application app;
-    private final File assetDir;
     private final Project project;
-    private final File manifestFile;
-    private Manifest manifest;
+    private final ImageRepository imageRepository;
+    private final AssetBlobStore blobStore;
+    private final AssetManifestJournal manifest;
 
-    Assets(Project project) {
+    Assets(Project project, ImageRepository imageRepository) {
         this.app = Snabble.getInstance().getApplication();
         this.project = project;
-        this.manifestFile = new File(project.getInternalStorageDirectory(), "assets_v2.json");
-        this.assetDir = new File(project.getInternalStorageDirectory(), "assets/");
-        this.assetDir.mkdirs();
+        this.imageRepository = imageRepository;
+        this.blobStore = AssetBlobStore.shared();
+        this.manifest = new AssetManifestJournal(new File(project.getInternalStorageDirectory(),
+                AssetManifestJournal.LEGACY_ASSETS_FILE_NAME));
 
         loadManifest();
     }
@@ -158,53 +138,45 @@ public class Assets {
         Logger.d("Load manifest for project %s", project.getId());
 
         Dispatch.background(() -> {
-            try {
-                FileReader fileReader = new FileReader(manifestFile);
-                Manifest newManifest = GsonHolder.get().fromJson(fileReader, Manifest.class);
-
-                Dispatch.mainThread(() -> {
-                    if (newManifest != null && newManifest.assets != null) {
-                        manifest = newManifest;
-                    } else {
-                        manifest = new Manifest();
-                        manifest.assets = new HashMap<>();
-                    }
-                });
-                fileReader.close();
-            } catch (IOException e) {
-                Logger.d("No assets for project %s", project.getId());
-
-                Dispatch.mainThread(() -> {
-                    manifest = new Manifest();
-                    manifest.assets = new HashMap<>();
-                });
-            }
+            manifest.load();
+            migrateLegacyManifest();
         });
     }
 
-    private void saveManifest() {
-        Logger.d("Save manifest for project %s", project.getId());
+    /**
+     * Moves the assets of previous versions, which stored the files of each project separately and
+     * rewrote the whole manifest on every change, to the blob store.
+     */
+    private void migrateLegacyManifest() {
+        File legacyManifestFile = new File(project.getInternalStorageDirectory(), "assets_v2.json");
+        if (!legacyManifestFile.exists()) {
+            return;
+        }
+
+        Map<String, String> migrated = new HashMap<>();
+        try (FileReader fileReader = new FileReader(legacyManifestFile)) {
+            LegacyManifest legacyManifest = GsonHolder.get().fromJson(fileReader, LegacyManifest.class);
+            if (legacyManifest != null && legacyManifest.assets != null) {
+                for (Map.Entry<String, LegacyAsset> entry : legacyManifest.assets.entrySet()) {
+                    LegacyAsset asset = entry.getValue();
+                    if (asset == null || asset.filePath == null || asset.hash == null) {
+                        continue;
+                    }
 
-        Dispatch.background(() -> {
-            try {
-                String[] json = new String[1];
-
-                CountDownLatch countDownLatch = new CountDownLatch(1);
-                Dispatch.mainThread(() -> {
-                    json[0] = GsonHolder.get().toJson(manifest);
-                    countDownLatch.countDown();
-                });
-                countDownLatch.await();
-
-                FileWriter fileWriter = new FileWriter(manifestFile);
-                fileWriter.write(json[0]);
-                fileWriter.close();
-            } catch (IOException e) {
-                Logger.e("Could not write assets: " + e.getMessage());
-            } catch (InterruptedException e) {
-                Logger.e(e.getMessage());
+                    File file = new File(asset.filePath);
+                    if (file.isFile()) {
+                        blobStore.commit(asset.hash, new FileInputStream(file));
+                        migrated.put(entry.getKey(), asset.hash);
+                        file.delete();
+                    }
+                }
             }
-        });
+        } catch (IOException | JsonParseException e) {
+            Logger.e("Could not migrate assets: " + e.getMessage());
+        }
+
+        manifest.update(migrated, Collections.emptyList());
+        legacyManifestFile.delete();
     }
 
     private void download(String nonRootIncludedFileName, DownloadCallback callback) {
@@ -240,14 +212,10 @@ public class Assets {
         });
     }
 
-    private File getLocalAssetFile(String hash) {
-        return new File(assetDir, hash);
-    }
-
     @SuppressLint("ApplySharedPref")
     private void downloadAssets(Project project, ApiManifest apiManifest, String nonRootIncludedFileName, DownloadCallback callback) {
         if (apiManifest.files != null) {
-            boolean[] changed = new boolean[1];
+            Map<String, String> added = new HashMap<>();
 
             Set<String> hashes = new HashSet<>();
             Variant bestVariant = getBestVariant();
@@ -271,7 +239,13 @@ public class Assets {
                     continue;
                 }
 
-                if (manifest.assets.containsKey(apiAsset.name)) {
+                if (hash.equals(manifest.get(apiAsset.name)) && blobStore.contains(hash)) {
+                    continue;
+                }
+
+                // the asset may be stored already, e.g. for another project
+                if (blobStore.touch(hash)) {
+                    added.put(apiAsset.name, hash);
                     continue;
                 }
 
@@ -284,56 +258,40 @@ public class Assets {
                         .get()
                         .build();
 
-                try {
-                    Logger.d("download " + apiAsset.name);
-                    Response response = project.getOkHttpClient().newCall(request).execute();
-
-                    if (response.isSuccessful()) {
-                        ResponseBody body = response.body();
-                        if (body != null) {
-                            File localFile = getLocalAssetFile(hash);
-                            localFile.createNewFile();
+                Logger.d("download " + apiAsset.name);
+                try (Response response = project.getOkHttpClient().newCall(request).execute()) {
+                    ResponseBody body = response.body();
+                    if (response.isSuccessful() && body != null) {
+                        Logger.d("add " + apiAsset.name);
 
-                            Logger.d("add " + apiAsset.name);
-
-                            Asset asset = new Asset(localFile.getAbsolutePath(), hash);
-                            IOUtils.copy(body.byteStream(), new FileOutputStream(localFile));
-
-                            Dispatch.mainThread(() -> {
-                                manifest.assets.put(apiAsset.name, asset);
-                                changed[0] = true;
-                            });
-                        }
+                        // written to a temporary file and renamed once complete
+                        blobStore.commit(hash, body.byteStream());
+                        added.put(apiAsset.name, hash);
                     }
                 } catch (IOException e) {
                     Logger.e(e.getMessage());
                 }
             }
 
-            Dispatch.mainThread(() -> {
-                ArrayList<String> removals = new ArrayList<>();
-
-                if (manifest != null) {
-                    for (Map.Entry<String, Asset> entry : manifest.assets.entrySet()) {
-                        Asset asset = entry.getValue();
-                        if (!hashes.contains(asset.hash)) {
-                            Logger.d("remove " + entry.getKey());
-
-                            File file = new File(asset.filePath);
-                            file.delete();
-                            removals.add(entry.getKey());
-                        }
-                    }
-
-                    for (String s : removals) {
-                        manifest.assets.remove(s);
-                    }
+            ArrayList<String> removals = new ArrayList<>();
+            for (String name : manifest.names()) {
+                if (!hashes.contains(manifest.get(name))) {
+                    Logger.d("remove " + name);
+                    removals.add(name);
                 }
+            }
+
+            manifest.update(added, removals);
 
-                if (changed[0] || removals.size() > 0) {
-                    saveManifest();
+            if (!removals.isEmpty()) {
+                try {
+                    Set<String> usedHashes = AssetManifestJournal.hashesOfAllProjects(
+                            Snabble.getInstance().getInternalStorageDirectory());
+                    blobStore.retainAll(usedHashes);
+                } catch (IOException e) {
+                    Logger.e("Could not delete unused assets: " + e.getMessage());
                 }
-            });
+            }
 
             if (callback != null) {
                 callback.success();
@@ -384,15 +342,23 @@ public class Assets {
      * Get a bitmap from a given name and type
      */
     public Bitmap getBitmap(String name, Type type) {
+        return getBitmap(name, type, 0, 0);
+    }
+
+    /**
+     * Get a bitmap from a given name and type, decoded for the size in which it is displayed.
+     * A width or height of 0 means that the dimension is not limited.
+     */
+    public Bitmap getBitmap(String name, Type type, int width, int height) {
         Bitmap bitmap;
 
         switch (type) {
             case SVG:
-                bitmap = getBitmapSVG(name);
+                bitmap = getBitmapSVG(name, width, height);
                 break;
             case JPG:
             case WEBP:
-                bitmap = getBitmapByType(name, type);
+                bitmap = getBitmapByType(name, type, width, height);
                 break;
             default:
                 bitmap = null;
@@ -402,11 +368,10 @@ public class Assets {
         return bitmap;
     }
 
-    private Asset getAsset(String name, Type type) {
-        if (manifest == null) {
-            return null;
-        }
-
+    /**
+     * @return the hash of the asset, or null if it is not stored
+     */
+    private String getAsset(String name, Type type) {
         boolean nightMode = isNightModeActive(Snabble.getInstance().getApplication());
 
         String fileName = FilenameUtils.removeExtension(name) + (nightMode ? "_dark" : "");
@@ -423,21 +388,21 @@ public class Assets {
                 break;
         }
 
-        Asset asset = manifest.assets.get(fileName);
-        if (asset == null) {
+        String hash = manifest.get(fileName);
+        if (hash == null) {
             // try non night mode version
-            asset = manifest.assets.get(name);
+            hash = manifest.get(name);
         }
 
-        return asset;
+        return hash;
     }
 
-    private Bitmap getBitmapByType(String name, Type type) {
-        Asset asset = getAsset(name, type);
-        if (asset != null) {
+    private Bitmap getBitmapByType(String name, Type type, int width, int height) {
+        String hash = getAsset(name, type);
+        if (hash != null) {
             try {
                 Logger.d("render %s %s/%s", type.name(), project.getId(), name);
-                return BitmapFactory.decodeStream(new FileInputStream(asset.filePath));
+                return BitmapDecoder.decodeSampled(blobStore.fileOf(hash), width, height);
             } catch (Exception e) {
                 Logger.d("could not decode " + name + ": " + e.toString());
                 return null;
@@ -447,26 +412,14 @@ public class Assets {
         return null;
     }
 
-    private Bitmap getBitmapSVG(String name) {
-        Asset asset = getAsset(name, Type.SVG);
-        if (asset != null) {
-            try {
+    private Bitmap getBitmapSVG(String name, int width, int height) {
+        String hash = getAsset(name, Type.SVG);
+        if (hash != null) {
+            try (FileInputStream inputStream = new FileInputStream(blobStore.fileOf(hash))) {
                 Logger.d("render SVG %s/%s", project.getId(), name);
 
-                Resources res = app.getResources();
-                DisplayMetrics dm = res.getDisplayMetrics();
-
-                SVG svg = SVG.getFromInputStream(new FileInputStream(asset.filePath));
-                int width = Math.round(svg.getDocumentWidth() * dm.density);
-                int height = Math.round(svg.getDocumentHeight() * dm.density);
-
-                svg.setDocumentWidth(width);
-                svg.setDocumentHeight(height);
-
-                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(bitmap);
-                svg.renderToCanvas(canvas);
-                return bitmap;
+                DisplayMetrics dm = app.getResources().getDisplayMetrics();
+                return BitmapDecoder.renderSvg(inputStream, dm.density, width, height);
             } catch (Exception e) {
                 Logger.d("could not decode " + name + ": " + e.toString());
                 return null;
@@ -494,6 +447,16 @@ public class Assets {
      * Get a bitmap from a given name and type. Can be done asynchronously.
      */
     public void get(String name, Type type, boolean async, Callback callback) {
+        get(name, type, 0, 0, async, callback);
+    }
+
+    /**
+     * Get a bitmap from a given name and type, decoded for the size in which it is displayed.
+     * A width or height of 0 means that the dimension is not limited. Can be done asynchronously.
+     *
+     * Bitmaps are cached per asset and size, so the same size should be requested for the same view.
+     */
+    public void get(String name, Type type, int width, int height, boolean async, Callback callback) {
         String fileName = FilenameUtils.removeExtension(name);
         switch (type) {
             case SVG:
@@ -508,10 +471,9 @@ public class Assets {
         }
         final String finalFileName = fileName;
 
-        Asset asset = getAsset(name, type);
-        if (asset != null) {
-            String cacheKey = asset.hash;
-            Bitmap cachedBitmap = getBitmapFromMemCache(cacheKey);
+        String hash = getAsset(name, type);
+        if (hash != null) {
+            Bitmap cachedBitmap = imageRepository.getCachedBitmap(getCacheKey(hash, width, height));
             if (cachedBitmap != null) {
                 callback.onReceive(cachedBitmap);
                 return;
@@ -520,23 +482,17 @@ public class Assets {
 
         if (async) {
             Dispatch.background(() -> {
-                get(finalFileName, type, callback);
+                get(finalFileName, type, width, height, callback);
             });
         } else {
-            get(finalFileName, type, callback);
+            get(finalFileName, type, width, height, callback);
         }
     }
 
-    private void get(String name, Type type, Callback callback) {
-        Bitmap bitmap = getBitmap(name, type);
+    private void get(String name, Type type, int width, int height, Callback callback) {
+        Bitmap bitmap = getCachedOrDecodedBitmap(name, type, width, height);
         if (bitmap != null) {
             Logger.d("cache hit " + name);
-            Asset asset = getAsset(name, type);
-            if (asset != null) {
-                String cacheKey = asset.hash;
-                addBitmapToMemoryCache(cacheKey, bitmap);
-            }
-
             Dispatch.mainThread(() -> callback.onReceive(bitmap));
         } else {
             Logger.d("cache miss " + name);
@@ -544,13 +500,7 @@ public class Assets {
             download(name, new DownloadCallback() {
                 @Override
                 public void success() {
-                    Bitmap b = getBitmap(name, type);
-                    Asset asset = getAsset(name, type);
-                    if (asset != null) {
-                        String cacheKey = asset.hash;
-                        addBitmapToMemoryCache(cacheKey, b);
-                    }
-
+                    Bitmap b = getCachedOrDecodedBitmap(name, type, width, height);
                     Dispatch.mainThread(() -> callback.onReceive(b));
                 }
 
@@ -563,16 +513,32 @@ public class Assets {
         }
     }
 
-    private static void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        if (getBitmapFromMemCache(key) == null) {
-            Logger.d("put lru cache %d / %d MB %s", memoryCache.size() / 1024, memoryCache.maxSize() / 1024, key);
-            memoryCache.put(key, bitmap);
+    /**
+     * Looks up the bitmap in the memory and disk cache, and decodes and caches it if it is not cached.
+     */
+    private Bitmap getCachedOrDecodedBitmap(String name, Type type, int width, int height) {
+        String hash = getAsset(name, type);
+        if (hash == null) {
+            return null;
         }
-    }
 
-    private static Bitmap getBitmapFromMemCache(String key) {
-        Bitmap bitmap = memoryCache.get(key);
-        Logger.d("get lru cache %s %s", bitmap != null ? "HIT" : "MISS", key);
+        String cacheKey = getCacheKey(hash, width, height);
+        Bitmap bitmap = imageRepository.getCachedBitmap(cacheKey);
+        // reading the disk cache blocks, so it is skipped on the main thread
+        if (bitmap == null && Looper.myLooper() != Looper.getMainLooper()) {
+            bitmap = imageRepository.getBitmapBlocking(cacheKey);
+        }
+        if (bitmap == null) {
+            bitmap = getBitmap(name, type, width, height);
+            if (bitmap != null) {
+                imageRepository.putBitmapAsync(cacheKey, bitmap);
+            }
+        }
         return bitmap;
     }
+
+    private static String getCacheKey(String hash, int width, int height) {
+        // the hash differs between the day and night variant of an asset
+        return BitmapDecoder.cacheKey(hash, width, height);
+    }
 }
\ No newline at end of file
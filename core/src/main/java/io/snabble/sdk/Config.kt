@@ -153,6 +153,15 @@ data class Config (
      */
     @JvmField
     var manualProductDatabaseUpdates: Boolean = false,
+
+    /**
+     * The time in seconds the backend may hold a request for the state of a running checkout until
+     * the state changes (long polling).
+     *
+     * The default value is 0, which polls the state in an adaptive interval instead.
+     */
+    @JvmField
+    var checkoutLongPollSeconds: Int = 0,
 ) {
     fun save(context: Context) {
         val file = File(context.filesDir, "snabble/${fileName}/")
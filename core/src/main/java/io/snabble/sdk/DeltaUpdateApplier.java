@@ -0,0 +1,316 @@
+package io.snabble.sdk;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Executes the statements of a delta update on a database.
+ * <p>
+ * Delta updates mostly consist of thousands of INSERT, UPDATE and DELETE statements of the same
+ * few shapes that only differ in their literal values. Those literals are extracted into bind
+ * arguments, so a compiled {@link SQLiteStatement} can be reused for every statement of
+ * the same shape instead of compiling each statement again.
+ * <p>
+ * Statements that can not be parameterized safely are executed as they are.
+ */
+class DeltaUpdateApplier {
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    private final SQLiteDatabase db;
+    private final Map<String, SQLiteStatement> statements =
+            new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > MAX_CACHED_STATEMENTS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private int statementCount;
+    private int compiledStatementCount;
+    private int reusedStatementCount;
+
+    DeltaUpdateApplier(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Executes all statements of the input stream. Needs to be called inside a transaction,
+     * the caller is responsible for committing or rolling back.
+     *
+     * @throws IOException if reading the input stream fails
+     * @throws android.database.SQLException if a statement is invalid
+     */
+    void apply(InputStream inputStream) throws IOException {
+        DeltaUpdateReader reader = new DeltaUpdateReader(inputStream);
+
+        String sql;
+        while ((sql = reader.next()) != null) {
+            execute(sql);
+        }
+    }
+
+    private void execute(String sql) {
+        String trimmed = sql.trim();
+        if (trimmed.isEmpty() || isCommentOnly(trimmed)) {
+            return;
+        }
+
+        statementCount++;
+
+        ParameterizedStatement parameterized = isDataModification(trimmed) ? parameterize(trimmed) : null;
+        if (parameterized == null) {
+            try {
+                db.execSQL(trimmed);
+            } catch (SQLiteException e) {
+                //code 0 = "not an error" - statements like comments are causing that exception
+                //which we want to allow
+                String message = e.getMessage();
+                if (message == null || !message.contains("code 0")) {
+                    throw e;
+                }
+            }
+            return;
+        }
+
+        SQLiteStatement statement = statements.get(parameterized.sql);
+        if (statement == null) {
+            statement = db.compileStatement(parameterized.sql);
+            statements.put(parameterized.sql, statement);
+            compiledStatementCount++;
+        } else {
+            reusedStatementCount++;
+        }
+
+        Object[] args = parameterized.args;
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg instanceof Long) {
+                statement.bindLong(i + 1, (Long) arg);
+            } else if (arg instanceof Double) {
+                statement.bindDouble(i + 1, (Double) arg);
+            } else {
+                statement.bindString(i + 1, (String) arg);
+            }
+        }
+
+        try {
+            statement.execute();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /**
+     * Closes all cached statements.
+     */
+    void close() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+    }
+
+    int getStatementCount() {
+        return statementCount;
+    }
+
+    int getCompiledStatementCount() {
+        return compiledStatementCount;
+    }
+
+    int getReusedStatementCount() {
+        return reusedStatementCount;
+    }
+
+    /**
+     * Returns true if the statement consists only of comments, which are not an error in a
+     * delta update but can not be executed.
+     */
+    static boolean isCommentOnly(String sql) {
+        int length = sql.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c) || c == ';') {
+                i++;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+            } else {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isDataModification(String sql) {
+        int end = 0;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+
+        String keyword = sql.substring(0, end).toUpperCase(Locale.ROOT);
+        return keyword.equals("INSERT")
+                || keyword.equals("UPDATE")
+                || keyword.equals("DELETE")
+                || keyword.equals("REPLACE");
+    }
+
+    /**
+     * Replaces string and number literals of a statement with bind parameters.
+     *
+     * @return the parameterized statement, or null if the statement contains constructs that
+     * are not handled, like blob or hex literals and comments.
+     */
+    static ParameterizedStatement parameterize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        List<Object> args = new ArrayList<>();
+
+        int length = sql.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        return null;
+                    }
+
+                    char sc = sql.charAt(i);
+                    if (sc == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            value.append('\'');
+                            i += 2;
+                        } else {
+                            i++;
+                            break;
+                        }
+                    } else {
+                        value.append(sc);
+                        i++;
+                    }
+                }
+
+                sb.append('?');
+                args.add(value.toString());
+            } else if (c == '"' || c == '`' || c == '[') {
+                char close = c == '[' ? ']' : c;
+                int end = sql.indexOf(close, i + 1);
+                if (end == -1) {
+                    return null;
+                }
+
+                sb.append(sql, i, end + 1);
+                i = end + 1;
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i))
+                        || sql.charAt(i) == '_' || sql.charAt(i) == '$')) {
+                    i++;
+                }
+
+                // blob literal X'...'
+                if (i - start == 1 && (c == 'x' || c == 'X') && i < length && sql.charAt(i) == '\'') {
+                    return null;
+                }
+
+                sb.append(sql, start, i);
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+                if (c == '0' && i + 1 < length && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+                    return null;
+                }
+
+                int start = i;
+                boolean isFloat = false;
+                while (i < length && Character.isDigit(sql.charAt(i))) {
+                    i++;
+                }
+
+                if (i < length && sql.charAt(i) == '.') {
+                    isFloat = true;
+                    i++;
+                    while (i < length && Character.isDigit(sql.charAt(i))) {
+                        i++;
+                    }
+                }
+
+                if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+                    isFloat = true;
+                    i++;
+                    if (i < length && (sql.charAt(i) == '+' || sql.charAt(i) == '-')) {
+                        i++;
+                    }
+                    while (i < length && Character.isDigit(sql.charAt(i))) {
+                        i++;
+                    }
+                }
+
+                String number = sql.substring(start, i);
+                try {
+                    if (isFloat) {
+                        args.add(Double.parseDouble(number));
+                    } else {
+                        args.add(Long.parseLong(number));
+                    }
+                } catch (NumberFormatException e) {
+                    // integers not fitting into 64 bit are treated as REAL by SQLite
+                    return null;
+                }
+
+                sb.append('?');
+            } else if ((c == '-' && i + 1 < length && sql.charAt(i + 1) == '-')
+                    || (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*')) {
+                return null;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+
+        // a trailing ; would make compileStatement fail if it is followed by whitespace
+        int end = sb.length();
+        while (end > 0 && (Character.isWhitespace(sb.charAt(end - 1)) || sb.charAt(end - 1) == ';')) {
+            end--;
+        }
+        sb.setLength(end);
+
+        if (sb.indexOf(";") != -1) {
+            // multiple statements, let execSQL handle it
+            return null;
+        }
+
+        return new ParameterizedStatement(sb.toString(), args.toArray());
+    }
+
+    static class ParameterizedStatement {
+        final String sql;
+        final Object[] args;
+
+        ParameterizedStatement(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+    }
+}
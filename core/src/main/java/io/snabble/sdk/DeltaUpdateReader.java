@@ -0,0 +1,84 @@
+package io.snabble.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the statements of a delta update incrementally from an input stream.
+ * <p>
+ * Delta update statements are split by ;\n\n - occurrences of ;\n\n in strings are
+ * escaped by the backend - splitting by just ; is not enough because of eventual
+ * occurrences in database rows.
+ * <p>
+ * Other than {@link java.util.Scanner}, IOExceptions of the underlying stream are not swallowed
+ * but thrown by {@link #next()}. The input stream is not closed by this class.
+ */
+class DeltaUpdateReader {
+    private static final String DELIMITER = ";\n\n";
+
+    private final Reader reader;
+    private final char[] buffer = new char[16 * 1024];
+    private final StringBuilder statement = new StringBuilder();
+    private int bufferPosition;
+    private int bufferLength;
+    private boolean eof;
+
+    DeltaUpdateReader(InputStream inputStream) {
+        reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The next statement, without its delimiter, or null if the end of the stream is reached.
+     */
+    String next() throws IOException {
+        if (eof) {
+            return null;
+        }
+
+        statement.setLength(0);
+        int matched = 0;
+
+        while (true) {
+            if (bufferPosition == bufferLength) {
+                bufferLength = reader.read(buffer);
+                bufferPosition = 0;
+
+                if (bufferLength <= 0) {
+                    bufferLength = 0;
+                    eof = true;
+
+                    if (matched > 0) {
+                        statement.append(DELIMITER, 0, matched);
+                    }
+
+                    return statement.length() > 0 ? statement.toString() : null;
+                }
+            }
+
+            char c = buffer[bufferPosition++];
+            if (c == DELIMITER.charAt(matched)) {
+                matched++;
+                if (matched == DELIMITER.length()) {
+                    return statement.toString();
+                }
+            } else {
+                if (matched > 0) {
+                    statement.append(DELIMITER, 0, matched);
+                    matched = 0;
+
+                    // the delimiter only contains its first character once, so a mismatch
+                    // can only restart a match at this character
+                    if (c == DELIMITER.charAt(0)) {
+                        matched = 1;
+                        continue;
+                    }
+                }
+
+                statement.append(c);
+            }
+        }
+    }
+}
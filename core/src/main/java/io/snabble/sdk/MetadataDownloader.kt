@@ -1,5 +1,6 @@
 package io.snabble.sdk
 
+import android.os.SystemClock
 import androidx.annotation.RestrictTo
 import com.google.gson.JsonObject
 import okhttp3.OkHttpClient
@@ -8,6 +9,7 @@ import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
 import java.io.File
 import java.lang.Exception
+import java.security.MessageDigest
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 internal class MetadataDownloader(
@@ -20,6 +22,20 @@ internal class MetadataDownloader(
     var jsonObject: JsonObject? = null
         private set
 
+    /**
+     * Increases every time [jsonObject] changes, downloads with the same content keep the revision
+     */
+    var revision = 0
+        private set
+
+    /**
+     * The time it took to parse the json of the last changed metadata, in milliseconds
+     */
+    var parseDurationMs = 0L
+        private set
+
+    private var contentHash: String? = null
+
     init {
         val storageFile = File(Snabble.internalStorageDirectory, "metadata_v2.json")
         if (bundledFileAssetPath != null || bundledFileRawResId != 0) {
@@ -33,11 +49,27 @@ internal class MetadataDownloader(
     @Synchronized
     override fun onDownloadFinished(content: String) {
         try {
+            val hash = sha256(content)
+            if (hash == contentHash && jsonObject != null) {
+                Logger.d("Metadata did not change")
+                return
+            }
+
             updateStorage(content)
+
+            val start = SystemClock.elapsedRealtime()
             jsonObject = GsonHolder.get().fromJson(content, JsonObject::class.java)
+            parseDurationMs = SystemClock.elapsedRealtime() - start
+            contentHash = hash
+            revision++
             hasData = true
         } catch (e: Exception) {
             Logger.e(e.message)
         }
     }
-}
\ No newline at end of file
+
+    private fun sha256(content: String): String =
+        MessageDigest.getInstance("SHA-256")
+            .digest(content.toByteArray(Charsets.UTF_8))
+            .joinToString("") { "%02x".format(it) }
+}
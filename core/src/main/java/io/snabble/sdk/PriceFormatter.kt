@@ -1,24 +1,63 @@
 package io.snabble.sdk
 
-import android.util.LruCache
 import kotlin.jvm.JvmOverloads
 import io.snabble.sdk.codes.ScannedCode
 import java.math.BigDecimal
+import java.text.DecimalFormat
 import java.text.NumberFormat
 
 /**
  * A price formatter for formatting prices using the provided currency information
  *
+ * Prices are formatted as fixed-point numbers from the prefix, suffix and separators of the currency
+ * format of the project, which are read once when the formatter is created. Formats that can not be
+ * reproduced this way are formatted by the [NumberFormat] of the currency instead.
+ *
+ * The formatter is safe to use from multiple threads.
  */
 class PriceFormatter(private val project: Project) {
     private val numberFormat: NumberFormat = NumberFormat.getCurrencyInstance(project.currencyLocale)
-    private val cache: LruCache<Int, String> = LruCache(100)
+    private val fractionDigits = project.currencyFractionDigits.coerceAtLeast(0)
+    private val fractionDivider = pow10(fractionDigits)
+
+    private val positivePrefix: String
+    private val positiveSuffix: String
+    private val negativePrefix: String
+    private val negativeSuffix: String
+    private val decimalSeparator: Char
+    private val groupingSeparator: Char
+    private val groupingSize: Int
+    private val isFixedPoint: Boolean
 
     init {
         numberFormat.currency = project.currency
-        val fractionDigits = project.currencyFractionDigits
         numberFormat.minimumFractionDigits = fractionDigits
         numberFormat.maximumFractionDigits = fractionDigits
+
+        val decimalFormat = numberFormat as? DecimalFormat
+        if (decimalFormat != null) {
+            val symbols = decimalFormat.decimalFormatSymbols
+            positivePrefix = overrideCurrencySymbol(decimalFormat.positivePrefix)
+            positiveSuffix = overrideCurrencySymbol(decimalFormat.positiveSuffix)
+            negativePrefix = overrideCurrencySymbol(decimalFormat.negativePrefix)
+            negativeSuffix = overrideCurrencySymbol(decimalFormat.negativeSuffix)
+            decimalSeparator = symbols.monetaryDecimalSeparator
+            groupingSeparator = symbols.groupingSeparator
+            groupingSize = if (decimalFormat.isGroupingUsed) decimalFormat.groupingSize else 0
+        } else {
+            positivePrefix = ""
+            positiveSuffix = ""
+            negativePrefix = ""
+            negativeSuffix = ""
+            decimalSeparator = '.'
+            groupingSeparator = ','
+            groupingSize = 0
+        }
+
+        // e.g. secondary grouping sizes or native digits are not covered by the fixed-point format
+        isFixedPoint = decimalFormat != null && SAMPLE_PRICES.all { price ->
+            appendFixedPoint(StringBuilder(), price).toString() == formatWithNumberFormat(price)
+        }
     }
 
     /**
@@ -30,28 +69,28 @@ class PriceFormatter(private val project: Project) {
             return ""
         }
 
-        val cachedValue = cache[price]
-        if (cachedValue != null) {
-            return cachedValue
+        if (!isFixedPoint) {
+            return formatWithNumberFormat(price)
         }
 
-        val fractionDigits = project.currencyFractionDigits
-        val bigDecimal = BigDecimal(price)
-        val divider = BigDecimal(10).pow(fractionDigits)
-        val dividedPrice = bigDecimal.divide(divider, fractionDigits, project.roundingMode)
-        val formattedPrice = numberFormat.format(dividedPrice)
-
-        // Android 4.x and 6 (but not 5 and 7+) are shipping with ICU versions
-        // that have the currency symbol set to HUF instead of Ft for Locale hu_HU
-        //
-        // including the whole ICU library as a dependency increased APK size by 10MB
-        // so we are overriding the result here instead for consistency
-        if (project.currency.currencyCode == "HUF") {
-            return formattedPrice.replace("HUF", "Ft")
-        }
+        val sb = builder()
+        appendFixedPoint(sb, price)
+        return sb.toString()
+    }
 
-        cache.put(price, formattedPrice)
-        return formattedPrice
+    /**
+     * Format a price into the given [StringBuilder], e.g. to build the text of a list item without
+     * creating intermediate strings.
+     *
+     * Returns the passed [StringBuilder].
+     */
+    fun formatTo(sb: StringBuilder, price: Int): StringBuilder {
+        if (isFixedPoint) {
+            appendFixedPoint(sb, price)
+        } else {
+            sb.append(formatWithNumberFormat(price))
+        }
+        return sb
     }
 
     /**
@@ -60,16 +99,17 @@ class PriceFormatter(private val project: Project) {
      * Display's in units for example gram's if a Product is using conversion units.
      */
     fun format(product: Product, price: Int): String {
-        var formattedString = format(price, false)
-        val type = product.type
-        var referenceUnit = product.referenceUnit
-        if (referenceUnit == null) {
-            referenceUnit = Unit.KILOGRAM
+        if (product.type != Product.Type.PreWeighed) {
+            return format(price, false)
         }
-        if (type == Product.Type.PreWeighed) {
-            formattedString += " / " + referenceUnit.displayValue
+
+        val referenceUnit = product.referenceUnit ?: Unit.KILOGRAM
+        val sb = builder()
+        if (price != 0) {
+            formatTo(sb, price)
         }
-        return formattedString
+        sb.append(" / ").append(referenceUnit.displayValue)
+        return sb.toString()
     }
 
     /**
@@ -88,4 +128,84 @@ class PriceFormatter(private val project: Project) {
         }
         return format(product, price)
     }
+
+    private fun appendFixedPoint(sb: StringBuilder, price: Int): StringBuilder {
+        // widened, the absolute value of Int.MIN_VALUE does not fit into an Int
+        val absolutePrice = Math.abs(price.toLong())
+        val integerPart = absolutePrice / fractionDivider
+        val fractionPart = absolutePrice % fractionDivider
+
+        sb.append(if (price < 0) negativePrefix else positivePrefix)
+        appendGrouped(sb, integerPart)
+        if (fractionDigits > 0) {
+            sb.append(decimalSeparator)
+            var divider = fractionDivider / 10
+            while (divider > 0) {
+                sb.append('0' + (fractionPart / divider % 10).toInt())
+                divider /= 10
+            }
+        }
+        sb.append(if (price < 0) negativeSuffix else positiveSuffix)
+        return sb
+    }
+
+    private fun appendGrouped(sb: StringBuilder, value: Long) {
+        // digits are appended from the lowest one and reversed afterwards
+        val start = sb.length
+        var remaining = value
+        var digits = 0
+        do {
+            if (groupingSize > 0 && digits > 0 && digits % groupingSize == 0) {
+                sb.append(groupingSeparator)
+            }
+            sb.append('0' + (remaining % 10).toInt())
+            remaining /= 10
+            digits++
+        } while (remaining > 0)
+
+        var left = start
+        var right = sb.length - 1
+        while (left < right) {
+            val c = sb[left]
+            sb.setCharAt(left, sb[right])
+            sb.setCharAt(right, c)
+            left++
+            right--
+        }
+    }
+
+    private fun formatWithNumberFormat(price: Int): String {
+        // the scale of the price is exactly the number of fraction digits, no rounding is needed
+        val formattedPrice = synchronized(numberFormat) {
+            numberFormat.format(BigDecimal.valueOf(price.toLong(), fractionDigits))
+        }
+        return overrideCurrencySymbol(formattedPrice)
+    }
+
+    // Android 4.x and 6 (but not 5 and 7+) are shipping with ICU versions
+    // that have the currency symbol set to HUF instead of Ft for Locale hu_HU
+    //
+    // including the whole ICU library as a dependency increased APK size by 10MB
+    // so we are overriding the result here instead for consistency
+    private fun overrideCurrencySymbol(text: String): String =
+        if (project.currency.currencyCode == "HUF") text.replace("HUF", "Ft") else text
+
+    private companion object {
+        private val SAMPLE_PRICES = intArrayOf(
+            0, 1, 9, 10, 99, 100, 1234, 99999, 123456, 1234567, 123456789,
+            -1, -10, -1234, -1234567, Int.MAX_VALUE, Int.MIN_VALUE
+        )
+
+        private val builders = object : ThreadLocal<StringBuilder>() {
+            override fun initialValue() = StringBuilder(32)
+        }
+
+        private fun builder(): StringBuilder = builders.get()!!.apply { setLength(0) }
+
+        private fun pow10(exponent: Int): Long {
+            var result = 1L
+            repeat(exponent) { result *= 10 }
+            return result
+        }
+    }
 }
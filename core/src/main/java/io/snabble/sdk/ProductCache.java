@@ -0,0 +1,133 @@
+package io.snabble.sdk;
+
+import androidx.collection.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of products materialized by the {@link ProductDatabase}.
+ * <p>
+ * Products are keyed by the checked-in shop and either their sku or their (lookup code, template)
+ * pair, so shop specific prices are never served for another shop.
+ * <p>
+ * The cache is bound to a database revision. Changing the revision or swapping the database file
+ * evicts all entries, and results of lookups that were started before that are not stored anymore.
+ */
+public class ProductCache {
+    private static final int DEFAULT_MAX_SIZE = 4096;
+
+    private final LruCache<String, Product> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private long revisionId = -1;
+    private volatile long generation;
+
+    ProductCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    ProductCache(int maxSize) {
+        cache = new LruCache<String, Product>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Product product) {
+                return estimateSize(product);
+            }
+        };
+    }
+
+    static String skuKey(Shop shop, String sku) {
+        return shopId(shop) + "/sku/" + sku;
+    }
+
+    static String codeKey(Shop shop, String lookupCode, String templateName) {
+        return shopId(shop) + "/code/" + templateName + "/" + lookupCode;
+    }
+
+    private static String shopId(Shop shop) {
+        return shop != null ? shop.getId() : "";
+    }
+
+    private static int estimateSize(Product product) {
+        int size = 1 + product.getScannableCodes().length;
+
+        Product depositProduct = product.getDepositProduct();
+        if (depositProduct != null) {
+            size += estimateSize(depositProduct);
+        }
+
+        for (Product bundleProduct : product.getBundleProducts()) {
+            size += estimateSize(bundleProduct);
+        }
+
+        return size;
+    }
+
+    Product get(String key) {
+        Product product = cache.get(key);
+        if (product != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return product;
+    }
+
+    /**
+     * @return The current generation, which needs to be passed to {@link #put(String, Product, long)}
+     * after the lookup finished.
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a product that was loaded in the given generation. Does nothing if the cache was
+     * invalidated in the meantime.
+     */
+    synchronized void put(String key, Product product, long fromGeneration) {
+        if (product != null && fromGeneration == generation) {
+            cache.put(key, product);
+        }
+    }
+
+    /**
+     * Evicts all entries if the revision differs from the one the cache currently holds.
+     */
+    synchronized void invalidate(long newRevisionId) {
+        if (newRevisionId != revisionId) {
+            revisionId = newRevisionId;
+            generation++;
+            cache.evictAll();
+        }
+    }
+
+    /**
+     * Evicts all entries, regardless of the current revision.
+     */
+    synchronized void clear() {
+        revisionId = -1;
+        generation++;
+        cache.evictAll();
+    }
+
+    /**
+     * @return The number of lookups that were answered from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of lookups that needed to query the database.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of cached products, including deposit and bundled products.
+     */
+    public int size() {
+        return cache.size();
+    }
+}
@@ -6,6 +6,7 @@ import android.content.ContentValues;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.os.CancellationSignal;
@@ -20,9 +21,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import io.snabble.sdk.codes.ScannedCode;
@@ -48,6 +56,13 @@ public class ProductDatabase {
 
     private static final String SEPARATOR = "·";
 
+    // delta updates only vacuum if at least this ratio of database pages is unused
+    private static final double VACUUM_FREE_PAGE_RATIO = 0.25;
+
+    // stays well below SQLITE_MAX_VARIABLE_NUMBER (999 on older Android versions)
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int[] BATCH_SIZES = new int[]{1, 4, 16, 64, 256, MAX_BATCH_SIZE};
+
     private ShoppingCart shoppingCart;
     private SQLiteDatabase db;
     private final Product.Type[] productTypes = Product.Type.values();
@@ -67,6 +82,8 @@ public class ProductDatabase {
     private final Application application;
     private final ProductDatabaseDownloader productDatabaseDownloader;
     private final ProductApi productApi;
+    private final ProductCache productCache = new ProductCache();
+    private final Map<String, String> productSqlCache = new ConcurrentHashMap<>();
     private int defaultAvailability;
 
     ProductDatabase(Project project, ShoppingCart shoppingCart, String name, boolean generateSearchIndex) {
@@ -109,19 +126,14 @@ public class ProductDatabase {
 
                 db = SQLiteDatabase.openDatabase(file.getAbsolutePath(),
                         null, SQLiteDatabase.OPEN_READWRITE);
-                // since Android 9 the default WAL mode is "normal" instead of "full"
-                // which interferes with full database updates using a temp file
-                // so we disable it here
-                db.disableWriteAheadLogging();
-
-                try {
-                    revisionId = Long.parseLong(getMetaData(METADATA_KEY_REVISION));
-                } catch (NumberFormatException e) {
-                    revisionId = -1;
-                }
+                // delta updates are applied in a transaction on the database itself, with write
+                // ahead logging queries keep reading the last committed state in the meantime
+                db.enableWriteAheadLogging();
+                // product queries only differ in their bound arguments, so keeping more of them
+                // compiled avoids preparing the same statements over and over again
+                db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
 
-                schemaVersionMajor = Integer.parseInt(getMetaData(METADATA_KEY_SCHEMA_VERSION_MAJOR));
-                schemaVersionMinor = Integer.parseInt(getMetaData(METADATA_KEY_SCHEMA_VERSION_MINOR));
+                readMetaData();
 
                 if (schemaVersionMajor == 1 && schemaVersionMinor < 25) {
                     Logger.d("Database has incompatible schema, deleting local database");
@@ -129,14 +141,8 @@ public class ProductDatabase {
                     return false;
                 }
 
-                try {
-                    defaultAvailability = Integer.parseInt(getMetaData(METADATA_DEFAULT_AVAILABILITY));
-                } catch (Exception e) {
-                    defaultAvailability = 0;
-                }
-
                 createFTSIndexIfNecessary();
-                parseLastUpdateTimestamp();
+                productCache.invalidate(revisionId);
                 return true;
             } catch (Exception e) {
                 return false;
@@ -144,6 +150,25 @@ public class ProductDatabase {
         }
     }
 
+    private void readMetaData() {
+        try {
+            revisionId = Long.parseLong(getMetaData(METADATA_KEY_REVISION));
+        } catch (NumberFormatException e) {
+            revisionId = -1;
+        }
+
+        schemaVersionMajor = Integer.parseInt(getMetaData(METADATA_KEY_SCHEMA_VERSION_MAJOR));
+        schemaVersionMinor = Integer.parseInt(getMetaData(METADATA_KEY_SCHEMA_VERSION_MINOR));
+
+        try {
+            defaultAvailability = Integer.parseInt(getMetaData(METADATA_DEFAULT_AVAILABILITY));
+        } catch (Exception e) {
+            defaultAvailability = 0;
+        }
+
+        parseLastUpdateTimestamp();
+    }
+
     private void close() {
         synchronized (dbLock) {
             if (db != null) {
@@ -302,13 +327,16 @@ public class ProductDatabase {
      * Applies a delta update from an input stream. The input stream should contain a series
      * of sql statements.
      * <p>
+     * Statements are parsed incrementally from the stream and applied in a single transaction
+     * on the database itself, so no copy of the database is needed. The transaction is only
+     * committed if the database passes a quick integrity check and still has a compatible schema.
+     * <p>
      * If the input stream contains invalid sql statements no changes will be made to the database.
      * <p>
-     * While updating, the database can still be queried for reads.
+     * While updating, the database can still be queried for reads, which see the state before
+     * the update until it is committed.
      * <p>
      * If a read error occurs, an IOException will be thrown.
-     * <p>
-     * Returns true if successful, false otherwise
      */
     synchronized void applyDeltaUpdate(InputStream inputStream) throws IOException {
         if (dbName == null) {
@@ -320,111 +348,138 @@ public class ProductDatabase {
         long fromRevisionId = getRevisionId();
         long time = SystemClock.elapsedRealtime();
 
-        File dbFile = application.getDatabasePath(dbName);
-        File tempDbFile = application.getDatabasePath("_" + dbName);
-
-        if (!deleteDatabase(tempDbFile)) {
-            Logger.e("Could not apply delta update: Could not delete temp database");
+        // not holding dbLock while the transaction is open, queries run on other connections
+        final SQLiteDatabase database = db;
+        if (database == null || !database.isOpen()) {
+            project.logErrorEvent("Could not apply delta update: Database is not open");
             throw new IOException();
         }
 
         try {
-            FileUtils.copyFile(dbFile, tempDbFile);
-        } catch (IOException e) {
-            project.logErrorEvent("Could not copy db to temp file: %s", e.getMessage());
-            throw e;
+            database.beginTransactionNonExclusive();
+        } catch (SQLiteException e) {
+            project.logErrorEvent("Could not apply delta update: Could not access database");
+            throw new IOException();
         }
-        final SQLiteDatabase tempDb;
 
-        if (!tempDbFile.canRead() || !tempDbFile.canWrite())
-            throw new IOException("TempDbFile cannot be read and/or written.");
+        DeltaUpdateApplier applier = new DeltaUpdateApplier(database);
+        boolean success = false;
+        long indexTime = 0;
 
         try {
-            tempDb = SQLiteDatabase.openOrCreateDatabase(tempDbFile, null);
-        } catch (SQLiteException e) {
-            project.logErrorEvent("Could not open or create db: %s", e.getMessage());
-            throw new IOException("Could not open or create db", e);
-        }
+            applier.apply(inputStream);
 
-        Scanner scanner = new Scanner(inputStream, "UTF-8");
+            if (!isCompatibleSchema(database)) {
+                project.logErrorEvent("Could not apply delta update: Incompatible schema version");
+            } else if (!isQuickCheckOk(database)) {
+                project.logErrorEvent("Could not apply delta update: Integrity check failed");
+            } else {
+                indexTime = SystemClock.elapsedRealtime();
+                rebuildFTSIndex(database);
+                indexTime = SystemClock.elapsedRealtime() - indexTime;
 
-        //delta update statements are split by ;\n\n - occurrences of ;\n\n in strings are
-        //escaped replaced by the backend - splitting by just ; is not enough because of eventual
-        //occurrences in database rows
-        scanner.useDelimiter(";\n\n");
+                database.setTransactionSuccessful();
+                success = true;
+            }
+        } catch (IOException e) {
+            project.logErrorEvent("Could not apply delta update: %s", e.getMessage());
+        } catch (SQLException | IllegalStateException e) {
+            project.logErrorEvent("Could not apply delta update: %s", e.getMessage());
+        } finally {
+            applier.close();
+        }
 
         try {
-            tempDb.beginTransaction();
-        } catch (SQLiteException e) {
-            project.logErrorEvent("Could not apply delta update: Could not access temp database");
-            tempDb.close();
-            throw new IOException();
+            // rolls back if the transaction was not marked as successful
+            database.endTransaction();
+        } catch (SQLiteException | IllegalStateException e) {
+            project.logErrorEvent("Could not apply delta update: Could not finish transaction");
+            success = false;
         }
 
-        while (scanner.hasNext()) {
-            try {
-                String line = scanner.next();
-
-                //Scanner catches IOExceptions and stores the last thrown exception in ioException()
-                //because we want to handle possible IOExceptions we throw them here again if they
-                //occurred
-                IOException lastException = scanner.ioException();
-                if (lastException != null) {
-                    project.logErrorEvent("Could not apply delta update: %s", lastException.getMessage());
-                    tempDb.close();
-                    deleteDatabase(tempDbFile);
-                    throw lastException;
-                }
+        long applyTime = SystemClock.elapsedRealtime() - time;
 
-                tempDb.execSQL(line);
-            } catch (SQLiteException e) {
-                //code 0 = "not an error" - statements like empty strings are causing that exception
-                //which we want to allow
-                if (!e.getMessage().contains("code 0")) {
-                    project.logErrorEvent("Could not apply delta update: %s", e.getMessage());
-                    tempDb.close();
-                    deleteDatabase(tempDbFile);
-                    throw new IOException();
-                }
-            }
+        if (!success) {
+            throw new IOException();
         }
 
-        try {
-            tempDb.setTransactionSuccessful();
-            tempDb.endTransaction();
-        } catch (SQLiteException e) {
-            project.logErrorEvent("Could not apply delta update: Could not finish transaction on temp database");
-            tempDb.close();
-            throw new IOException();
+        synchronized (dbLock) {
+            productCache.clear();
+            readMetaData();
         }
 
-        //delta updates are making the database grow larger and larger, so we vacuum here
-        //to keep the database as small as possible
+        //delta updates are making the database grow larger, so we vacuum here if
+        //enough pages are unused to keep the database as small as possible
         long vacuumTime = SystemClock.elapsedRealtime();
+        boolean vacuumed = false;
         try {
-            tempDb.execSQL("VACUUM");
-        } catch (SQLiteException e) {
-            project.logErrorEvent("Could not apply delta update: %s", e.getMessage());
-            tempDb.close();
-            deleteDatabase(tempDbFile);
-            throw new IOException();
+            double freePageRatio = freePageRatio(database);
+            if (freePageRatio >= VACUUM_FREE_PAGE_RATIO) {
+                database.execSQL("VACUUM");
+                // the vacuumed pages are written to the log first, which would keep its size
+                checkpointWal(database);
+                vacuumed = true;
+            } else {
+                Logger.d("Skipping VACUUM, %.1f%% free pages", freePageRatio * 100);
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            // the delta update is already committed, the database is just larger then necessary
+            Logger.e("Could not vacuum database: %s", e.getMessage());
         }
+        vacuumTime = SystemClock.elapsedRealtime() - vacuumTime;
 
-        long vacuumTime2 = SystemClock.elapsedRealtime() - vacuumTime;
-        Logger.d("VACUUM took %d ms", vacuumTime2);
+        long time2 = SystemClock.elapsedRealtime() - time;
+        Logger.d("Delta update (%d -> %d) took %d ms " +
+                        "(apply: %d ms, %d statements, %d compiled, %d reused; fts: %d ms; vacuum: %s)",
+                fromRevisionId, getRevisionId(), time2,
+                applyTime, applier.getStatementCount(),
+                applier.getCompiledStatementCount(), applier.getReusedStatementCount(),
+                indexTime,
+                vacuumed ? vacuumTime + " ms" : "skipped");
+    }
+
+    private boolean isCompatibleSchema(SQLiteDatabase database) {
+        try (Cursor cursor = database.rawQuery("SELECT value FROM metadata WHERE key = ?",
+                new String[]{METADATA_KEY_SCHEMA_VERSION_MAJOR})) {
+            return cursor.moveToFirst()
+                    && Integer.parseInt(cursor.getString(0)) == SCHEMA_VERSION_MAJOR_COMPATIBILITY;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
-        tempDb.close();
+    private boolean isQuickCheckOk(SQLiteDatabase database) {
+        try (Cursor cursor = database.rawQuery("PRAGMA quick_check", null)) {
+            return cursor.moveToFirst() && "ok".equalsIgnoreCase(cursor.getString(0));
+        }
+    }
 
-        try {
-            swap(tempDbFile);
-        } catch (IOException e) {
-            project.logErrorEvent("Could not apply delta update: %s", e.getMessage());
-            tempDb.close();
-            throw new IOException();
+    private void checkpointWal(SQLiteDatabase database) {
+        try (Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+            cursor.moveToFirst();
         }
+    }
 
-        long time2 = SystemClock.elapsedRealtime() - time;
-        Logger.d("Delta update (%d -> %d) took %d ms", fromRevisionId, getRevisionId(), time2);
+    /**
+     * Refills the search index inside the transaction of a delta update, readers keep using the
+     * old index until the transaction is committed. The table is kept, so the schema does not
+     * change and compiled statements of other connections stay valid.
+     */
+    private void rebuildFTSIndex(SQLiteDatabase database) {
+        if (generateSearchIndex) {
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS searchByName USING fts4(sku TEXT, foldedName TEXT, tokenize=unicode61)");
+            database.execSQL("DELETE FROM searchByName");
+            database.execSQL("INSERT INTO searchByName SELECT sku, name FROM products");
+        }
+    }
+
+    private double freePageRatio(SQLiteDatabase database) {
+        long pageCount = android.database.DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        long freePages = android.database.DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        if (pageCount <= 0) {
+            return 0;
+        }
+        return (double) freePages / pageCount;
     }
 
     /**
@@ -465,6 +520,50 @@ public class ProductDatabase {
         Logger.d("Full update took %d ms", time2);
     }
 
+    /**
+     * Applies a full update from a downloaded file. The file is moved and not available
+     * anymore afterwards.
+     */
+    synchronized void applyFullUpdate(File downloadedFile) throws IOException {
+        if (dbName == null) {
+            return;
+        }
+
+        Logger.d("Applying full update...");
+
+        long time = SystemClock.elapsedRealtime();
+
+        File tempDbFile = application.getDatabasePath("_" + dbName);
+
+        if (!deleteDatabase(tempDbFile)) {
+            project.logErrorEvent("Could not apply full update: Could not delete old database download");
+            throw new IOException();
+        }
+
+        try {
+            FileUtils.moveFile(downloadedFile, tempDbFile);
+            swap(tempDbFile);
+        } catch (IOException e) {
+            project.logErrorEvent("Could not apply full update: %s", e.getMessage());
+            throw e;
+        }
+
+        long time2 = SystemClock.elapsedRealtime() - time;
+        Logger.d("Full update took %d ms", time2);
+    }
+
+    /**
+     * @return The file full updates are downloaded to, or null if the database is in memory only.
+     * The file is kept if a download gets interrupted, so it can be resumed later.
+     */
+    File getFullUpdateDownloadFile() {
+        if (dbName == null) {
+            return null;
+        }
+
+        return application.getDatabasePath("_" + dbName + ".download");
+    }
+
     private void dropFTSIndex() {
         if (generateSearchIndex) {
             synchronized (dbLock) {
@@ -628,7 +727,7 @@ public class ProductDatabase {
 
                 Dispatch.mainThread(() -> shoppingCart.updateProducts());
             }
-        }, deltaUpdateOnly);
+        }, deltaUpdateOnly, callback);
     }
 
     /**
@@ -664,6 +763,7 @@ public class ProductDatabase {
             revisionId = -1;
             schemaVersionMinor = -1;
             schemaVersionMajor = -1;
+            productCache.clear();
 
             Logger.d("Deleted database: " + dbName);
         }
@@ -707,6 +807,7 @@ public class ProductDatabase {
 
         synchronized (dbLock) {
             close();
+            productCache.clear();
 
             File dbFile = application.getDatabasePath(dbName);
 
@@ -760,6 +861,8 @@ public class ProductDatabase {
             File outputFile = application.getDatabasePath(dbName);
             //noinspection ResultOfMethodCallIgnored
             outputFile.getParentFile().mkdirs();
+            // a leftover write ahead log of the old database must not be applied to the new one
+            deleteDatabase(outputFile);
             FileOutputStream fos = new FileOutputStream(outputFile);
             IOUtils.copy(inputStream, fos);
         } catch (IOException e) {
@@ -861,33 +964,12 @@ public class ProductDatabase {
 
             String isPrimaryStr = cursor.getString(17);
             if (isPrimaryStr != null) {
-                String[] split = isPrimaryStr.split(SEPARATOR, -1);
-                if (split.length > 0) {
-                    codeIsPrimaryCode = new boolean[split.length];
-                    for (int i = 0; i < split.length; i++) {
-                        if (split[i].equals("1")) {
-                            codeIsPrimaryCode[i] = true;
-                        } else {
-                            codeIsPrimaryCode[i] = false;
-                        }
-                    }
-                }
+                codeIsPrimaryCode = parsePrimaryFlags(isPrimaryStr.split(SEPARATOR, -1));
             }
 
             String specifiedQuantities = cursor.getString(18);
             if (specifiedQuantities != null) {
-                String[] split = specifiedQuantities.split(SEPARATOR, -1);
-                if (split.length > 0) {
-                    codeSpecifiedQuantities = new int[split.length];
-                    for (int i = 0; i < split.length; i++) {
-                        try {
-                            int value = Integer.parseInt(split[i]);
-                            codeSpecifiedQuantities[i] = value;
-                        } catch (Exception e) {
-                            codeSpecifiedQuantities[i] = 0;
-                        }
-                    }
-                }
+                codeSpecifiedQuantities = parseSpecifiedQuantities(specifiedQuantities.split(SEPARATOR, -1));
             }
 
             String transmissionTemplatesStr = cursor.getString(19);
@@ -902,85 +984,124 @@ public class ProductDatabase {
         }
 
         if (lookupCodes != null) {
-            Product.Code[] productCodes = new Product.Code[lookupCodes.length];
-            for (int i = 0; i < productCodes.length; i++) {
-                String lookupCode = lookupCodes[i];
-                String transmissionCode = null;
-                Unit codeEncodingUnit = null;
-                CodeTemplate template = null;
-                CodeTemplate transmissionTemplate = null;
-
-                // BRAINDUMP: transmissionCodes und productCodes length !=
-
-                if (transmissionCodes != null) {
-                    String tc = transmissionCodes[i];
-                    if (!tc.equals("")) {
-                        transmissionCode = tc;
-                    }
-                }
+            builder.setScannableCodes(buildProductCodes(lookupCodes, transmissionCodes, codeEncodingUnits,
+                    templates, codeIsPrimaryCode, codeSpecifiedQuantities, transmissionTemplates));
+        }
 
-                if (codeEncodingUnits != null) {
-                    codeEncodingUnit = Unit.fromString(codeEncodingUnits[i]);
+        int availability = cursor.getInt(21);
+        Product.Availability[] availabilities = Product.Availability.values();
+        if (availability >= 0 && availability < availabilities.length) {
+            builder.setAvailability(availabilities[availability]);
+        }
+
+        Shop shop = Snabble.getInstance().getCheckedInShop();
+
+        if (!queryPrice(builder, sku, shop)) {
+            queryPrice(builder, sku, null);
+        }
+
+        return builder.build();
+    }
+
+    private boolean[] parsePrimaryFlags(String[] values) {
+        if (values.length == 0) {
+            return null;
+        }
+
+        boolean[] flags = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            flags[i] = values[i].equals("1");
+        }
+        return flags;
+    }
+
+    private int[] parseSpecifiedQuantities(String[] values) {
+        if (values.length == 0) {
+            return null;
+        }
+
+        int[] quantities = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                quantities[i] = Integer.parseInt(values[i]);
+            } catch (Exception e) {
+                quantities[i] = 0;
+            }
+        }
+        return quantities;
+    }
+
+    private Product.Code[] buildProductCodes(String[] lookupCodes,
+                                             String[] transmissionCodes,
+                                             String[] codeEncodingUnits,
+                                             String[] templates,
+                                             boolean[] codeIsPrimaryCode,
+                                             int[] codeSpecifiedQuantities,
+                                             String[] transmissionTemplates) {
+        Product.Code[] productCodes = new Product.Code[lookupCodes.length];
+        for (int i = 0; i < productCodes.length; i++) {
+            String lookupCode = lookupCodes[i];
+            String transmissionCode = null;
+            Unit codeEncodingUnit = null;
+            CodeTemplate template = null;
+            CodeTemplate transmissionTemplate = null;
+
+            // BRAINDUMP: transmissionCodes und productCodes length !=
+
+            if (transmissionCodes != null) {
+                String tc = transmissionCodes[i];
+                if (!tc.equals("")) {
+                    transmissionCode = tc;
                 }
+            }
 
-                if (templates != null) {
-                    String templateStr = templates[i];
-                    for (CodeTemplate codeTemplate : project.getCodeTemplates()) {
-                        if (codeTemplate.getName().equals(templateStr)) {
-                            template = codeTemplate;
-                        }
+            if (codeEncodingUnits != null) {
+                codeEncodingUnit = Unit.fromString(codeEncodingUnits[i]);
+            }
+
+            if (templates != null) {
+                String templateStr = templates[i];
+                for (CodeTemplate codeTemplate : project.getCodeTemplates()) {
+                    if (codeTemplate.getName().equals(templateStr)) {
+                        template = codeTemplate;
                     }
                 }
+            }
 
-                if (transmissionTemplates != null) {
-                    String transmissionTemplateStr = transmissionTemplates[i];
-                    for (CodeTemplate codeTemplate : project.getCodeTemplates()) {
-                        if (codeTemplate.getName().equals(transmissionTemplateStr)) {
-                            transmissionTemplate = codeTemplate;
-                        }
+            if (transmissionTemplates != null) {
+                String transmissionTemplateStr = transmissionTemplates[i];
+                for (CodeTemplate codeTemplate : project.getCodeTemplates()) {
+                    if (codeTemplate.getName().equals(transmissionTemplateStr)) {
+                        transmissionTemplate = codeTemplate;
                     }
                 }
+            }
 
-                String primaryTransmissionCode = transmissionCode;
-                if (codeIsPrimaryCode != null) {
-                    for (int j = 0; j < codeIsPrimaryCode.length; j++) {
-                        if (codeIsPrimaryCode[j]) {
-                            if (transmissionCodes != null && transmissionCodes.length > j && !transmissionCodes[j].equals("")) {
-                                primaryTransmissionCode = transmissionCodes[j];
-                            } else if (lookupCodes.length > j && !lookupCodes[j].equals("")) {
-                                primaryTransmissionCode = lookupCodes[j];
-                            }
+            String primaryTransmissionCode = transmissionCode;
+            if (codeIsPrimaryCode != null) {
+                for (int j = 0; j < codeIsPrimaryCode.length; j++) {
+                    if (codeIsPrimaryCode[j]) {
+                        if (transmissionCodes != null && transmissionCodes.length > j && !transmissionCodes[j].equals("")) {
+                            primaryTransmissionCode = transmissionCodes[j];
+                        } else if (lookupCodes.length > j && !lookupCodes[j].equals("")) {
+                            primaryTransmissionCode = lookupCodes[j];
                         }
                     }
                 }
-
-                String templateName = template != null ? template.getName() : null;
-                String transmissionTemplateName = transmissionTemplate != null ? transmissionTemplate.getName() : null;
-                productCodes[i] = new Product.Code(lookupCode,
-                        primaryTransmissionCode,
-                        templateName,
-                        transmissionTemplateName,
-                        codeEncodingUnit,
-                        codeIsPrimaryCode != null && codeIsPrimaryCode[i],
-                        codeSpecifiedQuantities != null ? codeSpecifiedQuantities[i] : 0);
             }
 
-            builder.setScannableCodes(productCodes);
-        }
-
-        int availability = cursor.getInt(21);
-        Product.Availability[] availabilities = Product.Availability.values();
-        if (availability >= 0 && availability < availabilities.length) {
-            builder.setAvailability(availabilities[availability]);
+            String templateName = template != null ? template.getName() : null;
+            String transmissionTemplateName = transmissionTemplate != null ? transmissionTemplate.getName() : null;
+            productCodes[i] = new Product.Code(lookupCode,
+                    primaryTransmissionCode,
+                    templateName,
+                    transmissionTemplateName,
+                    codeEncodingUnit,
+                    codeIsPrimaryCode != null && codeIsPrimaryCode[i],
+                    codeSpecifiedQuantities != null ? codeSpecifiedQuantities[i] : 0);
         }
 
-        Shop shop = Snabble.getInstance().getCheckedInShop();
-
-        if (!queryPrice(builder, sku, shop)) {
-            queryPrice(builder, sku, null);
-        }
-
-        return builder.build();
+        return productCodes;
     }
 
     private boolean queryPrice(Product.Builder builder, String sku, Shop shop) {
@@ -1043,47 +1164,109 @@ public class ProductDatabase {
         return in;
     }
 
-    private String productSqlString(String appendFields, String appendSql, boolean distinct) {
+    /**
+     * Builds the product query. If includeCodes is false, the correlated scannableCodes
+     * sub-queries are omitted and the codes are expected to be loaded separately, as it is done
+     * by {@link #loadProducts(Cursor, int, int, CancellationSignal)}.
+     * <p>
+     * The shop id and the default availability are bound as the first two arguments, see
+     * {@link #productArgs(String[])}, so the resulting sql string does not depend on the
+     * checked in shop and the compiled statement can be reused by SQLite.
+     */
+    private String productSqlString(String appendFields, String appendSql, boolean distinct, boolean includeCodes) {
+        String key = (distinct ? "d" : "-") + (includeCodes ? "c" : "-") + appendFields + SEPARATOR + appendSql;
+        String cached = productSqlCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ").append(distinct ? "DISTINCT " : "")
+                .append("p.sku,")
+                .append("p.name,")
+                .append("p.description,")
+                .append("p.imageUrl,")
+                .append("p.depositSku,")
+                .append("p.isDeposit,")
+                .append("p.weighing");
+
+        if (includeCodes) {
+            sb.append(",(SELECT group_concat(s.code, \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)");
+        }
+
+        sb.append(",p.subtitle")
+                .append(",p.saleRestriction")
+                .append(",p.saleStop")
+                .append(",p.notForSale");
+
+        if (includeCodes) {
+            sb.append(",(SELECT group_concat(ifnull(s.transmissionCode, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)");
+        }
+
+        sb.append(",p.referenceUnit")
+                .append(",p.encodingUnit");
+
+        if (includeCodes) {
+            sb.append(",(SELECT group_concat(ifnull(s.encodingUnit, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)")
+                    .append(",(SELECT group_concat(ifnull(s.template, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)")
+                    .append(",(SELECT group_concat(ifnull(sc.isPrimary, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)")
+                    .append(",(SELECT group_concat(ifnull(sc.specifiedQuantity, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)")
+                    .append(",(SELECT group_concat(ifnull(sc.transmissionTemplate, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)");
+        }
+
+        // the availability is bound as a string, so it needs to be cast back to an integer
+        // to make comparisons like "availability != 2" work
+        sb.append(",p.scanMessage")
+                .append(",ifnull((SELECT a.value FROM availabilities a WHERE a.sku = p.sku AND a.shopID = ?), CAST(? AS INTEGER)) as availability")
+                .append(appendFields)
+                .append(" FROM products p ")
+                .append(appendSql);
+
+        String sql = sb.toString();
+        productSqlCache.put(key, sql);
+        return sql;
+    }
+
+    /**
+     * Prepends the arguments of the product query itself to the arguments of the appended sql.
+     */
+    private String[] productArgs(String[] args) {
         Shop shop = Snabble.getInstance().getCheckedInShop();
         String shopId = "0";
         if (shop != null) {
             shopId = shop.getId();
         }
 
-        return "SELECT " + (distinct ? "DISTINCT " : "") +
-                "p.sku," +
-                "p.name," +
-                "p.description," +
-                "p.imageUrl," +
-                "p.depositSku," +
-                "p.isDeposit," +
-                "p.weighing," +
-                "(SELECT group_concat(s.code, \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)," +
-                "p.subtitle" +
-                ",p.saleRestriction" +
-                ",p.saleStop" +
-                ",p.notForSale" +
-                ",(SELECT group_concat(ifnull(s.transmissionCode, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)" +
-                ",p.referenceUnit" +
-                ",p.encodingUnit" +
-                ",(SELECT group_concat(ifnull(s.encodingUnit, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)" +
-                ",(SELECT group_concat(ifnull(s.template, \"\"), \"" + SEPARATOR + "\") FROM scannableCodes s WHERE s.sku = p.sku)" +
-                ",(SELECT group_concat(ifnull(sc.isPrimary, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)" +
-                ",(SELECT group_concat(ifnull(sc.specifiedQuantity, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)" +
-                ",(SELECT group_concat(ifnull(sc.transmissionTemplate, ''), \"" + SEPARATOR + "\") FROM scannableCodes sc where sc.sku = p.sku)" +
-                ",p.scanMessage" +
-                ",ifnull((SELECT a.value FROM availabilities a WHERE a.sku = p.sku AND a.shopID = " + shopId + "), " + defaultAvailability + ") as availability" +
-                appendFields +
-                " FROM products p "
-                + appendSql;
+        int length = args != null ? args.length : 0;
+        String[] productArgs = new String[length + 2];
+        productArgs[0] = shopId;
+        productArgs[1] = String.valueOf(defaultAvailability);
+        if (args != null) {
+            System.arraycopy(args, 0, productArgs, 2, length);
+        }
+        return productArgs;
+    }
+
+    private Cursor productQuery(String appendFields,
+                                String appendSql,
+                                String[] args,
+                                boolean distinct,
+                                boolean includeCodes,
+                                CancellationSignal cancellationSignal) {
+        return rawQuery(productSqlString(appendFields, appendSql, distinct, includeCodes),
+                productArgs(args), cancellationSignal);
     }
 
     private Cursor productQuery(String appendSql, String[] args, boolean distinct, CancellationSignal cancellationSignal) {
-        return rawQuery(productSqlString("", appendSql, distinct), args, cancellationSignal);
+        return productQuery("", appendSql, args, distinct, true, cancellationSignal);
     }
 
-    private Cursor productQuery(String appendFields, String appendSql, String[] args, CancellationSignal cancellationSignal) {
-        return rawQuery(productSqlString(appendFields, appendSql, true), args, cancellationSignal);
+    /**
+     * Returns the in-memory cache used by {@link #findBySku(String)} and
+     * {@link #findByCode(ScannedCode)}, e.g. for reading its hit and miss counters.
+     */
+    public ProductCache getProductCache() {
+        return productCache;
     }
 
     /**
@@ -1196,52 +1379,456 @@ public class ProductDatabase {
 
         String id = shop != null ? shop.getId() : "";
         String query = "WHERE p.sku IN (SELECT DISTINCT sku FROM prices " +
-                "WHERE discountedPrice IS NOT NULL AND pricingCategory = ifnull((SELECT pricingCategory FROM shops WHERE shops.id = '" + id + "'), '0')) " +
+                "WHERE discountedPrice IS NOT NULL AND pricingCategory = ifnull((SELECT pricingCategory FROM shops WHERE shops.id = ?), '0')) " +
                 "AND p.imageUrl IS NOT NULL";
 
-        return queryDiscountedProducts(query, null);
+        Cursor cursor = productQuery("", query, new String[]{id}, false, false, null);
+        List<Product> products = productsAtCursorAndClose(cursor, null);
+        return products.toArray(new Product[0]);
     }
 
-    private Product[] queryDiscountedProducts(String whereClause, String[] args) {
-        Cursor cursor = productQuery(whereClause, args, false);
+    private Product getFirstProductAndClose(Cursor cursor) {
+        Product product = null;
 
         if (cursor != null) {
-            return allProductsAtCursor(cursor);
+            if (cursor.getCount() > 0) {
+                cursor.moveToFirst();
+                product = productAtCursor(cursor);
+            }
+
+            cursor.close();
+
+            return product;
         } else {
-            return new Product[0];
+            return null;
         }
     }
 
-    private Product[] allProductsAtCursor(Cursor cursor) {
+    /**
+     * Returns the products between offset and offset + count of a cursor.
+     * Does not modify the state of the cursor.
+     * <p>
+     * Unlike {@link #productAtCursor(Cursor)}, which queries codes, prices, deposits and
+     * bundles for every single row, this loads them for all requested rows using a fixed number
+     * of queries.
+     * <p>
+     * The cursor should be a Cursor that is returned from the functions
+     * <p>
+     * {@link ProductDatabase#searchByCode(String, CancellationSignal)}
+     * or
+     * {@link ProductDatabase#searchByFoldedName(String, CancellationSignal)}
+     */
+    public List<Product> productsAtCursor(Cursor cursor, int offset, int count) {
+        return productsAtCursor(cursor, offset, count, null);
+    }
+
+    /**
+     * Same as {@link #productsAtCursor(Cursor, int, int)}, but cancellable.
+     *
+     * @param cancellationSignal Calls can be cancelled with a {@link CancellationSignal}. Can be null.
+     * @return The products, or an empty list if the call was cancelled.
+     */
+    public List<Product> productsAtCursor(Cursor cursor, int offset, int count, CancellationSignal cancellationSignal) {
+        List<Product> products = new ArrayList<>();
+        if (cursor == null || cursor.isClosed()) {
+            return products;
+        }
+
+        int position = cursor.getPosition();
+        for (LoadedProduct loadedProduct : loadProducts(cursor, offset, count, cancellationSignal)) {
+            products.add(loadedProduct.product);
+        }
+        cursor.moveToPosition(position);
+
+        if (isCanceled(cancellationSignal)) {
+            products.clear();
+        }
+
+        return products;
+    }
+
+    private List<Product> productsAtCursorAndClose(Cursor cursor, CancellationSignal cancellationSignal) {
+        List<Product> products = new ArrayList<>();
         if (cursor == null) {
-            return new Product[0];
+            return products;
         }
 
-        int count = cursor.getCount();
-        Product[] products = new Product[count];
-        int i = 0;
-        while (cursor.moveToNext()) {
-            products[i] = productAtCursor(cursor);
-            i++;
+        for (LoadedProduct loadedProduct : loadProducts(cursor, 0, Integer.MAX_VALUE, cancellationSignal)) {
+            products.add(loadedProduct.product);
         }
         cursor.close();
+
+        if (isCanceled(cancellationSignal)) {
+            products.clear();
+        }
+
         return products;
     }
 
-    private Product getFirstProductAndClose(Cursor cursor) {
-        Product product = null;
+    private List<Product> productsBySkus(Collection<String> skus, CancellationSignal cancellationSignal) {
+        List<Product> products = new ArrayList<>();
+        List<String> distinctSkus = new ArrayList<>(new LinkedHashSet<>(skus));
+        distinctSkus.remove(null);
 
-        if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                product = productAtCursor(cursor);
+        for (int i = 0; i < distinctSkus.size(); i += MAX_BATCH_SIZE) {
+            List<String> batch = distinctSkus.subList(i, Math.min(i + MAX_BATCH_SIZE, distinctSkus.size()));
+            int size = paddedBatchSize(batch.size());
+            Cursor cursor = productQuery("", "WHERE p.sku IN " + placeholders(size),
+                    batchArgs(batch, size), false, false, cancellationSignal);
+            products.addAll(productsAtCursorAndClose(cursor, cancellationSignal));
+        }
+
+        return products;
+    }
+
+    /**
+     * Materializes count rows starting at offset. The scannable codes, prices, deposit products
+     * and bundles of all rows are loaded with set-based queries, chunked by {@link #MAX_BATCH_SIZE}.
+     * <p>
+     * Columns are resolved by name, so this works for cursors with and without the
+     * group_concat code columns of {@link #productSqlString(String, String, boolean, boolean)}.
+     */
+    private List<LoadedProduct> loadProducts(Cursor cursor, int offset, int count, CancellationSignal cancellationSignal) {
+        List<LoadedProduct> loadedProducts = new ArrayList<>();
+        if (count <= 0 || !cursor.moveToPosition(offset)) {
+            return loadedProducts;
+        }
+
+        ProductColumns columns = new ProductColumns(cursor);
+        Product.Availability[] availabilities = Product.Availability.values();
+
+        do {
+            LoadedProduct loadedProduct = new LoadedProduct();
+            Product.Builder builder = new Product.Builder();
+            loadedProduct.builder = builder;
+            loadedProduct.sku = anyToString(cursor, columns.sku);
+            loadedProduct.depositSku = anyToString(cursor, columns.depositSku);
+            if (columns.bundledSku != -1) {
+                loadedProduct.bundledSku = anyToString(cursor, columns.bundledSku);
+            }
+
+            builder.setSku(loadedProduct.sku)
+                    .setName(cursor.getString(columns.name))
+                    .setDescription(cursor.getString(columns.description))
+                    .setImageUrl(ensureNotNull(cursor.getString(columns.imageUrl)))
+                    .setIsDeposit(cursor.getInt(columns.isDeposit) != 0);
+
+            int productTypeInt = cursor.getInt(columns.weighing);
+            if (productTypeInt >= 0 && productTypeInt < productTypes.length) {
+                builder.setType(productTypes[productTypeInt]);
+            } else {
+                builder.setType(Product.Type.Article);
+            }
+
+            builder.setSubtitle(cursor.getString(columns.subtitle))
+                    .setSaleRestriction(decodeSaleRestriction(cursor.getLong(columns.saleRestriction)))
+                    .setSaleStop(cursor.getInt(columns.saleStop) != 0)
+                    .setNotForSale(cursor.getInt(columns.notForSale) != 0);
+
+            String referenceUnit = cursor.getString(columns.referenceUnit);
+            if (referenceUnit != null) {
+                Unit unit = Unit.fromString(referenceUnit);
+                builder.setReferenceUnit(unit);
+
+                if (unit == Unit.PIECE) {
+                    builder.setType(Product.Type.Article);
+                }
+            }
+
+            String encodingUnit = cursor.getString(columns.encodingUnit);
+            if (encodingUnit != null) {
+                builder.setEncodingUnit(Unit.fromString(encodingUnit));
+            }
+
+            String scanMessage = cursor.getString(columns.scanMessage);
+            if (scanMessage != null) {
+                builder.setScanMessage(scanMessage);
+            }
+
+            int availability = cursor.getInt(columns.availability);
+            if (availability >= 0 && availability < availabilities.length) {
+                builder.setAvailability(availabilities[availability]);
+            }
+
+            loadedProducts.add(loadedProduct);
+        } while (loadedProducts.size() < count && cursor.moveToNext());
+
+        List<String> skus = new ArrayList<>();
+        Set<String> depositSkus = new HashSet<>();
+        for (LoadedProduct loadedProduct : loadedProducts) {
+            skus.add(loadedProduct.sku);
+            if (loadedProduct.depositSku != null) {
+                depositSkus.add(loadedProduct.depositSku);
+            }
+        }
+
+        Map<String, CodeRows> codes = queryCodes(skus, cancellationSignal);
+        Map<String, PriceRow> prices = queryPrices(skus, cancellationSignal);
+        Map<String, List<Product>> bundles = queryBundles(skus, cancellationSignal);
+
+        Map<String, Product> deposits = new HashMap<>();
+        for (Product deposit : productsBySkus(depositSkus, cancellationSignal)) {
+            deposits.put(deposit.getSku(), deposit);
+        }
+
+        for (LoadedProduct loadedProduct : loadedProducts) {
+            Product.Builder builder = loadedProduct.builder;
+
+            if (loadedProduct.depositSku != null) {
+                builder.setDepositProduct(deposits.get(loadedProduct.depositSku));
+            }
+
+            List<Product> bundleProducts = bundles.get(loadedProduct.sku);
+            builder.setBundleProducts(bundleProducts != null
+                    ? bundleProducts.toArray(new Product[0])
+                    : new Product[0]);
+
+            CodeRows codeRows = codes.get(loadedProduct.sku);
+            if (codeRows != null) {
+                builder.setScannableCodes(buildProductCodes(
+                        codeRows.lookupCodes.toArray(new String[0]),
+                        codeRows.transmissionCodes.toArray(new String[0]),
+                        codeRows.encodingUnits.toArray(new String[0]),
+                        codeRows.templates.toArray(new String[0]),
+                        parsePrimaryFlags(codeRows.isPrimary.toArray(new String[0])),
+                        parseSpecifiedQuantities(codeRows.specifiedQuantities.toArray(new String[0])),
+                        codeRows.transmissionTemplates.toArray(new String[0])));
+            }
+
+            PriceRow price = prices.get(loadedProduct.sku);
+            if (price != null) {
+                builder.setPrice(price.listPrice);
+                builder.setDiscountedPrice(price.discountedPrice);
+                builder.setCustomerCardPrice(price.customerCardPrice);
+                builder.setBasePrice(price.basePrice);
+            }
+
+            loadedProduct.product = builder.build();
+        }
+
+        return loadedProducts;
+    }
+
+    private Map<String, CodeRows> queryCodes(List<String> skus, CancellationSignal cancellationSignal) {
+        Map<String, CodeRows> codes = new HashMap<>();
+
+        for (int i = 0; i < skus.size(); i += MAX_BATCH_SIZE) {
+            List<String> batch = skus.subList(i, Math.min(i + MAX_BATCH_SIZE, skus.size()));
+            int size = paddedBatchSize(batch.size());
+            Cursor cursor = rawQuery("SELECT sku, code, transmissionCode, encodingUnit, template, " +
+                    "isPrimary, specifiedQuantity, transmissionTemplate FROM scannableCodes " +
+                    "WHERE sku IN " + placeholders(size), batchArgs(batch, size), cancellationSignal);
+
+            if (cursor == null) {
+                continue;
+            }
+
+            while (cursor.moveToNext()) {
+                String sku = cursor.getString(0);
+                CodeRows codeRows = codes.get(sku);
+                if (codeRows == null) {
+                    codeRows = new CodeRows();
+                    codes.put(sku, codeRows);
+                }
+
+                codeRows.lookupCodes.add(cursor.getString(1));
+                codeRows.transmissionCodes.add(ensureNotNull(cursor.getString(2)));
+                codeRows.encodingUnits.add(ensureNotNull(cursor.getString(3)));
+                codeRows.templates.add(ensureNotNull(cursor.getString(4)));
+                codeRows.isPrimary.add(ensureNotNull(cursor.getString(5)));
+                codeRows.specifiedQuantities.add(ensureNotNull(cursor.getString(6)));
+                codeRows.transmissionTemplates.add(ensureNotNull(cursor.getString(7)));
             }
+            cursor.close();
+        }
 
+        return codes;
+    }
+
+    private Map<String, PriceRow> queryPrices(List<String> skus, CancellationSignal cancellationSignal) {
+        Map<String, PriceRow> prices = new HashMap<>();
+        Shop shop = Snabble.getInstance().getCheckedInShop();
+
+        if (shop != null) {
+            queryPrices(prices, "SELECT prices.sku, listPrice, discountedPrice, customerCardPrice, basePrice FROM prices " +
+                    "JOIN shops ON shops.pricingCategory = prices.pricingCategory " +
+                    "WHERE shops.id = ? AND prices.sku IN %s " +
+                    "ORDER BY priority DESC", shop.getId(), skus, cancellationSignal);
+        }
+
+        List<String> missingSkus = new ArrayList<>();
+        for (String sku : skus) {
+            if (!prices.containsKey(sku)) {
+                missingSkus.add(sku);
+            }
+        }
+
+        queryPrices(prices, "SELECT sku, listPrice, discountedPrice, customerCardPrice, basePrice FROM prices " +
+                "WHERE pricingCategory = ifnull((SELECT pricingCategory FROM shops WHERE shops.id = ?), '0') " +
+                "AND sku IN %s", "", missingSkus, cancellationSignal);
+
+        return prices;
+    }
+
+    private void queryPrices(Map<String, PriceRow> prices,
+                             String sqlFormat,
+                             String shopId,
+                             List<String> skus,
+                             CancellationSignal cancellationSignal) {
+        for (int i = 0; i < skus.size(); i += MAX_BATCH_SIZE) {
+            List<String> batch = skus.subList(i, Math.min(i + MAX_BATCH_SIZE, skus.size()));
+            int size = paddedBatchSize(batch.size());
+            Cursor cursor = rawQuery(String.format(sqlFormat, placeholders(size)),
+                    batchArgs(batch, size, shopId), cancellationSignal);
+            if (cursor == null) {
+                continue;
+            }
+
+            while (cursor.moveToNext()) {
+                String sku = cursor.getString(0);
+                // rows are ordered by priority, the first one wins
+                if (!prices.containsKey(sku)) {
+                    PriceRow price = new PriceRow();
+                    price.listPrice = cursor.getInt(1);
+                    price.discountedPrice = cursor.getInt(2);
+                    price.customerCardPrice = cursor.getInt(3);
+                    price.basePrice = cursor.getString(4);
+                    prices.put(sku, price);
+                }
+            }
             cursor.close();
+        }
+    }
 
-            return product;
-        } else {
-            return null;
+    private Map<String, List<Product>> queryBundles(List<String> skus, CancellationSignal cancellationSignal) {
+        Map<String, List<Product>> bundles = new HashMap<>();
+
+        for (int i = 0; i < skus.size(); i += MAX_BATCH_SIZE) {
+            List<String> batch = skus.subList(i, Math.min(i + MAX_BATCH_SIZE, skus.size()));
+            int size = paddedBatchSize(batch.size());
+            Cursor cursor = productQuery(",p.bundledSku", "WHERE p.bundledSku IN " + placeholders(size),
+                    batchArgs(batch, size), false, false, cancellationSignal);
+            if (cursor == null) {
+                continue;
+            }
+
+            for (LoadedProduct loadedProduct : loadProducts(cursor, 0, Integer.MAX_VALUE, cancellationSignal)) {
+                List<Product> list = bundles.get(loadedProduct.bundledSku);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    bundles.put(loadedProduct.bundledSku, list);
+                }
+                list.add(loadedProduct.product);
+            }
+            cursor.close();
+        }
+
+        return bundles;
+    }
+
+    /**
+     * Rounds batch sizes up to a few fixed sizes, so only a handful of different sql strings
+     * are used for IN queries and their compiled statements can be reused.
+     */
+    private static int paddedBatchSize(int size) {
+        for (int batchSize : BATCH_SIZES) {
+            if (size <= batchSize) {
+                return batchSize;
+            }
+        }
+        return MAX_BATCH_SIZE;
+    }
+
+    /**
+     * Returns the leading arguments followed by the batch, padded to the given size by repeating
+     * the last element. Duplicates in IN lists do not change the result.
+     */
+    private static String[] batchArgs(List<String> batch, int size, String... leading) {
+        String[] args = new String[leading.length + size];
+        System.arraycopy(leading, 0, args, 0, leading.length);
+        for (int i = 0; i < size; i++) {
+            args[leading.length + i] = batch.get(Math.min(i, batch.size() - 1));
+        }
+        return args;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2 + 1);
+        sb.append('(');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    private static boolean isCanceled(CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
+    private static class LoadedProduct {
+        Product.Builder builder;
+        Product product;
+        String sku;
+        String depositSku;
+        String bundledSku;
+    }
+
+    private static class CodeRows {
+        final List<String> lookupCodes = new ArrayList<>();
+        final List<String> transmissionCodes = new ArrayList<>();
+        final List<String> encodingUnits = new ArrayList<>();
+        final List<String> templates = new ArrayList<>();
+        final List<String> isPrimary = new ArrayList<>();
+        final List<String> specifiedQuantities = new ArrayList<>();
+        final List<String> transmissionTemplates = new ArrayList<>();
+    }
+
+    private static class PriceRow {
+        int listPrice;
+        int discountedPrice;
+        int customerCardPrice;
+        String basePrice;
+    }
+
+    private static class ProductColumns {
+        final int sku;
+        final int name;
+        final int description;
+        final int imageUrl;
+        final int depositSku;
+        final int isDeposit;
+        final int weighing;
+        final int subtitle;
+        final int saleRestriction;
+        final int saleStop;
+        final int notForSale;
+        final int referenceUnit;
+        final int encodingUnit;
+        final int scanMessage;
+        final int availability;
+        final int bundledSku;
+
+        ProductColumns(Cursor cursor) {
+            sku = cursor.getColumnIndexOrThrow("sku");
+            name = cursor.getColumnIndexOrThrow("name");
+            description = cursor.getColumnIndexOrThrow("description");
+            imageUrl = cursor.getColumnIndexOrThrow("imageUrl");
+            depositSku = cursor.getColumnIndexOrThrow("depositSku");
+            isDeposit = cursor.getColumnIndexOrThrow("isDeposit");
+            weighing = cursor.getColumnIndexOrThrow("weighing");
+            subtitle = cursor.getColumnIndexOrThrow("subtitle");
+            saleRestriction = cursor.getColumnIndexOrThrow("saleRestriction");
+            saleStop = cursor.getColumnIndexOrThrow("saleStop");
+            notForSale = cursor.getColumnIndexOrThrow("notForSale");
+            referenceUnit = cursor.getColumnIndexOrThrow("referenceUnit");
+            encodingUnit = cursor.getColumnIndexOrThrow("encodingUnit");
+            scanMessage = cursor.getColumnIndexOrThrow("scanMessage");
+            availability = cursor.getColumnIndexOrThrow("availability");
+            bundledSku = cursor.getColumnIndex("bundledSku");
         }
     }
 
@@ -1255,11 +1842,20 @@ public class ProductDatabase {
             return null;
         }
 
+        long cacheGeneration = productCache.generation();
+        String key = ProductCache.skuKey(Snabble.getInstance().getCheckedInShop(), sku);
+        Product product = productCache.get(key);
+        if (product != null) {
+            return product;
+        }
+
         Cursor cursor = productQuery("WHERE p.sku = ? LIMIT 1", new String[]{
                 sku
         }, false);
 
-        return getFirstProductAndClose(cursor);
+        product = getFirstProductAndClose(cursor);
+        productCache.put(key, product, cacheGeneration);
+        return product;
     }
 
     /**
@@ -1338,17 +1934,8 @@ public class ProductDatabase {
             return null;
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("('");
-        for (String sku : skus) {
-            sb.append(sku);
-            sb.append("','");
-        }
-        sb.delete(sb.length() - 2, sb.length());
-        sb.append(")");
-
-        Cursor cursor = productQuery("WHERE p.sku IN " + sb.toString(), null, false);
-        return allProductsAtCursor(cursor);
+        List<Product> products = productsBySkus(Arrays.asList(skus), null);
+        return products.toArray(new Product[0]);
     }
 
     /**
@@ -1365,16 +1952,25 @@ public class ProductDatabase {
             return null;
         }
 
-        Product product = findByCode(scannedCode.getLookupCode(), scannedCode.getTemplateName());
+        long cacheGeneration = productCache.generation();
+        String key = ProductCache.codeKey(Snabble.getInstance().getCheckedInShop(),
+                scannedCode.getLookupCode(), scannedCode.getTemplateName());
+        Product product = productCache.get(key);
+        if (product != null) {
+            return product;
+        }
+
+        product = findByCode(scannedCode.getLookupCode(), scannedCode.getTemplateName());
 
         // try again for upc codes
         if (product == null) {
             String shorterCode = removePrefix(scannedCode.getLookupCode());
             if (shorterCode != null) {
-                return findByCode(shorterCode, scannedCode.getTemplateName());
+                product = findByCode(shorterCode, scannedCode.getTemplateName());
             }
         }
 
+        productCache.put(key, product, cacheGeneration);
         return product;
     }
 
@@ -1446,14 +2042,36 @@ public class ProductDatabase {
      * @param cancellationSignal Calls can be cancelled with a {@link CancellationSignal}. Can be null.
      */
     public Cursor searchByFoldedName(String searchString, CancellationSignal cancellationSignal) {
-        return productQuery("JOIN searchByName ns ON ns.sku = p.sku " +
+        return productQuery(foldedNameSearchSql(), new String[]{
+                searchString + "*"
+        }, true, cancellationSignal);
+    }
+
+    /**
+     * This function needs config value generateSearchIndex set to true
+     * <p>
+     * Returns the same products as {@link #searchByFoldedName(String, CancellationSignal)}, but
+     * already materialized. Codes, prices, deposits and bundles of all results are loaded
+     * using a fixed number of queries.
+     *
+     * @param cancellationSignal Calls can be cancelled with a {@link CancellationSignal}. Can be null.
+     * @return The matching products, or an empty list if nothing was found or the call was cancelled.
+     */
+    public List<Product> searchProductsByFoldedName(String searchString, CancellationSignal cancellationSignal) {
+        Cursor cursor = productQuery("", foldedNameSearchSql(), new String[]{
+                searchString + "*"
+        }, true, false, cancellationSignal);
+
+        return productsAtCursorAndClose(cursor, cancellationSignal);
+    }
+
+    private String foldedNameSearchSql() {
+        return "JOIN searchByName ns ON ns.sku = p.sku " +
                 "WHERE ns.foldedName MATCH ? " +
                 "AND p.weighing != " + Product.Type.PreWeighed.getDatabaseValue() + " " +
                 "AND p.isDeposit = 0 " +
                 "AND availability != 2 " +
-                "LIMIT 100", new String[]{
-                searchString + "*"
-        }, true, cancellationSignal);
+                "LIMIT 100";
     }
 
     /**
@@ -1465,6 +2083,30 @@ public class ProductDatabase {
      * @param cancellationSignal Calls can be cancelled with a {@link CancellationSignal}. Can be null.
      */
     public Cursor searchByCode(String searchString, CancellationSignal cancellationSignal) {
+        return productQuery(codeSearchSql(), new String[]{
+                searchString + "*",
+                searchString + "*"
+        }, true, cancellationSignal);
+    }
+
+    /**
+     * Returns the same products as {@link #searchByCode(String, CancellationSignal)}, but
+     * already materialized. Codes, prices, deposits and bundles of all results are loaded
+     * using a fixed number of queries.
+     *
+     * @param cancellationSignal Calls can be cancelled with a {@link CancellationSignal}. Can be null.
+     * @return The matching products, or an empty list if nothing was found or the call was cancelled.
+     */
+    public List<Product> searchProductsByCode(String searchString, CancellationSignal cancellationSignal) {
+        Cursor cursor = productQuery("", codeSearchSql(), new String[]{
+                searchString + "*",
+                searchString + "*"
+        }, true, false, cancellationSignal);
+
+        return productsAtCursorAndClose(cursor, cancellationSignal);
+    }
+
+    private String codeSearchSql() {
         StringBuilder sb = new StringBuilder();
         sb.append("JOIN scannableCodes s ON s.sku = p.sku WHERE (s.code GLOB ? OR p.sku GLOB ?) AND (");
 
@@ -1484,13 +2126,14 @@ public class ProductDatabase {
         sb.append(Product.Type.PreWeighed.getDatabaseValue());
         sb.append(" AND p.isDeposit = 0 ");
         sb.append(" AND availability != 2");
+        sb.append(" LIMIT 100");
 
-        String query = productSqlString("", sb.toString(), true) + " LIMIT 100";
-
-        return rawQuery(query, new String[]{searchString + "*", searchString + "*"}, cancellationSignal);
+        return sb.toString();
     }
 
     private void notifyOnDatabaseUpdated() {
+        productCache.invalidate(revisionId);
+
         Dispatch.mainThread(() -> {
             for (OnDatabaseUpdateListener listener : onDatabaseUpdateListeners) {
                 listener.onDatabaseUpdated();
@@ -1522,5 +2165,15 @@ public class ProductDatabase {
         void success();
 
         void error();
+
+        /**
+         * Called from a background thread while a full database update is downloading.
+         *
+         * @param bytesLoaded The number of bytes already on the device, including bytes of
+         *                    a previously interrupted download that got resumed.
+         * @param bytesTotal  The size of the database, or -1 if unknown.
+         */
+        default void progress(long bytesLoaded, long bytesTotal) {
+        }
     }
 }
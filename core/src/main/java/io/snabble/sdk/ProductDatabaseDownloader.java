@@ -1,8 +1,24 @@
 package io.snabble.sdk;
 
+import android.util.Base64;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
 
 import io.snabble.sdk.utils.Downloader;
+import io.snabble.sdk.utils.GsonHolder;
+import io.snabble.sdk.utils.Logger;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
@@ -10,11 +26,26 @@ class ProductDatabaseDownloader extends Downloader {
     private static final String MIMETYPE_DELTA = "application/vnd+snabble.appdb+sql";
     private static final String MIMETYPE_FULL = "application/vnd+snabble.appdb+sqlite3";
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_BYTES = 256 * 1024;
+
     private final Project project;
     private final ProductDatabase productDatabase;
 
     private boolean sameRevision;
     private boolean deltaUpdateOnly;
+    private ProductDatabase.UpdateCallback progressCallback;
+
+    /**
+     * Bookkeeping of an interrupted full database download, persisted next to the partial file.
+     */
+    private static class PartialDownload {
+        String url;
+        String etag;
+        String digest;
+        long totalLength = -1;
+        long havingRevision;
+    }
 
     public ProductDatabaseDownloader(Project project,
                                      ProductDatabase productDatabase) {
@@ -25,14 +56,45 @@ class ProductDatabaseDownloader extends Downloader {
     }
 
     public void update(Callback callback, boolean deltaUpdateOnly) {
+        update(callback, deltaUpdateOnly, null);
+    }
+
+    public void update(Callback callback,
+                       boolean deltaUpdateOnly,
+                       ProductDatabase.UpdateCallback progressCallback) {
         this.deltaUpdateOnly = deltaUpdateOnly;
+        this.progressCallback = progressCallback;
         loadAsync(callback);
     }
 
     @Override
     public void onStartDownload() {
-        getHeaders().put("Accept", MIMETYPE_DELTA);
         sameRevision = false;
+        configureRequest();
+    }
+
+    /**
+     * Sets url and headers of the next request. If an interrupted full download is available
+     * it is resumed using a range request, otherwise a delta update is requested.
+     */
+    private void configureRequest() {
+        Map<String, String> headers = getHeaders();
+        headers.remove("Range");
+        headers.remove("If-Range");
+
+        PartialDownload partial = loadPartialDownload();
+        File partialFile = productDatabase.getFullUpdateDownloadFile();
+
+        if (!deltaUpdateOnly && partial != null && partialFile != null && partialFile.length() > 0) {
+            Logger.d("Resuming product database download at %d bytes", partialFile.length());
+            headers.put("Accept", MIMETYPE_FULL);
+            headers.put("Range", "bytes=" + partialFile.length() + "-");
+            headers.put("If-Range", partial.etag);
+            setUrl(partial.url);
+            return;
+        }
+
+        headers.put("Accept", MIMETYPE_DELTA);
 
         if (productDatabase.getRevisionId() != -1) {
             String url = project.getAppDbUrl()
@@ -48,6 +110,11 @@ class ProductDatabaseDownloader extends Downloader {
     @Override
     protected void onDownloadFailed(Response response) {
         sameRevision = response != null && response.code() == 304;
+
+        if (response != null && response.code() == 416) {
+            // the partial file does not match the remote file anymore
+            clearPartialDownload();
+        }
     }
 
     public boolean wasSameRevision() {
@@ -63,6 +130,7 @@ class ProductDatabaseDownloader extends Downloader {
             ResponseBody body = response.body();
             switch (contentType) {
                 case MIMETYPE_DELTA:
+                    clearPartialDownload();
                     productDatabase.applyDeltaUpdate(body.byteStream());
                     break;
                 case MIMETYPE_FULL:
@@ -71,7 +139,7 @@ class ProductDatabaseDownloader extends Downloader {
                         throw new IOException();
                     }
 
-                    productDatabase.applyFullUpdate(body.byteStream());
+                    downloadFullUpdate(response);
                     break;
                 default:
                     break;
@@ -80,4 +148,272 @@ class ProductDatabaseDownloader extends Downloader {
 
         response.close();
     }
-}
\ No newline at end of file
+
+    private void downloadFullUpdate(Response response) throws IOException {
+        File file = productDatabase.getFullUpdateDownloadFile();
+        if (file == null) {
+            return;
+        }
+
+        ResponseBody body = response.body();
+        PartialDownload partial = loadPartialDownload();
+        long offset = 0;
+
+        boolean resumed = response.code() == 206
+                && partial != null
+                && rangeStart(response.header("Content-Range")) == file.length();
+
+        if (response.code() == 206 && !resumed) {
+            clearPartialDownload();
+            configureRequest();
+            throw new IOException("Unexpected partial content");
+        }
+
+        if (resumed) {
+            offset = file.length();
+            long total = rangeTotal(response.header("Content-Range"));
+            if (total != -1) {
+                partial.totalLength = total;
+            }
+        } else {
+            clearPartialDownload();
+
+            partial = new PartialDownload();
+            partial.url = response.request().url().toString();
+            partial.etag = response.header("ETag");
+            partial.digest = response.header("Digest");
+            partial.totalLength = body.contentLength();
+            partial.havingRevision = productDatabase.getRevisionId();
+
+            // without a validator the server can not tell us if the file changed in between,
+            // so the download can not be resumed safely
+            if (partial.etag != null) {
+                savePartialDownload(partial);
+            }
+        }
+
+        MessageDigest messageDigest = createMessageDigest();
+        if (resumed && messageDigest != null) {
+            try (InputStream existing = new FileInputStream(file)) {
+                updateDigest(messageDigest, existing);
+            }
+        }
+
+        long loaded = offset;
+        long lastProgress = 0;
+
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+
+        try (InputStream inputStream = body.byteStream();
+             OutputStream outputStream = new FileOutputStream(file, resumed)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                if (messageDigest != null) {
+                    messageDigest.update(buffer, 0, read);
+                }
+
+                loaded += read;
+                if (loaded - lastProgress >= PROGRESS_INTERVAL_BYTES) {
+                    lastProgress = loaded;
+                    notifyProgress(loaded, partial.totalLength);
+                }
+            }
+        } catch (IOException e) {
+            if (partial.etag != null) {
+                Logger.d("Product database download interrupted at %d bytes", file.length());
+                configureRequest();
+            } else {
+                clearPartialDownload();
+            }
+            throw e;
+        }
+
+        notifyProgress(loaded, partial.totalLength);
+
+        if (!verify(file, partial, messageDigest)) {
+            project.logErrorEvent("Could not apply full update: Downloaded file is corrupt");
+            clearPartialDownload();
+            configureRequest();
+            throw new IOException("Downloaded product database is corrupt");
+        }
+
+        clearPartialDownloadMetadata();
+        productDatabase.applyFullUpdate(file);
+    }
+
+    private boolean verify(File file, PartialDownload partial, MessageDigest messageDigest) {
+        if (partial.totalLength > 0 && file.length() != partial.totalLength) {
+            Logger.e("Product database size mismatch, expected %d bytes, got %d bytes",
+                    partial.totalLength, file.length());
+            return false;
+        }
+
+        String expected = sha256FromDigestHeader(partial.digest);
+        if (expected != null && messageDigest != null) {
+            byte[] expectedBytes;
+            try {
+                expectedBytes = Base64.decode(expected, Base64.DEFAULT);
+            } catch (IllegalArgumentException e) {
+                return true;
+            }
+
+            if (!Arrays.equals(expectedBytes, messageDigest.digest())) {
+                Logger.e("Product database checksum mismatch");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void notifyProgress(long loaded, long total) {
+        ProductDatabase.UpdateCallback callback = progressCallback;
+        if (callback != null) {
+            callback.progress(loaded, total);
+        }
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static void updateDigest(MessageDigest messageDigest, InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            messageDigest.update(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Extracts the base64 encoded sha-256 value of a RFC 3230 Digest header, e.g.
+     * "sha-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE="
+     */
+    private static String sha256FromDigestHeader(String digest) {
+        if (digest == null) {
+            return null;
+        }
+
+        for (String part : digest.split(",")) {
+            String trimmed = part.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("sha-256=")) {
+                return trimmed.substring("sha-256=".length());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses the start of a Content-Range header like "bytes 100-199/200".
+     */
+    private static long rangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+
+        int dash = contentRange.indexOf('-');
+        if (dash == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the total length of a Content-Range header like "bytes 100-199/200".
+     */
+    private static long rangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.indexOf('/');
+        if (slash == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File getPartialDownloadMetadataFile() {
+        File file = productDatabase.getFullUpdateDownloadFile();
+        if (file == null) {
+            return null;
+        }
+
+        return new File(file.getParentFile(), file.getName() + ".json");
+    }
+
+    private PartialDownload loadPartialDownload() {
+        File metadataFile = getPartialDownloadMetadataFile();
+        if (metadataFile == null || !metadataFile.exists()) {
+            return null;
+        }
+
+        try (FileReader reader = new FileReader(metadataFile)) {
+            PartialDownload partial = GsonHolder.get().fromJson(reader, PartialDownload.class);
+            if (partial == null
+                    || partial.url == null
+                    || partial.etag == null
+                    || partial.havingRevision != productDatabase.getRevisionId()) {
+                clearPartialDownload();
+                return null;
+            }
+
+            return partial;
+        } catch (Exception e) {
+            clearPartialDownload();
+            return null;
+        }
+    }
+
+    private void savePartialDownload(PartialDownload partial) {
+        File metadataFile = getPartialDownloadMetadataFile();
+        if (metadataFile == null) {
+            return;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        metadataFile.getParentFile().mkdirs();
+
+        try (FileWriter writer = new FileWriter(metadataFile)) {
+            GsonHolder.get().toJson(partial, writer);
+        } catch (IOException e) {
+            Logger.e("Could not save partial download state: %s", e.getMessage());
+        }
+    }
+
+    private void clearPartialDownloadMetadata() {
+        File metadataFile = getPartialDownloadMetadataFile();
+        if (metadataFile != null && metadataFile.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            metadataFile.delete();
+        }
+    }
+
+    private void clearPartialDownload() {
+        clearPartialDownloadMetadata();
+
+        File file = productDatabase.getFullUpdateDownloadFile();
+        if (file != null && file.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -7,9 +7,12 @@ import com.google.gson.JsonSyntaxException
 import com.google.gson.reflect.TypeToken
 import io.snabble.sdk.assetservice.AssetService
 import io.snabble.sdk.assetservice.assetServiceFactory
+import io.snabble.sdk.assetservice.image.domain.ImageRepository
+import io.snabble.sdk.assetservice.imageRepositoryFactory
 import io.snabble.sdk.auth.SnabbleAuthorizationInterceptor
 import io.snabble.sdk.checkout.Checkout
 import io.snabble.sdk.codes.templates.CodeTemplate
+import io.snabble.sdk.codes.templates.CodeTemplateIndex
 import io.snabble.sdk.codes.templates.PriceOverrideTemplate
 import io.snabble.sdk.codes.templates.depositReturnVoucher.DepositReturnVoucherProvider
 import io.snabble.sdk.coupons.Coupon
@@ -210,6 +213,28 @@ class Project internal constructor(
     var priceOverrideTemplates = emptyList<PriceOverrideTemplate>()
         private set
 
+    /**
+     * Index of [codeTemplates], used for parsing scanned codes
+     */
+    @Volatile
+    internal var codeTemplateIndex = CodeTemplateIndex.of(emptyList())
+        private set
+
+    /**
+     * Index of the code templates of all [depositReturnVoucherProviders], used for parsing scanned codes
+     */
+    @Volatile
+    internal var depositReturnVoucherTemplateIndex = CodeTemplateIndex.of(emptyList())
+        private set
+
+    /**
+     * Index of [priceOverrideTemplates], used for parsing scanned codes
+     */
+    @Volatile
+    internal var priceOverrideTemplateIndex =
+        CodeTemplateIndex(emptyList<PriceOverrideTemplate>()) { it.codeTemplate }
+        private set
+
     /**
      * List of code templates that are searchable using the barcode search functionality
      */
@@ -362,16 +387,39 @@ class Project internal constructor(
     lateinit var assetService: AssetService
         private set
 
+    /**
+     * Memory and disk cache of the decoded images of [assets] and [assetService]
+     */
+    internal val imageRepository: ImageRepository by lazy { imageRepositoryFactory(this) }
+
     var appTheme: AppTheme? = null
         private set
 
     var customizationConfig: JsonElement? = null
         private set
 
+    private var parsedJsonObject: JsonObject? = null
+
     init {
         parse(jsonObject)
     }
 
+    /**
+     * Returns true if the project was parsed from equal json, so that parsing it again can be skipped.
+     */
+    internal fun isParsedFrom(jsonObject: JsonObject) = parsedJsonObject == jsonObject
+
+    /**
+     * Updates the values that are not part of the json of the project, but of the rest of the metadata.
+     */
+    internal fun updateMetadataReferences() {
+        val brandId = parsedJsonObject?.getStringOpt("brandID", null)
+        if (brandId != null) {
+            brand = Snabble.brands[brandId]
+        }
+        appUserUrl = "${Snabble.createAppUserUrl}?project=${id}"
+    }
+
     /**
      * Parse a json definition of a Project
      */
@@ -512,6 +560,10 @@ class Project internal constructor(
         }
         this.priceOverrideTemplates = priceOverrideTemplates
 
+        codeTemplateIndex = CodeTemplateIndex.of(codeTemplates)
+        depositReturnVoucherTemplateIndex = CodeTemplateIndex.of(depositReturnVoucherProviders.flatMap { it.templates })
+        priceOverrideTemplateIndex = CodeTemplateIndex(priceOverrideTemplates) { it.codeTemplate }
+
         searchableTemplates = jsonObject.getStringListOpt("searchableTemplates", listOf("default"))
             ?.filterNotNull()
             ?: emptyList()
@@ -570,7 +622,7 @@ class Project internal constructor(
 
         events = Events(this, shoppingCartFlow.value)
 
-        assets = Assets(this)
+        assets = Assets(this, imageRepository)
 
         assetService = assetServiceFactory(project = this, context = Snabble.application)
 
@@ -586,6 +638,7 @@ class Project internal constructor(
             coupons.setProjectCoupons(couponList)
         }
         coupons.update()
+        parsedJsonObject = jsonObject
         notifyUpdate()
     }
 
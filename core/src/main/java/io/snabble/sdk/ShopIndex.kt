@@ -0,0 +1,190 @@
+package io.snabble.sdk
+
+import android.location.Location
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.floor
+
+/**
+ * Spatial index of shops, to find the shops near a location without calculating the distance to every shop.
+ *
+ * Shops are sorted into a grid of cells of [CELL_SIZE_DEGREES] latitude and longitude. Queries only
+ * calculate the distance to the shops in the cells that can contain matching shops.
+ *
+ * Distances are the same as [Location.distanceTo] returns.
+ */
+class ShopIndex(shops: List<Shop>) {
+
+    /**
+     * A shop and its distance to the location of a query, in meters
+     */
+    data class ShopDistance(val shop: Shop, val distance: Float)
+
+    val shops: List<Shop> = shops.toList()
+
+    private val cells = HashMap<Long, MutableList<Shop>>()
+
+    init {
+        this.shops.forEach { shop ->
+            cells.getOrPut(cellKey(latCell(shop.latitude), lonCell(shop.longitude))) { ArrayList(1) }.add(shop)
+        }
+    }
+
+    /**
+     * Returns the shops closer than the radius in meters, nearest first.
+     */
+    fun within(location: Location, radius: Float): List<ShopDistance> {
+        val result = ArrayList<ShopDistance>()
+        val latDelta = radius / MIN_METERS_PER_DEGREE
+        val maxAbsLatitude = abs(location.latitude) + latDelta
+        val lonDelta = if (maxAbsLatitude < MAX_INDEXED_LATITUDE) {
+            latDelta / cos(Math.toRadians(maxAbsLatitude))
+        } else {
+            FULL_CIRCLE
+        }
+
+        val fromLon = floorCell(location.longitude - lonDelta + 180)
+        val toLon = floorCell(location.longitude + lonDelta + 180)
+
+        if (toLon - fromLon + 1 >= LON_CELLS) {
+            shops.forEach { shop -> addIfWithin(result, shop, location, radius) }
+        } else {
+            val fromLat = latCell(location.latitude - latDelta)
+            val toLat = latCell(location.latitude + latDelta)
+
+            for (lat in fromLat..toLat) {
+                for (lon in fromLon..toLon) {
+                    cells[cellKey(lat, wrapLonCell(lon))]?.forEach { shop ->
+                        addIfWithin(result, shop, location, radius)
+                    }
+                }
+            }
+        }
+
+        result.sortBy { it.distance }
+        return result
+    }
+
+    /**
+     * Returns the nearest shop, or null if there are no shops.
+     */
+    fun nearest(location: Location): ShopDistance? = nearest(location, 1).firstOrNull()
+
+    /**
+     * Returns the [count] nearest shops, nearest first.
+     *
+     * Searches the cells around the location ring by ring, until no unsearched cell can contain a
+     * nearer shop.
+     */
+    fun nearest(location: Location, count: Int): List<ShopDistance> {
+        if (count <= 0 || shops.isEmpty()) {
+            return emptyList()
+        }
+
+        val originLat = latCell(location.latitude)
+        val originLon = lonCell(location.longitude)
+        val found = ArrayList<ShopDistance>()
+        var ring = 0
+
+        while (found.size < shops.size) {
+            // searching large, mostly empty areas is slower than calculating every distance
+            val searchedCells = (2 * ring + 1).toLong() * (2 * ring + 1)
+            if (searchedCells > cells.size.toLong() * MAX_CELLS_PER_OCCUPIED_CELL || 2 * ring + 1 > LON_CELLS) {
+                return shops.map { ShopDistance(it, distance(it, location)) }
+                    .sortedBy { it.distance }
+                    .take(count)
+            }
+
+            forEachCellInRing(originLat, originLon, ring) { shopsInCell ->
+                shopsInCell.forEach { shop -> found.add(ShopDistance(shop, distance(shop, location))) }
+            }
+
+            if (found.size >= count) {
+                found.sortBy { it.distance }
+                if (found[count - 1].distance <= minUnsearchedDistance(location, ring, found[count - 1].distance)) {
+                    break
+                }
+            }
+
+            ring++
+        }
+
+        found.sortBy { it.distance }
+        return found.take(count)
+    }
+
+    /**
+     * Returns all shops, nearest first.
+     */
+    fun sortedByDistance(location: Location): List<ShopDistance> =
+        shops.map { ShopDistance(it, distance(it, location)) }.sortedBy { it.distance }
+
+    private inline fun forEachCellInRing(originLat: Int, originLon: Int, ring: Int, action: (List<Shop>) -> Unit) {
+        for (lat in originLat - ring..originLat + ring) {
+            if (lat < 0 || lat >= LAT_CELLS) continue
+
+            val isEdgeRow = lat == originLat - ring || lat == originLat + ring
+            val step = if (isEdgeRow || ring == 0) 1 else 2 * ring
+            var lon = originLon - ring
+            while (lon <= originLon + ring) {
+                cells[cellKey(lat, wrapLonCell(lon))]?.let(action)
+                lon += step
+            }
+        }
+    }
+
+    /**
+     * Returns the minimal distance in meters to a shop in a cell outside of the searched rings, or 0
+     * if that can not be estimated.
+     */
+    private fun minUnsearchedDistance(location: Location, ring: Int, distance: Float): Float {
+        // every searched cell extends at least ring cells from the location in each direction
+        val degrees = ring * CELL_SIZE_DEGREES
+        // a nearer shop can not be further north or south than the distance
+        val maxAbsLatitude = abs(location.latitude) + distance / MIN_METERS_PER_DEGREE
+        if (maxAbsLatitude >= MAX_INDEXED_LATITUDE) {
+            return 0f
+        }
+        return (degrees * MIN_METERS_PER_DEGREE * cos(Math.toRadians(maxAbsLatitude))).toFloat()
+    }
+
+    private fun addIfWithin(result: MutableList<ShopDistance>, shop: Shop, location: Location, radius: Float) {
+        val distance = distance(shop, location)
+        if (distance < radius) {
+            result.add(ShopDistance(shop, distance))
+        }
+    }
+
+    private fun distance(shop: Shop, location: Location): Float {
+        val results = distanceResults.get()!!
+        Location.distanceBetween(location.latitude, location.longitude, shop.latitude, shop.longitude, results)
+        return results[0]
+    }
+
+    companion object {
+
+        private const val CELL_SIZE_DEGREES = 0.1
+        private const val LAT_CELLS = 1800
+        private const val LON_CELLS = 3600
+        private const val FULL_CIRCLE = 360.0
+        private const val MAX_INDEXED_LATITUDE = 85.0
+        private const val MAX_CELLS_PER_OCCUPIED_CELL = 16
+
+        // the length of a degree of latitude is between 110574 and 111694 meters
+        private const val MIN_METERS_PER_DEGREE = 110_000.0
+
+        private val distanceResults = object : ThreadLocal<FloatArray>() {
+            override fun initialValue() = FloatArray(1)
+        }
+
+        private fun floorCell(degrees: Double) = floor(degrees / CELL_SIZE_DEGREES).toInt()
+
+        private fun latCell(latitude: Double) = floorCell(latitude + 90).coerceIn(0, LAT_CELLS - 1)
+
+        private fun lonCell(longitude: Double) = wrapLonCell(floorCell(longitude + 180))
+
+        private fun wrapLonCell(cell: Int) = Math.floorMod(cell, LON_CELLS)
+
+        private fun cellKey(latCell: Int, lonCell: Int) = latCell.toLong() * LON_CELLS + lonCell
+    }
+}
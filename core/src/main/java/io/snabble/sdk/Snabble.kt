@@ -20,6 +20,7 @@ import io.snabble.sdk.checkin.CheckInManager
 import io.snabble.sdk.config.CustomProperty
 import io.snabble.sdk.config.ProjectId
 import io.snabble.sdk.customization.IsMergeable
+import io.snabble.sdk.events.EventQueue
 import io.snabble.sdk.events.Events
 import io.snabble.sdk.extensions.getPackageInfoCompat
 import io.snabble.sdk.payment.PaymentCredentialsStore
@@ -37,6 +38,7 @@ import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.system.measureTimeMillis
 
 /**
  * The heart of the snabble SDK. Initialization and object access is provided via this facade.
@@ -83,6 +85,26 @@ object Snabble {
     lateinit var projects: List<Project>
         private set
 
+    /**
+     * Spatial index of the shops of all projects.
+     *
+     * The index is built again on first access after the shops changed, e.g. by a metadata update.
+     */
+    val shopIndex: ShopIndex
+        @Synchronized get() {
+            val shopLists = if (::projects.isInitialized) projects.map { it.shops } else emptyList()
+            val isOutdated = shopLists.size != shopIndexSource.size ||
+                    shopLists.indices.any { shopLists[it] !== shopIndexSource[it] }
+            if (isOutdated) {
+                cachedShopIndex = ShopIndex(shopLists.flatten())
+                shopIndexSource = shopLists
+            }
+            return cachedShopIndex
+        }
+
+    private var cachedShopIndex = ShopIndex(emptyList())
+    private var shopIndexSource = emptyList<List<Shop>>()
+
     /**
      * Map of available brands
      */
@@ -145,6 +167,15 @@ object Snabble {
     var termsOfService: TermsOfService? = null
         private set
 
+    /**
+     * The time in milliseconds it took to read each phase of the last changed metadata, keyed by
+     * the name of the phase ("json", "brands", "projects", "certificates").
+     */
+    var metadataTimings: Map<String, Long> = emptyMap()
+        private set
+
+    private var readMetadataRevision = 0
+
     /**
      * The config provided after calling Snabble.setup
      */
@@ -305,6 +336,11 @@ object Snabble {
 
     private val isInitializing = AtomicBoolean(false)
 
+    private const val METADATA_PHASE_JSON = "json"
+    private const val METADATA_PHASE_BRANDS = "brands"
+    private const val METADATA_PHASE_PROJECTS = "projects"
+    private const val METADATA_PHASE_CERTIFICATES = "certificates"
+
     /**
      * Get the error during initialization of the SDK occurred
      */
@@ -405,6 +441,11 @@ object Snabble {
         users = Users(userPreferences)
         brands = Collections.unmodifiableMap(emptyMap())
         projects = Collections.unmodifiableList(emptyList())
+        // the queues still use the endpoint and the http client of the previous projects
+        EventQueue.closeAll()
+        // the revisions of the new metadata downloader start again
+        readMetadataRevision = 0
+        metadataTimings = emptyMap()
         environment = Environment.getEnvironmentByUrl(this.config.endpointBaseUrl)
         metadataUrl = absoluteUrl("/metadata/app/" + this.config.appId + "/android/" + version)
         paymentCredentialsStore = PaymentCredentialsStore()
@@ -540,19 +581,30 @@ object Snabble {
 
     @Synchronized
     private fun readMetadata() {
-        metadataDownloader.jsonObject?.let { jsonObject ->
+        val jsonObject = metadataDownloader.jsonObject
+        // metadata that was downloaded again without changes is not read again
+        if (jsonObject != null && metadataDownloader.revision != readMetadataRevision) {
+            readMetadataRevision = metadataDownloader.revision
+
+            val timings = linkedMapOf(METADATA_PHASE_JSON to metadataDownloader.parseDurationMs)
             createAppUserUrl = getUrl(jsonObject, "createAppUser")
             telecashSecretUrl = getUrl(jsonObject, "telecashSecret")
             telecashPreAuthUrl = getUrl(jsonObject, "telecashPreauth")
             giropayAuthUrl = getUrl(jsonObject, "paydirektCustomerAuthorization")
-            if (jsonObject.has("brands")) {
-                parseBrands(jsonObject)
+            timings[METADATA_PHASE_BRANDS] = measureTimeMillis {
+                if (jsonObject.has("brands")) {
+                    parseBrands(jsonObject)
+                }
             }
-            if (jsonObject.has("projects")) {
-                parseProjects(jsonObject)
+            timings[METADATA_PHASE_PROJECTS] = measureTimeMillis {
+                if (jsonObject.has("projects")) {
+                    parseProjects(jsonObject)
+                }
             }
-            if (jsonObject.has("gatewayCertificates")) {
-                parsePaymentCertificates(jsonObject)
+            timings[METADATA_PHASE_CERTIFICATES] = measureTimeMillis {
+                if (jsonObject.has("gatewayCertificates")) {
+                    parsePaymentCertificates(jsonObject)
+                }
             }
             receiptsUrl = getUrl(jsonObject, "appUserOrders")
             usersUrl = getUrl(jsonObject, "appUser")
@@ -561,6 +613,9 @@ object Snabble {
                 termsOfService =
                     GsonHolder.get().fromJson(jsonObject["terms"], TermsOfService::class.java)
             }
+
+            metadataTimings = Collections.unmodifiableMap(timings)
+            Logger.d("Read metadata revision %d in ms: %s", readMetadataRevision, timings)
         }
 
         restoreCheckedInShop()
@@ -601,6 +656,7 @@ object Snabble {
     private fun parseProjects(jsonObject: JsonObject) {
         val jsonArray = jsonObject["projects"].asJsonArray
         val newProjects: MutableList<Project> = ArrayList()
+        var changedCount = 0
         for (i in 0 until jsonArray.size()) {
             val jsonProject = jsonArray[i].asJsonObject
 
@@ -611,7 +667,13 @@ object Snabble {
                 for (p in projects) {
                     if (p.id == jsonProject["id"].asString) {
                         try {
-                            p.parse(jsonProject)
+                            // parsing recreates the shopping cart, checkout and database of the project
+                            if (p.isParsedFrom(jsonProject)) {
+                                p.updateMetadataReferences()
+                            } else {
+                                p.parse(jsonProject)
+                                changedCount++
+                            }
                             newProjects.add(p)
                         } catch (e: IllegalArgumentException) {
                             // malformed project, do nothing
@@ -625,6 +687,7 @@ object Snabble {
                     try {
                         val project = Project(jsonObject = jsonProject)
                         newProjects.add(project)
+                        changedCount++
                     } catch (e: IllegalArgumentException) {
                         Logger.d(e.message)
                         // malformed project, do nothing
@@ -633,6 +696,7 @@ object Snabble {
             }
         }
         projects = Collections.unmodifiableList(newProjects)
+        Logger.d("Parsed %d of %d projects, the others did not change", changedCount, newProjects.size)
     }
 
     private fun parsePaymentCertificates(jsonObject: JsonObject) {
@@ -786,6 +850,7 @@ object Snabble {
     private fun onConnectionStateChanged(isConnected: Boolean) {
         if (isConnected) {
             processPendingCheckouts()
+            projects.forEach { it.events.flush() }
         }
         for (project in projects) {
             project.shoppingCart.updatePrices(false)
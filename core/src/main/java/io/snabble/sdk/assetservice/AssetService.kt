@@ -1,19 +1,15 @@
-@file:Suppress("TooGenericExceptionCaught")
-
 package io.snabble.sdk.assetservice
 
 import android.content.Context
 import android.content.res.Configuration
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
-import android.graphics.Canvas
 import android.util.DisplayMetrics
-import com.caverock.androidsvg.SVG
 import io.snabble.sdk.Project
 import io.snabble.sdk.assetservice.assets.data.AssetsRepositoryImpl
 import io.snabble.sdk.assetservice.assets.data.source.LocalAssetDataSourceImpl
 import io.snabble.sdk.assetservice.assets.data.source.RemoteAssetsSourceImpl
 import io.snabble.sdk.assetservice.assets.domain.AssetsRepository
+import io.snabble.sdk.assetservice.image.data.BitmapDecoder
 import io.snabble.sdk.assetservice.image.data.ImageRepositoryImpl
 import io.snabble.sdk.assetservice.image.data.local.image.LocalDiskDataSourceImpl
 import io.snabble.sdk.assetservice.image.data.local.image.LocalMemorySourceImpl
@@ -21,14 +17,21 @@ import io.snabble.sdk.assetservice.image.domain.ImageRepository
 import io.snabble.sdk.assetservice.image.domain.model.Type
 import io.snabble.sdk.assetservice.image.domain.model.UiMode
 import io.snabble.sdk.utils.Logger
-import java.io.InputStream
-import kotlin.math.roundToInt
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.IOException
 
 interface AssetService {
 
     suspend fun updateAllAssets()
 
     suspend fun loadAsset(name: String, type: Type, uiMode: UiMode): Bitmap?
+
+    /**
+     * Loads an asset, decoded or rendered for the given target size in pixels.
+     * A width or height of 0 means that the dimension is not limited.
+     */
+    suspend fun loadAsset(name: String, type: Type, uiMode: UiMode, width: Int, height: Int): Bitmap?
 }
 
 internal class AssetServiceImpl(
@@ -49,63 +52,55 @@ internal class AssetServiceImpl(
      * Bitmap type can be any of these [Type].
      * To define the [UiMode] use the helper function [Context.getUiMode] or set it directly if needed.
      */
-    override suspend fun loadAsset(name: String, type: Type, uiMode: UiMode): Bitmap? {
-        val bitmap = when (val bitmap = imageRepository.getBitmap(key = name)) {
-            null -> createBitmap(name, type, uiMode)
-            else -> bitmap
-        }
+    override suspend fun loadAsset(name: String, type: Type, uiMode: UiMode): Bitmap? =
+        loadAsset(name, type, uiMode, width = 0, height = 0)
 
-        if (bitmap == null) {
-            val newBitmap = updateAssetsAndRetry(name, type, uiMode)
-            return newBitmap?.also {
-                imageRepository.putBitmap(name, it)
-            }
-        } else {
-            //Save converted bitmap
-            imageRepository.putBitmap(name, bitmap)
-        }
-
-        return bitmap
-    }
-
-    private fun createSVGBitmap(data: InputStream): Bitmap? {
-        val svg = SVG.getFromInputStream(data)
-        return try {
-
-            val width = svg.getDocumentWidth() * displayMetrics.density
-            val height = svg.getDocumentHeight() * displayMetrics.density
-
-            // Set the SVG's view box to the desired size
-            svg.setDocumentWidth(width)
-            svg.setDocumentHeight(height)
+    /**
+     * Loads an asset and returns it converted as [Bitmap], in the size it is displayed in.
+     * Rendered bitmaps are cached per name, type, [UiMode] and size.
+     */
+    override suspend fun loadAsset(name: String, type: Type, uiMode: UiMode, width: Int, height: Int): Bitmap? {
+        val key = BitmapDecoder.cacheKey("$name${uiMode.value}${type.value}", width, height)
 
-            // Create bitmap and canvas
-            val bitmap = androidx.core.graphics.createBitmap(width.roundToInt(), height.roundToInt())
-            val canvas = Canvas(bitmap)
+        imageRepository.getBitmap(key = key)?.let { return it }
 
-            // Render SVG to canvas
-            svg.renderToCanvas(canvas)
+        val bitmap = createBitmap(name, type, uiMode, width, height)
+            ?: updateAssetsAndRetry(name, type, uiMode, width, height)
 
-            bitmap
-        } catch (e: Exception) {
-            Logger.e("Error converting SVG to bitmap", e)
-            null
+        return bitmap?.also {
+            //Save converted bitmap
+            imageRepository.putBitmap(key, it)
         }
     }
 
-    private suspend fun createBitmap(name: String, type: Type, uiMode: UiMode): Bitmap? {
+    private suspend fun createBitmap(name: String, type: Type, uiMode: UiMode, width: Int, height: Int): Bitmap? {
         val cachedAsset =
             assetRepository.loadAsset(name = name, type = type, uiMode = uiMode) ?: return null
-        return when (type) {
-            Type.SVG -> createSVGBitmap(cachedAsset.data)
-            Type.JPG,
-            Type.WEBP -> BitmapFactory.decodeStream(cachedAsset.data)
+        return withContext(Dispatchers.IO) {
+            cachedAsset.data.use { data ->
+                when (type) {
+                    Type.SVG -> BitmapDecoder.renderSvg(data, displayMetrics.density, width, height)
+                    Type.JPG,
+                    Type.WEBP -> try {
+                        BitmapDecoder.decodeSampled(data.readBytes(), width, height)
+                    } catch (e: IOException) {
+                        Logger.e("Could not read asset $name", e)
+                        null
+                    }
+                }
+            }
         }
     }
 
-    private suspend fun updateAssetsAndRetry(name: String, type: Type, uiMode: UiMode): Bitmap? {
+    private suspend fun updateAssetsAndRetry(
+        name: String,
+        type: Type,
+        uiMode: UiMode,
+        width: Int,
+        height: Int
+    ): Bitmap? {
         assetRepository.updateAllAssets()
-        return createBitmap(name, type, uiMode)
+        return createBitmap(name, type, uiMode, width, height)
     }
 }
 
@@ -113,13 +108,6 @@ fun assetServiceFactory(
     project: Project,
     context: Context
 ): AssetService {
-    val localDiskDataSource = LocalDiskDataSourceImpl(storageDirectory = project.internalStorageDirectory)
-    val localMemoryDataSource = LocalMemorySourceImpl()
-    val imageRepository = ImageRepositoryImpl(
-        localMemoryDataSource = localMemoryDataSource,
-        localDiskDataSource = localDiskDataSource
-    )
-
     val localAssetDataSource = LocalAssetDataSourceImpl(project)
     val remoteAssetsSource = RemoteAssetsSourceImpl(project)
     val assetRepository = AssetsRepositoryImpl(
@@ -129,11 +117,20 @@ fun assetServiceFactory(
 
     return AssetServiceImpl(
         assetRepository = assetRepository,
-        imageRepository = imageRepository,
+        imageRepository = project.imageRepository,
         displayMetrics = context.resources.displayMetrics
     )
 }
 
+internal fun imageRepositoryFactory(project: Project): ImageRepository {
+    val localDiskDataSource = LocalDiskDataSourceImpl(storageDirectory = project.internalStorageDirectory)
+    val localMemoryDataSource = LocalMemorySourceImpl()
+    return ImageRepositoryImpl(
+        localMemoryDataSource = localMemoryDataSource,
+        localDiskDataSource = localDiskDataSource
+    )
+}
+
 fun Context.getUiMode() = if (isDarkMode()) UiMode.NIGHT else UiMode.DAY
 
 // Method 2: Extension function for cleaner usage
@@ -25,11 +25,11 @@ internal class AssetsRepositoryImpl(
         Logger.d("Clean up orphaned files...")
         localAssetDataSource.cleanupOrphanedFiles()
 
-        val newAssets = manifest.files.filterNot { localAssetDataSource.assetExists(it.name) }
-        Logger.d("Filtered new assets $newAssets")
-
-        Logger.d("Continue with loading all new assets...")
-        val assets: List<AssetDto> = remoteAssetsSource.downloadAllAssets(newAssets)
+        // assets are compared by hash, so changed assets are loaded again, and assets stored by
+        // another project are linked instead of being downloaded
+        Logger.d("Continue with loading all new and changed assets...")
+        val assets: List<AssetDto> =
+            remoteAssetsSource.downloadAllAssets(manifest.files, localAssetDataSource::linkStoredAsset)
 
         Logger.d("Saving new assets $assets locally...")
         localAssetDataSource.saveMultipleAssets(assets = assets)
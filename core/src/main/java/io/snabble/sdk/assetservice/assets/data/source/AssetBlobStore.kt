@@ -0,0 +1,110 @@
+package io.snabble.sdk.assetservice.assets.data.source
+
+import io.snabble.sdk.Snabble
+import io.snabble.sdk.utils.Logger
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Content addressed storage of asset files, shared by all projects.
+ *
+ * Every asset is stored once under its hash, so projects that use the same asset share its file.
+ * Files are written to a temporary file first and renamed to their hash once they are complete,
+ * so a file that exists under its hash is always complete.
+ *
+ * Which hashes a project uses is stored in the project's own manifest, see [AssetManifestJournal].
+ */
+internal class AssetBlobStore private constructor(private val dir: File) {
+
+    init {
+        dir.mkdirs()
+        // temporary files of writes that did not complete
+        dir.listFiles { file -> file.name.endsWith(TEMP_SUFFIX) }?.forEach { it.delete() }
+    }
+
+    fun fileOf(hash: String) = File(dir, hash)
+
+    fun contains(hash: String) = fileOf(hash).isFile
+
+    /**
+     * Marks a stored file as recently used, so that it is not deleted before the project using it
+     * added it to its manifest.
+     *
+     * @return false if there is no file for the hash
+     */
+    fun touch(hash: String): Boolean {
+        val file = fileOf(hash)
+        if (!file.isFile) return false
+        file.setLastModified(System.currentTimeMillis())
+        return true
+    }
+
+    /**
+     * Stores the data under the hash, unless it is already stored.
+     */
+    @Throws(IOException::class)
+    fun commit(hash: String, data: InputStream): File {
+        if (touch(hash)) {
+            data.close()
+            return fileOf(hash)
+        }
+
+        val file = fileOf(hash)
+
+        val tempFile = File(dir, "$hash.${UUID.randomUUID()}$TEMP_SUFFIX")
+        try {
+            data.use { input ->
+                FileOutputStream(tempFile).use { output ->
+                    input.copyTo(output)
+                    output.fd.sync()
+                }
+            }
+
+            // another project may have committed the same hash in the meantime, the content is the same
+            if (!tempFile.renameTo(file) && !file.isFile) {
+                throw IOException("Could not move ${tempFile.name} to $hash")
+            }
+        } finally {
+            tempFile.delete()
+        }
+
+        return file
+    }
+
+    /**
+     * Deletes all files whose hash is not in use. Recently committed files are kept, since the project
+     * that committed them may not have added them to its manifest yet.
+     */
+    fun retainAll(usedHashes: Set<String>) {
+        val committedBefore = System.currentTimeMillis() - MIN_UNUSED_AGE_MS
+        dir.listFiles()
+            ?.filter { it.isFile && !it.name.endsWith(TEMP_SUFFIX) && it.name !in usedHashes }
+            ?.filter { it.lastModified() < committedBefore }
+            ?.forEach { file ->
+                Logger.d("Deleting unused asset file: ${file.name}")
+                file.delete()
+            }
+    }
+
+    companion object {
+
+        private const val DIR = "asset_store/"
+        private const val TEMP_SUFFIX = ".tmp"
+        private const val MIN_UNUSED_AGE_MS = 10 * 60 * 1000L
+
+        private val stores = ConcurrentHashMap<String, AssetBlobStore>()
+
+        fun of(dir: File): AssetBlobStore =
+            stores.computeIfAbsent(dir.absolutePath) { AssetBlobStore(dir) }
+
+        /**
+         * The store shared by the asset service and [io.snabble.sdk.Assets] of all projects.
+         */
+        @JvmStatic
+        fun shared(): AssetBlobStore = of(File(Snabble.internalStorageDirectory, DIR))
+    }
+}
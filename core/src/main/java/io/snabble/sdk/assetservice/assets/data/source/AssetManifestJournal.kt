@@ -0,0 +1,175 @@
+package io.snabble.sdk.assetservice.assets.data.source
+
+import com.google.gson.JsonParseException
+import com.google.gson.annotations.SerializedName
+import io.snabble.sdk.utils.GsonHolder
+import io.snabble.sdk.utils.Logger
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Manifest of the assets of a project, which maps the names of the assets to the hashes of their
+ * content in the [AssetBlobStore].
+ *
+ * Changes are appended to a journal, which is compacted into a new file once it contains mostly
+ * outdated entries. Lines that were not written completely are ignored when loading.
+ *
+ * Reads are not blocking, changes are written synchronously by the calling thread.
+ */
+internal class AssetManifestJournal(private val file: File) {
+
+    private val entries = ConcurrentHashMap<String, String>()
+    private val tempFile = File(file.parentFile, "${file.name}.tmp")
+    private var lineCount = 0
+    private var isLoaded = false
+
+    /**
+     * Reads the journal, if it was not read yet.
+     */
+    @Synchronized
+    fun load() {
+        if (isLoaded) return
+        isLoaded = true
+
+        if (!file.exists()) {
+            Logger.d("Manifest ${file.name} does not exist, creating new one")
+            return
+        }
+
+        try {
+            readEntries(file) { entry ->
+                lineCount++
+                apply(entries, entry)
+            }
+            Logger.d("Loaded manifest ${file.name} with ${entries.size} assets")
+        } catch (e: IOException) {
+            Logger.e("Could not load manifest, creating new one: ${e.message}")
+            entries.clear()
+        }
+    }
+
+    /** The hash of the asset, or null if the asset is not part of the manifest */
+    operator fun get(name: String): String? = entries[name]
+
+    fun contains(name: String): Boolean = entries.containsKey(name)
+
+    fun names(): List<String> = entries.keys.toList()
+
+    /**
+     * Adds or replaces the assets in [puts] and removes the assets in [removals] from the manifest.
+     */
+    @Synchronized
+    fun update(puts: Map<String, String>, removals: Collection<String> = emptyList()) {
+        load()
+
+        val changes = puts.map { (name, hash) -> Entry(OP_PUT, name, hash) } +
+                removals.filter { entries.containsKey(it) }.map { Entry(OP_REMOVE, it) }
+        if (changes.isEmpty()) return
+
+        changes.forEach { apply(entries, it) }
+
+        try {
+            if (lineCount + changes.size > entries.size * 2 + MIN_COMPACTION_LINES) {
+                compact()
+            } else {
+                append(changes)
+            }
+        } catch (e: IOException) {
+            Logger.e("Could not save manifest: ${e.message}")
+        }
+    }
+
+    private fun append(changes: List<Entry>) {
+        val lines = changes.joinToString(separator = "") { GsonHolder.get().toJson(it) + "\n" }
+        file.parentFile?.mkdirs()
+        FileOutputStream(file, true).use { out ->
+            out.write(lines.toByteArray(Charsets.UTF_8))
+            out.fd.sync()
+        }
+        lineCount += changes.size
+    }
+
+    private fun compact() {
+        val lines = entries.entries.joinToString(separator = "") { (name, hash) ->
+            GsonHolder.get().toJson(Entry(OP_PUT, name, hash)) + "\n"
+        }
+
+        file.parentFile?.mkdirs()
+        FileOutputStream(tempFile).use { out ->
+            out.write(lines.toByteArray(Charsets.UTF_8))
+            out.fd.sync()
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw IOException("Could not move ${tempFile.name} to ${file.name}")
+        }
+        lineCount = entries.size
+    }
+
+    private data class Entry(
+        @SerializedName("op") val op: String? = null,
+        @SerializedName("name") val name: String? = null,
+        @SerializedName("hash") val hash: String? = null
+    )
+
+    companion object {
+
+        /** The manifest of the assets of the asset service */
+        const val FILE_NAME = "assets_v3.journal"
+
+        /** The manifest of the assets of [io.snabble.sdk.Assets] */
+        const val LEGACY_ASSETS_FILE_NAME = "assets_legacy.journal"
+
+        private const val MIN_COMPACTION_LINES = 64
+
+        private const val OP_PUT = "put"
+        private const val OP_REMOVE = "remove"
+
+        private fun apply(entries: MutableMap<String, String>, entry: Entry) {
+            val name = entry.name ?: return
+            when (entry.op) {
+                OP_PUT -> entry.hash?.let { entries[name] = it }
+                OP_REMOVE -> entries.remove(name)
+            }
+        }
+
+        private fun readEntries(file: File, action: (Entry) -> Unit) {
+            file.useLines { lines ->
+                lines.forEach { line ->
+                    val entry = try {
+                        GsonHolder.get().fromJson(line, Entry::class.java)
+                    } catch (e: JsonParseException) {
+                        null
+                    }
+                    entry?.let(action)
+                }
+            }
+        }
+
+        /**
+         * Reads the hashes used by the manifests of all projects, including projects which are not loaded.
+         *
+         * @throws IOException if a manifest could not be read, its hashes would be missing otherwise
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun hashesOfAllProjects(storageDirectory: File): Set<String> {
+            val hashes = HashSet<String>()
+
+            storageDirectory.listFiles()?.forEach { projectDir ->
+                listOf(FILE_NAME, LEGACY_ASSETS_FILE_NAME)
+                    .map { File(projectDir, it) }
+                    .filter { it.isFile }
+                    .forEach { file ->
+                        val entries = HashMap<String, String>()
+                        readEntries(file) { apply(entries, it) }
+                        hashes.addAll(entries.values)
+                    }
+            }
+
+            return hashes
+        }
+    }
+}
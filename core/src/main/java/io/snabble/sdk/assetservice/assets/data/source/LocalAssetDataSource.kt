@@ -2,56 +2,65 @@
 
 package io.snabble.sdk.assetservice.assets.data.source
 
-import com.google.gson.annotations.SerializedName
 import io.snabble.sdk.Project
+import io.snabble.sdk.Snabble
 import io.snabble.sdk.assetservice.assets.data.source.dto.AssetDto
-import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
 
 internal interface LocalAssetDataSource {
 
     suspend fun loadAsset(name: String): AssetDto?
     suspend fun saveMultipleAssets(assets: List<AssetDto>)
     fun assetExists(name: String): Boolean
+
+    /**
+     * Adds the asset to the project without downloading it, if its content is already stored,
+     * e.g. because another project uses the same asset.
+     *
+     * @return true if the asset is available under the given name afterwards
+     */
+    suspend fun linkStoredAsset(name: String, hash: String): Boolean
     fun listAssets(): List<String>
     suspend fun deleteAsset(names: List<String>)
     suspend fun cleanupOrphanedFiles()
 }
 
+/**
+ * Stores the assets of a project in the [AssetBlobStore] shared by all projects, the names of the assets
+ * of the project and the hashes of their content are stored in an [AssetManifestJournal].
+ */
 internal class LocalAssetDataSourceImpl(
     private val project: Project,
     private val dispatcher: CoroutineDispatcher = Dispatchers.IO
 ) : LocalAssetDataSource {
 
-    private val assetsDir = File(project.internalStorageDirectory, "assets/")
-    private val manifestFile = File(project.internalStorageDirectory, "assets_v2.json")
-
-    private var manifest = ManifestFile()
+    private val blobStore = AssetBlobStore.shared()
+    private val manifest = AssetManifestJournal(File(project.internalStorageDirectory, AssetManifestJournal.FILE_NAME))
 
     init {
-        assetsDir.mkdirs()
-        loadManifest()
+        manifest.load()
     }
 
     override suspend fun loadAsset(name: String): AssetDto? = withContext(dispatcher) {
         try {
             Logger.d("Loading asset $name...")
 
-            return@withContext manifest.assets[name]
-                ?.takeIf { File(it.filePath).exists() }
-                ?.let { file ->
+            return@withContext manifest[name]
+                ?.let { hash -> hash to blobStore.fileOf(hash) }
+                ?.takeIf { (_, file) -> file.exists() }
+                ?.let { (hash, file) ->
 
                     Logger.d("Asset loaded for $name")
 
                     AssetDto(
                         name = name,
-                        data = File(file.filePath).inputStream(),
-                        hash = file.hash
+                        data = file.inputStream(),
+                        hash = hash
                     )
                 }.also {
                     if (it == null) {
@@ -65,112 +74,66 @@ internal class LocalAssetDataSourceImpl(
     }
 
     override suspend fun saveMultipleAssets(assets: List<AssetDto>) = withContext(dispatcher) {
-        try {
-            assets.forEach { assetDto ->
-                Logger.e("Saving asset ${assetDto.name}...")
-                val fileName = "${assetDto.hash}_${assetDto.name}"
-                val file = File(assetsDir, fileName)
-                file.createNewFile()
-
-                Logger.d("Created file for ${assetDto.name}")
-
-
-                assetDto.data.use { inputStream ->
-                    FileOutputStream(file).use { outputStream ->
-                        inputStream.copyTo(outputStream)
-                    }
-                }
-
-                Logger.d("Saved asset content into a file ${file.absolutePath}")
-
-                val assetFile = AssetFile(
-                    filePath = file.absolutePath,
-                    hash = assetDto.hash
-                )
-
-                withContext(Dispatchers.Main) {
-                    manifest.assets[assetDto.name] = assetFile
-                }
+        val saved = assets.mapNotNull { assetDto ->
+            try {
+                Logger.d("Saving asset ${assetDto.name}...")
+                blobStore.commit(assetDto.hash, assetDto.data)
+                Logger.d("Saved asset content of ${assetDto.name} as ${assetDto.hash}")
+                assetDto.name to assetDto.hash
+            } catch (e: IOException) {
+                Logger.e("Saving asset ${assetDto.name} failed: ${e.message}")
+                null
             }
-
-            if (assets.isNotEmpty()) saveManifest()
-        } catch (e: Exception) {
-            Logger.e("Saving Assets failed: ${e.message}")
         }
-    }
 
-    private suspend fun saveManifest() = withContext(dispatcher) {
-        try {
-            val jsonString = GsonHolder.get().toJson(manifest)
-            manifestFile.writeText(jsonString)
-            Logger.d("Saved manifest for project ${project.id}")
-        } catch (e: Exception) {
-            Logger.d("Could not save manifest: ${e.message}")
-            throw e
-        }
+        manifest.update(saved.toMap())
+        Logger.d("Saved manifest for project ${project.id}")
     }
 
-    private fun loadManifest() {
-        try {
-            if (manifestFile.exists()) {
-                val jsonString = manifestFile.readText()
-                manifest = GsonHolder.get().fromJson(jsonString, ManifestFile::class.java)
-                Logger.d("Loaded manifest for project ${project.id} with ${manifest.assets.size} assets")
+    override suspend fun linkStoredAsset(name: String, hash: String): Boolean = withContext(dispatcher) {
+        when {
+            manifest[name] == hash && blobStore.contains(hash) -> true
+            blobStore.touch(hash) -> {
+                Logger.d("Using stored content $hash for asset $name")
+                manifest.update(mapOf(name to hash))
+                true
             }
-            Logger.e("Manifest does not exist, creating new one")
-            manifest = ManifestFile()
-        } catch (e: Exception) {
-            Logger.e("Could not load manifest, creating new one: ${e.message}")
-            manifest = ManifestFile()
+            else -> false
         }
     }
 
-    override fun listAssets(): List<String> = manifest.assets.keys.toList()
+    override fun listAssets(): List<String> = manifest.names()
 
-    override fun assetExists(name: String): Boolean = manifest.assets.contains(name)
+    override fun assetExists(name: String): Boolean = manifest.contains(name)
 
     override suspend fun deleteAsset(names: List<String>) = withContext(dispatcher) {
-        try {
-            Logger.e("Start deleting dead assets...")
-            names.forEach { name ->
-                val asset = manifest.assets[name] ?: return@forEach
-
-                val file = File(asset.filePath)
-                val deleted = if (file.exists()) file.delete() else true
-
-                if (deleted) {
-                    manifest.assets.remove(name)
-                    saveManifest()
-                }
-            }
-            Logger.e("Deleted dead assets")
-        } catch (e: Exception) {
-            Logger.e("Deletion of dead assets failed: ${e.message}")
-        }
+        Logger.d("Start deleting dead assets...")
+        // the files are deleted by cleanupOrphanedFiles, once no other project uses them either
+        manifest.update(emptyMap(), names)
+        Logger.d("Deleted dead assets")
     }
 
     override suspend fun cleanupOrphanedFiles() = withContext(dispatcher) {
         try {
-            val files = assetsDir.listFiles() ?: return@withContext
-            val manifestFilePaths = manifest.assets.values.map { it.filePath }.toSet()
-
-            files.filterNotNull()
-                .filter { file -> file.isFile && !manifestFilePaths.contains(file.absolutePath) }
-                .map { file ->
-                    Logger.d("Deleting orphaned file: ${file.name}")
-                    file.delete()
-                }
+            blobStore.retainAll(AssetManifestJournal.hashesOfAllProjects(Snabble.internalStorageDirectory))
+            deleteLegacyFiles()
         } catch (e: Exception) {
             Logger.e("Failed to delete orphaned files: ${e.message}")
         }
     }
-}
 
-private data class AssetFile(
-    @SerializedName("filePath") val filePath: String,
-    @SerializedName("hash") val hash: String
-)
+    /**
+     * Deletes the files of previous versions, which stored the assets of each project separately
+     * as "hash_name". Files of [io.snabble.sdk.Assets] are moved to the blob store by that class.
+     */
+    private fun deleteLegacyFiles() {
+        File(project.internalStorageDirectory, "assets/")
+            .listFiles { file -> LEGACY_FILE_NAME.matches(file.name) }
+            ?.forEach { it.delete() }
+    }
+
+    companion object {
 
-private data class ManifestFile(
-    @SerializedName("assets") val assets: MutableMap<String, AssetFile> = mutableMapOf()
-)
+        private val LEGACY_FILE_NAME = Regex("[0-9a-f]{64}_.+")
+    }
+}
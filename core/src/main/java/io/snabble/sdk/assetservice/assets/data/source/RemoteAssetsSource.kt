@@ -9,6 +9,7 @@ import io.snabble.sdk.assetservice.assets.data.source.dto.ManifestDto
 import io.snabble.sdk.assetservice.assets.data.source.dto.VariantDto
 import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
@@ -24,6 +25,7 @@ import okhttp3.Response
 import okio.IOException
 import org.apache.commons.io.FilenameUtils
 import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.coroutines.Continuation
 import kotlin.coroutines.resume
 import kotlin.time.Duration.Companion.seconds
@@ -38,8 +40,14 @@ internal interface RemoteAssetsSource {
     /**
      * Downloads the assets (e.g the bytes) for each asset variant provided.
      * The asset needs to be a valid format (.svg, .jpg, .webp) and not has to be in the root folder
+     *
+     * @param isAvailable called with the name and hash of each asset, assets for which it returns true
+     * are not downloaded
      */
-    suspend fun downloadAllAssets(files: List<AssetVariantDto>): List<AssetDto>
+    suspend fun downloadAllAssets(
+        files: List<AssetVariantDto>,
+        isAvailable: suspend (name: String, hash: String) -> Boolean
+    ): List<AssetDto>
 }
 
 internal class RemoteAssetsSourceImpl(
@@ -89,7 +97,8 @@ internal class RemoteAssetsSourceImpl(
         }
 
     override suspend fun downloadAllAssets(
-        files: List<AssetVariantDto>
+        files: List<AssetVariantDto>,
+        isAvailable: suspend (name: String, hash: String) -> Boolean
     ) = withContext(Dispatchers.IO) {
 
         val assetsUrls = files.mapNotNull { asset ->
@@ -109,15 +118,44 @@ internal class RemoteAssetsSourceImpl(
         assetsUrls
             .map { (assetName, url) ->
                 async {
+                    val hash = url.calculateHash()
+                    if (isAvailable(assetName, hash)) {
+                        return@async null
+                    }
+
                     semaphore.withPermit {
-                        loadAsset(project, url, assetName)
+                        loadAssetOnce(url, hash)
+                    }?.let { bytes ->
+                        AssetDto(data = bytes.inputStream(), hash = hash, name = assetName)
                     }
                 }
             }.awaitAll()
             .filterNotNull()
     }
 
-    private suspend fun loadAsset(project: Project, url: String, assetName: String): AssetDto? =
+    /**
+     * Downloads the content of an asset, unless it is already being downloaded, e.g. because
+     * another project uses the same asset. In that case the running download is awaited instead.
+     */
+    private suspend fun loadAssetOnce(url: String, hash: String): ByteArray? {
+        val download = CompletableDeferred<ByteArray?>()
+        val running = runningDownloads.putIfAbsent(hash, download)
+        if (running != null) {
+            Logger.d("Awaiting running download of $url")
+            return running.await()
+        }
+
+        var bytes: ByteArray? = null
+        try {
+            bytes = loadAsset(project, url)
+        } finally {
+            runningDownloads.remove(hash, download)
+            download.complete(bytes)
+        }
+        return bytes
+    }
+
+    private suspend fun loadAsset(project: Project, url: String): ByteArray? =
         withContext(Dispatchers.IO) {
             suspendCancellableCoroutine { continuation ->
                 Logger.d("Loading asset for $url")
@@ -140,17 +178,22 @@ internal class RemoteAssetsSourceImpl(
                     }
 
                     override fun onResponse(call: Call, response: Response) {
-                        if (!response.isSuccessful) {
-                            Logger.e("Loading asset failed: ${response.code} ${response.body.string()}")
-                            continuation.resume(null)
-                            return
+                        response.use {
+                            if (!response.isSuccessful) {
+                                Logger.e("Loading asset failed: ${response.code} ${response.body.string()}")
+                                continuation.resume(null)
+                                return
+                            }
+
+                            val bytes = try {
+                                response.body.bytes()
+                            } catch (e: IOException) {
+                                Logger.e("Loading asset failed: ${e.message}")
+                                null
+                            }
+                            Logger.d("Loading asset for $url succeeded: ${bytes?.size} bytes")
+                            continuation.resume(bytes)
                         }
-                        val bytes = response.body.bytes()
-                        val asset =
-                            AssetDto(data = bytes.inputStream(), hash = url.calculateHash(), name = assetName)
-                        Logger.d("Loading assets succeeded: $asset")
-                        continuation.resume(asset)
-                        response.close()
                     }
                 })
             }
@@ -178,5 +221,7 @@ internal class RemoteAssetsSourceImpl(
 
         private val VALID_FORMATS = listOf("svg", "jpg", "webp")
         private const val MAX_CONCURRENT_REQUESTS = 10
+
+        private val runningDownloads = ConcurrentHashMap<String, CompletableDeferred<ByteArray?>>()
     }
 }
@@ -0,0 +1,133 @@
+@file:Suppress("TooGenericExceptionCaught")
+
+package io.snabble.sdk.assetservice.image.data
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import com.caverock.androidsvg.SVG
+import io.snabble.sdk.utils.Logger
+import java.io.File
+import java.io.InputStream
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Decodes images for a given target size, so that images are not decoded larger than they are displayed.
+ *
+ * A target width or height of 0 or less means that the dimension is not limited.
+ */
+internal object BitmapDecoder {
+
+    /**
+     * Decodes a jpg or webp file, subsampled to the smallest size that still covers the target size.
+     */
+    @JvmStatic
+    fun decodeSampled(file: File, targetWidth: Int, targetHeight: Int): Bitmap? =
+        decodeSampled(targetWidth, targetHeight) { options ->
+            BitmapFactory.decodeFile(file.absolutePath, options)
+        }
+
+    /**
+     * Decodes jpg or webp data, subsampled to the smallest size that still covers the target size.
+     */
+    @JvmStatic
+    fun decodeSampled(data: ByteArray, targetWidth: Int, targetHeight: Int): Bitmap? =
+        decodeSampled(targetWidth, targetHeight) { options ->
+            BitmapFactory.decodeByteArray(data, 0, data.size, options)
+        }
+
+    private inline fun decodeSampled(
+        targetWidth: Int,
+        targetHeight: Int,
+        decode: (BitmapFactory.Options) -> Bitmap?
+    ): Bitmap? {
+        val options = BitmapFactory.Options()
+
+        if (targetWidth > 0 || targetHeight > 0) {
+            // read only the dimensions first, to not allocate the full resolution bitmap
+            options.inJustDecodeBounds = true
+            decode(options)
+            options.inJustDecodeBounds = false
+            options.inSampleSize = calculateInSampleSize(
+                options.outWidth,
+                options.outHeight,
+                targetWidth,
+                targetHeight
+            )
+        }
+
+        return decode(options)
+    }
+
+    /**
+     * Renders an svg at its document size multiplied by the display density, scaled down to fit into
+     * the target size while keeping its aspect ratio.
+     */
+    @JvmStatic
+    fun renderSvg(data: InputStream, density: Float, targetWidth: Int, targetHeight: Int): Bitmap? {
+        return try {
+            val svg = SVG.getFromInputStream(data)
+
+            var width = svg.documentWidth
+            var height = svg.documentHeight
+            if (width <= 0 || height <= 0) {
+                // svgs without a size are rendered at the size of their view box
+                val viewBox = svg.documentViewBox ?: return null
+                width = viewBox.width()
+                height = viewBox.height()
+            }
+
+            val scale = fitScale(width * density, height * density, targetWidth, targetHeight) * density
+            val bitmapWidth = (width * scale).roundToInt().coerceAtLeast(1)
+            val bitmapHeight = (height * scale).roundToInt().coerceAtLeast(1)
+
+            svg.setDocumentWidth(bitmapWidth.toFloat())
+            svg.setDocumentHeight(bitmapHeight.toFloat())
+
+            val bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888)
+            svg.renderToCanvas(Canvas(bitmap))
+            bitmap
+        } catch (e: Exception) {
+            Logger.e("Error converting SVG to bitmap", e)
+            null
+        }
+    }
+
+    /**
+     * Returns the largest power of 2 by which the image can be subsampled, while still covering the
+     * target size.
+     */
+    @JvmStatic
+    fun calculateInSampleSize(width: Int, height: Int, targetWidth: Int, targetHeight: Int): Int {
+        if (width <= 0 || height <= 0 || (targetWidth <= 0 && targetHeight <= 0)) {
+            return 1
+        }
+
+        var inSampleSize = 1
+        while (covers(width / (inSampleSize * 2), targetWidth) &&
+            covers(height / (inSampleSize * 2), targetHeight)
+        ) {
+            inSampleSize *= 2
+        }
+        return inSampleSize
+    }
+
+    private fun covers(size: Int, target: Int) = size > 0 && size >= target
+
+    /**
+     * Returns the factor by which the size needs to be scaled down to fit into the target size.
+     */
+    private fun fitScale(width: Float, height: Float, targetWidth: Int, targetHeight: Int): Float {
+        val scaleX = if (targetWidth > 0) targetWidth / width else Float.MAX_VALUE
+        val scaleY = if (targetHeight > 0) targetHeight / height else Float.MAX_VALUE
+        return min(min(scaleX, scaleY), 1f)
+    }
+
+    /**
+     * Returns the key of an image in the image cache, for the given target size.
+     */
+    @JvmStatic
+    fun cacheKey(key: String, targetWidth: Int, targetHeight: Int) =
+        "${key}_${targetWidth.coerceAtLeast(0)}x${targetHeight.coerceAtLeast(0)}"
+}
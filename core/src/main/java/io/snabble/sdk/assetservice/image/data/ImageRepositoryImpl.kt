@@ -9,8 +9,8 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancel
-import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
 
 internal class ImageRepositoryImpl(
@@ -20,14 +20,6 @@ internal class ImageRepositoryImpl(
 
     private val cacheScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
 
-    init {
-        cacheScope.launch {
-            localMemoryDataSource.evictedItems.filterNotNull().collect { (key, bitmap) ->
-                localDiskDataSource.saveToDisk(key, bitmap)
-            }
-        }
-    }
-
     override suspend fun getBitmap(key: String): Bitmap? = withContext(Dispatchers.IO) {
 
         // 1. Check memory cache first (fastest ~0.1ms)
@@ -47,13 +39,25 @@ internal class ImageRepositoryImpl(
     }
 
     /**
-     * Manually put a bitmap in cache
+     * Manually put a bitmap in cache. Bitmaps are only written to disk once, when they are put
+     * in the cache, and not again when they are evicted from memory.
      */
     override suspend fun putBitmap(key: String, bitmap: Bitmap) {
         localMemoryDataSource.putBitmap(key, bitmap)
         localDiskDataSource.saveToDisk(key, bitmap)
     }
 
+    override fun getCachedBitmap(key: String): Bitmap? = localMemoryDataSource.peekBitmap(key)
+
+    override fun getBitmapBlocking(key: String): Bitmap? = runBlocking { getBitmap(key) }
+
+    override fun putBitmapAsync(key: String, bitmap: Bitmap) {
+        localMemoryDataSource.putBitmapNow(key, bitmap)
+        cacheScope.launch {
+            localDiskDataSource.saveToDisk(key, bitmap)
+        }
+    }
+
     /**
      * Clear memory cache (disk cache remains)
      */
@@ -4,18 +4,17 @@ package io.snabble.sdk.assetservice.image.data.local.image
 
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
+import android.os.Build
 import io.snabble.sdk.utils.Logger
-import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
-import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
+import java.io.Writer
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
+import java.util.UUID
 
 internal interface LocalDiskDataSource {
 
@@ -24,109 +23,235 @@ internal interface LocalDiskDataSource {
     suspend fun clearCache()
 }
 
+/**
+ * Size bounded disk cache of bitmaps.
+ *
+ * Each bitmap is encoded once, when it is added, and stored lossless (WebP on Android 11 and newer, PNG
+ * before). The cached files and their order of use are kept in an append-only journal, so reading an
+ * entry and evicting the least recently used ones does not need to list or touch the files.
+ */
 internal class LocalDiskDataSourceImpl(
     private val storageDirectory: File,
+    private val maxSize: Long = MAX_DISK_CACHE_SIZE
 ) : LocalDiskDataSource {
 
-    private val diskCacheDir: File
-    private val cacheScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private val diskCacheDir = File(storageDirectory, DISK_CACHE_SUBDIR)
+    private val journalFile = File(diskCacheDir, JOURNAL_FILE)
 
-    init {
-        diskCacheDir = initDiskCacheDir()
-    }
+    private val lock = Any()
 
-    private fun initDiskCacheDir(): File {
-        val cacheDir = File(storageDirectory, DISK_CACHE_SUBDIR)
-        if (!cacheDir.exists()) {
-            cacheDir.mkdirs()
-        }
-        Logger.d("Init disk cache dir: ${cacheDir.absolutePath}")
+    // access ordered, the first entry is the least recently used one
+    private val entries = LinkedHashMap<String, Long>(0, 0.75f, true)
+    private var size = 0L
+    private var journalLineCount = 0
+    private var journalWriter: Writer? = null
+    private var isLoaded = false
 
-        // Clean up old cache files if over size limit
-        cacheScope.launch {
-            cleanupDiskCache()
+    override suspend fun getBitmap(key: String): Bitmap? = withContext(Dispatchers.IO) {
+        val fileName = key.toFileName()
+        synchronized(lock) {
+            load()
+            if (entries[fileName] == null) {
+                return@withContext null
+            }
+            // read entries are not flushed immediately, losing them only affects the order of eviction
+            appendToJournal("$READ $fileName", flush = false)
         }
 
-        return cacheDir
-    }
+        val cacheFile = File(diskCacheDir, fileName)
+        val bitmap = try {
+            BitmapFactory.decodeFile(cacheFile.absolutePath)
+        } catch (e: OutOfMemoryError) {
+            Logger.e("Error reading image from disk cache: $key", e)
+            return@withContext null
+        }
 
-    override suspend fun getBitmap(key: String): Bitmap? = withContext(Dispatchers.IO) {
-        val cacheFile = getCacheFile(key)
-
-        return@withContext if (cacheFile.exists()) {
-            try {
-                FileInputStream(cacheFile).use { inputStream ->
-                    val bitmap = BitmapFactory.decodeStream(inputStream)
-                    // Update file access time for LRU cleanup
-                    cacheFile.setLastModified(System.currentTimeMillis())
-                    bitmap
-                }
-            } catch (e: IOException) {
-                Logger.e("Error reading image from disk cache: $key", e)
-                // Delete corrupted file
-                cacheFile.delete()
-                null
-            }
-        } else {
-            null
+        if (bitmap == null) {
+            Logger.e("Error reading image from disk cache: $key")
+            synchronized(lock) { remove(fileName) }
         }
-    }
 
-    private fun getCacheFile(key: String): File {
-        val safeFileName = key.toMD5() + CACHE_FILE_EXTENSION
-        return File(diskCacheDir, safeFileName)
+        bitmap
     }
 
     override suspend fun saveToDisk(key: String, bitmap: Bitmap) = withContext(Dispatchers.IO) {
-        val cacheFile = getCacheFile(key)
+        val fileName = key.toFileName()
+        synchronized(lock) {
+            load()
+            if (entries[fileName] != null) {
+                // images are only encoded once, the cached file does not change for the same key
+                return@withContext
+            }
+        }
 
+        val tempFile = File(diskCacheDir, "$fileName.${UUID.randomUUID()}$TEMP_SUFFIX")
         try {
-            FileOutputStream(cacheFile).use { outputStream ->
-                if (bitmap.compress(Bitmap.CompressFormat.PNG, PNG_COMPRESSION_QUALITY, outputStream)) {
+            val isEncoded = FileOutputStream(tempFile).use { outputStream ->
+                bitmap.compress(COMPRESS_FORMAT, LOSSLESS_QUALITY, outputStream)
+            }
+            if (!isEncoded) {
+                return@withContext
+            }
+
+            synchronized(lock) {
+                val cacheFile = File(diskCacheDir, fileName)
+                if (entries[fileName] == null && tempFile.renameTo(cacheFile)) {
+                    val fileSize = cacheFile.length()
+                    entries[fileName] = fileSize
+                    size += fileSize
+                    appendToJournal("$PUT $fileName $fileSize", flush = true)
                     Logger.d("Saved image to disk: $key")
-                } else {
-                    cacheFile.delete()
+
+                    trimToSize()
+                    compactJournalIfNeeded()
                 }
             }
         } catch (e: IOException) {
             Logger.e("Error writing image to disk cache: $key", e)
-            cacheFile.delete()
+        } finally {
+            tempFile.delete()
         }
     }
 
-    override suspend fun clearCache() {
-        try {
+    override suspend fun clearCache() = withContext(Dispatchers.IO) {
+        synchronized(lock) {
+            closeJournal()
+            entries.clear()
+            size = 0
+            journalLineCount = 0
             diskCacheDir.listFiles()?.forEach { it.delete() }
-        } catch (e: IOException) {
-            Logger.e("Error clearing disk cache", e)
         }
     }
 
-    private suspend fun cleanupDiskCache() = withContext(Dispatchers.IO) {
+    /**
+     * Reads the journal and deletes the files that are not in it, e.g. the files of writes that
+     * did not complete.
+     */
+    private fun load() {
+        if (isLoaded) return
+        isLoaded = true
+
+        diskCacheDir.mkdirs()
+        deleteLegacyCache()
+
         try {
-            val files = diskCacheDir.listFiles() ?: return@withContext
-            val totalSize = files.sumOf { it.length() }
+            if (journalFile.exists()) {
+                journalFile.useLines { lines ->
+                    lines.forEach { line ->
+                        journalLineCount++
+                        val parts = line.split(' ')
+                        when {
+                            parts.size == 3 && parts[0] == PUT -> parts[2].toLongOrNull()?.let { fileSize ->
+                                entries.remove(parts[1])?.let { size -= it }
+                                entries[parts[1]] = fileSize
+                                size += fileSize
+                            }
+
+                            parts.size == 2 && parts[0] == READ -> entries[parts[1]]
+                            parts.size == 2 && parts[0] == DELETE -> entries.remove(parts[1])?.let { size -= it }
+                        }
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            Logger.e("Error reading disk cache journal", e)
+            entries.clear()
+            size = 0
+        }
+
+        diskCacheDir.listFiles { file -> file != journalFile && file.name !in entries }
+            ?.forEach { it.delete() }
+
+        Logger.d("Loaded disk cache with ${entries.size} images, ${size / BYTES_TO_MB}MB")
+
+        trimToSize()
+        compactJournal()
+    }
 
-            if (totalSize > MAX_DISK_CACHE_SIZE) {
-                Logger.d("Cleaning disk cache: ${totalSize / (BYTES_TO_MB)}MB")
+    private fun remove(fileName: String) {
+        val fileSize = entries.remove(fileName) ?: return
+        size -= fileSize
+        File(diskCacheDir, fileName).delete()
+        appendToJournal("$DELETE $fileName", flush = true)
+    }
 
-                // Sort by last modified (oldest first)
-                val sortedFiles = files.sortedBy { it.lastModified() }
-                var currentSize = totalSize
+    /**
+     * Deletes the least recently used images, until the cache is at most [maxSize] large.
+     */
+    private fun trimToSize() {
+        while (size > maxSize && entries.isNotEmpty()) {
+            val eldest = entries.keys.first()
+            Logger.d("Deleted old cache file: $eldest")
+            remove(eldest)
+        }
+    }
 
-                for (file in sortedFiles) {
-                    if (currentSize <= MAX_DISK_CACHE_SIZE * CACHE_CLEANUP_TARGET_RATIO) break // Keep 80% of max size
+    private fun appendToJournal(line: String, flush: Boolean) {
+        try {
+            val writer = journalWriter ?: FileOutputStream(journalFile, true).bufferedWriter().also {
+                journalWriter = it
+            }
+            writer.write(line)
+            writer.write("\n")
+            if (flush) {
+                writer.flush()
+            }
+            journalLineCount++
+        } catch (e: IOException) {
+            Logger.e("Error writing disk cache journal", e)
+            closeJournal()
+        }
+    }
 
-                    currentSize -= file.length()
-                    file.delete()
-                    Logger.d("Deleted old cache file: ${file.name}")
+    private fun compactJournalIfNeeded() {
+        if (journalLineCount > entries.size * 2 + MIN_COMPACTION_LINES) {
+            compactJournal()
+        }
+    }
+
+    /**
+     * Rewrites the journal with one line per cached image, in the order of their last use.
+     */
+    private fun compactJournal() {
+        closeJournal()
+
+        val tempFile = File(diskCacheDir, JOURNAL_FILE + TEMP_SUFFIX)
+        try {
+            tempFile.bufferedWriter().use { writer ->
+                entries.forEach { (fileName, fileSize) ->
+                    writer.write("$PUT $fileName $fileSize\n")
                 }
             }
-        } catch (e: Exception) {
-            Logger.e("Error during cache cleanup", e)
+            if (!tempFile.renameTo(journalFile)) {
+                throw IOException("Could not move ${tempFile.name} to $JOURNAL_FILE")
+            }
+            journalLineCount = entries.size
+        } catch (e: IOException) {
+            Logger.e("Error compacting disk cache journal", e)
+            tempFile.delete()
+        }
+    }
+
+    private fun closeJournal() {
+        try {
+            journalWriter?.close()
+        } catch (e: IOException) {
+            Logger.e("Error closing disk cache journal", e)
         }
+        journalWriter = null
     }
 
+    /**
+     * Deletes the files of previous versions, which were stored next to the files of [io.snabble.sdk.Assets].
+     */
+    private fun deleteLegacyCache() {
+        File(storageDirectory, LEGACY_DISK_CACHE_SUBDIR)
+            .listFiles { file -> file.name.endsWith(LEGACY_CACHE_FILE_EXTENSION) }
+            ?.forEach { it.delete() }
+    }
+
+    private fun String.toFileName() = toMD5() + CACHE_FILE_EXTENSION
+
     private fun String.toMD5(): String {
         return try {
             val digest = MessageDigest.getInstance("MD5")
@@ -144,11 +269,26 @@ internal class LocalDiskDataSourceImpl(
     companion object {
 
         // Disk cache configuration
-        private const val DISK_CACHE_SUBDIR = "assets/"
+        private const val DISK_CACHE_SUBDIR = "image_cache/"
+        private const val JOURNAL_FILE = "journal"
         private const val MAX_DISK_CACHE_SIZE = 50 * 1024 * 1024L // 50MB
-        private const val CACHE_FILE_EXTENSION = ".cache"
-        private const val PNG_COMPRESSION_QUALITY = 100
+        private const val MIN_COMPACTION_LINES = 1000
+        private const val CACHE_FILE_EXTENSION = ".img"
+        private const val TEMP_SUFFIX = ".tmp"
+        private const val LOSSLESS_QUALITY = 100
         private const val BYTES_TO_MB = 1024 * 1024
-        private const val CACHE_CLEANUP_TARGET_RATIO = 0.8
+
+        private const val LEGACY_DISK_CACHE_SUBDIR = "assets/"
+        private const val LEGACY_CACHE_FILE_EXTENSION = ".cache"
+
+        private const val PUT = "PUT"
+        private const val READ = "READ"
+        private const val DELETE = "DELETE"
+
+        private val COMPRESS_FORMAT = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bitmap.CompressFormat.WEBP_LOSSLESS
+        } else {
+            Bitmap.CompressFormat.PNG
+        }
     }
 }
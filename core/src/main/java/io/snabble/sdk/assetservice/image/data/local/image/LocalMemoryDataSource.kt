@@ -4,18 +4,14 @@ import android.graphics.Bitmap
 import android.util.LruCache
 import io.snabble.sdk.utils.Logger
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.MutableStateFlow
-import kotlinx.coroutines.flow.StateFlow
-import kotlinx.coroutines.flow.asStateFlow
-import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.withContext
 
 internal interface LocalMemoryDataSource {
 
-    val evictedItems: Flow<Pair<String, Bitmap>?>
     suspend fun getBitmap(key: String): Bitmap?
     suspend fun putBitmap(key: String, bitmap: Bitmap)
+    fun peekBitmap(key: String): Bitmap?
+    fun putBitmapNow(key: String, bitmap: Bitmap)
 
     fun clearCache()
 }
@@ -24,9 +20,6 @@ internal class LocalMemorySourceImpl : LocalMemoryDataSource {
 
     private val memoryCache: LruCache<String, Bitmap>
 
-    private val _evictedItems: MutableStateFlow<Pair<String, Bitmap>?> = MutableStateFlow(null)
-    override val evictedItems: StateFlow<Pair<String, Bitmap>?> = _evictedItems.asStateFlow()
-
     init {
         memoryCache = initMemoryCache()
     }
@@ -39,18 +32,6 @@ internal class LocalMemorySourceImpl : LocalMemoryDataSource {
             override fun sizeOf(key: String, bitmap: Bitmap): Int {
                 return bitmap.byteCount / BYTES_TO_KB
             }
-
-            override fun entryRemoved(
-                evicted: Boolean,
-                key: String,
-                oldValue: Bitmap,
-                newValue: Bitmap?
-            ) {
-                // When evicted from memory, save to disk asynchronously
-                if (evicted) {
-                    _evictedItems.update { key to oldValue }
-                }
-            }
         }
     }
 
@@ -74,6 +55,12 @@ internal class LocalMemorySourceImpl : LocalMemoryDataSource {
         Logger.d("Saving image to memory: $key")
     }
 
+    override fun peekBitmap(key: String): Bitmap? = memoryCache.get(key)
+
+    override fun putBitmapNow(key: String, bitmap: Bitmap) {
+        memoryCache.put(key, bitmap)
+    }
+
     override fun clearCache() {
         memoryCache.evictAll()
     }
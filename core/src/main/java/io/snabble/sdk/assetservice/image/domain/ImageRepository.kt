@@ -1,9 +1,26 @@
 package io.snabble.sdk.assetservice.image.domain
 
 import android.graphics.Bitmap
+import androidx.annotation.WorkerThread
 
 internal interface ImageRepository {
 
     suspend fun getBitmap(key: String): Bitmap?
     suspend fun putBitmap(key: String, bitmap: Bitmap)
+
+    /**
+     * Returns the bitmap if it is in the memory cache, without accessing the disk.
+     */
+    fun getCachedBitmap(key: String): Bitmap?
+
+    /**
+     * Same as [getBitmap], for callers that are not coroutines. Must not be called on the main thread.
+     */
+    @WorkerThread
+    fun getBitmapBlocking(key: String): Bitmap?
+
+    /**
+     * Puts the bitmap in the memory cache and saves it to disk in the background.
+     */
+    fun putBitmapAsync(key: String, bitmap: Bitmap)
 }
@@ -8,12 +8,15 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import io.snabble.sdk.Project;
 import io.snabble.sdk.Snabble;
 import io.snabble.sdk.UserPreferences;
+import io.snabble.sdk.utils.Dispatch;
 import io.snabble.sdk.utils.GsonHolder;
 import io.snabble.sdk.utils.Logger;
 import okhttp3.OkHttpClient;
@@ -21,13 +24,32 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+/**
+ * Provides the tokens used to authorize requests to the snabble backend, one per project.
+ * <p>
+ * Valid tokens are returned without locking. Tokens are renewed in the background once half of
+ * their lifetime has passed, callers only wait for a request if there is no token yet or it is about
+ * to expire. Each project has its own lock, so a token request of one project never delays
+ * requests of other projects, and concurrent callers of the same project share one token request.
+ * <p>
+ * If a renewal in the background fails, the next one is started after a quarter of the remaining
+ * lifetime of the token has passed.
+ */
 public class TokenRegistry {
+    // tokens which expire within this time are not used anymore and are renewed synchronously
+    private static final long EXPIRY_MARGIN_SECONDS = 30;
+    private static final long MIN_RENEWAL_INTERVAL_SECONDS = 10;
+
     private Totp totp;
-    private final Map<String, Token> tokens = new HashMap<>();
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> refreshLocks = new ConcurrentHashMap<>();
+    private final Map<String, Long> nextRenewalAt = new ConcurrentHashMap<>();
+    private final Object appUserLock = new Object();
+    private final AtomicInteger generation = new AtomicInteger();
     private UserPreferences userPreferences;
     private String appId;
     private OkHttpClient okHttpClient;
-    private long timeOffset;
+    private volatile long timeOffset;
 
     public TokenRegistry(OkHttpClient okHttpClient,
                          UserPreferences userPreferences,
@@ -48,11 +70,107 @@ public class TokenRegistry {
     }
 
     public void invalidate() {
+        // tokens of requests that are still running belong to the previous app user
+        generation.incrementAndGet();
         tokens.clear();
+        nextRenewalAt.clear();
     }
 
+    private ReentrantLock getRefreshLock(Project project) {
+        ReentrantLock lock = refreshLocks.get(project.getId());
+        if (lock == null) {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = refreshLocks.putIfAbsent(project.getId(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Requests a new token, unless another thread already did so while waiting for the lock.
+     */
     @Nullable
-    private synchronized Token refreshToken(Project project, boolean isRetry) {
+    private Token refreshToken(Project project, @Nullable Token staleToken) {
+        ReentrantLock lock = getRefreshLock(project);
+        lock.lock();
+        try {
+            Token token = tokens.get(project.getId());
+            if (token != null && token != staleToken && !isExpired(token)) {
+                return token;
+            }
+
+            token = requestToken(project);
+            Snabble.getInstance().getUsers().update();
+            return token;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Renews a token in the background, if no request for the project is running already and the
+     * previous renewal is long enough ago.
+     */
+    private void renewTokenInBackground(Project project, Token staleToken) {
+        ReentrantLock lock = getRefreshLock(project);
+        if (lock.isLocked()) {
+            return;
+        }
+
+        long now = getOffsetTime();
+        Long renewAt = nextRenewalAt.get(project.getId());
+        if (renewAt != null && now < renewAt) {
+            return;
+        }
+
+        // a successful renewal replaces the token, so this only delays the retry of a failed one
+        long interval = Math.max(MIN_RENEWAL_INTERVAL_SECONDS, (staleToken.expiresAt - now) / 4);
+        nextRenewalAt.put(project.getId(), now + interval);
+
+        Dispatch.background(() -> {
+            if (!lock.tryLock()) {
+                return;
+            }
+
+            try {
+                if (tokens.get(project.getId()) == staleToken) {
+                    Logger.d("Renewing token of %s", project.getId());
+                    requestToken(project);
+                    Snabble.getInstance().getUsers().update();
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    @Nullable
+    private Token requestToken(Project project) {
+        if (totp == null) {
+            return null;
+        }
+
+        if (userPreferences.getAppUser() == null) {
+            // the app user is shared by all projects, only one of them may create it
+            synchronized (appUserLock) {
+                return requestToken(project, generation.get(), false);
+            }
+        }
+
+        return requestToken(project, generation.get(), false);
+    }
+
+    private Token store(Project project, Token token, int generation) {
+        if (token != null && generation == this.generation.get()) {
+            tokens.put(project.getId(), token);
+        }
+        return token;
+    }
+
+    @Nullable
+    private Token requestToken(Project project, int generation, boolean isRetry) {
         if (totp == null) {
             return null;
         }
@@ -116,19 +234,17 @@ public class TokenRegistry {
                 if (appUser == null) {
                     AppUserAndToken appUserAndToken = GsonHolder.get().fromJson(body, AppUserAndToken.class);
                     userPreferences.setAppUser(appUserAndToken.appUser);
-                    tokens.put(project.getId(), appUserAndToken.token);
-                    return appUserAndToken.token;
+                    return store(project, appUserAndToken.token, generation);
                 } else {
                     Token token = GsonHolder.get().fromJson(body, Token.class);
-                    tokens.put(project.getId(), token);
-                    return token;
+                    return store(project, token, generation);
                 }
             } else {
                 if (!isRetry) {
                     Logger.d("Could not generate token, trying again with server time");
 
                     adjustTimeOffset(response);
-                    return refreshToken(project, true);
+                    return requestToken(project, generation, true);
                 } else {
                     Logger.e("Could not generate token: %s", body);
                 }
@@ -158,44 +274,45 @@ public class TokenRegistry {
     /**
      * Synchronously retrieves a token for the project.
      * <p>
-     * May do synchronous http requests, if the token is invalid.
-     * If a valid token is available, it will be returned without doing http requests.
+     * May do synchronous http requests, if there is no token yet or the token is about to expire.
+     * If a valid token is available, it will be returned without doing http requests or locking,
+     * tokens past half of their lifetime are renewed in the background.
      * <p>
      * Returns null if not valid token could be generated. (invalid secret, timeouts, no connection)
      */
     @Nullable
-    public synchronized Token getToken(@Nullable Project project) {
+    public Token getToken(@Nullable Project project) {
         if (project == null) {
             return null;
         }
 
         Token token = tokens.get(project.getId());
 
-        if (token != null) {
-            if (isValid(token)) {
-                Logger.d("Token timed out, requesting new token");
-                Token newToken = refreshToken(project, false);
-                if (newToken != null) {
-                    token = newToken;
-                }
-                Snabble.getInstance().getUsers().update();
-            }
-        } else {
-            token = refreshToken(project, false);
-            Snabble.getInstance().getUsers().update();
+        if (token == null) {
+            return refreshToken(project, null);
+        }
+
+        if (isExpired(token)) {
+            Logger.d("Token timed out, requesting new token");
+            Token newToken = refreshToken(project, token);
+            return newToken != null ? newToken : token;
+        }
+
+        if (needsRenewal(token)) {
+            renewTokenInBackground(project, token);
         }
 
         return token;
     }
 
-    @NonNull
-    private Boolean isValid(@Nullable final Token token) {
-        if (token == null) return false;
-
+    private boolean needsRenewal(@NonNull final Token token) {
         final long tokenIntervalInSeconds = (token.expiresAt - token.issuedAt);
-        final long invalidAtInSeconds = token.issuedAt + tokenIntervalInSeconds / 2;
+        final long renewAtInSeconds = token.issuedAt + tokenIntervalInSeconds / 2;
+
+        return getOffsetTime() >= renewAtInSeconds;
+    }
 
-        final long offsetTimeInSeconds = getOffsetTime();
-        return offsetTimeInSeconds >= invalidAtInSeconds;
+    private boolean isExpired(@NonNull final Token token) {
+        return getOffsetTime() >= token.expiresAt - EXPIRY_MARGIN_SECONDS;
     }
 }
@@ -39,7 +39,7 @@ public class Totp {
         }
     }
 
-    public String generate(long seconds) {
+    public synchronized String generate(long seconds) {
         long counter = seconds / timeStep;
 
         byte[] value = ByteBuffer.allocate(8).putLong(counter).array();
@@ -9,6 +9,7 @@ import androidx.annotation.RequiresPermission
 import androidx.lifecycle.Observer
 import io.snabble.sdk.Project
 import io.snabble.sdk.Shop
+import io.snabble.sdk.ShopIndex
 import io.snabble.sdk.Snabble
 import io.snabble.sdk.utils.Dispatch
 import io.snabble.sdk.utils.Logger
@@ -59,7 +60,7 @@ class CheckInManager(val snabble: Snabble,
 
     private val handler = Handler(Looper.getMainLooper())
     private var projectByShopId = mapOf<String, Project>()
-    private var shopList: List<Shop> = emptyList()
+    private var shopIndex: ShopIndex? = null
     private var lastCheckedInProject: Project? = null
 
     private val onCheckInStateChangedListeners = CopyOnWriteArrayList<OnCheckInStateChangedListener>()
@@ -113,9 +114,12 @@ class CheckInManager(val snabble: Snabble,
     }
 
     fun update() {
-        updateShopProjectsMap()
-
-        shopList = snabble.projects.flatMap { it.shops }
+        val shopIndex = snabble.shopIndex
+        if (shopIndex !== this.shopIndex) {
+            this.shopIndex = shopIndex
+            updateShopProjectsMap()
+        }
+        val shopList = shopIndex.shops
 
         val savedTime = checkedInAt
 
@@ -140,9 +144,10 @@ class CheckInManager(val snabble: Snabble,
             val locationAccuracy = loc.accuracy
 
             if (locationAge < 60000 && locationAccuracy < checkInRadius) {
-                val newCandidates = shopList.filter { it.location.distanceTo(loc) < checkInRadius }
+                val newCandidates = shopIndex.within(loc, checkInRadius).map { it.shop }
 
-                if (candidates?.map { it.id } != newCandidates.map { it.id }) {
+                // candidates are sorted by distance, the order changes while moving between them
+                if (candidates?.map { it.id }?.toSet() != newCandidates.map { it.id }.toSet()) {
                     candidates = newCandidates
 
                     if (newCandidates.size > 1) {
@@ -158,7 +163,7 @@ class CheckInManager(val snabble: Snabble,
                 }
 
                 if (distance < 0 || distance > checkOutRadius) {
-                    val nearestShop = shopList.nearest(loc)
+                    val nearestShop = shopIndex.nearest(loc)
                     nearestShop?.let { it ->
                         if (it.distance < checkInRadius) {
                             checkIn(it.shop)
@@ -292,19 +297,3 @@ class CheckInManager(val snabble: Snabble,
         }
     }
 }
-
-private data class NearestShop(
-    val distance: Float,
-    val shop: Shop
-)
-
-private fun List<Shop>.nearest(location: Location): NearestShop? {
-    val nearest = minByOrNull { it.location.distanceTo(location) }
-    val nearestDistance = nearest?.location?.distanceTo(location)
-
-    if (nearest != null && nearestDistance != null) {
-        return NearestShop(nearestDistance, nearest)
-    }
-
-    return null
-}
\ No newline at end of file
@@ -22,6 +22,10 @@ class Checkout @JvmOverloads constructor(
     private val shoppingCart: ShoppingCart,
     private val checkoutApi: CheckoutApi = DefaultCheckoutApi(
         project, shoppingCart
+    ),
+    private val statusTransport: CheckoutStatusTransport = PollingCheckoutStatusTransport(
+        checkoutApi = checkoutApi,
+        longPollSeconds = Snabble.config.checkoutLongPollSeconds
     )
 ) {
 
@@ -362,6 +366,7 @@ class Checkout @JvmOverloads constructor(
         val signedCheckoutInfo = signedCheckoutInfo
         if (signedCheckoutInfo != null) {
             selectedPaymentMethod = paymentMethod
+            statusTransport.reset()
             notifyStateChanged(CheckoutState.VERIFYING_PAYMENT_METHOD)
             checkoutApi.createPaymentProcess(
                 id = shoppingCart.uuid,
@@ -441,7 +446,8 @@ class Checkout @JvmOverloads constructor(
     }
 
     private fun scheduleNextPoll() {
-        currentPollFuture = Dispatch.background({ poll() }, 2000)
+        currentPollFuture?.cancel(false)
+        currentPollFuture = Dispatch.background({ poll() }, statusTransport.nextRequestDelayMs())
     }
 
     private fun stopPolling() {
@@ -468,29 +474,35 @@ class Checkout @JvmOverloads constructor(
         Logger.d("Polling for approval state...")
         Logger.d("RoutingTarget = $routingTarget")
 
+        // the next poll is scheduled once the state was received, so that long polling requests do not overlap
         checkoutProcess?.let { process ->
-            checkoutApi.updatePaymentProcess(process, object : PaymentProcessResult {
+            statusTransport.requestStatus(process, object : PaymentProcessResult {
                 override fun onSuccess(
                     checkoutProcessResponse: CheckoutProcessResponse?,
                     rawResponse: String?
                 ) {
                     synchronized(this@Checkout) {
-                        checkoutProcess = checkoutProcessResponse
+                        // unchanged responses are not stored again
+                        if (checkoutProcessResponse != checkoutProcess) {
+                            checkoutProcess = checkoutProcessResponse
+                        }
                         if (handleProcessResponse()) {
                             stopPolling()
+                        } else {
+                            pollIfNeeded()
                         }
                     }
                 }
 
-                override fun onError() {}
+                override fun onError() {
+                    pollIfNeeded()
+                }
 
                 override fun onNotFound() {
                     reset()
                 }
             })
         }
-
-        pollIfNeeded()
     }
 
     private fun pollIfNeeded() {
@@ -731,6 +743,19 @@ class Checkout @JvmOverloads constructor(
     val qrCodePOSContent: String?
         get() = checkoutProcess?.paymentInformation?.qrCodeContent
 
+    /**
+     * The number of checkouts that were finalized offline and still need to be sent to the backend
+     */
+    val pendingOfflineCheckoutCount: Int
+        get() = checkoutRetryer?.backlogSize ?: 0
+
+    /**
+     * The time in milliseconds since the oldest checkout that still needs to be sent to the backend
+     * was finalized, or 0 if there is none
+     */
+    val oldestPendingOfflineCheckoutAgeMs: Long
+        get() = checkoutRetryer?.oldestBacklogAgeMs ?: 0L
+
     @RestrictTo(RestrictTo.Scope.LIBRARY)
     fun processPendingCheckouts() {
         checkoutRetryer?.processPendingCheckouts()
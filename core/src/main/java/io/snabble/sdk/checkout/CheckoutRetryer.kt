@@ -5,6 +5,7 @@ import android.content.SharedPreferences
 import android.net.ConnectivityManager
 import android.net.NetworkCapabilities
 import android.os.Build
+import com.google.gson.JsonParseException
 import com.google.gson.reflect.TypeToken
 import io.snabble.sdk.PaymentMethod
 import io.snabble.sdk.Product
@@ -14,59 +15,172 @@ import io.snabble.sdk.shoppingcart.data.cart.BackendCart
 import io.snabble.sdk.utils.Dispatch
 import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
+import org.apache.commons.io.FileUtils
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import java.util.*
-import java.util.concurrent.CopyOnWriteArrayList
-import java.util.concurrent.CountDownLatch
 
-internal class CheckoutRetryer(project: Project, fallbackPaymentMethod: PaymentMethod) {
-    private inner class SavedCart(
+/**
+ * Outbox of checkouts that were finalized offline, using the fallback payment method, and still need
+ * to be sent to the backend.
+ *
+ * Every checkout is stored in its own file, so adding or removing one does not rewrite the others.
+ * Each checkout gets an id when it is added, which is used as the id of its payment process. Sending
+ * a checkout again after a lost response therefore updates the existing payment process instead of
+ * creating a second one.
+ *
+ * At most [MAX_CONCURRENT_REPLAYS] checkouts are sent at the same time, oldest first. Failed checkouts
+ * are retried with an exponential, jittered backoff. Since the checkouts are already paid, they are
+ * only dropped after the backend rejected them [MAX_REJECTIONS] times, connection and server errors
+ * are retried until the checkout was sent.
+ *
+ * The list of checkouts is only accessed on the main thread, the files are written on the I/O thread.
+ */
+internal class CheckoutRetryer(
+    private val project: Project,
+    private val fallbackPaymentMethod: PaymentMethod
+) {
+    private class SavedCart(
+        var id: String?,
         var backendCart: BackendCart,
         var finalizedAt: Date
     ) {
 
         var failureCount = 0
+        var rejectionCount = 0
+        var nextAttemptAt = 0L
     }
 
-    private val fallbackPaymentMethod: PaymentMethod
-    private val sharedPreferences: SharedPreferences
-    private val project: Project
-    private var savedCarts = CopyOnWriteArrayList<SavedCart>()
-    private var countDownLatch: CountDownLatch? = null
+    private val outboxDir = File(project.internalStorageDirectory, "checkout_outbox/")
+    private val savedCarts = mutableListOf<SavedCart>()
+    private val inFlight = HashSet<String>()
+    private val random = Random()
+    private var isLoaded = false
+    private var scheduledWakeUpAt = 0L
+
+    @Volatile
+    private var backlog = emptyList<SavedCart>()
+
+    /** The number of checkouts waiting to be sent */
+    val backlogSize: Int
+        get() = backlog.size
+
+    /** The time in milliseconds since the oldest waiting checkout was finalized, 0 if there is none */
+    val oldestBacklogAgeMs: Long
+        get() = backlog.minOfOrNull { it.finalizedAt.time }
+            ?.let { System.currentTimeMillis() - it } ?: 0L
 
     init {
-        val context: Context = instance.application
-        sharedPreferences = context.getSharedPreferences(
+        Dispatch.io {
+            val loaded = load()
+            Dispatch.mainThread {
+                savedCarts.addAll(loaded)
+                savedCarts.sortBy { it.finalizedAt }
+                isLoaded = true
+                updateBacklog()
+                processPendingCheckouts()
+            }
+        }
+    }
+
+    fun add(backendCart: BackendCart) {
+        val savedCart = SavedCart(UUID.randomUUID().toString(), backendCart, Date())
+
+        // the cart is written before it is added to the list, so that the list only contains
+        // stored carts and its order is not affected by the ongoing load
+        val json = GsonHolder.get().toJson(savedCart)
+        Dispatch.io {
+            write(savedCart.id, json)
+            Dispatch.mainThread {
+                savedCarts.add(savedCart)
+                updateBacklog()
+            }
+        }
+    }
+
+    private fun load(): List<SavedCart> {
+        val loaded = mutableListOf<SavedCart>()
+
+        outboxDir.listFiles { file -> file.name.endsWith(".json") }?.forEach { file ->
+            try {
+                val savedCart = file.bufferedReader().use {
+                    GsonHolder.get().fromJson(it, SavedCart::class.java)
+                }
+                if (savedCart?.id != null) {
+                    loaded.add(savedCart)
+                } else {
+                    file.delete()
+                }
+            } catch (e: IOException) {
+                Logger.e("Could not read saved checkout ${file.name}: ${e.message}")
+            } catch (e: JsonParseException) {
+                Logger.e("Could not read saved checkout ${file.name}: ${e.message}")
+                file.delete()
+            }
+        }
+
+        loaded.addAll(migrateSharedPreferences())
+        return loaded
+    }
+
+    /**
+     * Moves the carts saved by previous versions, which stored all of them in a single preference.
+     */
+    private fun migrateSharedPreferences(): List<SavedCart> {
+        val sharedPreferences: SharedPreferences = instance.application.getSharedPreferences(
             "snabble_saved_checkouts_" + project.id,
             Context.MODE_PRIVATE
         )
 
-        this.project = project
-        this.fallbackPaymentMethod = fallbackPaymentMethod
-        val json = sharedPreferences.getString("saved_carts", null)
+        val json = sharedPreferences.getString("saved_carts", null) ?: return emptyList()
 
-        savedCarts = if (json != null) {
-            val typeToken: TypeToken<*> = object : TypeToken<CopyOnWriteArrayList<SavedCart?>?>() {}
-            GsonHolder.get().fromJson(json, typeToken.type)
-        } else {
-            CopyOnWriteArrayList()
+        val migrated = try {
+            val typeToken: TypeToken<*> = object : TypeToken<List<SavedCart?>?>() {}
+            GsonHolder.get().fromJson<List<SavedCart?>?>(json, typeToken.type).orEmpty().filterNotNull()
+        } catch (e: JsonParseException) {
+            Logger.e("Could not migrate saved checkouts: ${e.message}")
+            emptyList()
         }
 
-        processPendingCheckouts()
+        migrated.forEach { savedCart ->
+            savedCart.id = UUID.randomUUID().toString()
+            write(savedCart.id, GsonHolder.get().toJson(savedCart))
+        }
+
+        sharedPreferences.edit()
+            .remove("saved_carts")
+            .commit()
+
+        return migrated
     }
 
-    fun add(backendCart: BackendCart) {
-        Dispatch.mainThread {
-            savedCarts.add(SavedCart(backendCart, Date()))
-            save()
+    private fun fileOf(id: String?) = File(outboxDir, "$id.json")
+
+    private fun write(id: String?, json: String) {
+        val file = fileOf(id)
+        val tempFile = File(outboxDir, "$id.tmp")
+
+        try {
+            FileUtils.forceMkdir(outboxDir)
+            FileOutputStream(tempFile).use { out ->
+                out.write(json.toByteArray(Charsets.UTF_8))
+                out.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Could not move ${tempFile.name} to ${file.name}")
+            }
+        } catch (e: IOException) {
+            Logger.e("Could not save checkout $id: ${e.message}")
         }
     }
 
-    private fun save() {
-        Dispatch.mainThread {
-            val json = GsonHolder.get().toJson(savedCarts)
-            sharedPreferences.edit()
-                .putString("saved_carts", json)
-                .apply()
+    private fun save(savedCart: SavedCart) {
+        // serialized on the main thread, the cart may be changed again before the I/O thread writes it
+        val id = savedCart.id
+        val json = GsonHolder.get().toJson(savedCart)
+        Dispatch.io {
+            write(id, json)
         }
     }
 
@@ -88,91 +202,168 @@ internal class CheckoutRetryer(project: Project, fallbackPaymentMethod: PaymentM
     fun processPendingCheckouts() {
         val context: Context = instance.application
         val cm = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
-        if (cm.isNetworkConnected()) return
+        if (!cm.isNetworkConnected()) return
 
         Dispatch.mainThread {
-            if ((countDownLatch?.count ?: 0) > 0) {
-                return@mainThread
+            startDueReplays()
+        }
+    }
+
+    private fun startDueReplays() {
+        if (!isLoaded) {
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        for (savedCart in savedCarts.toList()) {
+            if (inFlight.size >= MAX_CONCURRENT_REPLAYS) {
+                break
             }
 
-            countDownLatch = CountDownLatch(savedCarts.size)
-            savedCarts.forEach { savedCart ->
-                if (savedCart.failureCount >= 3) {
-                    removeSavedCart(savedCart)
-                }
+            val id = savedCart.id ?: continue
+            if (id !in inFlight && savedCart.nextAttemptAt <= now) {
+                inFlight.add(id)
+                replay(savedCart)
+            }
+        }
 
-                val checkoutApi = DefaultCheckoutApi(project, project.shoppingCart)
-                checkoutApi.createCheckoutInfo(savedCart.backendCart, object : CheckoutInfoResult {
-                    override fun onSuccess(
-                        signedCheckoutInfo: SignedCheckoutInfo,
-                        onlinePrice: Int,
-                        availablePaymentMethods: List<PaymentMethodInfo>
-                    ) {
-                        checkoutApi.createPaymentProcess(
-                            id = UUID.randomUUID().toString(),
-                            signedCheckoutInfo = signedCheckoutInfo,
-                            paymentMethod = fallbackPaymentMethod,
-                            processedOffline = true,
-                            paymentCredentials = null,
-                            finalizedAt = savedCart.finalizedAt,
-                            paymentProcessResult = object : PaymentProcessResult {
-                                override fun onSuccess(
-                                    checkoutProcessResponse: CheckoutProcessResponse?,
-                                    rawResponse: String?
-                                ) {
-                                    Logger.d("Successfully resend checkout " + savedCart.backendCart.session)
-                                    removeSavedCart(savedCart)
-                                    countDownLatch?.countDown()
-                                }
-
-                                override fun onError() {
-                                    fail()
-                                }
-
-                                override fun onNotFound() {
-                                    fail()
-                                }
-                            })
-                    }
+        scheduleWakeUp(now)
+    }
 
-                    override fun onNoShopFound() {
-                        fail()
-                    }
+    /**
+     * Processes the checkouts again once the backoff of the next waiting checkout has passed.
+     */
+    private fun scheduleWakeUp(now: Long) {
+        val nextAttemptAt = savedCarts
+            .filter { it.id !in inFlight && it.nextAttemptAt > now }
+            .minOfOrNull { it.nextAttemptAt } ?: return
 
-                    override fun onInvalidProducts(products: List<Product>) {
-                        fail()
-                    }
+        if (scheduledWakeUpAt in (now + 1)..nextAttemptAt) {
+            return
+        }
 
-                    override fun onInvalidItems(itemIds: List<String>) {
-                        fail()
-                    }
+        scheduledWakeUpAt = nextAttemptAt
+        Dispatch.mainThread({
+            scheduledWakeUpAt = 0L
+            processPendingCheckouts()
+        }, nextAttemptAt - now)
+    }
 
-                    override fun onNoAvailablePaymentMethodFound() {
-                        fail()
-                    }
+    private fun replay(savedCart: SavedCart) {
+        val checkoutApi = DefaultCheckoutApi(project, project.shoppingCart)
+        checkoutApi.createCheckoutInfo(savedCart.backendCart, object : CheckoutInfoResult {
+            override fun onSuccess(
+                signedCheckoutInfo: SignedCheckoutInfo,
+                onlinePrice: Int,
+                availablePaymentMethods: List<PaymentMethodInfo>
+            ) {
+                checkoutApi.createPaymentProcess(
+                    id = savedCart.id ?: UUID.randomUUID().toString(),
+                    signedCheckoutInfo = signedCheckoutInfo,
+                    paymentMethod = fallbackPaymentMethod,
+                    processedOffline = true,
+                    paymentCredentials = null,
+                    finalizedAt = savedCart.finalizedAt,
+                    paymentProcessResult = object : PaymentProcessResult {
+                        override fun onSuccess(
+                            checkoutProcessResponse: CheckoutProcessResponse?,
+                            rawResponse: String?
+                        ) {
+                            Logger.d("Successfully resend checkout " + savedCart.backendCart.session)
+                            Dispatch.mainThread {
+                                removeSavedCart(savedCart)
+                                onReplayFinished(savedCart)
+                            }
+                        }
 
-                    override fun onUnknownError() {
-                        fail()
-                    }
+                        override fun onError() {
+                            fail(rejected = false)
+                        }
+
+                        override fun onNotFound() {
+                            fail(rejected = true)
+                        }
+                    })
+            }
+
+            override fun onNoShopFound() {
+                fail(rejected = true)
+            }
+
+            override fun onInvalidProducts(products: List<Product>) {
+                fail(rejected = true)
+            }
+
+            override fun onInvalidItems(itemIds: List<String>) {
+                fail(rejected = true)
+            }
 
-                    override fun onConnectionError() {
-                        fail()
+            override fun onNoAvailablePaymentMethodFound() {
+                fail(rejected = true)
+            }
+
+            override fun onUnknownError() {
+                fail(rejected = false)
+            }
+
+            override fun onConnectionError() {
+                fail(rejected = false)
+            }
+
+            /**
+             * @param rejected true if the backend refused the checkout, false for connection errors
+             * and other errors where sending it again may succeed
+             */
+            private fun fail(rejected: Boolean) {
+                Dispatch.mainThread {
+                    savedCart.failureCount++
+                    if (rejected) {
+                        savedCart.rejectionCount++
                     }
 
-                    private fun fail() {
-                        savedCart.failureCount++
-                        save()
-                        countDownLatch?.countDown()
+                    if (savedCart.rejectionCount >= MAX_REJECTIONS) {
+                        Logger.e("Dropping checkout " + savedCart.backendCart.session + " after $MAX_REJECTIONS rejections")
+                        removeSavedCart(savedCart)
+                    } else {
+                        savedCart.nextAttemptAt = System.currentTimeMillis() + backoffMs(savedCart.failureCount)
+                        save(savedCart)
                     }
-                }, -1)
+                    onReplayFinished(savedCart)
+                }
             }
-        }
+        }, -1)
+    }
+
+    private fun onReplayFinished(savedCart: SavedCart) {
+        inFlight.remove(savedCart.id)
+        processPendingCheckouts()
+    }
+
+    private fun backoffMs(failureCount: Int): Long {
+        val backoff = minOf(MIN_BACKOFF_MS shl (failureCount - 1).coerceIn(0, 16), MAX_BACKOFF_MS)
+        // between 50% and 150% of the backoff, so that carts of the same outage are not sent in lockstep
+        return backoff / 2 + (random.nextDouble() * backoff).toLong()
     }
 
     private fun removeSavedCart(savedCart: SavedCart) {
-        Dispatch.mainThread {
-            savedCarts.remove(savedCart)
-            save()
+        savedCarts.remove(savedCart)
+        updateBacklog()
+
+        val file = fileOf(savedCart.id)
+        Dispatch.io {
+            file.delete()
         }
     }
+
+    private fun updateBacklog() {
+        backlog = savedCarts.toList()
+    }
+
+    companion object {
+
+        private const val MAX_CONCURRENT_REPLAYS = 2
+        private const val MAX_REJECTIONS = 3
+        private const val MIN_BACKOFF_MS = 30 * 1000L
+        private const val MAX_BACKOFF_MS = 30 * 60 * 1000L
+    }
 }
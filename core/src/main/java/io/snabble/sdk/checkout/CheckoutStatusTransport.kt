@@ -0,0 +1,121 @@
+package io.snabble.sdk.checkout
+
+import android.os.SystemClock
+import kotlin.math.roundToLong
+
+/**
+ * Requests the state of a running checkout process from the backend, while [Checkout] waits for
+ * the state to change, e.g. for the approval of the payment.
+ *
+ * [Checkout] requests the state again [nextRequestDelayMs] after the previous request finished.
+ */
+interface CheckoutStatusTransport {
+
+    /**
+     * Requests the current state of the checkout process. The result is called exactly once.
+     */
+    fun requestStatus(checkoutProcess: CheckoutProcessResponse, paymentProcessResult: PaymentProcessResult)
+
+    /**
+     * The time to wait before the next request, in milliseconds
+     */
+    fun nextRequestDelayMs(): Long
+
+    /**
+     * Resets the state of the transport, called when a new checkout process is started
+     */
+    fun reset()
+}
+
+/**
+ * Polls the state of a checkout process with an adaptive interval.
+ *
+ * The interval starts at [minDelayMs] and grows by [backoffFactor] up to [maxDelayMs] for every
+ * response that did not change the process and for every error. It drops back to [minDelayMs] as
+ * soon as the process changed.
+ *
+ * If [longPollSeconds] is larger than 0 and the [checkoutApi] is the [DefaultCheckoutApi], the
+ * backend is asked to hold each request until the process changes, for up to [longPollSeconds].
+ * The next request is then sent immediately, unless the backend answered early without a change,
+ * in which case the interval is used as if polling.
+ */
+class PollingCheckoutStatusTransport @JvmOverloads constructor(
+    private val checkoutApi: CheckoutApi,
+    private val minDelayMs: Long = DEFAULT_MIN_DELAY_MS,
+    private val maxDelayMs: Long = DEFAULT_MAX_DELAY_MS,
+    private val backoffFactor: Double = DEFAULT_BACKOFF_FACTOR,
+    private val longPollSeconds: Int = 0
+) : CheckoutStatusTransport {
+
+    private var lastResponse: CheckoutProcessResponse? = null
+    private var delayMs = minDelayMs
+    private var nextDelayMs = minDelayMs
+
+    override fun requestStatus(
+        checkoutProcess: CheckoutProcessResponse,
+        paymentProcessResult: PaymentProcessResult
+    ) {
+        val startedAt = SystemClock.elapsedRealtime()
+        val result = object : PaymentProcessResult {
+            override fun onSuccess(checkoutProcessResponse: CheckoutProcessResponse?, rawResponse: String?) {
+                onResponse(checkoutProcessResponse, SystemClock.elapsedRealtime() - startedAt)
+                paymentProcessResult.onSuccess(checkoutProcessResponse, rawResponse)
+            }
+
+            override fun onError() {
+                onError(SystemClock.elapsedRealtime() - startedAt)
+                paymentProcessResult.onError()
+            }
+
+            override fun onNotFound() {
+                paymentProcessResult.onNotFound()
+            }
+        }
+
+        if (longPollSeconds > 0 && checkoutApi is DefaultCheckoutApi) {
+            checkoutApi.updatePaymentProcess(checkoutProcess, longPollSeconds, result)
+        } else {
+            checkoutApi.updatePaymentProcess(checkoutProcess, result)
+        }
+    }
+
+    @Synchronized
+    override fun nextRequestDelayMs(): Long = nextDelayMs
+
+    @Synchronized
+    override fun reset() {
+        lastResponse = null
+        delayMs = minDelayMs
+        nextDelayMs = minDelayMs
+    }
+
+    @Synchronized
+    private fun onResponse(checkoutProcessResponse: CheckoutProcessResponse?, durationMs: Long) {
+        val changed = checkoutProcessResponse != lastResponse
+        lastResponse = checkoutProcessResponse
+
+        delayMs = if (changed) minDelayMs else backoff()
+        nextDelayMs = if (isLongPolling && (changed || wasHeld(durationMs))) 0 else delayMs
+    }
+
+    @Synchronized
+    private fun onError(durationMs: Long) {
+        delayMs = backoff()
+        nextDelayMs = if (isLongPolling && wasHeld(durationMs)) 0 else delayMs
+    }
+
+    private val isLongPolling: Boolean
+        get() = longPollSeconds > 0 && checkoutApi is DefaultCheckoutApi
+
+    // a request that was held by the backend ended because the time to wait ran out
+    private fun wasHeld(durationMs: Long) = durationMs >= longPollSeconds * 1000L / 2
+
+    private fun backoff() = (delayMs * backoffFactor).roundToLong().coerceIn(minDelayMs, maxDelayMs)
+
+    companion object {
+
+        const val DEFAULT_MIN_DELAY_MS = 500L
+        const val DEFAULT_MAX_DELAY_MS = 5000L
+        const val DEFAULT_BACKOFF_FACTOR = 1.5
+    }
+}
@@ -2,6 +2,7 @@ package io.snabble.sdk.checkout
 
 import android.annotation.SuppressLint
 import com.google.gson.JsonObject
+import com.google.gson.JsonParseException
 import io.snabble.sdk.*
 import io.snabble.sdk.payment.PaymentCredentials
 import io.snabble.sdk.shoppingcart.ShoppingCart
@@ -14,6 +15,7 @@ import java.io.IOException
 import java.net.HttpURLConnection.HTTP_CONFLICT
 import java.net.HttpURLConnection.HTTP_FORBIDDEN
 import java.net.HttpURLConnection.HTTP_NOT_FOUND
+import java.net.HttpURLConnection.HTTP_NOT_MODIFIED
 import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.TimeUnit
@@ -25,6 +27,19 @@ class DefaultCheckoutApi(private val project: Project,
     private val okHttpClient: OkHttpClient = project.okHttpClient
     private var call: Call? = null
 
+    @Volatile
+    private var lastProcess: CachedProcess? = null
+
+    /**
+     * The last response of a payment process and its ETag, to send conditional requests for it
+     */
+    private class CachedProcess(
+        val url: String,
+        val etag: String,
+        val response: CheckoutProcessResponse,
+        val rawResponse: String?
+    )
+
     override fun cancel() {
         call?.cancel()
         call = null
@@ -148,42 +163,97 @@ class DefaultCheckoutApi(private val project: Project,
 
     private fun updatePaymentProcess(
         url: String,
-        paymentProcessResult: PaymentProcessResult?
+        paymentProcessResult: PaymentProcessResult?,
+        waitForChangeSeconds: Int = 0
     ) {
+        val cached = lastProcess?.takeIf { it.url == url }
+
         val request = Request.Builder()
             .url(Snabble.absoluteUrl(url))
             .get()
+            .apply {
+                cached?.etag?.let { header("If-None-Match", it) }
+                if (waitForChangeSeconds > 0) {
+                    header("Prefer", "wait=$waitForChangeSeconds")
+                }
+            }
             .build()
 
         cancel()
 
-        call = okHttpClient.newCall(request)
-        call?.enqueue(object : SimpleJsonCallback<CheckoutProcessResponse>(CheckoutProcessResponse::class.java) {
-            override fun success(checkoutProcessResponse: CheckoutProcessResponse) {
-                paymentProcessResult?.onSuccess(checkoutProcessResponse, rawResponse())
-                call = null
-            }
+        var okClient = okHttpClient
+        if (waitForChangeSeconds > 0) {
+            okClient = okClient.newBuilder()
+                .readTimeout(waitForChangeSeconds + LONG_POLL_READ_TIMEOUT_MARGIN_SECONDS, TimeUnit.SECONDS)
+                .build()
+        }
 
-            override fun error(t: Throwable) {
-                if (responseCode() == HTTP_NOT_FOUND) {
-                    paymentProcessResult?.onNotFound()
-                } else {
-                    paymentProcessResult?.onError()
+        call = okClient.newCall(request)
+        call?.enqueue(object : Callback {
+            override fun onResponse(call: Call, response: Response) {
+                response.use {
+                    when {
+                        // the process did not change, so the last response does not need to be parsed again
+                        response.code == HTTP_NOT_MODIFIED && cached != null -> {
+                            paymentProcessResult?.onSuccess(cached.response, cached.rawResponse)
+                        }
+
+                        response.isSuccessful -> {
+                            val rawResponse = response.body?.string()
+                            val checkoutProcess = try {
+                                GsonHolder.get().fromJson(rawResponse, CheckoutProcessResponse::class.java)
+                            } catch (e: JsonParseException) {
+                                Logger.e("Could not parse checkout process: %s", e.message)
+                                null
+                            }
+
+                            if (checkoutProcess == null) {
+                                paymentProcessResult?.onError()
+                            } else {
+                                lastProcess = response.header("ETag")?.let { etag ->
+                                    CachedProcess(url, etag, checkoutProcess, rawResponse)
+                                }
+                                paymentProcessResult?.onSuccess(checkoutProcess, rawResponse)
+                            }
+                        }
+
+                        response.code == HTTP_NOT_FOUND -> paymentProcessResult?.onNotFound()
+                        else -> paymentProcessResult?.onError()
+                    }
+                }
+                if (this@DefaultCheckoutApi.call === call) {
+                    this@DefaultCheckoutApi.call = null
                 }
             }
+
+            override fun onFailure(call: Call, e: IOException) {
+                paymentProcessResult?.onError()
+            }
         })
     }
 
     override fun updatePaymentProcess(
         checkoutProcessResponse: CheckoutProcessResponse,
         paymentProcessResult: PaymentProcessResult?
+    ) {
+        updatePaymentProcess(checkoutProcessResponse, 0, paymentProcessResult)
+    }
+
+    /**
+     * Updates an existing payment process, asking the backend to hold the request for up to
+     * [waitForChangeSeconds] until the process changes.
+     */
+    internal fun updatePaymentProcess(
+        checkoutProcessResponse: CheckoutProcessResponse,
+        waitForChangeSeconds: Int,
+        paymentProcessResult: PaymentProcessResult?
     ) {
         val url = checkoutProcessResponse.selfLink
         if (url == null) {
             paymentProcessResult?.onError()
             return
         }
-        updatePaymentProcess(url, paymentProcessResult)
+        updatePaymentProcess(url, paymentProcessResult, waitForChangeSeconds)
     }
 
     @SuppressLint("SimpleDateFormat")
@@ -329,5 +399,6 @@ class DefaultCheckoutApi(private val project: Project,
     companion object {
 
         private val JSON: MediaType = "application/json".toMediaType()
+        private const val LONG_POLL_READ_TIMEOUT_MARGIN_SECONDS = 10L
     }
 }
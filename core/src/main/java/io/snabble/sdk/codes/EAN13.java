@@ -44,19 +44,19 @@ public class EAN13 implements Serializable {
             sum += i + weightedProduct(i, d);
         }
         int mod10 = (10 - (sum % 10)) % 10;
-        return check5minusReverse.get(mod10, -1);
+        return InternalChecksumTables.check5minusReverse.get(mod10, -1);
     }
 
     private static int weightedProduct(int index, int digit) {
         switch (index) {
             case 0:
             case 3:
-                return check5plus.get(digit, -1);
+                return InternalChecksumTables.check5plus.get(digit, -1);
             case 1:
             case 4:
-                return check2minus.get(digit, -1);
+                return InternalChecksumTables.check2minus.get(digit, -1);
             case 2:
-                return check5minus.get(digit, -1);
+                return InternalChecksumTables.check5minus.get(digit, -1);
             default:
                 return -1;
         }
@@ -82,47 +82,51 @@ public class EAN13 implements Serializable {
 
     }
 
-    private static final SparseIntArray check5plus = new SparseIntArray();
-    private static final SparseIntArray check2minus = new SparseIntArray();
-    private static final SparseIntArray check5minus = new SparseIntArray();
-    private static final SparseIntArray check5minusReverse = new SparseIntArray();
-
-    static {
-        check5plus.put(0, 0);
-        check5plus.put(1, 5);
-        check5plus.put(2, 1);
-        check5plus.put(3, 6);
-        check5plus.put(4, 2);
-        check5plus.put(5, 7);
-        check5plus.put(6, 3);
-        check5plus.put(7, 8);
-        check5plus.put(8, 4);
-        check5plus.put(9, 9);
-
-        check2minus.put(0, 0);
-        check2minus.put(1, 2);
-        check2minus.put(2, 4);
-        check2minus.put(3, 6);
-        check2minus.put(4, 8);
-        check2minus.put(5, 9);
-        check2minus.put(6, 1);
-        check2minus.put(7, 3);
-        check2minus.put(8, 5);
-        check2minus.put(9, 7);
-
-        check5minus.put(0, 0);
-        check5minus.put(1, 5);
-        check5minus.put(2, 9);
-        check5minus.put(3, 4);
-        check5minus.put(4, 8);
-        check5minus.put(5, 3);
-        check5minus.put(6, 7);
-        check5minus.put(7, 2);
-        check5minus.put(8, 6);
-        check5minus.put(9, 1);
-
-        for (int i = 0; i < check5minus.size(); i++) {
-            check5minusReverse.put(check5minus.valueAt(i), check5minus.keyAt(i));
+    // only needed for internal checksums, so that checking the checksum of an EAN-13 does not
+    // initialize android classes, e.g. in plain unit tests
+    private static class InternalChecksumTables {
+        static final SparseIntArray check5plus = new SparseIntArray();
+        static final SparseIntArray check2minus = new SparseIntArray();
+        static final SparseIntArray check5minus = new SparseIntArray();
+        static final SparseIntArray check5minusReverse = new SparseIntArray();
+
+        static {
+            check5plus.put(0, 0);
+            check5plus.put(1, 5);
+            check5plus.put(2, 1);
+            check5plus.put(3, 6);
+            check5plus.put(4, 2);
+            check5plus.put(5, 7);
+            check5plus.put(6, 3);
+            check5plus.put(7, 8);
+            check5plus.put(8, 4);
+            check5plus.put(9, 9);
+
+            check2minus.put(0, 0);
+            check2minus.put(1, 2);
+            check2minus.put(2, 4);
+            check2minus.put(3, 6);
+            check2minus.put(4, 8);
+            check2minus.put(5, 9);
+            check2minus.put(6, 1);
+            check2minus.put(7, 3);
+            check2minus.put(8, 5);
+            check2minus.put(9, 7);
+
+            check5minus.put(0, 0);
+            check5minus.put(1, 5);
+            check5minus.put(2, 9);
+            check5minus.put(3, 4);
+            check5minus.put(4, 8);
+            check5minus.put(5, 3);
+            check5minus.put(6, 7);
+            check5minus.put(7, 2);
+            check5minus.put(8, 6);
+            check5minus.put(9, 1);
+
+            for (int i = 0; i < check5minus.size(); i++) {
+                check5minusReverse.put(check5minus.valueAt(i), check5minus.keyAt(i));
+            }
         }
     }
 }
\ No newline at end of file
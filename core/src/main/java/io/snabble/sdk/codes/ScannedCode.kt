@@ -173,51 +173,34 @@ class ScannedCode private constructor() : Serializable {
     companion object {
 
         @JvmStatic
-        fun parseDefault(project: Project, code: String?): ScannedCode? {
-            project.codeTemplates.forEach { codeTemplate ->
-                val scannedCode = codeTemplate.match(code).buildCode()
-                if (scannedCode != null && scannedCode.templateName == "default") {
-                    return scannedCode
-                }
-            }
-            return null
-        }
+        fun parseDefault(project: Project, code: String?): ScannedCode? =
+            project.codeTemplateIndex.match(code, "default")
 
         @JvmStatic
         fun parse(project: Project, code: String): List<ScannedCode> {
             val matches: MutableList<ScannedCode> = ArrayList()
-            val defaultTemplate = project.defaultCodeTemplate
-
-            project.codeTemplates.forEach { codeTemplate ->
-                val scannedCode = codeTemplate.match(code).buildCode()
-                if (scannedCode != null) {
-                    matches.add(scannedCode)
-                }
-            }
-
-            project.depositReturnVoucherProviders
-                .flatMap { it.templates }
-                .mapNotNull { template -> template.match(code).buildCode() }
-                .forEach(matches::add)
-
-            project.priceOverrideTemplates.forEach { priceOverrideTemplate ->
-                val codeTemplate = priceOverrideTemplate.codeTemplate
-                val scannedCode = codeTemplate.match(code).buildCode()
-                scannedCode?.let {
-                    val lookupCode = scannedCode.lookupCode
-                    if (lookupCode != code) {
-                        val defaultCode = defaultTemplate?.match(lookupCode)?.buildCode()
-                        defaultCode?.let {
-                            defaultCode._embeddedData = scannedCode._embeddedData
-                            defaultCode.embeddedUnit = Unit.PRICE
-                            defaultCode.code = scannedCode.code
-                            val transformTemplate = priceOverrideTemplate.transmissionCodeTemplate
-                            if (transformTemplate != null) {
-                                defaultCode.transformationTemplateName = transformTemplate.name
-                                defaultCode.transformationCode = priceOverrideTemplate.transmissionCode
-                            }
-                            matches.add(defaultCode)
+            val codeTemplateIndex = project.codeTemplateIndex
+
+            codeTemplateIndex.match(code).mapTo(matches) { it.scannedCode }
+
+            project.depositReturnVoucherTemplateIndex.match(code).mapTo(matches) { it.scannedCode }
+
+            project.priceOverrideTemplateIndex.match(code).forEach { match ->
+                val priceOverrideTemplate = match.item
+                val scannedCode = match.scannedCode
+                val lookupCode = scannedCode.lookupCode
+                if (lookupCode != code) {
+                    val defaultCode = codeTemplateIndex.match(lookupCode, "default")
+                    defaultCode?.let {
+                        defaultCode._embeddedData = scannedCode._embeddedData
+                        defaultCode.embeddedUnit = Unit.PRICE
+                        defaultCode.code = scannedCode.code
+                        val transformTemplate = priceOverrideTemplate.transmissionCodeTemplate
+                        if (transformTemplate != null) {
+                            defaultCode.transformationTemplateName = transformTemplate.name
+                            defaultCode.transformationCode = priceOverrideTemplate.transmissionCode
                         }
+                        matches.add(defaultCode)
                     }
                 }
             }
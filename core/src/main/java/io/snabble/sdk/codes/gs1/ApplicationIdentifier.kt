@@ -1,5 +1,7 @@
 package io.snabble.sdk.codes.gs1
 
+import java.util.regex.Pattern
+
 /**
  * Class for defining gs1 application identifiers
  */
@@ -29,6 +31,11 @@ data class ApplicationIdentifier(
             return prefix.substring(2)
         }
 
+    /**
+     * The compiled [regex], shared by all parsed codes
+     */
+    val pattern: Pattern by lazy { Pattern.compile(regex) }
+
     companion object {
         private val charset82 = "\u0021-\u0022\u0025-\u002F\u0030-\u0039\u003A-\u003F\u0041-\u005A\u005F\u0061-\u007A"
         private val charset39 = "\u0023\u002D\u002F\u0030-\u0039\u0041-\u005A"
@@ -569,6 +576,37 @@ data class ApplicationIdentifier(
             return map
         }
 
+        private val identifiersByIndex = arrayOfNulls<List<ApplicationIdentifier>>(100).also { array ->
+            prefixMap.forEach { (prefix, identifiers) -> indexOf(prefix, 0)?.let { array[it] = identifiers } }
+        }
+
+        private val lengthsByIndex = IntArray(100).also { array ->
+            predefinedLengths.forEach { (prefix, length) -> indexOf(prefix, 0)?.let { array[it] = length } }
+        }
+
+        /**
+         * The index of the two digit identifier starting at [offset], or null if there are no two digits
+         */
+        private fun indexOf(code: CharSequence, offset: Int): Int? {
+            if (offset + 2 > code.length) return null
+            val first = code[offset] - '0'
+            val second = code[offset + 1] - '0'
+            return if (first in 0..9 && second in 0..9) first * 10 + second else null
+        }
+
+        /**
+         * Get the application identifiers of the two digit identifier at [offset], without creating a
+         * substring of the code
+         */
+        internal fun byPrefix(code: CharSequence, offset: Int): List<ApplicationIdentifier>? =
+            indexOf(code, offset)?.let { identifiersByIndex[it] }
+
+        /**
+         * Get the length of the element with the two digit identifier at [offset], 0 if it has a variable length
+         */
+        internal fun elementLength(code: CharSequence, offset: Int): Int =
+            indexOf(code, offset)?.let { lengthsByIndex[it] } ?: 0
+
         /**
         * Get the application identifier by its prefix
         */
@@ -33,16 +33,20 @@ class GS1Code(val code: String) {
      */
     val skipped: ArrayList<String> = ArrayList()
 
-    private var remainingCode: String
+    // the part of the code that still needs to be parsed starts at position in input
+    private var input: String
+    private var position = 0
 
     init {
-        remainingCode = code
+        input = code
         parse()
     }
 
     private fun parse() {
         symbologyIdentifiers.forEach {
-            remainingCode = remainingCode.removePrefix(it)
+            if (input.startsWith(it, position)) {
+                position += it.length
+            }
         }
 
         @Suppress("ControlFlowWithEmptyBody")
@@ -50,47 +54,49 @@ class GS1Code(val code: String) {
     }
 
     private fun nextElement(): Boolean {
-        while (remainingCode.startsWith(GS) && remainingCode.isNotEmpty()) {
-            remainingCode = remainingCode.removePrefix(GS)
+        while (input.startsWith(GS, position)) {
+            position += GS.length
         }
 
-        if (remainingCode.length >= 2) {
-            val prefix = remainingCode.substring(0, 2)
-            val elementLength = ApplicationIdentifier.elementLength(prefix)
-            val elementString = if (elementLength > 0) {
-                remainingCode.substring(0, min(remainingCode.length, elementLength))
+        if (input.length - position >= 2) {
+            val start = position
+            val elementLength = ApplicationIdentifier.elementLength(input, start)
+            val end = if (elementLength > 0) {
+                min(input.length, start + elementLength)
             } else {
-                remainingCode.substringBefore(GS)
+                input.indexOf(GS, start).takeIf { it != -1 } ?: input.length
             }
 
-            if (elementString.isNotEmpty()) {
-                ApplicationIdentifier.byPrefix(prefix)?.forEach { ai ->
-                    val remaining = remainingCode.removePrefix(prefix)
-                    if (remaining.startsWith(ai.additionalIdentifier ?: "")) {
-                        val contentLength = ai.contentLength
-
-                        remainingCode = if (contentLength > 0) {
-                            remainingCode.substringAfter(elementString, "")
+            if (end > start) {
+                ApplicationIdentifier.byPrefix(input, start)?.forEach { ai ->
+                    val additionalIdentifier = ai.additionalIdentifier ?: ""
+                    if (input.startsWith(additionalIdentifier, start + 2)) {
+                        val element = input
+                        position = if (ai.contentLength > 0) {
+                            end
                         } else {
-                            remainingCode.substringAfter(GS, "")
+                            input.indexOf(GS, start).let { if (it != -1) it + GS.length else input.length }
                         }
 
-                        val result = Regex(ai.regex).find(elementString)
-                        if (result != null) {
-                            elements.add(Element(ai, result.groupValues.drop(1)))
-                            val leftover = elementString.removeRange(result.range)
-                            if (leftover.isNotEmpty()) {
-                                remainingCode = leftover
+                        val matcher = ai.pattern.matcher(element).region(start, end)
+                        if (matcher.find()) {
+                            val values = List(matcher.groupCount()) { matcher.group(it + 1) ?: "" }
+                            elements.add(Element(ai, values))
+
+                            // unmatched parts of the element are parsed again, without the rest of the code
+                            if (matcher.start() > start || matcher.end() < end) {
+                                input = element.substring(start, matcher.start()) + element.substring(matcher.end(), end)
+                                position = 0
                             }
                         } else {
-                            skipped.add(elementString)
+                            skipped.add(element.substring(start, end))
                         }
                         return true
                     }
                 }
 
-                skipped.add(elementString)
-                remainingCode = remainingCode.substringAfter(elementString, "")
+                skipped.add(input.substring(start, end))
+                position = end
                 return true
             } else {
                 return true
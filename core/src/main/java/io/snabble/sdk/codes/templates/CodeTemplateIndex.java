@@ -0,0 +1,264 @@
+package io.snabble.sdk.codes.templates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import io.snabble.sdk.codes.ScannedCode;
+import io.snabble.sdk.codes.templates.groups.ConstantCodeGroup;
+import io.snabble.sdk.codes.templates.groups.Group;
+import io.snabble.sdk.codes.templates.groups.PlainTextGroup;
+import io.snabble.sdk.codes.templates.groups.WildcardGroup;
+
+/**
+ * Matches codes against a list of code templates, without trying every template.
+ * <p>
+ * The constraints every template puts on a code - its length, or its minimum length for templates
+ * containing a wildcard, and the constant parts of the template like the "2" in
+ * "2{code:5}{i}{code:5}{ec}" - are determined once. Templates are indexed by length and by the first
+ * character of the code, so a code is only matched against templates that can accept it.
+ * <p>
+ * Matching is thread-safe. Each thread uses its own copies of the templates, since
+ * {@link CodeTemplate} keeps the state of a match.
+ *
+ * @param <T> the type of the indexed items, e.g. {@link CodeTemplate} or {@link PriceOverrideTemplate}
+ */
+public class CodeTemplateIndex<T> {
+    private final List<Entry<T>> entries = new ArrayList<>();
+    private final Map<Integer, Bucket<T>> fixedLengthBuckets = new HashMap<>();
+    private final Bucket<T> variableLengthBucket = new Bucket<>();
+
+    /**
+     * @param items the items to index, in the order in which matches are returned
+     * @param templateOf provides the template of an item
+     */
+    public CodeTemplateIndex(List<T> items, Function<T, CodeTemplate> templateOf) {
+        for (int i = 0; i < items.size(); i++) {
+            T item = items.get(i);
+            CodeTemplate template = templateOf.apply(item);
+            if (template == null) {
+                continue;
+            }
+
+            Entry<T> entry = new Entry<>(i, item, template);
+            entries.add(entry);
+
+            if (entry.exactLength != -1) {
+                Bucket<T> bucket = fixedLengthBuckets.get(entry.exactLength);
+                if (bucket == null) {
+                    bucket = new Bucket<>();
+                    fixedLengthBuckets.put(entry.exactLength, bucket);
+                }
+                bucket.add(entry);
+            } else {
+                variableLengthBucket.add(entry);
+            }
+        }
+    }
+
+    public static CodeTemplateIndex<CodeTemplate> of(List<CodeTemplate> templates) {
+        return new CodeTemplateIndex<>(templates, template -> template);
+    }
+
+    /**
+     * Matches a code against all indexed templates.
+     *
+     * @return the matches, in the order of the indexed items
+     */
+    public List<Match<T>> match(String code) {
+        List<Match<T>> matches = new ArrayList<>();
+
+        for (Entry<T> entry : candidates(code)) {
+            ScannedCode scannedCode = entry.match(code);
+            if (scannedCode != null) {
+                matches.add(new Match<>(entry.item, scannedCode));
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Matches a code against the first template with the given name that accepts it.
+     *
+     * @return the scanned code, or null if no template with the given name matches
+     */
+    public ScannedCode match(String code, String templateName) {
+        for (Entry<T> entry : candidates(code)) {
+            if (entry.name.equals(templateName)) {
+                ScannedCode scannedCode = entry.match(code);
+                if (scannedCode != null) {
+                    return scannedCode;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private List<Entry<T>> candidates(String code) {
+        if (code == null) {
+            // without a code, templates build their code from their groups
+            return entries;
+        }
+
+        List<Entry<T>> candidates = new ArrayList<>();
+        Bucket<T> bucket = fixedLengthBuckets.get(code.length());
+        if (bucket != null) {
+            bucket.collect(code, candidates);
+        }
+        variableLengthBucket.collect(code, candidates);
+
+        if (candidates.size() > 1) {
+            Collections.sort(candidates, (a, b) -> Integer.compare(a.ordinal, b.ordinal));
+        }
+
+        return candidates;
+    }
+
+    public static class Match<T> {
+        private final T item;
+        private final ScannedCode scannedCode;
+
+        Match(T item, ScannedCode scannedCode) {
+            this.item = item;
+            this.scannedCode = scannedCode;
+        }
+
+        /**
+         * The indexed item whose template matched
+         */
+        public T getItem() {
+            return item;
+        }
+
+        public ScannedCode getScannedCode() {
+            return scannedCode;
+        }
+    }
+
+    private static class Bucket<T> {
+        private final Map<Character, List<Entry<T>>> byFirstChar = new HashMap<>();
+        private final List<Entry<T>> anyFirstChar = new ArrayList<>();
+
+        void add(Entry<T> entry) {
+            Character firstChar = entry.firstChar();
+            if (firstChar != null) {
+                List<Entry<T>> list = byFirstChar.get(firstChar);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byFirstChar.put(firstChar, list);
+                }
+                list.add(entry);
+            } else {
+                anyFirstChar.add(entry);
+            }
+        }
+
+        void collect(String code, List<Entry<T>> out) {
+            if (!code.isEmpty()) {
+                List<Entry<T>> list = byFirstChar.get(code.charAt(0));
+                if (list != null) {
+                    for (Entry<T> entry : list) {
+                        if (entry.accepts(code)) {
+                            out.add(entry);
+                        }
+                    }
+                }
+            }
+
+            for (Entry<T> entry : anyFirstChar) {
+                if (entry.accepts(code)) {
+                    out.add(entry);
+                }
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        final int ordinal;
+        final T item;
+        final String name;
+        final int exactLength;
+        final int minLength;
+        final int[] literalOffsets;
+        final String[] literals;
+        final ThreadLocal<CodeTemplate> template;
+
+        Entry(int ordinal, T item, CodeTemplate prototype) {
+            this.ordinal = ordinal;
+            this.item = item;
+            this.name = prototype.getName();
+
+            String name = prototype.getName();
+            String pattern = prototype.getPattern();
+            this.template = new ThreadLocal<CodeTemplate>() {
+                @Override
+                protected CodeTemplate initialValue() {
+                    return new CodeTemplate(name, pattern);
+                }
+            };
+
+            // a separate copy, the prototype may be used by another thread at the same time
+            CodeTemplate copy = new CodeTemplate(name, pattern);
+
+            List<Integer> offsets = new ArrayList<>();
+            List<String> texts = new ArrayList<>();
+            boolean isVariableLength = false;
+            int offset = 0;
+
+            // only the groups in front of the first group without a fixed length have a known position
+            for (Group group : copy.getGroups()) {
+                if (group instanceof WildcardGroup || group.length() == 0) {
+                    isVariableLength = true;
+                    break;
+                }
+
+                if (group instanceof PlainTextGroup || group instanceof ConstantCodeGroup) {
+                    offsets.add(offset);
+                    texts.add(group.string());
+                }
+
+                offset += group.length();
+            }
+
+            exactLength = isVariableLength ? -1 : offset;
+            minLength = offset;
+
+            literalOffsets = new int[offsets.size()];
+            literals = new String[texts.size()];
+            for (int i = 0; i < literals.length; i++) {
+                literalOffsets[i] = offsets.get(i);
+                literals[i] = texts.get(i);
+            }
+        }
+
+        Character firstChar() {
+            if (literals.length > 0 && literalOffsets[0] == 0) {
+                return literals[0].charAt(0);
+            }
+            return null;
+        }
+
+        boolean accepts(String code) {
+            if (code.length() < minLength) {
+                return false;
+            }
+
+            for (int i = 0; i < literals.length; i++) {
+                if (!code.startsWith(literals[i], literalOffsets[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        ScannedCode match(String code) {
+            return template.get().match(code).buildCode();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package io.snabble.sdk.events
+
+import io.snabble.sdk.Project
+import io.snabble.sdk.utils.Dispatch
+import io.snabble.sdk.utils.Logger
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+import okhttp3.Response
+import org.apache.commons.io.FileUtils
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Disk backed queue of events, that are waiting to be posted to the snabble Backend.
+ *
+ * Events are appended to a file in the internal storage of the project and posted in batches,
+ * either once [BATCH_SIZE] events are queued or [FLUSH_DELAY_MS] after the first event of a
+ * batch was queued. Events that could not be posted because of connection or server errors stay
+ * in the queue and are retried with an exponential backoff, or as soon as the connection is
+ * restored. Events rejected by the backend are dropped.
+ *
+ * If the queue grows beyond [MAX_QUEUE_SIZE], e.g. while being offline for a long time,
+ * the oldest events are dropped.
+ *
+ * Events added with a failure listener are not retried: the listener is called on the main thread
+ * and the event is removed as soon as posting it fails, or when it is dropped.
+ *
+ * All state is only accessed on the I/O thread.
+ */
+internal class EventQueue private constructor(
+    project: Project,
+    private val file: File
+) {
+
+    // the events url and the http client are read when posting, the project gets replaced when the
+    // metadata is updated
+    @Volatile
+    private var project = project
+
+    private val queue = ArrayDeque<String>()
+    private val failureListeners = IdentityHashMap<String, Runnable>()
+    private val depth = AtomicInteger()
+    private val dropped = AtomicInteger()
+
+    private var isLoaded = false
+    private var isClosed = false
+    private var isSending = false
+    private var isFlushScheduled = false
+    private var backoffMs = 0L
+    private var retryGeneration = 0
+
+    /** The number of events waiting to be posted */
+    val queueDepth: Int
+        get() = depth.get()
+
+    /** The number of events that were dropped, because the queue was full or the backend rejected them */
+    val droppedEventCount: Int
+        get() = dropped.get()
+
+    init {
+        Dispatch.io {
+            load()
+            if (queue.isNotEmpty()) {
+                scheduleFlush()
+            }
+        }
+    }
+
+    /**
+     * Adds an event to the queue.
+     *
+     * @param onFailure if set, the event is not retried and the listener is called on the main thread
+     * if posting the event fails or the event is dropped
+     */
+    fun add(json: String, onFailure: Runnable? = null) {
+        Dispatch.io {
+            if (isClosed) {
+                // e.g. added by the events of a project of the previous setup
+                queues[file.path]?.add(json, onFailure)
+                return@io
+            }
+
+            load()
+
+            if (queue.size >= MAX_QUEUE_SIZE) {
+                dropped.incrementAndGet()
+                if (isSending) {
+                    // the oldest events are being posted right now, drop the new one instead
+                    onFailure?.let { Dispatch.mainThread(it) }
+                    return@io
+                }
+                notifyFailure(queue.removeFirst())
+                queue.addLast(json)
+                onFailure?.let { failureListeners[json] = it }
+                persist()
+            } else {
+                queue.addLast(json)
+                onFailure?.let { failureListeners[json] = it }
+                append(json)
+            }
+            depth.set(queue.size)
+
+            // while backing off, only an explicit flush or a restored connection posts the events
+            if (queue.size >= BATCH_SIZE && backoffMs == 0L) {
+                flushNow()
+            } else {
+                scheduleFlush()
+            }
+        }
+    }
+
+    /**
+     * Posts the queued events immediately, e.g. because the connection was restored.
+     */
+    fun flush() {
+        Dispatch.io {
+            backoffMs = 0
+            flushNow()
+        }
+    }
+
+    private fun scheduleFlush() {
+        if (isFlushScheduled || backoffMs > 0) {
+            return
+        }
+
+        isFlushScheduled = true
+        Dispatch.background({
+            Dispatch.io {
+                isFlushScheduled = false
+                flushNow()
+            }
+        }, FLUSH_DELAY_MS)
+    }
+
+    /**
+     * Stops posting events. The events stay in the file and are posted by the next queue of the file.
+     */
+    private fun close() {
+        Dispatch.io {
+            isClosed = true
+            retryGeneration++
+        }
+    }
+
+    private fun flushNow() {
+        if (isClosed || isSending || queue.isEmpty()) {
+            return
+        }
+
+        val url = project.eventsUrl
+        if (url == null) {
+            Logger.e("Could not post events: no events url")
+            return
+        }
+
+        // a new flush replaces a pending retry
+        retryGeneration++
+        isSending = true
+        sendBatch(url, queue.take(BATCH_SIZE), 0)
+    }
+
+    /**
+     * Posts the events of a batch one after another, the backend accepts a single event per request.
+     */
+    private fun sendBatch(url: String, batch: List<String>, index: Int) {
+        if (index == batch.size) {
+            completeBatch(batch.size)
+            return
+        }
+
+        val request = Request.Builder()
+            .url(url)
+            .post(batch[index].toRequestBody("application/json".toMediaType()))
+            .build()
+
+        project.okHttpClient.newCall(request).enqueue(object : Callback {
+            override fun onResponse(call: Call, response: Response) {
+                val code = response.code
+                response.close()
+
+                Dispatch.io {
+                    if (isClosed) {
+                        return@io
+                    }
+
+                    when {
+                        response.isSuccessful -> {
+                            sendBatch(url, batch, index + 1)
+                        }
+
+                        code == 429 || code >= 500 -> {
+                            Logger.e("Failed to post event, code $code, retrying later")
+                            retryLater(index)
+                        }
+
+                        else -> {
+                            Logger.e("Failed to post event, code $code")
+                            dropped.incrementAndGet()
+                            notifyFailure(batch[index])
+                            sendBatch(url, batch, index + 1)
+                        }
+                    }
+                }
+            }
+
+            override fun onFailure(call: Call, e: IOException) {
+                Dispatch.io {
+                    if (isClosed) {
+                        return@io
+                    }
+
+                    Logger.e("Could not post event: $e")
+                    retryLater(index)
+                }
+            }
+        })
+    }
+
+    private fun completeBatch(count: Int) {
+        repeat(minOf(count, queue.size)) { failureListeners.remove(queue.removeFirst()) }
+        persist()
+        depth.set(queue.size)
+
+        isSending = false
+        backoffMs = 0
+
+        if (queue.size >= BATCH_SIZE) {
+            flushNow()
+        } else if (queue.isNotEmpty()) {
+            scheduleFlush()
+        }
+    }
+
+    private fun retryLater(sentCount: Int) {
+        repeat(minOf(sentCount, queue.size)) { failureListeners.remove(queue.removeFirst()) }
+
+        // events with a failure listener are not retried
+        val failed = queue.firstOrNull()
+        if (failed != null && failureListeners.containsKey(failed)) {
+            notifyFailure(queue.removeFirst())
+        }
+        persist()
+        depth.set(queue.size)
+
+        isSending = false
+        backoffMs = if (backoffMs == 0L) MIN_BACKOFF_MS else minOf(backoffMs * 2, MAX_BACKOFF_MS)
+
+        val generation = retryGeneration
+        Dispatch.background({
+            Dispatch.io {
+                if (generation == retryGeneration) {
+                    flushNow()
+                }
+            }
+        }, backoffMs)
+    }
+
+    private fun notifyFailure(json: String) {
+        failureListeners.remove(json)?.let { Dispatch.mainThread(it) }
+    }
+
+    private fun load() {
+        if (isLoaded) {
+            return
+        }
+        isLoaded = true
+
+        if (!file.exists()) {
+            return
+        }
+
+        try {
+            file.useLines { lines ->
+                // a line that was not written completely is no valid json object
+                lines.filter { it.startsWith("{") && it.endsWith("}") }.forEach { queue.addLast(it) }
+            }
+            depth.set(queue.size)
+        } catch (e: IOException) {
+            Logger.e("Could not read event queue: ${e.message}")
+        }
+    }
+
+    private fun append(json: String) {
+        try {
+            FileUtils.forceMkdirParent(file)
+            FileOutputStream(file, true).use { out ->
+                out.write((json + "\n").toByteArray(Charsets.UTF_8))
+            }
+        } catch (e: IOException) {
+            Logger.e("Could not write event queue: ${e.message}")
+        }
+    }
+
+    private fun persist() {
+        try {
+            if (queue.isEmpty()) {
+                file.delete()
+            } else {
+                FileUtils.forceMkdirParent(file)
+                file.writeText(queue.joinToString(separator = "\n", postfix = "\n"), Charsets.UTF_8)
+            }
+        } catch (e: IOException) {
+            Logger.e("Could not write event queue: ${e.message}")
+        }
+    }
+
+    companion object {
+
+        const val BATCH_SIZE = 20
+        const val FLUSH_DELAY_MS = 1000L
+        const val MAX_QUEUE_SIZE = 500
+
+        private const val MIN_BACKOFF_MS = 2000L
+        private const val MAX_BACKOFF_MS = 5 * 60 * 1000L
+
+        private val queues = ConcurrentHashMap<String, EventQueue>()
+
+        /**
+         * Returns the queue of the project. There is only one per project, since [Events] is recreated
+         * when the metadata gets updated. The queue of a recreated project posts to its events url.
+         */
+        fun of(project: Project): EventQueue {
+            val file = File(project.internalStorageDirectory, "events.queue")
+            return queues.compute(file.path) { _, queue ->
+                queue?.apply { this.project = project } ?: EventQueue(project, file)
+            }!!
+        }
+
+        /**
+         * Closes all queues, called when the sdk is set up again. Queued events are posted by the
+         * queues of the new projects.
+         */
+        fun closeAll() {
+            val closed = queues.values.toList()
+            queues.clear()
+            closed.forEach { it.close() }
+        }
+    }
+}
@@ -24,13 +24,6 @@ import io.snabble.sdk.utils.DateUtils
 import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
 import io.snabble.sdk.utils.Utils
-import okhttp3.Call
-import okhttp3.Callback
-import okhttp3.MediaType.Companion.toMediaType
-import okhttp3.Request
-import okhttp3.RequestBody.Companion.toRequestBody
-import okhttp3.Response
-import java.io.IOException
 import java.util.Date
 import java.util.IllegalFormatException
 import kotlin.time.Duration.Companion.milliseconds
@@ -47,6 +40,20 @@ class Events internal constructor(
     private var shop: Shop? = null
     private val handler = Handler(Looper.getMainLooper())
     private var hasSentSessionStart = false
+    private val eventQueue = EventQueue.of(project)
+
+    /**
+     * The number of events waiting to be posted, e.g. while being offline
+     */
+    val queueDepth: Int
+        get() = eventQueue.queueDepth
+
+    /**
+     * The number of events that were dropped, because too many events were queued or the backend
+     * rejected them
+     */
+    val droppedEventCount: Int
+        get() = eventQueue.droppedEventCount
 
     init {
         project.shoppingCart.addListener(object : SimpleShoppingCartListener() {
@@ -104,6 +111,13 @@ class Events internal constructor(
         }
     }
 
+    /**
+     * Posts all queued events now, instead of waiting for the next batch or retry
+     */
+    fun flush() {
+        eventQueue.flush()
+    }
+
     /**
      * Pack a error log message into a event and dispatch it to the backend
      */
@@ -162,8 +176,7 @@ class Events internal constructor(
     }
 
     private fun <T : Payload?> post(payload: T, debounce: Boolean) {
-        val url = project.eventsUrl
-        if (url == null) {
+        if (project.eventsUrl == null) {
             Logger.e("Could not post event: no events url")
             return
         }
@@ -172,21 +185,24 @@ class Events internal constructor(
 
         if (!event.isRatingAndValid()) return
 
-        val requestBody = GsonHolder.get().toJson(event).toRequestBody("application/json".toMediaType())
-        val request: Request = Request.Builder()
-            .url(url)
-            .post(requestBody)
-            .build()
+        val json = GsonHolder.get().toJson(event)
+
+        // a session start that could not be posted is posted again with the next change of the cart
+        val onFailure = if (event.type == EventType.SESSION_START) {
+            Runnable { hasSentSessionStart = false }
+        } else {
+            null
+        }
 
         if (debounce) {
             handler.removeCallbacksAndMessages(event.type)
             handler.postAtTime(
-                { send(request, payload) },
+                { eventQueue.add(json, onFailure) },
                 event.type,
                 SystemClock.uptimeMillis() + 2000.milliseconds.inWholeMilliseconds
             )
         } else {
-            send(request, payload)
+            eventQueue.add(json, onFailure)
         }
         if (event.type == EventType.SESSION_START) {
             hasSentSessionStart = true
@@ -202,28 +218,6 @@ class Events internal constructor(
         shopId = shop?.id
     )
 
-    private fun <T : Payload?> send(request: Request, payload: T) {
-        val okHttpClient = project.okHttpClient
-        okHttpClient.newCall(request).enqueue(object : Callback {
-
-            override fun onResponse(call: Call, response: Response) {
-                if (response.isSuccessful) {
-                    Logger.d("Successfully posted event: " + payload!!.eventType)
-                } else {
-                    Logger.e("Failed to post event: " + payload!!.eventType + ", code " + response.code)
-                }
-                response.close()
-            }
-
-            override fun onFailure(call: Call, e: IOException) {
-                Logger.e("Could not post event: $e")
-                if (payload!!.eventType == EventType.SESSION_START) {
-                    hasSentSessionStart = false
-                }
-            }
-        })
-    }
-
     companion object {
 
         private fun getUsableProject(projectId: String?): Project? {
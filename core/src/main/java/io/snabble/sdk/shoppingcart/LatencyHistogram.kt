@@ -0,0 +1,52 @@
+package io.snabble.sdk.shoppingcart
+
+/**
+ * Histogram of latencies in milliseconds, in buckets that double in size.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall into, or the largest recorded
+ * latency for the last bucket.
+ */
+internal class LatencyHistogram(private val name: String) {
+
+    private val counts = LongArray(BUCKET_BOUNDS_MS.size + 1)
+
+    var count = 0L
+        @Synchronized get
+        private set
+
+    private var maxMs = 0L
+
+    @Synchronized
+    fun record(latencyMs: Long) {
+        val bucket = BUCKET_BOUNDS_MS.indexOfFirst { latencyMs <= it }
+        counts[if (bucket == -1) BUCKET_BOUNDS_MS.size else bucket]++
+        count++
+        maxMs = maxOf(maxMs, latencyMs)
+    }
+
+    /**
+     * Returns the latency below which the given fraction (0..1) of the recorded latencies are
+     */
+    @Synchronized
+    fun percentile(fraction: Double): Long {
+        if (count == 0L) return 0
+
+        val rank = (fraction * count).toLong().coerceIn(1, count)
+        var seen = 0L
+        counts.forEachIndexed { bucket, bucketCount ->
+            seen += bucketCount
+            if (seen >= rank) {
+                return if (bucket < BUCKET_BOUNDS_MS.size) minOf(BUCKET_BOUNDS_MS[bucket], maxMs) else maxMs
+            }
+        }
+        return maxMs
+    }
+
+    override fun toString() =
+        "$name: n=$count p50=${percentile(0.5)}ms p90=${percentile(0.9)}ms p99=${percentile(0.99)}ms"
+
+    companion object {
+
+        private val BUCKET_BOUNDS_MS = longArrayOf(25, 50, 100, 200, 400, 800, 1600, 3200, 6400, 12800)
+    }
+}
@@ -56,6 +56,16 @@ class ShoppingCart(
     @Transient
     private var priceFormatter: PriceFormatter? = null
 
+    @Transient
+    private var itemIndex: ShoppingCartIndex? = ShoppingCartIndex()
+
+    // carts created by gson do not run the initializers of transient fields
+    private val index: ShoppingCartIndex
+        get() = itemIndex ?: ShoppingCartIndex().also { itemIndex = it }
+
+    private val customerCardId: String?
+        get() = project?.customerCardId
+
     init {
         updateTimestamp()
         updater = project?.let { ShoppingCartUpdater(it, this) }
@@ -132,6 +142,7 @@ class ShoppingCart(
         val itemIsMerged = insertIfMergeable(item, index, update)
         if (itemIsMerged) return
         data.items.add(index, item)
+        this.index.onAdded(data.items, item)
         clearBackup()
         checkLimits()
         notifyItemAdded(this, item)
@@ -139,8 +150,12 @@ class ShoppingCart(
         sortCouponsToBottom()
 
         if (update) {
-            data = data.copy(addCount = addCount.inc(), modCount = modCount.inc())
-            generateNewUUID()
+            data = data.copy(
+                addCount = addCount.inc(),
+                modCount = modCount.inc(),
+                uuid = UUID.randomUUID().toString()
+            )
+            notifyProductsUpdate(this)
             invalidateOnlinePrices()
             updatePrices(debounce = true)
         }
@@ -164,9 +179,10 @@ class ShoppingCart(
         return if (item.isMergeable) {
             val existing = getExistingMergeableProduct(item.product) ?: return false
             data.items.remove(existing)
+            this.index.onRemoved(data.items, existing)
             data.items.add(index, item)
-            data = data.copy(modCount = modCount.inc())
-            generateNewUUID()
+            this.index.onAdded(data.items, item)
+            incrementModCount()
             checkLimits()
             notifyQuantityChanged(this, item)
             if (update) {
@@ -183,8 +199,18 @@ class ShoppingCart(
      *
      * A cart item is not mergeable if it uses encoded data of a scanned code (e.g. a different price)
      */
-    fun getExistingMergeableProduct(product: Product?): Item? =
-        data.items.firstOrNull { product == it.product && it.isMergeable }
+    fun getExistingMergeableProduct(product: Product?): Item? {
+        if (product == null) {
+            return data.items.firstOrNull { it.product == null && it.isMergeable }
+        }
+
+        val candidates = index.getByProduct(data.items, customerCardId, product).filter { it.isMergeable }
+        return when {
+            candidates.size <= 1 -> candidates.firstOrNull()
+            // the index does not know the order of the items
+            else -> data.items.firstOrNull { product == it.product && it.isMergeable }
+        }
+    }
 
     /**
      * Gets the cart item a specific index
@@ -196,7 +222,7 @@ class ShoppingCart(
     /**
      * Find a cart item by it's id
      */
-    fun getByItemId(itemId: String?): Item? = data.items.firstOrNull { itemId == it.id }
+    fun getByItemId(itemId: String?): Item? = index.getById(data.items, customerCardId, itemId)
 
     /**
      * Gets the current index of a cart item
@@ -207,9 +233,9 @@ class ShoppingCart(
      * Removed a cart item from the cart by its index
      */
     fun remove(index: Int) {
-        data = data.copy(modCount = modCount.inc())
-        generateNewUUID()
+        incrementModCount()
         val removedItem = data.items.removeAt(index)
+        this.index.onRemoved(data.items, removedItem)
         checkLimits()
         updatePrices(debounce = size() != 0)
         invalidateOnlinePrices()
@@ -220,7 +246,8 @@ class ShoppingCart(
      * Removes a cart item from the cart by its id
      */
     fun removeItem(itemId: String) {
-        val index = indexOf(firstOrNull { it?.id == itemId })
+        val item = getByItemId(itemId) ?: return
+        val index = indexOf(item)
         if (index != -1) {
             remove(index)
         }
@@ -337,6 +364,7 @@ class ShoppingCart(
                 val product: Product? = productDatabase.findByCode(item.scannedCode)
                 item.apply { product?.let { item.product = product } }
             }
+            index.invalidate()
 
             notifyProductsUpdate(this)
         }
@@ -347,11 +375,13 @@ class ShoppingCart(
      * Resets the cart to the state before it was updated by the backend
      */
     fun invalidateOnlinePrices() {
-        data = data.copy(
-            invalidProducts = null,
-            invalidItemIds = null,
-            onlineTotalPrice = null
-        )
+        if (data.invalidProducts != null || data.invalidItemIds != null || data.onlineTotalPrice != null) {
+            data = data.copy(
+                invalidProducts = null,
+                invalidItemIds = null,
+                onlineTotalPrice = null
+            )
+        }
 
         // use iterator directly instead of for each loop to avoid
         // ConcurrentModificationException due to modification while looping
@@ -422,6 +452,14 @@ class ShoppingCart(
         notifyProductsUpdate(this)
     }
 
+    /**
+     * Increments the mod count and generates a new uuid, in a single copy of the cart data
+     */
+    private fun incrementModCount() {
+        data = data.copy(modCount = modCount.inc(), uuid = UUID.randomUUID().toString())
+        notifyProductsUpdate(this)
+    }
+
     /**
      * The UUID of the cart
      *
@@ -479,50 +517,19 @@ class ShoppingCart(
     val totalPrice: Int
         get() = data.onlineTotalPrice ?: calculateTotalPrice()
 
-    private fun calculateTotalPrice(): Int = data.items.sumOf { it.totalPrice } + totalDepositPrice
+    private fun calculateTotalPrice(): Int = index.totalPrice(data.items, customerCardId) + totalDepositPrice
 
     /**
      * Returns the total sum of deposit
      */
     val totalDepositPrice: Int
-        get() {
-            var sum = 0
-            var vPosSum = 0
-            data.items.forEach { item ->
-                if (item.type == ItemType.LINE_ITEM) {
-                    vPosSum += item.totalDepositPrice
-                } else {
-                    sum += item.totalDepositPrice
-                }
-            }
-
-            return vPosSum.coerceAtLeast(sum)
-        }
+        get() = index.totalDepositPrice(data.items, customerCardId)
 
     /**
      * The quantity of items in the cart.
      */
     val totalQuantity: Int
-        get() {
-            var sum = 0
-            data.items.forEach { item ->
-                if (item.type == ItemType.LINE_ITEM) {
-                    val lineItem = item.lineItem ?: return@forEach
-                    if (item.lineItem?.type == LineItemType.DEFAULT) {
-                        sum += lineItem.amount
-                    }
-                } else if (item.type == ItemType.PRODUCT) {
-                    val product = item.product
-                    sum += if (product?.type == Type.PreWeighed || product?.referenceUnit == Unit.PIECE) {
-                        1
-                    } else {
-                        item.quantity
-                    }
-                }
-            }
-
-            return sum
-        }
+        get() = index.totalQuantity(data.items, customerCardId)
 
     /**
      * Returns true if the shopping cart is over the current set limit
@@ -574,7 +581,7 @@ class ShoppingCart(
      * Checks if the provided scanned code is contained inside the shopping cart
      */
     fun containsScannedCode(scannedCode: ScannedCode): Boolean =
-        data.items.any { it.scannedCode != null && it.scannedCode?.code == scannedCode.code }
+        index.containsScannedCode(data.items, customerCardId, scannedCode.code)
 
     val availablePaymentMethods: List<PaymentMethodInfo>?
         get() = updater?.lastAvailablePaymentMethods
@@ -953,6 +960,10 @@ class ShoppingCart(
          * Returns the product associated with the shopping cart item.
          */
         var product: Product? = null
+            set(value) {
+                field = value
+                cart?.index?.onChanged(this)
+            }
 
         /**
          * Returns the scanned code which was used when scanning the product and adding it to the shopping cart
@@ -961,11 +972,16 @@ class ShoppingCart(
             private set
 
         var quantity = 0
+            set(value) {
+                field = value
+                cart?.index?.onChanged(this)
+            }
 
         var lineItem: LineItem? = null
             set(value) {
                 field = value
                 value?.let { lastPrice= it.totalPrice }
+                cart?.index?.onChanged(this)
             }
 
         /**
@@ -989,11 +1005,19 @@ class ShoppingCart(
          * Gets the user associated coupon of this item
          */
         var coupon: Coupon? = null
+            set(value) {
+                field = value
+                cart?.index?.onChanged(this)
+            }
 
         /**
          * Returns the depositReturnVoucher associated with the shopping cart item.
          */
         var depositReturnVoucher: DepositReturnVoucher? = null
+            set(value) {
+                field = value
+                cart?.index?.onChanged(this)
+            }
 
         /**
          * Returns the deposit associated with the shopping cart item.
@@ -1098,20 +1122,22 @@ class ShoppingCart(
             }
 
             this.quantity = quantity.coerceIn(0, MAX_QUANTITY)
-            val index = cart?.data?.items?.indexOf(this) ?: -1
-            if (index != -1) {
-                cart?.let { currentCart ->
-                    if (quantity == 0) {
-                        currentCart.data.items.remove(this)
-                        currentCart.notifyItemRemoved(currentCart, this, index)
-                    } else {
-                        currentCart.notifyQuantityChanged(cart, this)
-                    }
-                    currentCart.data = currentCart.data.copy(modCount = currentCart.modCount.inc())
-                    currentCart.generateNewUUID()
-                    currentCart.invalidateOnlinePrices()
-                    currentCart.updatePrices(debounce = true)
+            cart?.let { currentCart ->
+                if (!currentCart.index.contains(currentCart.data.items, currentCart.customerCardId, this)) {
+                    return
+                }
+
+                if (quantity == 0) {
+                    val index = currentCart.data.items.indexOf(this)
+                    currentCart.data.items.removeAt(index)
+                    currentCart.index.onRemoved(currentCart.data.items, this)
+                    currentCart.notifyItemRemoved(currentCart, this, index)
+                } else {
+                    currentCart.notifyQuantityChanged(cart, this)
                 }
+                currentCart.incrementModCount()
+                currentCart.invalidateOnlinePrices()
+                currentCart.updatePrices(debounce = true)
             }
         }
 
@@ -1387,6 +1413,7 @@ class ShoppingCart(
             this.product = product
             this.scannedCode = scannedCode
             this.quantity = quantity
+            cart?.index?.onChanged(this)
         }
     }
 
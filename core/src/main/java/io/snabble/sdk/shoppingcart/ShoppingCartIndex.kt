@@ -0,0 +1,230 @@
+package io.snabble.sdk.shoppingcart
+
+import io.snabble.sdk.Product
+import io.snabble.sdk.Product.Type
+import io.snabble.sdk.Unit
+import io.snabble.sdk.checkout.LineItemType
+import io.snabble.sdk.shoppingcart.data.item.ItemType
+import java.util.IdentityHashMap
+
+/**
+ * Index of the items of a [ShoppingCart] by id, product and scanned code, and the running totals of
+ * the items.
+ *
+ * The totals are updated by the difference of a single item whenever it is added, removed or changed,
+ * instead of summing up all items on every access.
+ *
+ * The index is rebuilt if the list of items was replaced or changed its size without the index
+ * being told, e.g. when the cart data is restored or items are removed while iterating the cart.
+ */
+internal class ShoppingCartIndex {
+
+    private class Entry(
+        val totalPrice: Int,
+        val depositPrice: Int,
+        val isLineItem: Boolean,
+        val quantity: Int,
+        val product: Product?,
+        val scannedCode: String?,
+        val hasScannedCode: Boolean,
+    )
+
+    private var items: List<ShoppingCart.Item>? = null
+    private var indexedSize = 0
+    private var customerCardId: String? = null
+
+    private val entries = IdentityHashMap<ShoppingCart.Item, Entry>()
+    private val byId = HashMap<String, ShoppingCart.Item>()
+    private val byProduct = HashMap<Product, MutableList<ShoppingCart.Item>>()
+    private val scannedCodes = HashMap<String?, Int>()
+
+    private var totalPrice = 0
+    private var depositPrice = 0
+    private var lineItemDepositPrice = 0
+    private var totalQuantity = 0
+
+    /**
+     * Sum of [ShoppingCart.Item.totalPrice] of all items
+     */
+    fun totalPrice(items: List<ShoppingCart.Item>, customerCardId: String?): Int {
+        ensureIndexed(items, customerCardId)
+        return totalPrice
+    }
+
+    /**
+     * The deposit of the line items, or of the local items if it is larger
+     */
+    fun totalDepositPrice(items: List<ShoppingCart.Item>, customerCardId: String?): Int {
+        ensureIndexed(items, customerCardId)
+        return lineItemDepositPrice.coerceAtLeast(depositPrice)
+    }
+
+    fun totalQuantity(items: List<ShoppingCart.Item>, customerCardId: String?): Int {
+        ensureIndexed(items, customerCardId)
+        return totalQuantity
+    }
+
+    fun contains(items: List<ShoppingCart.Item>, customerCardId: String?, item: ShoppingCart.Item): Boolean {
+        ensureIndexed(items, customerCardId)
+        return entries.containsKey(item)
+    }
+
+    fun getById(items: List<ShoppingCart.Item>, customerCardId: String?, id: String?): ShoppingCart.Item? {
+        ensureIndexed(items, customerCardId)
+        return byId[id]
+    }
+
+    fun containsScannedCode(items: List<ShoppingCart.Item>, customerCardId: String?, code: String?): Boolean {
+        ensureIndexed(items, customerCardId)
+        return (scannedCodes[code] ?: 0) > 0
+    }
+
+    /**
+     * Returns the items with the given product, in no particular order
+     */
+    fun getByProduct(
+        items: List<ShoppingCart.Item>,
+        customerCardId: String?,
+        product: Product
+    ): List<ShoppingCart.Item> {
+        ensureIndexed(items, customerCardId)
+        return byProduct[product].orEmpty()
+    }
+
+    /**
+     * Adds an item that was added to the list of items
+     */
+    fun onAdded(items: List<ShoppingCart.Item>, item: ShoppingCart.Item) {
+        if (items !== this.items || entries.containsKey(item)) {
+            invalidate()
+            return
+        }
+        add(item)
+        indexedSize++
+    }
+
+    /**
+     * Removes an item that was removed from the list of items
+     */
+    fun onRemoved(items: List<ShoppingCart.Item>, item: ShoppingCart.Item) {
+        if (items !== this.items || !entries.containsKey(item)) {
+            invalidate()
+            return
+        }
+        remove(item)
+        indexedSize--
+    }
+
+    /**
+     * Updates the totals with the current values of an item
+     */
+    fun onChanged(item: ShoppingCart.Item) {
+        if (entries.containsKey(item)) {
+            remove(item)
+            add(item)
+        }
+    }
+
+    /**
+     * Rebuilds the index on its next use
+     */
+    fun invalidate() {
+        items = null
+    }
+
+    private fun ensureIndexed(items: List<ShoppingCart.Item>, customerCardId: String?) {
+        // the deposit depends on the price of the deposit product for the customer card
+        if (items === this.items && items.size == indexedSize && customerCardId == this.customerCardId) {
+            return
+        }
+
+        entries.clear()
+        byId.clear()
+        byProduct.clear()
+        scannedCodes.clear()
+        totalPrice = 0
+        depositPrice = 0
+        lineItemDepositPrice = 0
+        totalQuantity = 0
+
+        items.forEach { add(it) }
+
+        this.items = items
+        this.indexedSize = items.size
+        this.customerCardId = customerCardId
+    }
+
+    private fun add(item: ShoppingCart.Item) {
+        val entry = Entry(
+            totalPrice = item.totalPrice,
+            depositPrice = item.totalDepositPrice,
+            isLineItem = item.type == ItemType.LINE_ITEM,
+            quantity = quantityOf(item),
+            product = item.product,
+            scannedCode = item.scannedCode?.code,
+            hasScannedCode = item.scannedCode != null,
+        )
+        entries[item] = entry
+
+        totalPrice += entry.totalPrice
+        if (entry.isLineItem) {
+            lineItemDepositPrice += entry.depositPrice
+        } else {
+            depositPrice += entry.depositPrice
+        }
+        totalQuantity += entry.quantity
+
+        item.id?.let { id -> byId.putIfAbsent(id, item) }
+        entry.product?.let { product -> byProduct.getOrPut(product) { ArrayList(1) }.add(item) }
+        if (entry.hasScannedCode) {
+            scannedCodes[entry.scannedCode] = (scannedCodes[entry.scannedCode] ?: 0) + 1
+        }
+    }
+
+    private fun remove(item: ShoppingCart.Item) {
+        val entry = entries.remove(item) ?: return
+
+        totalPrice -= entry.totalPrice
+        if (entry.isLineItem) {
+            lineItemDepositPrice -= entry.depositPrice
+        } else {
+            depositPrice -= entry.depositPrice
+        }
+        totalQuantity -= entry.quantity
+
+        item.id?.let { id ->
+            if (byId[id] === item) {
+                byId.remove(id)
+            }
+        }
+        entry.product?.let { product ->
+            val itemsOfProduct = byProduct[product] ?: return@let
+            itemsOfProduct.removeAll { it === item }
+            if (itemsOfProduct.isEmpty()) {
+                byProduct.remove(product)
+            }
+        }
+        if (entry.hasScannedCode) {
+            val count = (scannedCodes[entry.scannedCode] ?: 0) - 1
+            if (count > 0) {
+                scannedCodes[entry.scannedCode] = count
+            } else {
+                scannedCodes.remove(entry.scannedCode)
+            }
+        }
+    }
+
+    private fun quantityOf(item: ShoppingCart.Item): Int = when (item.type) {
+        ItemType.LINE_ITEM -> {
+            val lineItem = item.lineItem
+            if (lineItem != null && lineItem.type == LineItemType.DEFAULT) lineItem.amount else 0
+        }
+
+        ItemType.PRODUCT -> {
+            val product = item.product
+            if (product?.type == Type.PreWeighed || product?.referenceUnit == Unit.PIECE) 1 else item.quantity
+        }
+
+        else -> 0
+    }
+}
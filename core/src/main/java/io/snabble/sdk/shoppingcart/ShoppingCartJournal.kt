@@ -0,0 +1,369 @@
+package io.snabble.sdk.shoppingcart
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParseException
+import com.google.gson.JsonParser
+import com.google.gson.stream.JsonWriter
+import io.snabble.sdk.utils.Dispatch
+import io.snabble.sdk.utils.GsonHolder
+import io.snabble.sdk.utils.Logger
+import org.apache.commons.io.FileUtils
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.RandomAccessFile
+
+/**
+ * Persists [ShoppingCartData] as a snapshot file plus an append-only journal of changes.
+ *
+ * A save only appends what changed since the previous save to the journal: added or replaced
+ * items, removed items, quantity changes and the cart properties. Once the journal grows larger
+ * than the snapshot, both are compacted into a new snapshot, which is written to a temporary file
+ * and renamed into place.
+ *
+ * The journal starts with the sequence number of the snapshot it belongs to, followed by batches
+ * of changes that are each terminated by a commit entry. Batches that were not written completely,
+ * e.g. because the app got killed, are ignored when loading.
+ *
+ * [load] and [save] need to be called from the main thread, the files are written on the
+ * I/O thread.
+ */
+internal class ShoppingCartJournal(private val snapshotFile: File) {
+
+    private val gson = GsonHolder.get()
+    private val journalFile = File(snapshotFile.parentFile, snapshotFile.nameWithoutExtension + ".journal")
+    private val tempFile = File(snapshotFile.parentFile, snapshotFile.name + ".tmp")
+
+    // state of the last save, only accessed on the main thread
+    private val persistedItems = HashMap<String, ItemState>()
+    private var persistedOrder = mutableListOf<String>()
+    private var persistedHeader: JsonObject? = null
+
+    // state of the files, only accessed on the I/O thread after loading
+    private var mirror = Mirror()
+    private var sequence = 0L
+    private var needsCompaction = true
+
+    /**
+     * Loads the snapshot and replays the journal.
+     *
+     * @return the stored cart or null if there is none
+     */
+    @Throws(IOException::class)
+    fun load(): ShoppingCartData? {
+        if (!snapshotFile.exists() && !journalFile.exists()) {
+            needsCompaction = false
+            return null
+        }
+
+        val loaded = Mirror()
+        var loadedSequence = 0L
+
+        if (snapshotFile.exists()) {
+            val tree = snapshotFile.bufferedReader().use { JsonParser.parseReader(it) }
+            if (!tree.isJsonObject) {
+                return null
+            }
+
+            val snapshot = tree.asJsonObject
+            loadedSequence = snapshot.remove(SEQUENCE)?.asLong ?: 0L
+            snapshot.remove(ITEMS)?.takeIf { it.isJsonArray }?.asJsonArray?.forEach { item ->
+                val id = item.idOrNull() ?: return@forEach
+                loaded.items[id] = item
+                loaded.order.add(id)
+            }
+            loaded.header = snapshot
+        }
+
+        val intact = replayJournal(loaded, loadedSequence)
+        val data = gson.fromJson(loaded.toJsonObject(), ShoppingCartData::class.java) ?: return null
+
+        persistedHeader = loaded.header.deepCopy()
+        persistedOrder = loaded.order.toMutableList()
+        persistedItems.clear()
+        data.items.forEach { item ->
+            item.id?.let { persistedItems[it] = ItemState(item) }
+        }
+
+        mirror = loaded
+        sequence = loadedSequence
+        needsCompaction = !intact
+
+        return data
+    }
+
+    /**
+     * Applies all committed batches of the journal to the given mirror.
+     *
+     * @return false if the journal needs to be rewritten before it can be appended to again
+     */
+    private fun replayJournal(mirror: Mirror, snapshotSequence: Long): Boolean {
+        if (!journalFile.exists()) {
+            return true
+        }
+
+        journalFile.bufferedReader().use { reader ->
+            val base = reader.readLine()?.let { parseEntry(it) }
+            if (base?.op != OP_BASE || base.sequence != snapshotSequence) {
+                // the journal belongs to an older snapshot and is already contained in the current one
+                return false
+            }
+
+            val pending = mutableListOf<Entry>()
+            while (true) {
+                val line = reader.readLine() ?: break
+                val entry = parseEntry(line) ?: return false
+                if (entry.op == OP_COMMIT) {
+                    pending.forEach(mirror::apply)
+                    pending.clear()
+                } else {
+                    pending.add(entry)
+                }
+            }
+
+            return pending.isEmpty() && endsWithNewline(journalFile)
+        }
+    }
+
+    /**
+     * Compares the cart with the state of the last save and appends the differences to the journal.
+     */
+    fun save(data: ShoppingCartData) {
+        val entries = mutableListOf<Entry>()
+
+        val header = gson.toJsonTree(data.copy(items = mutableListOf())).asJsonObject
+        header.remove(ITEMS)
+        if (header != persistedHeader) {
+            entries.add(Entry(OP_HEADER, header = header))
+            persistedHeader = header
+        }
+
+        // items always have an id, it is assigned when they are created
+        val liveOrder = data.items.mapNotNull { it.id }
+        val liveIds = liveOrder.toHashSet()
+
+        val removed = persistedOrder.filterNot { it in liveIds }
+        if (removed.isNotEmpty()) {
+            removed.forEach { id ->
+                entries.add(Entry(OP_REMOVE, id = id))
+                persistedItems.remove(id)
+            }
+            persistedOrder.removeAll(removed.toHashSet())
+        }
+
+        data.items.forEachIndexed { index, item ->
+            val id = item.id ?: return@forEachIndexed
+            val state = ItemState(item)
+            val persisted = persistedItems[id]
+            when {
+                persisted == null -> {
+                    entries.add(Entry(OP_PUT, id = id, index = index, item = gson.toJsonTree(item)))
+                    persistedOrder.add(index.coerceAtMost(persistedOrder.size), id)
+                }
+
+                !persisted.hasSameContent(state) -> {
+                    entries.add(Entry(OP_PUT, id = id, item = gson.toJsonTree(item)))
+                }
+
+                persisted.quantity != state.quantity -> {
+                    entries.add(Entry(OP_QUANTITY, id = id, quantity = state.quantity))
+                }
+            }
+            persistedItems[id] = state
+        }
+
+        if (liveOrder != persistedOrder) {
+            entries.add(Entry(OP_ORDER, ids = liveOrder))
+            persistedOrder = liveOrder.toMutableList()
+        }
+
+        if (entries.isNotEmpty()) {
+            Dispatch.io { write(entries) }
+        }
+    }
+
+    private fun write(entries: List<Entry>) {
+        entries.forEach(mirror::apply)
+
+        try {
+            if (needsCompaction || journalFile.length() > maxOf(MIN_COMPACTION_SIZE, snapshotFile.length())) {
+                compact()
+            } else {
+                append(entries)
+            }
+        } catch (e: IOException) {
+            Logger.e("Could not save shopping cart to ${snapshotFile.absolutePath}: ${e.message}")
+            needsCompaction = true
+        }
+    }
+
+    private fun append(entries: List<Entry>) {
+        val sb = StringBuilder()
+        if (!journalFile.exists() || journalFile.length() == 0L) {
+            sb.append(gson.toJson(Entry(OP_BASE, sequence = sequence))).append('\n')
+        }
+        entries.forEach { sb.append(gson.toJson(it)).append('\n') }
+        sb.append(gson.toJson(Entry(OP_COMMIT))).append('\n')
+
+        FileUtils.forceMkdirParent(journalFile)
+        FileOutputStream(journalFile, true).use { out ->
+            out.write(sb.toString().toByteArray(Charsets.UTF_8))
+            out.fd.sync()
+        }
+    }
+
+    private fun compact() {
+        val newSequence = sequence + 1
+
+        FileUtils.forceMkdirParent(tempFile)
+        FileOutputStream(tempFile).use { out ->
+            val writer = JsonWriter(OutputStreamWriter(out, Charsets.UTF_8).buffered())
+            writer.beginObject()
+            writer.name(SEQUENCE).value(newSequence)
+            mirror.header.entrySet().forEach { (name, value) ->
+                writer.name(name)
+                gson.toJson(value, writer)
+            }
+            writer.name(ITEMS).beginArray()
+            mirror.order.forEach { id ->
+                mirror.items[id]?.let { gson.toJson(it, writer) }
+            }
+            writer.endArray()
+            writer.endObject()
+            writer.flush()
+            out.fd.sync()
+        }
+
+        if (!tempFile.renameTo(snapshotFile)) {
+            throw IOException("Could not move ${tempFile.name} to ${snapshotFile.name}")
+        }
+
+        // a journal that could not be deleted is ignored on load because of its old sequence
+        journalFile.delete()
+        sequence = newSequence
+        needsCompaction = false
+    }
+
+    private fun parseEntry(line: String): Entry? =
+        try {
+            gson.fromJson(line, Entry::class.java)
+        } catch (e: JsonParseException) {
+            null
+        }
+
+    private fun endsWithNewline(file: File): Boolean =
+        RandomAccessFile(file, "r").use { raf ->
+            raf.length() == 0L || raf.run {
+                seek(length() - 1)
+                read() == '\n'.code
+            }
+        }
+
+    private fun JsonElement.idOrNull(): String? =
+        takeIf { it.isJsonObject }?.asJsonObject?.get(ID)?.takeIf { it.isJsonPrimitive }?.asString
+
+    /**
+     * The stored cart as json, split into its properties and its items.
+     */
+    private class Mirror {
+        var header = JsonObject()
+        val order = mutableListOf<String>()
+        val items = HashMap<String, JsonElement>()
+
+        fun apply(entry: Entry) {
+            when (entry.op) {
+                OP_HEADER -> entry.header?.let { header = it }
+
+                OP_PUT -> {
+                    val id = entry.id ?: return
+                    val item = entry.item ?: return
+                    items[id] = item
+                    if (entry.index != null) {
+                        order.remove(id)
+                        order.add(entry.index.coerceIn(0, order.size), id)
+                    } else if (id !in order) {
+                        order.add(id)
+                    }
+                }
+
+                OP_QUANTITY -> {
+                    val id = entry.id ?: return
+                    val quantity = entry.quantity ?: return
+                    val item = items[id]?.takeIf { it.isJsonObject } ?: return
+                    item.asJsonObject.addProperty(QUANTITY, quantity)
+                }
+
+                OP_REMOVE -> {
+                    val id = entry.id ?: return
+                    items.remove(id)
+                    order.remove(id)
+                }
+
+                OP_ORDER -> {
+                    val ids = entry.ids ?: return
+                    order.clear()
+                    ids.filterTo(order) { it in items }
+                }
+            }
+        }
+
+        fun toJsonObject(): JsonObject =
+            header.deepCopy().apply {
+                add(ITEMS, JsonArray().apply { order.forEach { id -> items[id]?.let(::add) } })
+            }
+    }
+
+    /**
+     * The parts of a cart item that can change after it was created. Objects are compared by identity,
+     * since they are replaced instead of being modified when the cart gets updated.
+     */
+    private class ItemState(item: ShoppingCart.Item) {
+        val quantity = item.quantity
+        private val isManualCouponApplied = item.isManualCouponApplied
+        private val references = arrayOf<Any?>(
+            item.product,
+            item.scannedCode,
+            item.lineItem,
+            item.coupon,
+            item.depositReturnVoucher,
+            item.deposit,
+            item.backendCouponId
+        )
+
+        fun hasSameContent(other: ItemState): Boolean =
+            isManualCouponApplied == other.isManualCouponApplied
+                    && references.indices.all { references[it] === other.references[it] }
+    }
+
+    private data class Entry(
+        val op: String? = null,
+        val id: String? = null,
+        val index: Int? = null,
+        val quantity: Int? = null,
+        val item: JsonElement? = null,
+        val header: JsonObject? = null,
+        val ids: List<String>? = null,
+        val sequence: Long? = null,
+    )
+
+    companion object {
+
+        private const val MIN_COMPACTION_SIZE = 32 * 1024L
+
+        private const val SEQUENCE = "journalSequence"
+        private const val ITEMS = "items"
+        private const val ID = "id"
+        private const val QUANTITY = "quantity"
+
+        private const val OP_BASE = "base"
+        private const val OP_HEADER = "header"
+        private const val OP_PUT = "put"
+        private const val OP_QUANTITY = "quantity"
+        private const val OP_REMOVE = "remove"
+        private const val OP_ORDER = "order"
+        private const val OP_COMMIT = "commit"
+    }
+}
@@ -6,16 +6,10 @@ import io.snabble.sdk.Project
 import io.snabble.sdk.Snabble
 import io.snabble.sdk.shoppingcart.data.listener.SimpleShoppingCartListener
 import io.snabble.sdk.utils.Dispatch
-import io.snabble.sdk.utils.GsonHolder
 import io.snabble.sdk.utils.Logger
-import org.apache.commons.io.FileUtils
-import org.apache.commons.io.IOUtils
 import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
 import java.io.IOException
 import java.lang.RuntimeException
-import java.nio.charset.Charset
 import kotlin.time.Duration.Companion.seconds
 
 internal class ShoppingCartStorage(val project: Project) {
@@ -23,6 +17,8 @@ internal class ShoppingCartStorage(val project: Project) {
     private val mainThreadHandler: Handler = Handler(Looper.getMainLooper())
     private val fileMap = mutableMapOf<String, File>()
     private var currentFile: File? = null
+    private var currentJournal: ShoppingCartJournal? = null
+    private var pendingSave: ShoppingCartJournal? = null
 
     init {
         updateFileMap()
@@ -48,7 +44,9 @@ internal class ShoppingCartStorage(val project: Project) {
                     }
                 }
 
+                flush()
                 currentFile = null
+                currentJournal = null
             }
         }
     }
@@ -65,19 +63,17 @@ internal class ShoppingCartStorage(val project: Project) {
 
     @Suppress("TooGenericExceptionCaught")
     private fun load() {
+        flush()
+
+        val journal = currentFile?.let { ShoppingCartJournal(it) }
+        currentJournal = journal
+
         try {
-            if (currentFile?.exists() == true) {
-                val contents: String? =
-                    IOUtils.toString(FileInputStream(currentFile), Charset.forName("UTF-8"))
-                val shoppingCartData: ShoppingCartData? =
-                    GsonHolder.get().fromJson(contents, ShoppingCartData::class.java)
-                if (shoppingCartData != null) {
-                    project.shoppingCart.initWithData(shoppingCartData)
-                } else {
-                    //shopping cart could not be read, create a new one.
-                    project.shoppingCart.initWithData(ShoppingCartData())
-                }
+            val shoppingCartData: ShoppingCartData? = journal?.load()
+            if (shoppingCartData != null) {
+                project.shoppingCart.initWithData(shoppingCartData)
             } else {
+                //shopping cart could not be read, create a new one.
                 project.shoppingCart.initWithData(ShoppingCartData())
             }
         } catch (e: IOException) {
@@ -92,23 +88,25 @@ internal class ShoppingCartStorage(val project: Project) {
     }
 
     private fun saveDebounced() {
-        val file = currentFile
-        val data = project.shoppingCart.data
+        val journal = currentJournal
 
-        if (file != null) {
+        if (journal != null) {
             mainThreadHandler.removeCallbacksAndMessages(null)
+            pendingSave = journal
             mainThreadHandler.postDelayed({
-                val json = GsonHolder.get().toJson(data)
-                Dispatch.background {
-                    try {
-                        FileUtils.forceMkdirParent(file)
-                        IOUtils.write(json, FileOutputStream(file), Charset.forName("UTF-8"))
-                    } catch (e: IOException) {
-                        //could not save shopping cart, silently ignore
-                        Logger.e("Could not save shopping list: " + e.message)
-                    }
-                }
+                pendingSave = null
+                journal.save(project.shoppingCart.data)
             }, 1.seconds.inWholeMilliseconds)
         }
     }
+
+    /**
+     * Saves changes that are still waiting for the debounce timeout, before switching to another cart.
+     */
+    private fun flush() {
+        val journal = pendingSave ?: return
+        mainThreadHandler.removeCallbacksAndMessages(null)
+        pendingSave = null
+        journal.save(project.shoppingCart.data)
+    }
 }
@@ -28,6 +28,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.util.UUID
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
 
 internal class ShoppingCartUpdater(
     private val project: Project,
@@ -51,11 +52,41 @@ internal class ShoppingCartUpdater(
     private var successfulModCount = -1
     private val updatePriceRunnable = Runnable { update(force = false) }
 
+    // uptime of the first change of the cart that was not sent yet, or 0
+    @Volatile
+    private var pendingSince = 0L
+
+    // incremented for every request, responses of older requests are superseded and ignored
+    private val requestGeneration = AtomicInteger()
+
+    /**
+     * Time from a change of the cart until the request for its prices is sent
+     */
+    val coalesceLatency = LatencyHistogram("coalesce")
+
+    /**
+     * Time from sending the request for the prices until the response arrived
+     */
+    val requestLatency = LatencyHistogram("request")
+
+    /**
+     * Time from a change of the cart until its online prices are applied
+     */
+    val updateLatency = LatencyHistogram("update")
+
     val mainScope = CoroutineScope(Dispatchers.Main + Job())
 
     fun update(force: Boolean) {
         Logger.d("Updating prices...")
+        val requestedAt = SystemClock.uptimeMillis()
+        val changedAt = pendingSince.takeIf { it != 0L } ?: requestedAt
+        pendingSince = 0L
+
+        // a new request supersedes the running one, the cart was changed since it was sent
+        val generation = requestGeneration.incrementAndGet()
+
         if (cart.isEmpty) {
+            checkoutApi.cancel()
             lastAvailablePaymentMethods = null
             cart.notifyPriceUpdate(cart)
             return
@@ -65,15 +96,33 @@ internal class ShoppingCartUpdater(
             return
         }
 
+        coalesceLatency.record(requestedAt - changedAt)
+
         checkoutApi.createCheckoutInfo(
             cart.toBackendCart(),
             object : CheckoutInfoResult {
 
+                // ignores the result of a request that was superseded or cancelled by a newer one
+                private fun isSuperseded(): Boolean {
+                    if (generation != requestGeneration.get()) {
+                        Logger.d("Ignoring superseded price update")
+                        return true
+                    }
+                    return false
+                }
+
+                private fun recordRequestLatency() {
+                    requestLatency.record(SystemClock.uptimeMillis() - requestedAt)
+                }
+
                 override fun onSuccess(
                     signedCheckoutInfo: SignedCheckoutInfo,
                     onlinePrice: Int,
                     availablePaymentMethods: List<PaymentMethodInfo>
                 ) {
+                    if (isSuperseded()) return
+                    recordRequestLatency()
+
                     // ignore when cart was modified mid request
                     if (cart.modCount != modCount) return
 
@@ -82,41 +131,51 @@ internal class ShoppingCartUpdater(
                         if (skus.isNotEmpty()) {
                             val products = withContext(Dispatchers.Default) { getReplacedProducts(skus) }
                             if (products == null && !containsReturnDepositReturnVouchers(signedCheckoutInfo)) {
-                                onUnknownError()
+                                error(requestSucceeded = false)
                             } else {
-                                commitCartUpdate(modCount, signedCheckoutInfo, products)
+                                commitCartUpdate(modCount, signedCheckoutInfo, products, changedAt)
                             }
                         } else {
-                            commitCartUpdate(modCount, signedCheckoutInfo, null)
+                            commitCartUpdate(modCount, signedCheckoutInfo, null, changedAt)
                         }
                     }
                 }
 
                 override fun onNoShopFound() {
+                    if (isSuperseded()) return
+                    recordRequestLatency()
                     error(requestSucceeded = true)
                 }
 
                 override fun onInvalidProducts(products: List<Product>) {
+                    if (isSuperseded()) return
+                    recordRequestLatency()
                     cart.invalidProducts = products
                     error(requestSucceeded = true)
                 }
 
                 override fun onInvalidItems(itemIds: List<String>) {
+                    if (isSuperseded()) return
+                    recordRequestLatency()
                     handler.post { onInvalidItemsDetectedListener?.invoke(itemIds) }
                     cart.invalidItemIds = itemIds
                     error(requestSucceeded = true)
                 }
 
                 override fun onNoAvailablePaymentMethodFound() {
+                    if (isSuperseded()) return
+                    recordRequestLatency()
                     error(requestSucceeded = true)
                 }
 
                 override fun onUnknownError() {
-
+                    if (isSuperseded()) return
+                    recordRequestLatency()
                     error(requestSucceeded = false)
                 }
 
                 override fun onConnectionError() {
+                    if (isSuperseded()) return
                     error(requestSucceeded = false)
                 }
             },
@@ -133,7 +192,8 @@ internal class ShoppingCartUpdater(
     private fun commitCartUpdate(
         modCount: Int,
         signedCheckoutInfo: SignedCheckoutInfo,
-        products: Map<String?, Product>?
+        products: Map<String?, Product>?,
+        changedAt: Long
     ) {
         if (isCardModified(modCount)) return
 
@@ -172,6 +232,9 @@ internal class ShoppingCartUpdater(
         lastAvailablePaymentMethods = signedCheckoutInfo.getAvailablePaymentMethods()
         isUpdated = true
 
+        updateLatency.record(SystemClock.uptimeMillis() - changedAt)
+        Logger.d("Price update latencies: %s, %s, %s", coalesceLatency, requestLatency, updateLatency)
+
         with(cart) {
             invalidProducts = null
             invalidItemIds = null
@@ -373,13 +436,29 @@ internal class ShoppingCartUpdater(
         return products.firstOrNull()
     }
 
+    /**
+     * Updates the prices once the cart did not change for [DEBOUNCE_DELAY_MS], but at the latest
+     * [MAX_COALESCE_DELAY_MS] after the first change that was not sent yet.
+     *
+     * A running request is cancelled, since its result would be dropped for the changed cart.
+     */
     fun dispatchUpdate() {
+        val now = SystemClock.uptimeMillis()
+        if (pendingSince == 0L) {
+            pendingSince = now
+        }
+
+        requestGeneration.incrementAndGet()
+        checkoutApi.cancel()
+
         handler.removeCallbacksAndMessages(this)
-        handler.postAtTime(updatePriceRunnable, this, SystemClock.uptimeMillis() + DEBOUNCE_DELAY_MS)
+        val updateAt = minOf(now + DEBOUNCE_DELAY_MS, pendingSince + MAX_COALESCE_DELAY_MS)
+        handler.postAtTime(updatePriceRunnable, this, updateAt)
     }
 
     companion object {
 
-        private const val DEBOUNCE_DELAY_MS = 1000
+        private const val DEBOUNCE_DELAY_MS = 500L
+        private const val MAX_COALESCE_DELAY_MS = 2000L
     }
 }
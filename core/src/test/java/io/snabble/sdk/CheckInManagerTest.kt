@@ -1,12 +1,15 @@
 package io.snabble.sdk
 
 import android.location.Location
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
 import io.snabble.sdk.checkin.CheckInManager
 import io.snabble.sdk.checkin.OnCheckInStateChangedListener
 import org.junit.Assert
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
+import java.util.Random
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
 
@@ -184,6 +187,45 @@ class CheckInManagerTest : SnabbleSdkTest() {
         listener2.await()
         Assert.assertEquals("1337", checkInManager.shop?.id)
     }
+
+    @Test
+    fun testShopIndexMatchesDistanceTo() {
+        val random = Random(42)
+        val json = JsonArray()
+        repeat(2000) { i ->
+            json.add(JsonObject().apply {
+                addProperty("id", i.toString())
+                // around bonn and around the antimeridian
+                val longitude = if (i % 4 == 0) 179.9 + random.nextDouble() * 0.2 else 7.1 + random.nextDouble() * 4 - 2
+                addProperty("lat", 50.7 + random.nextDouble() * 4 - 2)
+                addProperty("lon", if (longitude > 180) longitude - 360 else longitude)
+            })
+        }
+        val shops = Shop.fromJson(json).toList()
+        val index = ShopIndex(shops)
+
+        repeat(50) { i ->
+            val location = Location("").apply {
+                latitude = 50.7 + random.nextDouble() * 5 - 2.5
+                longitude = if (i % 5 == 0) -179.95 else 7.1 + random.nextDouble() * 5 - 2.5
+            }
+            val expected = shops.map { ShopIndex.ShopDistance(it, it.location.distanceTo(location)) }
+                .sortedBy { it.distance }
+
+            val radius = 500f + random.nextFloat() * 20000f
+            Assert.assertEquals(
+                expected.filter { it.distance < radius }.map { it.shop.id }.toSet(),
+                index.within(location, radius).map { it.shop.id }.toSet()
+            )
+            Assert.assertEquals(
+                expected.take(10).map { it.distance },
+                index.nearest(location, 10).map { it.distance }
+            )
+            Assert.assertEquals(expected.first().distance, index.nearest(location)?.distance)
+        }
+
+        Assert.assertNull(ShopIndex(emptyList()).nearest(locationSnabble))
+    }
 }
 
 private class CheckInListener(
@@ -6,9 +6,13 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import io.snabble.sdk.codes.ScannedCode;
 import io.snabble.sdk.codes.templates.CodeTemplate;
+import io.snabble.sdk.codes.templates.CodeTemplateIndex;
 
 @RunWith(RobolectricTestRunner.class)
 public class CodeTemplateTest {
@@ -218,6 +222,47 @@ public class CodeTemplateTest {
         Assert.assertNull(code);
     }
 
+    @Test
+    public void testIndexMatchesLikeTemplates() {
+        List<CodeTemplate> templates = Arrays.asList(
+                new CodeTemplate("ean13_instore", "2{code:5}{i}{embed:5}{ec}"),
+                new CodeTemplate("ean13_instore_chk", "241700{i}{embed:5}{ec}"),
+                new CodeTemplate("german_print", "4{code:2}{_:5}{embed:4}{_}"),
+                new CodeTemplate("edeka_discount", "97{code:ean13}{price:6}{_}"),
+                new CodeTemplate("constant", "{code=21}{_:10}{ec}"),
+                new CodeTemplate("prefixed", "96{code:*}"),
+                new CodeTemplate("default", "{code:*}"));
+
+        CodeTemplateIndex<CodeTemplate> index = CodeTemplateIndex.of(templates);
+
+        String[] codes = new String[]{
+                "2957783000003", "2417000050002", "2417000050001", "4121234567890", "4321234567890",
+                "97400000001234500012345", "2100000000001", "96123", "96", "9", "", "abc", "0123456789012"
+        };
+
+        for (String code : codes) {
+            List<ScannedCode> expected = new ArrayList<>();
+            for (CodeTemplate template : templates) {
+                ScannedCode scannedCode = template.match(code).buildCode();
+                if (scannedCode != null) {
+                    expected.add(scannedCode);
+                }
+            }
+
+            List<CodeTemplateIndex.Match<CodeTemplate>> actual = index.match(code);
+            Assert.assertEquals(code, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                ScannedCode scannedCode = actual.get(i).getScannedCode();
+                Assert.assertEquals(code, expected.get(i).getTemplateName(), scannedCode.getTemplateName());
+                Assert.assertEquals(code, expected.get(i).getLookupCode(), scannedCode.getLookupCode());
+                Assert.assertEquals(code, expected.get(i).getEmbeddedData(), scannedCode.getEmbeddedData());
+            }
+        }
+
+        Assert.assertEquals("96123", index.match("96123", "default").getLookupCode());
+        Assert.assertNull(index.match("96123", "ean13_instore"));
+    }
+
     private CodeTemplate newCodeTemplate(String pattern) {
         return newCodeTemplate(pattern, true);
     }
@@ -1,10 +1,14 @@
 package io.snabble.sdk
 
+import io.snabble.sdk.codes.gs1.ApplicationIdentifier
+import io.snabble.sdk.codes.gs1.Element
 import io.snabble.sdk.codes.gs1.GS1Code
 import org.junit.Assert
+import org.junit.Ignore
 import org.junit.Test
 import java.math.BigDecimal
 import java.math.RoundingMode
+import kotlin.math.min
 
 class GS1CodeTest {
     companion object {
@@ -381,6 +385,131 @@ class GS1CodeTest {
         Assert.assertEquals(price2?.price, BigDecimal("12"))
     }
 
+    private val corpus = listOf(
+        "",
+        "${GS}${GS}",
+        "asdfghjklöä",
+        "   0100000000000000    ",
+        "10invälid",
+        "010000000000000",
+        "01ABCDEFGHIJKLMN",
+        "01",
+        "0102658960000004310300464610",
+        "${GS}0102658960000004${GS}3103004646${GS}10${GS}",
+        "01026589600000043103004646${GS}${GS}10test${GS}${GS}${GS}${GS}",
+        "0102658960000004${GS}3103004646${GS}10HALLO${GS}3109kkkkkk43217${GS}43210",
+        "]Q30100000000000000${GS}10FOO",
+        "]C1]e00102345678901231310200125039300001234",
+        "]d2010400638133393917250101${GS}10ABC123${GS}21SERIAL",
+        "0104012345678901310200150539229919",
+        "010000000000000_${GS}01123",
+        "80260400638133393901020${GS}3922123",
+        "3302001234${GS}3932978000012${GS}9512345"
+    )
+
+    @Test
+    fun testParserMatchesRegexParser() {
+        corpus.forEach { code ->
+            val expected = RegexParser(code)
+            val actual = GS1Code(code)
+            Assert.assertEquals(code, expected.skipped, actual.skipped)
+            Assert.assertEquals(code, expected.elements.map { it.identifier.prefix to it.values },
+                actual.elements.map { it.identifier.prefix to it.values })
+        }
+    }
+
+    /**
+     * Compares the time of both parsers on the corpus. Not run by default, since it only
+     * prints timings.
+     */
+    @Ignore("benchmark, run manually")
+    @Test
+    fun benchmarkParserAgainstRegexParser() {
+        val iterations = 20000
+        var blackhole = 0L
+        repeat(1000) {
+            corpus.forEach { blackhole += RegexParser(it).elements.size + GS1Code(it).elements.size }
+        }
+
+        val regexStart = System.nanoTime()
+        repeat(iterations) { corpus.forEach { blackhole += RegexParser(it).elements.size } }
+        val regexNanos = System.nanoTime() - regexStart
+
+        val cursorStart = System.nanoTime()
+        repeat(iterations) { corpus.forEach { blackhole += GS1Code(it).elements.size } }
+        val cursorNanos = System.nanoTime() - cursorStart
+
+        val parsedCodes = iterations * corpus.size
+        println("GS1 regex parser: ${regexNanos / parsedCodes} ns/code, " +
+                "cursor parser: ${cursorNanos / parsedCodes} ns/code ($blackhole)")
+    }
+
+    /**
+     * The previous parser, which compiles the regex of every candidate identifier and creates a
+     * substring of the remaining code for every step
+     */
+    private class RegexParser(code: String) {
+        val elements = ArrayList<Element>()
+        val skipped = ArrayList<String>()
+        private var remainingCode = code
+
+        init {
+            listOf("]C1", "]e0", "]d2", "]Q3", "]J1").forEach {
+                remainingCode = remainingCode.removePrefix(it)
+            }
+
+            @Suppress("ControlFlowWithEmptyBody")
+            while (nextElement()) {}
+        }
+
+        private fun nextElement(): Boolean {
+            while (remainingCode.startsWith(GS) && remainingCode.isNotEmpty()) {
+                remainingCode = remainingCode.removePrefix(GS)
+            }
+
+            if (remainingCode.length >= 2) {
+                val prefix = remainingCode.substring(0, 2)
+                val elementLength = ApplicationIdentifier.elementLength(prefix)
+                val elementString = if (elementLength > 0) {
+                    remainingCode.substring(0, min(remainingCode.length, elementLength))
+                } else {
+                    remainingCode.substringBefore(GS)
+                }
+
+                if (elementString.isNotEmpty()) {
+                    ApplicationIdentifier.byPrefix(prefix)?.forEach { ai ->
+                        val remaining = remainingCode.removePrefix(prefix)
+                        if (remaining.startsWith(ai.additionalIdentifier ?: "")) {
+                            remainingCode = if (ai.contentLength > 0) {
+                                remainingCode.substringAfter(elementString, "")
+                            } else {
+                                remainingCode.substringAfter(GS, "")
+                            }
+
+                            val result = Regex(ai.regex).find(elementString)
+                            if (result != null) {
+                                elements.add(Element(ai, result.groupValues.drop(1)))
+                                val leftover = elementString.removeRange(result.range)
+                                if (leftover.isNotEmpty()) {
+                                    remainingCode = leftover
+                                }
+                            } else {
+                                skipped.add(elementString)
+                            }
+                            return true
+                        }
+                    }
+
+                    skipped.add(elementString)
+                    remainingCode = remainingCode.substringAfter(elementString, "")
+                }
+                return true
+            }
+
+            return false
+        }
+    }
+
     private fun check(code: String, data: Map<String, String>? = null, skipped: List<String>? = null) {
         val gs1Code = GS1Code(code)
         var validCount = 0
@@ -0,0 +1,113 @@
+package io.snabble.sdk
+
+import android.util.LruCache
+import org.junit.Assert
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.math.BigDecimal
+import java.text.NumberFormat
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class PriceFormatterTest : SnabbleSdkTest() {
+
+    private val prices: List<Int> by lazy {
+        val random = java.util.Random(42)
+        listOf(0, 1, -1, 99, 100, 1299, -1299, 100000, 123456789, Int.MAX_VALUE, Int.MIN_VALUE) +
+                List(10000) { random.nextInt(2_000_000) - 1_000_000 }
+    }
+
+    @Test
+    fun testSameResultAsNumberFormat() {
+        val formatter = PriceFormatter(project)
+        val legacyFormatter = LegacyPriceFormatter(project)
+
+        prices.forEach { price ->
+            Assert.assertEquals(legacyFormatter.format(price), formatter.format(price))
+        }
+        Assert.assertEquals("", formatter.format(0, false))
+        Assert.assertEquals(
+            "total: " + legacyFormatter.format(1299),
+            formatter.formatTo(StringBuilder("total: "), 1299).toString()
+        )
+    }
+
+    @Test
+    fun testConcurrentFormatting() {
+        val formatter = PriceFormatter(project)
+        val legacyFormatter = LegacyPriceFormatter(project)
+        val expected = prices.map { legacyFormatter.format(it) }
+
+        val executor = Executors.newFixedThreadPool(8)
+        try {
+            val futures = List(8) {
+                executor.submit(Callable { prices.map { formatter.format(it) } })
+            }
+
+            // rethrows exceptions of the formatting threads instead of waiting for them forever
+            futures.forEach { Assert.assertEquals(expected, it.get(30, TimeUnit.SECONDS)) }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Compares both formatters on mostly uncached prices. Not run by default, since it only
+     * prints timings.
+     */
+    @Ignore("benchmark, run manually")
+    @Test
+    fun benchmarkFormatAgainstNumberFormat() {
+        val formatter = PriceFormatter(project)
+        val legacyFormatter = LegacyPriceFormatter(project)
+
+        val iterations = 50
+        var blackhole = 0L
+        repeat(10) {
+            prices.forEach { price ->
+                blackhole += legacyFormatter.format(price).length + formatter.format(price).length
+            }
+        }
+
+        val legacyStart = System.nanoTime()
+        repeat(iterations) { prices.forEach { price -> blackhole += legacyFormatter.format(price).length } }
+        val legacyNanos = System.nanoTime() - legacyStart
+
+        val fixedPointStart = System.nanoTime()
+        repeat(iterations) { prices.forEach { price -> blackhole += formatter.format(price).length } }
+        val fixedPointNanos = System.nanoTime() - fixedPointStart
+
+        val formattedPrices = iterations * prices.size
+        println("PriceFormatter number format: ${legacyNanos / formattedPrices} ns/price, " +
+                "fixed point: ${fixedPointNanos / formattedPrices} ns/price ($blackhole)")
+    }
+
+    /**
+     * The previous formatter, which formats every uncached price with a shared [NumberFormat]
+     */
+    private class LegacyPriceFormatter(private val project: Project) {
+        private val numberFormat: NumberFormat = NumberFormat.getCurrencyInstance(project.currencyLocale)
+        private val cache: LruCache<Int, String> = LruCache(100)
+
+        init {
+            numberFormat.currency = project.currency
+            numberFormat.minimumFractionDigits = project.currencyFractionDigits
+            numberFormat.maximumFractionDigits = project.currencyFractionDigits
+        }
+
+        fun format(price: Int): String {
+            cache[price]?.let { return it }
+
+            val fractionDigits = project.currencyFractionDigits
+            val divider = BigDecimal(10).pow(fractionDigits)
+            val dividedPrice = BigDecimal(price).divide(divider, fractionDigits, project.roundingMode)
+            val formattedPrice = numberFormat.format(dividedPrice)
+            cache.put(price, formattedPrice)
+            return formattedPrice
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io.snabble.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Base64;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+public class ProductDatabaseDownloaderTest extends SnabbleSdkTest {
+    private static final String MIMETYPE_FULL = "application/vnd+snabble.appdb+sqlite3";
+
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+    private final List<MockResponse> responses = new CopyOnWriteArrayList<>();
+    private byte[] fullDb;
+
+    @Before
+    public void setupAppDbEndpoint() throws IOException {
+        fullDb = IOUtils.toByteArray(getInputStream("update_1_25.sqlite3"));
+
+        requestHandler = request -> {
+            if (!request.getPath().contains("appdb")) {
+                return null;
+            }
+
+            requests.add(request);
+            return responses.isEmpty() ? null : responses.remove(0);
+        };
+    }
+
+    @Test
+    public void testResumesInterruptedDownload() throws Exception {
+        responses.add(interrupted("\"v1\""));
+        assertFalse(update());
+
+        long partialLength = downloadFile().length();
+        assertTrue(partialLength > 0 && partialLength < fullDb.length);
+
+        responses.add(partialContent(partialLength, fullDb.length, "\"v1\""));
+        assertTrue(update());
+
+        RecordedRequest resumed = requests.get(1);
+        assertEquals("bytes=" + partialLength + "-", resumed.getHeader("Range"));
+        assertEquals("\"v1\"", resumed.getHeader("If-Range"));
+        assertUpdated();
+        assertFalse(downloadFile().exists());
+    }
+
+    @Test
+    public void testRestartsDownloadOfChangedFile() throws Exception {
+        responses.add(interrupted("\"v1\""));
+        assertFalse(update());
+        assertTrue(downloadFile().exists());
+
+        // the server ignores the range, since the file does not match the If-Range validator anymore
+        responses.add(full("\"v2\"").setBody(new Buffer().write(fullDb)));
+        assertTrue(update());
+
+        assertNotNull(requests.get(1).getHeader("Range"));
+        assertUpdated();
+    }
+
+    @Test
+    public void testUnsatisfiableRangeDiscardsPartialFile() throws Exception {
+        responses.add(interrupted("\"v1\""));
+        assertFalse(update());
+        assertTrue(downloadFile().exists());
+
+        responses.add(new MockResponse().setResponseCode(416));
+        assertFalse(update());
+        assertFalse(downloadFile().exists());
+        assertNotUpdated();
+
+        responses.add(full("\"v1\"").setBody(new Buffer().write(fullDb)));
+        assertTrue(update());
+
+        assertNull(requests.get(2).getHeader("Range"));
+        assertUpdated();
+    }
+
+    @Test
+    public void testRejectsDigestMismatch() throws Exception {
+        byte[] otherDb = Arrays.copyOf(fullDb, fullDb.length);
+        otherDb[0]++;
+
+        responses.add(full("\"v1\"")
+                .addHeader("Digest", "sha-256=" + sha256(otherDb))
+                .setBody(new Buffer().write(fullDb)));
+        assertFalse(update());
+        assertNotUpdated();
+        assertFalse(downloadFile().exists());
+
+        responses.add(full("\"v1\"")
+                .addHeader("Digest", "sha-256=" + sha256(fullDb))
+                .setBody(new Buffer().write(fullDb)));
+        assertTrue(update());
+        assertUpdated();
+    }
+
+    @Test
+    public void testRejectsSizeMismatch() throws Exception {
+        responses.add(interrupted("\"v1\""));
+        assertFalse(update());
+
+        long partialLength = downloadFile().length();
+        responses.add(partialContent(partialLength, fullDb.length + 10, "\"v1\""));
+        assertFalse(update());
+
+        assertNotUpdated();
+        assertFalse(downloadFile().exists());
+    }
+
+    private MockResponse full(String etag) {
+        return new MockResponse()
+                .addHeader("Content-Type", MIMETYPE_FULL)
+                .addHeader("Cache-Control", "no-cache")
+                .addHeader("ETag", etag);
+    }
+
+    private MockResponse interrupted(String etag) {
+        return full(etag)
+                .setBody(new Buffer().write(fullDb))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+    }
+
+    private MockResponse partialContent(long start, long totalLength, String etag) {
+        byte[] rest = Arrays.copyOfRange(fullDb, (int) start, fullDb.length);
+        return full(etag)
+                .setResponseCode(206)
+                .addHeader("Content-Range", "bytes " + start + "-" + (fullDb.length - 1) + "/" + totalLength)
+                .setBody(new Buffer().write(rest));
+    }
+
+    private File downloadFile() {
+        return project.getProductDatabase().getFullUpdateDownloadFile();
+    }
+
+    private void assertUpdated() {
+        ProductDatabase productDatabase = project.getProductDatabase();
+        Product product = productDatabase.findBySku("1337");
+        assertEquals("UPDATE", product.getName());
+        assertNull(productDatabase.findBySku("16"));
+    }
+
+    private void assertNotUpdated() {
+        assertNotNull(project.getProductDatabase().findBySku("16"));
+    }
+
+    private boolean update() throws InterruptedException {
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final boolean[] success = new boolean[]{false};
+        project.getProductDatabase().update(new ProductDatabase.UpdateCallback() {
+            @Override
+            public void success() {
+                success[0] = true;
+                countDownLatch.countDown();
+            }
+
+            @Override
+            public void error() {
+                countDownLatch.countDown();
+            }
+        });
+
+        assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        return success[0];
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        return Base64.encodeToString(digest, Base64.NO_WRAP);
+    }
+}
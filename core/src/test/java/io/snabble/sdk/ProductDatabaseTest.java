@@ -2,6 +2,7 @@ package io.snabble.sdk;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -22,10 +23,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import io.snabble.sdk.codes.ScannedCode;
 
@@ -75,6 +80,29 @@ public class ProductDatabaseTest extends SnabbleSdkTest {
         cursor.close();
     }
 
+    @Test
+    public void testBatchedSearchMatchesProductAtCursor() {
+        ProductDatabase productDatabase = project.getProductDatabase();
+        Cursor cursor = productDatabase.searchByCode("4", null);
+        List<Product> expected = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            expected.add(productDatabase.productAtCursor(cursor));
+        }
+
+        List<Product> fromCursor = productDatabase.productsAtCursor(cursor, 0, cursor.getCount());
+        cursor.close();
+
+        List<Product> batched = productDatabase.searchProductsByCode("4", null);
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), fromCursor.size());
+        assertEquals(expected.size(), batched.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), fromCursor.get(i).toString());
+            assertEquals(expected.get(i).toString(), batched.get(i).toString());
+        }
+    }
+
     @Test
     public void testFindByCode() {
         ProductDatabase productDatabase = project.getProductDatabase();
@@ -219,6 +247,23 @@ public class ProductDatabaseTest extends SnabbleSdkTest {
         assertEquals(59, product.getDiscountedPrice());
     }
 
+    @Test
+    public void testProductCacheIsInvalidatedByUpdates() throws IOException {
+        ProductDatabase productDatabase = project.getProductDatabase();
+        ProductCache productCache = productDatabase.getProductCache();
+
+        Product product = productDatabase.findBySku("1");
+        long hits = productCache.getHitCount();
+        assertTrue(product == productDatabase.findBySku("1"));
+        assertEquals(hits + 1, productCache.getHitCount());
+
+        String changeSet = "UPDATE prices SET discountedPrice=59 WHERE sku=1;";
+        productDatabase.applyDeltaUpdate(new ByteArrayInputStream(changeSet.getBytes()));
+
+        product = productDatabase.findBySku("1");
+        assertEquals(59, product.getDiscountedPrice());
+    }
+
     @Test
     public void testApplyChangeSetWithNewLineAtEnd() throws IOException {
         ProductDatabase productDatabase = project.getProductDatabase();
@@ -235,6 +280,90 @@ public class ProductDatabaseTest extends SnabbleSdkTest {
         assertEquals(59, product.getDiscountedPrice());
     }
 
+    @Test
+    public void testApplyChangeSetWithEmptyAndCommentStatements() throws IOException {
+        ProductDatabase productDatabase = project.getProductDatabase();
+        String changeSet = "-- changes of revision 2;\n\n" +
+                "UPDATE prices SET discountedPrice=59 WHERE sku=1;\n\n" +
+                "  ;\n\n" +
+                "/* removed products */;\n\n" +
+                "DELETE FROM prices WHERE sku=3;";
+
+        productDatabase.applyDeltaUpdate(new ByteArrayInputStream(changeSet.getBytes()));
+
+        Product product = productDatabase.findBySku("1");
+        assertEquals(59, product.getDiscountedPrice());
+    }
+
+    @Test
+    public void testApplyChangeSetWithRepeatedStatementShapes() throws IOException {
+        ProductDatabase productDatabase = project.getProductDatabase();
+        String changeSet = "UPDATE products SET name='It''s; \"quoted\"' WHERE sku='1';\n\n" +
+                "UPDATE products SET name='Second' WHERE sku='2';\n\n" +
+                "UPDATE prices SET listPrice=1.5e2 WHERE sku=1;\n\n" +
+                "UPDATE prices SET listPrice=42 WHERE sku=2;";
+
+        productDatabase.applyDeltaUpdate(new ByteArrayInputStream(changeSet.getBytes()));
+
+        Product product = productDatabase.findBySku("1");
+        assertEquals("It's; \"quoted\"", product.getName());
+        assertEquals(150, product.getListPrice());
+
+        product = productDatabase.findBySku("2");
+        assertEquals("Second", product.getName());
+        assertEquals(42, product.getListPrice());
+    }
+
+    @Test
+    public void testReadsDuringDeltaUpdate() throws Exception {
+        final ProductDatabase productDatabase = project.getProductDatabase();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+
+        // stops in the middle of the stream, after sku 3 is already deleted in the transaction
+        InputStream head = new ByteArrayInputStream(("DELETE FROM prices WHERE sku=3;\n\n" +
+                "DELETE FROM products WHERE sku=3;\n\n").getBytes());
+        InputStream tail = new InputStream() {
+            private final InputStream rest = new ByteArrayInputStream(
+                    "UPDATE prices SET discountedPrice=59 WHERE sku=1;".getBytes());
+
+            @Override
+            public int read() throws IOException {
+                started.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return rest.read();
+            }
+        };
+
+        final Throwable[] error = new Throwable[1];
+        Thread updater = new Thread(() -> {
+            try {
+                productDatabase.applyDeltaUpdate(new SequenceInputStream(head, tail));
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        updater.start();
+
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // not blocked by the open transaction, and not seeing its changes yet
+            assertNotNull(productDatabase.findBySku("3"));
+        } finally {
+            resume.countDown();
+        }
+
+        updater.join(10000);
+        assertNull(error[0]);
+        assertNull(productDatabase.findBySku("3"));
+        assertEquals(59, productDatabase.findBySku("1").getDiscountedPrice());
+    }
+
     @Test
     public void testApplyChangeSetInvalidDoesNotModifyDb() {
         ProductDatabase productDatabase = project.getProductDatabase();
@@ -1,15 +1,34 @@
 package io.snabble.sdk;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
 
+import java.io.File;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.snabble.sdk.checkout.LineItem;
+import io.snabble.sdk.checkout.LineItemType;
 import io.snabble.sdk.codes.ScannedCode;
 import io.snabble.sdk.shoppingcart.ShoppingCart;
+import io.snabble.sdk.shoppingcart.ShoppingCartData;
+import io.snabble.sdk.shoppingcart.ShoppingCartJournal;
 import io.snabble.sdk.shoppingcart.data.cart.BackendCart;
+import io.snabble.sdk.shoppingcart.data.item.ItemType;
+import io.snabble.sdk.utils.Dispatch;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
 
 public class ShoppingCartTest extends SnabbleSdkTest {
     private ShoppingCart cart;
@@ -271,6 +290,243 @@ public class ShoppingCartTest extends SnabbleSdkTest {
         Assert.assertEquals(backendCart.items.get(cart.size() - 5).weightUnit, Unit.PIECE.getId());
     }
 
+    @Test
+    public void testJournalRestoresIncrementalChanges() throws Exception {
+        File file = new File(context.getFilesDir(), "cart/test/shoppingCart.json");
+        ShoppingCartJournal journal = new ShoppingCartJournal(file);
+        Assert.assertNull(journal.load());
+
+        add(simpleProduct1);
+        add(preWeighedProduct);
+        add(simpleProduct2);
+        journal.save(cart.getData());
+
+        cart.get(2).setQuantity(3);
+        cart.remove(1);
+        journal.save(cart.getData());
+        Dispatch.io(() -> {}).get();
+
+        Assert.assertFalse(file.exists());
+        Assert.assertTrue(new File(file.getParentFile(), "shoppingCart.journal").exists());
+
+        ShoppingCartData restored = new ShoppingCartJournal(file).load();
+        Assert.assertNotNull(restored);
+        Assert.assertEquals(cart.getData().getUuid(), restored.getUuid());
+        Assert.assertEquals(cart.size(), restored.getItems().size());
+        for (int i = 0; i < cart.size(); i++) {
+            Assert.assertEquals(cart.get(i).getId(), restored.getItems().get(i).getId());
+            Assert.assertEquals(cart.get(i).getQuantity(), restored.getItems().get(i).getQuantity());
+        }
+    }
+
+    @Test
+    public void testEditDuringPriceUpdateSupersedesIt() throws InterruptedException {
+        final AtomicInteger checkoutInfoRequests = new AtomicInteger();
+        final CountDownLatch releaseFirstResponse = new CountDownLatch(1);
+        requestHandler = request -> {
+            if (!request.getPath().contains("/checkout/info")) {
+                return null;
+            }
+
+            if (checkoutInfoRequests.incrementAndGet() == 1) {
+                try {
+                    releaseFirstResponse.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                return checkoutInfo(request, 11111);
+            }
+            return checkoutInfo(request, 22222);
+        };
+
+        try {
+            add(simpleProduct1);
+            ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+            awaitCondition(() -> checkoutInfoRequests.get() == 1);
+
+            // changes the cart while the prices of the first edit are requested
+            cart.get(0).updateQuantity(2);
+        } finally {
+            releaseFirstResponse.countDown();
+        }
+
+        // the first request was cancelled, its result is not applied while the next one is pending
+        awaitCondition(() -> false, 500);
+        Assert.assertFalse(cart.isOnlinePrice());
+        Assert.assertNotEquals(11111, cart.getTotalPrice());
+
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+        awaitCondition(cart::isOnlinePrice);
+        Assert.assertEquals(2, checkoutInfoRequests.get());
+        Assert.assertEquals(22222, cart.getTotalPrice());
+    }
+
+    private static MockResponse checkoutInfo(RecordedRequest request, int price) {
+        JsonObject backendCart = JsonParser.parseString(request.getBody().readUtf8()).getAsJsonObject();
+        JsonArray lineItems = new JsonArray();
+        for (JsonElement element : backendCart.getAsJsonArray("items")) {
+            JsonObject item = element.getAsJsonObject();
+            JsonObject lineItem = new JsonObject();
+            lineItem.addProperty("id", item.get("id").getAsString());
+            lineItem.addProperty("sku", item.get("sku").getAsString());
+            lineItem.addProperty("amount", item.get("amount").getAsInt());
+            lineItem.addProperty("price", price);
+            lineItem.addProperty("totalPrice", price);
+            lineItem.addProperty("type", "default");
+            lineItems.add(lineItem);
+        }
+
+        JsonObject totalPrice = new JsonObject();
+        totalPrice.addProperty("price", price);
+        totalPrice.addProperty("netPrice", price);
+
+        JsonObject checkoutInfo = new JsonObject();
+        checkoutInfo.add("price", totalPrice);
+        checkoutInfo.add("lineItems", lineItems);
+
+        JsonObject signedCheckoutInfo = new JsonObject();
+        signedCheckoutInfo.add("checkoutInfo", checkoutInfo);
+        signedCheckoutInfo.addProperty("signature", "");
+
+        return new MockResponse()
+                .addHeader("Content-Type", "application/json")
+                .setBody(signedCheckoutInfo.toString());
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void awaitCondition(Condition condition) throws InterruptedException {
+        if (!awaitCondition(condition, 10000)) {
+            Assert.fail("condition not met in time");
+        }
+    }
+
+    // runs the tasks posted to the main thread, e.g. the results of requests, while waiting
+    private static boolean awaitCondition(Condition condition, long timeoutMs) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < timeout) {
+            ShadowLooper.idleMainLooper();
+            if (condition.isMet()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @Test
+    public void testTotalsMatchItemsUnderRapidQuantityEdits() {
+        fillCart(300);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            editRandomItem(random, i);
+
+            int[] expected = sumItems();
+            Assert.assertEquals(expected[0], cart.getTotalPrice());
+            Assert.assertEquals(expected[1], cart.getTotalDepositPrice());
+            Assert.assertEquals(expected[2], cart.getTotalQuantity());
+        }
+
+        for (ShoppingCart.Item item : cart) {
+            Assert.assertSame(item, cart.getByItemId(item.getId()));
+        }
+    }
+
+    /**
+     * Compares reading the running totals of a 300 item cart under rapid quantity edits with
+     * summing up all items after every edit. Not run by default, since it only prints timings.
+     */
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkTotalsUnderRapidQuantityEdits() {
+        fillCart(300);
+
+        Random random = new Random(42);
+        int warmup = 20000;
+        int edits = 50000;
+        long runningNanos = 0;
+        long summedNanos = 0;
+        long blackhole = 0;
+
+        for (int i = 0; i < warmup + edits; i++) {
+            editRandomItem(random, i);
+
+            long start = System.nanoTime();
+            blackhole += cart.getTotalPrice() + cart.getTotalDepositPrice() + cart.getTotalQuantity();
+            long running = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int[] summed = sumItems();
+            blackhole += summed[0] + summed[1] + summed[2];
+            long sum = System.nanoTime() - start;
+
+            if (i >= warmup) {
+                runningNanos += running;
+                summedNanos += sum;
+            }
+        }
+
+        System.out.println("Cart totals of " + cart.size() + " items: " +
+                "running: " + runningNanos / edits + " ns/edit, " +
+                "summed up: " + summedNanos / edits + " ns/edit (" + blackhole + ")");
+    }
+
+    private void fillCart(int size) {
+        add(simpleProduct1);
+        add(simpleProduct2);
+        add(simpleProduct3);
+        TestProduct[] products = {zeroAmountProduct, pieceProduct, preWeighedProduct};
+        for (int i = 0; cart.size() < size - 10; i++) {
+            add(products[i % products.length]);
+        }
+        for (int i = 0; i < 10; i++) {
+            cart.insert(cart.newItem(createTestLineItem(100, 100 * i, i)), cart.size(), false);
+        }
+    }
+
+    private void editRandomItem(Random random, int edit) {
+        ShoppingCart.Item item = cart.get(random.nextInt(cart.size()));
+        int quantity = 1 + random.nextInt(20);
+        if (edit % 5 == 0) {
+            item.setLineItem(createTestLineItem(100, 100 * quantity, quantity));
+        } else {
+            item.updateQuantity(quantity);
+        }
+    }
+
+    /**
+     * The totals of the cart, calculated from all items like before the cart kept running totals
+     */
+    private int[] sumItems() {
+        int price = 0;
+        int deposit = 0;
+        int lineItemDeposit = 0;
+        int quantity = 0;
+        for (ShoppingCart.Item item : cart) {
+            price += item.getTotalPrice();
+            if (item.getType() == ItemType.LINE_ITEM) {
+                lineItemDeposit += item.getTotalDepositPrice();
+                if (item.getLineItem() != null && item.getLineItem().getType() == LineItemType.DEFAULT) {
+                    quantity += item.getLineItem().getAmount();
+                }
+            } else {
+                deposit += item.getTotalDepositPrice();
+                if (item.getType() == ItemType.PRODUCT) {
+                    Product product = item.getProduct();
+                    if (product.getType() == Product.Type.PreWeighed || product.getReferenceUnit() == Unit.PIECE) {
+                        quantity += 1;
+                    } else {
+                        quantity += item.getQuantity();
+                    }
+                }
+            }
+        }
+        deposit = Math.max(deposit, lineItemDeposit);
+        return new int[]{price + deposit, deposit, quantity};
+    }
+
     public void assertStrEquals(String a, String b) {
         Assert.assertEquals(replaceNoBreakSpace(a), replaceNoBreakSpace(b));
     }
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.os.StrictMode;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
 import androidx.test.platform.app.InstrumentationRegistry;
 
@@ -53,6 +54,16 @@ public class SnabbleSdkTest {
 
     protected static Buffer productDbBuffer;
 
+    /**
+     * Answers the requests to the mock web server before the default responses, if it returns a response
+     */
+    public interface RequestHandler {
+        @Nullable
+        MockResponse handle(RecordedRequest request);
+    }
+
+    protected static volatile RequestHandler requestHandler;
+
     protected static Buffer loadBuffer(String name) throws IOException {
         final Buffer buffer = new Buffer();
         try(InputStream stream = buffer.getClass().getClassLoader().getResourceAsStream(name)) {
@@ -82,6 +93,14 @@ public class SnabbleSdkTest {
         final Dispatcher dispatcher = new Dispatcher() {
             @Override
             public MockResponse dispatch(RecordedRequest request) {
+                RequestHandler handler = requestHandler;
+                if (handler != null) {
+                    MockResponse response = handler.handle(request);
+                    if (response != null) {
+                        return response;
+                    }
+                }
+
                 if (request.getPath().contains("/metadata/app")) {
                     return new MockResponse()
                             .addHeader("Content-Type", "application/json; charset=utf-8")
@@ -219,6 +238,7 @@ public class SnabbleSdkTest {
 
     @After
     public void teardownSdk() {
+        requestHandler = null;
         FileUtils.deleteQuietly(context.getFilesDir());
         FileUtils.deleteQuietly(new File(context.getFilesDir().getParentFile(), "/databases/"));
     }
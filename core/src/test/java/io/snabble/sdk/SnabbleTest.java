@@ -0,0 +1,22 @@
+package io.snabble.sdk;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class SnabbleTest extends SnabbleSdkTest {
+    @Test
+    public void testSetupAgainReadsMetadata() throws IOException, Snabble.SnabbleException {
+        Assert.assertFalse(Snabble.getInstance().getProjects().isEmpty());
+
+        withDb("test_1_25.sqlite3");
+        Assert.assertFalse(Snabble.getInstance().getProjects().isEmpty());
+
+        withDb("test_1_25.sqlite3");
+        Assert.assertFalse(Snabble.getInstance().getProjects().isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+package io.snabble.sdk.auth
+
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import io.snabble.sdk.Project
+import io.snabble.sdk.Snabble
+import io.snabble.sdk.SnabbleSdkTest
+import io.snabble.sdk.utils.GsonHolder
+import okhttp3.mockwebserver.MockResponse
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class TokenRegistryTest : SnabbleSdkTest() {
+    private val tokenRequests = ConcurrentHashMap<String, AtomicInteger>()
+
+    @Volatile
+    private var blockedProjectId: String? = null
+    private val unblock = CountDownLatch(1)
+
+    @Volatile
+    private var tokenResponseCode = 200
+
+    // seconds relative to the time of the request
+    @Volatile
+    private var issuedAt = 0L
+
+    @Volatile
+    private var expiresAt = TimeUnit.HOURS.toSeconds(1)
+
+    private val registry: TokenRegistry
+        get() = Snabble.tokenRegistry
+
+    @Before
+    fun setupTokenEndpoint() {
+        // the app user is shared by all projects, it is created before the tokens are requested
+        Assert.assertNotNull(registry.getToken(project))
+
+        SnabbleSdkTest.requestHandler = SnabbleSdkTest.RequestHandler { request ->
+            val path = request.path ?: ""
+            if (!path.contains("/tokens")) {
+                return@RequestHandler null
+            }
+
+            val projectId = path.substringAfter('/').substringBefore('/')
+            tokenRequests.getOrPut(projectId) { AtomicInteger() }.incrementAndGet()
+            if (projectId == blockedProjectId) {
+                unblock.await(10, TimeUnit.SECONDS)
+            }
+
+            val now = System.currentTimeMillis() / 1000
+            MockResponse()
+                .setResponseCode(tokenResponseCode)
+                .addHeader("Content-Type", "application/json")
+                .setBody(GsonHolder.get().toJson(Token("", "", now + issuedAt, now + expiresAt)))
+        }
+
+        registry.invalidate()
+    }
+
+    @Test
+    fun testConcurrentCallsShareOneRequest() {
+        blockedProjectId = project.id
+
+        val executor = Executors.newFixedThreadPool(8)
+        try {
+            val futures = List(8) {
+                executor.submit(Callable { registry.getToken(project) })
+            }
+            await { requestCount(project.id) == 1 }
+
+            // the token request of the other project does not wait for the blocked one
+            val otherProject = createOtherProject()
+            Assert.assertNotNull(registry.getToken(otherProject))
+            Assert.assertEquals(1, requestCount(otherProject.id))
+
+            unblock.countDown()
+            val tokens = futures.map { it.get(10, TimeUnit.SECONDS) }
+            Assert.assertNotNull(tokens[0])
+            tokens.forEach { Assert.assertSame(tokens[0], it) }
+            Assert.assertEquals(1, requestCount(project.id))
+        } finally {
+            unblock.countDown()
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testFailedRenewalBacksOff() {
+        // past half of its lifetime, but not about to expire
+        issuedAt = -TimeUnit.MINUTES.toSeconds(50)
+        expiresAt = TimeUnit.MINUTES.toSeconds(10)
+        val token = registry.getToken(project)
+        Assert.assertNotNull(token)
+        Assert.assertEquals(1, requestCount(project.id))
+
+        tokenResponseCode = 500
+        Assert.assertSame(token, registry.getToken(project))
+
+        // the failed request is repeated once with the server time
+        await { requestCount(project.id) == 3 }
+
+        repeat(20) {
+            Assert.assertSame(token, registry.getToken(project))
+        }
+        Thread.sleep(500)
+        Assert.assertEquals(3, requestCount(project.id))
+    }
+
+    private fun requestCount(projectId: String) = tokenRequests[projectId]?.get() ?: 0
+
+    private fun createOtherProject(): Project {
+        val metadata = JsonParser.parseString(
+            SnabbleSdkTest.loadBuffer("metadata.json").readString(StandardCharsets.UTF_8)
+        ).asJsonObject
+        val json = metadata["projects"].asJsonArray[0].asJsonObject.deepCopy()
+        json.addProperty("id", "other")
+
+        val links = JsonObject()
+        json["links"].asJsonObject.entrySet().forEach { (name, link) ->
+            val href = link.asJsonObject["href"].asString.replaceFirst("/test/", "/other/")
+            links.add(name, JsonObject().apply { addProperty("href", href) })
+        }
+        json.add("links", links)
+
+        return Project(jsonObject = json)
+    }
+
+    private fun await(condition: () -> Boolean) {
+        val timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10)
+        while (!condition()) {
+            Assert.assertTrue("condition not met in time", System.currentTimeMillis() < timeout)
+            Thread.sleep(20)
+        }
+    }
+}
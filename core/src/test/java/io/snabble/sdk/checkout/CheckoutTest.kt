@@ -4,11 +4,16 @@ import io.snabble.sdk.*
 import io.snabble.sdk.codes.ScannedCode
 import io.snabble.sdk.payment.PaymentCredentials
 import io.snabble.sdk.shoppingcart.ShoppingCart
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.RecordedRequest
 import org.junit.Assert
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 @RunWith(RobolectricTestRunner::class)
 class CheckoutTest : SnabbleSdkTest() {
@@ -262,4 +267,93 @@ class CheckoutTest : SnabbleSdkTest() {
         val newCheckout = Checkout(project, project.shoppingCart, mockApi)
         Assert.assertEquals(CheckoutState.WAIT_FOR_APPROVAL, newCheckout.state.getOrAwaitValue())
     }
+
+    @Test
+    fun testPollingBacksOffWhileStateIsUnchanged() {
+        val transport = PollingCheckoutStatusTransport(mockApi, minDelayMs = 500, maxDelayMs = 2000)
+        val process = CheckoutProcessResponse(paymentState = CheckState.PENDING)
+        val result = object : PaymentProcessResult {
+            override fun onSuccess(checkoutProcessResponse: CheckoutProcessResponse?, rawResponse: String?) {}
+            override fun onError() {}
+            override fun onNotFound() {}
+        }
+
+        transport.requestStatus(process, result)
+        Assert.assertEquals(500, transport.nextRequestDelayMs())
+        transport.requestStatus(process, result)
+        Assert.assertEquals(750, transport.nextRequestDelayMs())
+        repeat(10) { transport.requestStatus(process, result) }
+        Assert.assertEquals(2000, transport.nextRequestDelayMs())
+
+        mockApi.modifyMockResponse(CheckoutProcessResponse(paymentState = CheckState.PROCESSING))
+        transport.requestStatus(process, result)
+        Assert.assertEquals(500, transport.nextRequestDelayMs())
+    }
+
+    @Test
+    fun testUnchangedProcessIsNotParsedAgain() {
+        val previousDispatcher = mockWebServer.dispatcher
+        var requestCount = 0
+        var lastIfNoneMatch: String? = null
+        mockWebServer.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                if (request.path?.contains("/test/checkout/process") != true) {
+                    return previousDispatcher.dispatch(request)
+                }
+
+                requestCount++
+                lastIfNoneMatch = request.getHeader("If-None-Match")
+                return if (lastIfNoneMatch == "\"1\"") {
+                    MockResponse().setResponseCode(304)
+                } else {
+                    MockResponse()
+                        .addHeader("Content-Type", "application/json")
+                        .addHeader("ETag", "\"1\"")
+                        .setBody("{\"paymentState\":\"pending\"}")
+                }
+            }
+        }
+
+        try {
+            val api = DefaultCheckoutApi(project, project.shoppingCart)
+            val process = CheckoutProcessResponse(
+                links = mapOf("self" to Href("/test/checkout/process/1"))
+            )
+
+            val first = awaitPaymentProcess(api, process)
+            Assert.assertEquals(CheckState.PENDING, first?.paymentState)
+            Assert.assertNull(lastIfNoneMatch)
+
+            val second = awaitPaymentProcess(api, process)
+            Assert.assertEquals("\"1\"", lastIfNoneMatch)
+            Assert.assertSame(first, second)
+            Assert.assertEquals(2, requestCount)
+        } finally {
+            mockWebServer.dispatcher = previousDispatcher
+        }
+    }
+
+    private fun awaitPaymentProcess(
+        api: CheckoutApi,
+        process: CheckoutProcessResponse
+    ): CheckoutProcessResponse? {
+        val latch = CountDownLatch(1)
+        var response: CheckoutProcessResponse? = null
+        api.updatePaymentProcess(process, object : PaymentProcessResult {
+            override fun onSuccess(checkoutProcessResponse: CheckoutProcessResponse?, rawResponse: String?) {
+                response = checkoutProcessResponse
+                latch.countDown()
+            }
+
+            override fun onError() {
+                latch.countDown()
+            }
+
+            override fun onNotFound() {
+                latch.countDown()
+            }
+        })
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS))
+        return response
+    }
 }
@@ -0,0 +1,145 @@
+package io.snabble.sdk.events
+
+import io.snabble.sdk.SnabbleSdkTest
+import io.snabble.sdk.utils.Dispatch
+import okhttp3.mockwebserver.MockResponse
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class EventQueueTest : SnabbleSdkTest() {
+    private val eventRequests = AtomicInteger()
+
+    @Volatile
+    private var eventsResponseCode = 200
+
+    private val queueFile: File
+        get() = File(project.internalStorageDirectory, "events.queue")
+
+    @Before
+    fun setupEventsEndpoint() {
+        SnabbleSdkTest.requestHandler = SnabbleSdkTest.RequestHandler { request ->
+            if (request.path?.contains("/events") == true) {
+                eventRequests.incrementAndGet()
+                MockResponse().setResponseCode(eventsResponseCode)
+            } else {
+                null
+            }
+        }
+    }
+
+    @Test
+    fun testPostsQueuedEvents() {
+        val queue = EventQueue.of(project)
+        repeat(3) { queue.add(event(it)) }
+        queue.flush()
+
+        await { queue.queueDepth == 0 }
+        Assert.assertEquals(3, eventRequests.get())
+        Assert.assertEquals(0, queue.droppedEventCount)
+        Assert.assertFalse(queueFile.exists())
+    }
+
+    @Test
+    fun testKeepsEventsOnDiskAndRetriesWithBackoff() {
+        eventsResponseCode = 503
+
+        val queue = EventQueue.of(project)
+        repeat(2) { queue.add(event(it)) }
+        queue.flush()
+
+        await { eventRequests.get() >= 1 }
+        awaitIo()
+        Assert.assertEquals(2, queue.queueDepth)
+        Assert.assertEquals(2, queueFile.readLines().size)
+
+        // posted by the retry after the backoff, without flushing again
+        eventsResponseCode = 200
+        await { queue.queueDepth == 0 }
+        Assert.assertEquals(0, queue.droppedEventCount)
+        Assert.assertFalse(queueFile.exists())
+    }
+
+    @Test
+    fun testDropsRejectedEvents() {
+        eventsResponseCode = 400
+
+        val queue = EventQueue.of(project)
+        repeat(2) { queue.add(event(it)) }
+        queue.flush()
+
+        await { queue.queueDepth == 0 }
+        Assert.assertEquals(2, eventRequests.get())
+        Assert.assertEquals(2, queue.droppedEventCount)
+    }
+
+    @Test
+    fun testDropsEventsWhenFull() {
+        eventsResponseCode = 503
+
+        val queue = EventQueue.of(project)
+        repeat(EventQueue.MAX_QUEUE_SIZE + 5) { queue.add(event(it)) }
+
+        awaitIo()
+        Assert.assertEquals(EventQueue.MAX_QUEUE_SIZE, queue.queueDepth)
+        Assert.assertEquals(5, queue.droppedEventCount)
+        Assert.assertEquals(EventQueue.MAX_QUEUE_SIZE, queueFile.readLines().size)
+    }
+
+    @Test
+    fun testDoesNotRetryEventsWithFailureListener() {
+        eventsResponseCode = 503
+
+        val latch = CountDownLatch(1)
+        val queue = EventQueue.of(project)
+        queue.add(event(0), Runnable { latch.countDown() })
+        queue.flush()
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS))
+        await { queue.queueDepth == 0 }
+        Assert.assertEquals(1, eventRequests.get())
+    }
+
+    @Test
+    fun testSetupAgainReplacesQueue() {
+        eventsResponseCode = 503
+
+        val oldQueue = EventQueue.of(project)
+        oldQueue.add(event(0))
+        oldQueue.flush()
+        await { eventRequests.get() >= 1 }
+        awaitIo()
+
+        withDb("test_1_25.sqlite3")
+
+        val queue = EventQueue.of(project)
+        Assert.assertNotSame(oldQueue, queue)
+
+        // the event spooled by the old queue is posted by the queue of the new project
+        eventsResponseCode = 200
+        queue.flush()
+        await { queue.queueDepth == 0 && eventRequests.get() >= 2 }
+        Assert.assertFalse(queueFile.exists())
+    }
+
+    private fun event(index: Int) = "{\"type\":\"log\",\"payload\":{\"message\":\"event $index\"}}"
+
+    private fun awaitIo() {
+        Dispatch.io {}.get(10, TimeUnit.SECONDS)
+    }
+
+    private fun await(condition: () -> Boolean) {
+        val timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10)
+        while (!condition()) {
+            Assert.assertTrue("condition not met in time", System.currentTimeMillis() < timeout)
+            Thread.sleep(20)
+        }
+    }
+}
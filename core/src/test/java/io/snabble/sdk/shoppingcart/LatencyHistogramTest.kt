@@ -0,0 +1,71 @@
+package io.snabble.sdk.shoppingcart
+
+import org.junit.Assert
+import org.junit.Test
+
+class LatencyHistogramTest {
+
+    @Test
+    fun testEmptyHistogram() {
+        val histogram = LatencyHistogram("test")
+        Assert.assertEquals(0L, histogram.count)
+        Assert.assertEquals(0L, histogram.percentile(0.5))
+    }
+
+    @Test
+    fun testBucketBoundsAreInclusive() {
+        val histogram = LatencyHistogram("test")
+        repeat(9) { histogram.record(25) }
+        histogram.record(26)
+
+        // 25 is the upper bound of the first bucket, 26 falls into the next one
+        Assert.assertEquals(25L, histogram.percentile(0.5))
+        Assert.assertEquals(25L, histogram.percentile(0.9))
+        Assert.assertEquals(26L, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun testPercentileIsTheUpperBoundOfItsBucket() {
+        val histogram = LatencyHistogram("test")
+        histogram.record(60)
+        histogram.record(150)
+        histogram.record(500)
+
+        Assert.assertEquals(100L, histogram.percentile(0.34))
+        Assert.assertEquals(200L, histogram.percentile(0.67))
+        // the last used bucket is capped by the largest latency
+        Assert.assertEquals(500L, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun testPercentileDoesNotExceedTheLargestLatency() {
+        val histogram = LatencyHistogram("test")
+        histogram.record(3)
+        histogram.record(7)
+
+        Assert.assertEquals(7L, histogram.percentile(0.5))
+        Assert.assertEquals(7L, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun testLatenciesAboveTheLastBound() {
+        val histogram = LatencyHistogram("test")
+        histogram.record(12800)
+        histogram.record(12801)
+        histogram.record(40000)
+
+        Assert.assertEquals(12800L, histogram.percentile(0.34))
+        Assert.assertEquals(40000L, histogram.percentile(0.67))
+        Assert.assertEquals(40000L, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun testFractionsAreClamped() {
+        val histogram = LatencyHistogram("test")
+        histogram.record(10)
+        histogram.record(500)
+
+        Assert.assertEquals(25L, histogram.percentile(0.0))
+        Assert.assertEquals(500L, histogram.percentile(2.0))
+    }
+}
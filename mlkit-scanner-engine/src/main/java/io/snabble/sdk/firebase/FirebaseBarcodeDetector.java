@@ -17,13 +17,13 @@ import java.util.List;
 
 import io.snabble.sdk.BarcodeFormat;
 import io.snabble.sdk.ui.scanner.BarcodeDetector;
-import io.snabble.sdk.ui.scanner.FalsePositiveFilter;
+import io.snabble.sdk.ui.scanner.BarcodeConsensusFilter;
 import io.snabble.sdk.utils.Logger;
 
 @KeepName
 public class FirebaseBarcodeDetector implements BarcodeDetector {
     private byte[] cropBuffer = null;
-    private final FalsePositiveFilter falsePositiveFilter = new FalsePositiveFilter(3);
+    private final BarcodeConsensusFilter consensusFilter = new BarcodeConsensusFilter(3);
     private BarcodeScanner detector;
 
     public FirebaseBarcodeDetector() {
@@ -58,7 +58,7 @@ public class FirebaseBarcodeDetector implements BarcodeDetector {
 
     @Override
     public void reset() {
-        falsePositiveFilter.reset();
+        consensusFilter.reset();
     }
 
     @Override
@@ -115,7 +115,7 @@ public class FirebaseBarcodeDetector implements BarcodeDetector {
 
                 io.snabble.sdk.ui.scanner.Barcode barcode = new io.snabble.sdk.ui.scanner.Barcode(format, rawValue, System.currentTimeMillis());
 
-                io.snabble.sdk.ui.scanner.Barcode filtered = falsePositiveFilter.filter(barcode);
+                io.snabble.sdk.ui.scanner.Barcode filtered = consensusFilter.filter(barcode);
                 if (filtered != null) {
                     Logger.d("Detected barcode: " + barcode.toString());
                     return filtered;
@@ -21,6 +21,7 @@ internal class ExpandableShopListAdapter : ListAdapter<Item, RecyclerView.ViewHo
 
     private var items = emptyList<Item>()
     private var lastKnownLocation: Location? = null
+    private var sortedAtLocation: Location? = null
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int) = when (viewType) {
         TYPE_SECTION -> ShopSectionViewHolder(ProjectListView(parent.context))
@@ -56,12 +57,21 @@ internal class ExpandableShopListAdapter : ListAdapter<Item, RecyclerView.ViewHo
 
     fun updateModel(model: List<Item>) {
         items = model
+        sortedAtLocation = null
         updateDistances(lastKnownLocation)
     }
 
     fun updateDistances(location: Location?) {
         lastKnownLocation = location
-        if (location != null) {
+
+        // small location changes are not worth calculating and sorting the distance to every shop again
+        val sortedAt = sortedAtLocation
+        val hasMoved = sortedAt == null || location == null ||
+            sortedAt.distanceTo(location) >= MIN_DISTANCE_CHANGE_METERS
+
+        if (location != null && hasMoved) {
+            sortedAtLocation = location
+
             // update distances on each shop
             items.forEach {
                 if (it.type.isShop) {
@@ -137,6 +147,7 @@ internal class ExpandableShopListAdapter : ListAdapter<Item, RecyclerView.ViewHo
 
         private const val TYPE_SECTION = 0
         private const val TYPE_SHOP = 1
+        private const val MIN_DISTANCE_CHANGE_METERS = 10f
     }
 
     private class ShopSectionViewHolder(itemView: ProjectListView) :
@@ -4,6 +4,7 @@ import android.content.res.Resources
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.graphics.Color
+import android.view.ViewGroup
 import android.widget.ImageView
 import androidx.annotation.DrawableRes
 import io.snabble.sdk.Assets
@@ -32,7 +33,11 @@ object AssetHelper {
     ) {
         val randomUUID = UUID.randomUUID().toString()
         imageView.setTag(R.id.asset_load_id, randomUUID)
-        assets.get(name, type, async) { bitmap: Bitmap? ->
+        // wrapping views and views that are not laid out yet get the asset in its original size
+        val layoutParams = imageView.layoutParams
+        val width = if (layoutParams?.width == ViewGroup.LayoutParams.WRAP_CONTENT) 0 else imageView.width
+        val height = if (layoutParams?.height == ViewGroup.LayoutParams.WRAP_CONTENT) 0 else imageView.height
+        assets.get(name, type, width, height, async) { bitmap: Bitmap? ->
             if (bitmap == null && defaultImageResource != 0) {
                 Dispatch.background {
                     val defaultBitmap = BitmapFactory.decodeResource(res, defaultImageResource)
@@ -21,6 +21,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.viewpager2.widget.ViewPager2;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import io.snabble.sdk.BarcodeFormat;
 import io.snabble.sdk.checkout.Checkout;
@@ -29,7 +30,9 @@ import io.snabble.sdk.Snabble;
 import io.snabble.sdk.encodedcodes.EncodedCodesGenerator;
 import io.snabble.sdk.encodedcodes.EncodedCodesOptions;
 import io.snabble.sdk.ui.R;
+import io.snabble.sdk.ui.scanner.BarcodeRenderer;
 import io.snabble.sdk.ui.scanner.BarcodeView;
+import io.snabble.sdk.ui.scanner.QrCodeBatchRenderer;
 import io.snabble.sdk.ui.telemetry.Telemetry;
 import io.snabble.sdk.ui.utils.I18nUtils;
 import io.snabble.sdk.ui.utils.OneShotClickListener;
@@ -48,6 +51,9 @@ public class CheckoutOfflineView extends FrameLayout {
     private CodeListViewAdapter viewPagerAdapter;
     private boolean isSmallDevice;
     private View viewPagerContainer;
+    private List<Bitmap> renderedCodes;
+    private QrCodeBatchRenderer.Task renderTask;
+    private int renderSize;
 
     public CheckoutOfflineView(Context context) {
         super(context);
@@ -67,6 +73,9 @@ public class CheckoutOfflineView extends FrameLayout {
     private void init() {
         inflate(getContext(), R.layout.snabble_view_checkout_offline, this);
 
+        // clears the rendered codes when the system is low on memory
+        BarcodeRenderer.register(getContext());
+
         project = Snabble.getInstance().getCheckedInProject().getValue();
 
         ViewUtils.observeView(Snabble.getInstance().getCheckedInProject(), this, p -> {
@@ -115,8 +124,12 @@ public class CheckoutOfflineView extends FrameLayout {
         viewPager = findViewById(R.id.view_pager);
         viewPagerContainer = findViewById(R.id.view_pager_container);
 
+        releaseRenderedCodes();
         viewPagerAdapter = new CodeListViewAdapter();
         viewPager.setAdapter(viewPagerAdapter);
+        if (viewPagerContainer.getWidth() > 0) {
+            renderCodes();
+        }
         viewPager.registerOnPageChangeCallback(new ViewPager2.OnPageChangeCallback() {
             @Override
             public void onPageSelected(int position) {
@@ -196,9 +209,85 @@ public class CheckoutOfflineView extends FrameLayout {
             }
 
             viewPagerAdapter.notifyDataSetChanged();
+            renderCodes();
+        }
+    }
+
+    /**
+     * Renders all codes at once in the background, instead of rendering every page when it is shown.
+     */
+    private void renderCodes() {
+        int margin = Math.round(16 * getResources().getDisplayMetrics().density);
+        int size = Math.min(viewPagerContainer.getWidth() - 2 * margin, viewPagerContainer.getHeight());
+        if (maxSizeMm > 0) {
+            float pixelsPerMmX = getResources().getDisplayMetrics().xdpi / 25.4f;
+            size = Math.min(size, (int) (pixelsPerMmX * maxSizeMm));
+        }
+
+        if (size <= 0 || size == renderSize) {
+            return;
+        }
+
+        cancelRendering();
+        evictRenderedCodes();
+        renderSize = size;
+
+        final List<String> codes = viewPagerAdapter.codes;
+        renderTask = QrCodeBatchRenderer.renderQrCodes(codes, size, bitmaps -> {
+            renderTask = null;
+            if (viewPagerAdapter.codes != codes) {
+                return;
+            }
+
+            renderedCodes = bitmaps;
+            viewPagerAdapter.notifyDataSetChanged();
+        });
+    }
+
+    private void cancelRendering() {
+        if (renderTask != null) {
+            renderTask.cancel();
+            renderTask = null;
+        }
+    }
+
+    // only the codes of this view, the cached barcodes of other views stay cached
+    private void evictRenderedCodes() {
+        if (renderSize > 0 && viewPagerAdapter != null) {
+            QrCodeBatchRenderer.evict(viewPagerAdapter.codes, renderSize);
+        }
+    }
+
+    // the bitmaps are not reused, views that still show them keep them until they are bound again
+    private void releaseRenderedCodes() {
+        cancelRendering();
+        evictRenderedCodes();
+        renderSize = 0;
+
+        if (renderedCodes != null) {
+            renderedCodes = null;
+            if (viewPagerAdapter != null) {
+                viewPagerAdapter.notifyDataSetChanged();
+            }
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (viewPagerContainer != null && viewPagerContainer.getWidth() > 0) {
+            renderCodes();
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        releaseRenderedCodes();
+    }
+
     public void setHelperImage(Bitmap bitmap) {
         if (bitmap != null && !isSmallDevice) {
             helperImage.setVisibility(View.VISIBLE);
@@ -279,7 +368,13 @@ public class CheckoutOfflineView extends FrameLayout {
             }
 
             holder.barcodeView.setFormat(BarcodeFormat.QR_CODE);
-            holder.barcodeView.setText(codes.get(position));
+
+            Bitmap bitmap = renderedCodes != null ? renderedCodes.get(position) : null;
+            if (bitmap != null) {
+                holder.barcodeView.setRenderedBarcode(codes.get(position), bitmap);
+            } else {
+                holder.barcodeView.setText(codes.get(position));
+            }
         }
 
         @Override
@@ -0,0 +1,161 @@
+package io.snabble.sdk.ui.scanner;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.snabble.sdk.BarcodeFormat;
+import io.snabble.sdk.codes.EAN13;
+import io.snabble.sdk.codes.templates.CodeTemplate;
+import io.snabble.sdk.codes.templates.groups.EAN13Group;
+import io.snabble.sdk.codes.templates.groups.EAN8Group;
+import io.snabble.sdk.codes.templates.groups.Group;
+import io.snabble.sdk.utils.Logger;
+
+/**
+ * Filters out misreads of a barcode detector by voting over the reads of a sliding time window.
+ * <p>
+ * A barcode is accepted once it has the required number of votes within the window and more than
+ * half of all votes in that window, so a single noisy frame between two good reads does not
+ * restart the detection.
+ * <p>
+ * Reads of EAN-8, EAN-13 and ITF-14 codes with an invalid check digit are discarded before
+ * voting. The number of required votes depends on the format: 2D codes carry error correction
+ * and need one vote less, Code 39 and Code 128 are more prone to partial reads and need one more.
+ */
+public class BarcodeConsensusFilter {
+    public static final long DEFAULT_WINDOW_MS = 1000;
+
+    private final int requiredVotes;
+    private final long windowMs;
+    private final Deque<Barcode> votes = new ArrayDeque<>();
+    private final Map<String, Integer> voteCounts = new HashMap<>();
+
+    // the groups validate the check digits the same way as the code templates of the projects
+    private final Group ean13Group = new CodeTemplate("ean13", "{code:ean13}").getGroup(EAN13Group.class);
+    private final Group ean8Group = new CodeTemplate("ean8", "{code:ean8}").getGroup(EAN8Group.class);
+
+    public BarcodeConsensusFilter() {
+        this(2);
+    }
+
+    /**
+     * @param requiredVotes the votes a barcode with a check digit needs to be accepted
+     */
+    public BarcodeConsensusFilter(int requiredVotes) {
+        this(requiredVotes, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param requiredVotes the votes a barcode with a check digit needs to be accepted
+     * @param windowMs the time span in which the votes need to be collected
+     */
+    public BarcodeConsensusFilter(int requiredVotes, long windowMs) {
+        this.requiredVotes = Math.max(1, requiredVotes);
+        this.windowMs = windowMs;
+    }
+
+    public synchronized void reset() {
+        votes.clear();
+        voteCounts.clear();
+    }
+
+    /**
+     * Adds a read of a barcode detector.
+     *
+     * @return the barcode if it won the vote, null otherwise
+     */
+    public synchronized Barcode filter(Barcode barcode) {
+        if (!hasValidCheckDigit(barcode)) {
+            Logger.d("Filtered invalid check digit: %s", barcode);
+            return null;
+        }
+
+        long now = barcode.getTimestamp() > 0 ? barcode.getTimestamp() : System.currentTimeMillis();
+        evictVotesBefore(now - windowMs);
+
+        String key = key(barcode);
+        Integer count = voteCounts.get(key);
+        int newCount = count != null ? count + 1 : 1;
+        voteCounts.put(key, newCount);
+        votes.addLast(new Barcode(barcode.getFormat(), barcode.getText(), now));
+
+        if (newCount >= requiredVotes(barcode.getFormat()) && newCount * 2 > votes.size()) {
+            return barcode;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of votes needed to accept a barcode of the given format
+     */
+    public int requiredVotes(BarcodeFormat format) {
+        switch (format) {
+            case QR_CODE:
+            case DATA_MATRIX:
+            case PDF_417:
+                return Math.max(1, requiredVotes - 1);
+            case CODE_39:
+            case CODE_128:
+                return requiredVotes + 1;
+            default:
+                return requiredVotes;
+        }
+    }
+
+    private void evictVotesBefore(long timestamp) {
+        while (!votes.isEmpty() && votes.peekFirst().getTimestamp() < timestamp) {
+            String key = key(votes.removeFirst());
+            Integer count = voteCounts.get(key);
+            if (count == null || count <= 1) {
+                voteCounts.remove(key);
+            } else {
+                voteCounts.put(key, count - 1);
+            }
+        }
+    }
+
+    private static String key(Barcode barcode) {
+        return barcode.getFormat().name() + ":" + barcode.getText();
+    }
+
+    private boolean hasValidCheckDigit(Barcode barcode) {
+        String text = barcode.getText();
+        if (text == null) {
+            return false;
+        }
+
+        switch (barcode.getFormat()) {
+            case EAN_13:
+                return isValid(ean13Group, text);
+            case EAN_8:
+                return isValid(ean8Group, text);
+            case ITF_14:
+                return isGtin14(text);
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isValid(Group group, String code) {
+        group.reset();
+        return group.apply(code) && group.validate();
+    }
+
+    private static boolean isGtin14(String code) {
+        if (code.length() != 14) {
+            return false;
+        }
+
+        for (int i = 0; i < code.length(); i++) {
+            if (!Character.isDigit(code.charAt(i))) {
+                return false;
+            }
+        }
+
+        // the leading 0 aligns the weights of the 13 data digits with the ones of an EAN-13
+        return EAN13.checksum("0" + code.substring(0, 13)) == Character.digit(code.charAt(13), 10);
+    }
+}
@@ -0,0 +1,354 @@
+package io.snabble.sdk.ui.scanner
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.text.TextPaint
+import android.util.LruCache
+import com.google.zxing.EncodeHintType
+import com.google.zxing.MultiFormatWriter
+import com.google.zxing.WriterException
+import com.google.zxing.common.BitMatrix
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel
+import com.google.zxing.qrcode.encoder.ByteMatrix
+import com.google.zxing.qrcode.encoder.Encoder
+import io.snabble.sdk.BarcodeFormat
+import io.snabble.sdk.utils.Dispatch
+import io.snabble.sdk.utils.Logger
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.roundToInt
+
+/**
+ * Renders the barcodes of [BarcodeView]s on a shared, bounded worker pool, which is also used by
+ * the [QrCodeBatchRenderer].
+ *
+ * Rendered bitmaps are cached by everything that affects their pixels, so that views showing the
+ * same code again, e.g. when a list item is bound again, do not render it again. Every worker thread
+ * reuses its pixel buffer, and codes are encoded once and scaled with integer math.
+ *
+ * Bitmaps are never written to again once they were returned, since they may still be shown. The
+ * cache is limited by size in bytes and cleared when the system is low on memory, once [register]
+ * was called.
+ */
+internal object BarcodeRenderer : ComponentCallbacks2 {
+
+    /**
+     * Everything that affects the pixels of a rendered barcode, used as the key of the cache
+     *
+     * @param width the width of the barcode in pixels, without the padding of the view
+     * @param height the height of the barcode in pixels, without the padding of the view
+     */
+    data class Request(
+        val text: String,
+        val format: BarcodeFormat,
+        val width: Int,
+        val height: Int,
+        val backgroundColor: Int,
+        val isDarkMode: Boolean,
+        val removeQuietZone: Boolean,
+        val isNumberDisplayEnabled: Boolean,
+        val density: Float
+    )
+
+    fun interface Callback {
+        /**
+         * Called on the main thread, with null if the text could not be encoded in the format
+         */
+        fun onRendered(bitmap: Bitmap?)
+    }
+
+    internal const val QR_QUIET_ZONE = 4
+    private const val CACHE_SIZE_KB = 8 * 1024
+    private val WORKER_COUNT = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+
+    private val isRegistered = AtomicBoolean()
+
+    // the writers do not keep any state between calls
+    private val writer = MultiFormatWriter()
+
+    private val noMarginHints = mapOf(EncodeHintType.MARGIN to 0)
+
+    // keyed by a Request or a QrCodeBatchRenderer.QrCodeRequest
+    internal val cache = object : LruCache<Any, Bitmap>(CACHE_SIZE_KB) {
+        override fun sizeOf(key: Any, value: Bitmap) = value.byteCount / 1024
+    }
+
+    internal val renderExecutor: ExecutorService = AtomicInteger().let { threadNumber ->
+        Executors.newFixedThreadPool(WORKER_COUNT) { runnable ->
+            Thread(runnable, "BarcodeRenderer-" + threadNumber.incrementAndGet()).apply {
+                isDaemon = true
+            }
+        }
+    }
+
+    private val pixelBuffer = object : ThreadLocal<IntArray>() {
+        override fun initialValue() = IntArray(0)
+    }
+
+    /**
+     * Clears the cache when the system is low on memory. Only the first call registers.
+     */
+    @JvmStatic
+    fun register(context: Context) {
+        if (isRegistered.compareAndSet(false, true)) {
+            context.applicationContext.registerComponentCallbacks(this)
+        }
+    }
+
+    /**
+     * Removes all rendered bitmaps from the cache. Bitmaps that are still shown are not affected.
+     */
+    @JvmStatic
+    fun clear() {
+        cache.evictAll()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            clear()
+        }
+    }
+
+    override fun onLowMemory() {
+        clear()
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration) {}
+
+    /**
+     * Returns the already rendered barcode, or null if it needs to be rendered
+     */
+    @JvmStatic
+    fun getCached(request: Request): Bitmap? = cache[request]
+
+    /**
+     * Renders the barcode in the background and calls the callback on the main thread.
+     *
+     * @return a future which can be used to cancel the rendering, the callback is not called then
+     */
+    @JvmStatic
+    fun render(request: Request, callback: Callback): Future<*> =
+        renderExecutor.submit {
+            val bitmap = cache[request] ?: try {
+                renderBlocking(request)?.also { cache.put(request, it) }
+            } catch (e: WriterException) {
+                Logger.e("Could not encode barcode: %s", e.message)
+                null
+            } catch (e: IllegalArgumentException) {
+                Logger.e("Could not encode barcode: %s", e.message)
+                null
+            }
+
+            if (!Thread.currentThread().isInterrupted) {
+                Dispatch.mainThread { callback.onRendered(bitmap) }
+            }
+        }
+
+    internal fun obtainPixels(size: Int): IntArray =
+        pixelBuffer.get()!!.let { buffer ->
+            if (buffer.size < size) {
+                IntArray(size).also { pixelBuffer.set(it) }
+            } else {
+                buffer
+            }
+        }
+
+    private fun renderBlocking(request: Request): Bitmap? {
+        val tw = request.width
+        val th = request.height
+        if (tw <= 0 || th <= 0) {
+            return null
+        }
+
+        var border = dp2px(8f, request.density)
+
+        // Remove the quite zone of the QR code we have enough space in the light mode
+        val withoutQuietZone = (request.format == BarcodeFormat.QR_CODE && !request.isDarkMode)
+                || request.removeQuietZone
+        if (withoutQuietZone) {
+            border = 0
+        }
+
+        val bm = if (request.format == BarcodeFormat.QR_CODE) {
+            val input = Encoder.encode(request.text, ErrorCorrectionLevel.L, null).matrix
+
+            // Handle the quiet zone for QR-Codes correctly: The fixed default border of
+            // 8dp would create a too small white border. Here we calculate the element
+            // width aka multiplier of the rendered qr code, without encoding it again.
+            if (request.isDarkMode) {
+                border = QR_QUIET_ZONE * qrMultiple(input, QR_QUIET_ZONE, tw, th)
+            }
+            renderQrCode(input, tw, th, if (withoutQuietZone) 0 else QR_QUIET_ZONE)
+        } else {
+            writer.encode(
+                request.text,
+                ZXingHelper.toZXingFormat(request.format),
+                tw,
+                th,
+                if (withoutQuietZone) noMarginHints else null
+            )
+        }
+
+        val rect = bm.enclosingRectangle ?: return null
+        val startX = rect[0] - border
+        val startY = rect[1] - border
+        val endX = rect[0] + rect[2] + border
+        val endY = rect[1] + rect[3] + border
+
+        val pixels = obtainPixels(tw * th)
+
+        val backgroundColor = request.backgroundColor
+
+        // DATA-MATRIX and PDF_417 codes are not scaled
+        // See https://github.com/zxing/zxing/issues/836
+        if (request.format == BarcodeFormat.DATA_MATRIX || request.format == BarcodeFormat.PDF_417) {
+            val columns = IntArray(tw) { x -> (x.toLong() * bm.width / tw).toInt() }
+
+            for (y in 0 until th) {
+                val stride = y * tw
+                val ay = (y.toLong() * bm.height / th).toInt()
+                val isInsideRows = ay > startY && ay < endY
+
+                for (x in 0 until tw) {
+                    val ax = columns[x]
+                    pixels[x + stride] = when {
+                        bm.get(ax, ay) -> Color.BLACK
+                        isInsideRows && ax > startX && ax < endX -> Color.WHITE
+                        else -> backgroundColor
+                    }
+                }
+            }
+        } else {
+            val width = minOf(tw, bm.width)
+            val whiteFrom = (startX + 1).coerceIn(0, tw)
+            val whiteTo = endX.coerceIn(whiteFrom, tw)
+
+            for (y in 0 until th) {
+                val stride = y * tw
+                pixels.fill(backgroundColor, stride, stride + tw)
+                if (y > startY && y < endY) {
+                    pixels.fill(Color.WHITE, stride + whiteFrom, stride + whiteTo)
+                }
+
+                if (y < bm.height) {
+                    for (x in 0 until width) {
+                        if (bm.get(x, y)) {
+                            pixels[x + stride] = Color.BLACK
+                        }
+                    }
+                }
+            }
+        }
+
+        val bitmap = Bitmap.createBitmap(tw, th, Bitmap.Config.ARGB_8888)
+        bitmap.setPixels(pixels, 0, tw, 0, 0, tw, th)
+
+        if (request.isNumberDisplayEnabled && request.format == BarcodeFormat.EAN_13) {
+            drawEan13Text(request, rect, bitmap)
+        }
+
+        return bitmap
+    }
+
+    /**
+     * The size of a module in pixels, for a qr code with the given quiet zone
+     */
+    private fun qrMultiple(input: ByteMatrix, quietZone: Int, width: Int, height: Int): Int {
+        val qrWidth = input.width + quietZone * 2
+        val qrHeight = input.height + quietZone * 2
+        return minOf(maxOf(width, qrWidth) / qrWidth, maxOf(height, qrHeight) / qrHeight)
+    }
+
+    /**
+     * Renders an encoded qr code the same way as the QRCodeWriter of ZXing
+     */
+    private fun renderQrCode(input: ByteMatrix, width: Int, height: Int, quietZone: Int): BitMatrix {
+        val inputWidth = input.width
+        val inputHeight = input.height
+
+        val outputWidth = maxOf(width, inputWidth + quietZone * 2)
+        val outputHeight = maxOf(height, inputHeight + quietZone * 2)
+        val multiple = qrMultiple(input, quietZone, width, height)
+        val leftPadding = (outputWidth - inputWidth * multiple) / 2
+        val topPadding = (outputHeight - inputHeight * multiple) / 2
+
+        val output = BitMatrix(outputWidth, outputHeight)
+        for (inputY in 0 until inputHeight) {
+            val outputY = topPadding + inputY * multiple
+            for (inputX in 0 until inputWidth) {
+                if (input.get(inputX, inputY).toInt() == 1) {
+                    output.setRegion(leftPadding + inputX * multiple, outputY, multiple, multiple)
+                }
+            }
+        }
+
+        return output
+    }
+
+    private fun drawEan13Text(request: Request, rect: IntArray, bitmap: Bitmap) {
+        val density = request.density
+        val text = request.text
+
+        val left = rect[0]
+        val top = rect[1]
+        val bottom = top + rect[3]
+        val oneBitWidth = rect[2] / 95
+
+        val canvas = Canvas(bitmap)
+
+        val backgroundPaint = Paint()
+        if (Color.alpha(request.backgroundColor) == 0) {
+            backgroundPaint.color = Color.WHITE
+        } else {
+            backgroundPaint.color = request.backgroundColor
+        }
+
+        val textPaint = TextPaint()
+        textPaint.color = Color.BLACK
+        textPaint.textSize = dp2px(14f, density).toFloat()
+        textPaint.isAntiAlias = true
+
+        val bounds = Rect()
+
+        val part1 = text.substring(0, 1)
+        val part2 = text.substring(1, 7)
+        val part3 = text.substring(7)
+
+        //digit 1
+        textPaint.getTextBounds(part1, 0, part1.length, bounds)
+        var x = left - bounds.width() - dp2px(6f, density)
+
+        canvas.drawRect(x.toFloat(), top.toFloat(), left.toFloat(), bottom.toFloat(), backgroundPaint)
+        canvas.drawText(part1, (x + dp2px(3f, density)).toFloat(), bottom.toFloat(), textPaint)
+
+        //digits 2 - 7
+        textPaint.getTextBounds(part2, 0, part2.length, bounds)
+        x = left + oneBitWidth * 3
+        val w = oneBitWidth * 7 * 6
+
+        val dp1 = dp2px(1f, density)
+
+        canvas.drawRect(x.toFloat(), (bottom - bounds.height() - dp1).toFloat(),
+            (x + w).toFloat(), bottom.toFloat(), backgroundPaint)
+        canvas.drawText(part2, (x + w / 2 - bounds.width() / 2).toFloat(), bottom.toFloat(), textPaint)
+
+        //digits 8 - 13
+        textPaint.getTextBounds(part3, 0, part3.length, bounds)
+        x += w + oneBitWidth * 5
+
+        canvas.drawRect(x.toFloat(), (bottom - bounds.height() - dp1).toFloat(),
+            (x + w).toFloat(), bottom.toFloat(), backgroundPaint)
+        canvas.drawText(part3, (x + w / 2 - bounds.width() / 2).toFloat(), bottom.toFloat(), textPaint)
+    }
+
+    private fun dp2px(dp: Float, density: Float) = (dp * density).roundToInt()
+}
@@ -5,6 +5,7 @@ import android.content.Context
 import android.content.pm.PackageManager.PERMISSION_GRANTED
 import android.graphics.Color
 import android.graphics.Rect
+import android.os.SystemClock
 import android.util.AttributeSet
 import android.util.Size
 import android.view.Gravity
@@ -70,6 +71,14 @@ class BarcodeScannerView @JvmOverloads constructor(
     private var restrictScanningToIndicator: Boolean = true
     var callback: Callback? = null
 
+    /**
+     * Gets notified about the decode time of every analyzed camera frame. Called on the camera
+     * executor thread.
+     */
+    var decodeListener: DecodeListener? = null
+
+    private var frameBuffer: ByteArray? = null
+
     init {
         previewView.layoutParams = ViewGroup.LayoutParams(MATCH_PARENT, MATCH_PARENT)
 
@@ -251,20 +260,30 @@ class BarcodeScannerView @JvmOverloads constructor(
         val yPlane = image.planes.first()
         val yBytes = yPlane.buffer
         val yRowStride = yPlane.rowStride
+        val imageHeight = image.height
         val cropRect = if (scanIndicatorView.isVisible && restrictScanningToIndicator) {
             CropRect.from(image.width, image.height, scanRectHeight = .5f).toRect()
         } else {
             Rect(0, 0, image.width, image.height)
         }
 
+        val data = yBytes.copyToFrameBuffer()
+
+        // the frame is copied, so the camera can already fill the next one while this one is decoded
+        image.close()
+
         // Use the rowStride instead of the width to avoid analysis errors by ignoring the
         // attentional bytes at the end of each row. On one device we had a diff of 32 bytes
         // per row and the last image line has those 32 bytes missing. Since the last image
         // line should not contain any useful data we will just skip it to avoid accessing
         // the last 32 bytes which causes some out of bounds exceptions.
         // See also https://issuetracker.google.com/issues/134740191
+        val start = SystemClock.elapsedRealtime()
         val barcode = barcodeDetector
-            .detect(yBytes.toByteArray(), yRowStride, image.height - 1, 8, cropRect, rotation)
+            .detect(data, yRowStride, imageHeight - 1, 8, cropRect, rotation)
+        val decodeTimeMs = SystemClock.elapsedRealtime() - start
+
+        decodeListener?.onFrameDecoded(decodeTimeMs, barcode)
 
         if (barcode != null) {
             Dispatch.mainThread {
@@ -273,14 +292,17 @@ class BarcodeScannerView @JvmOverloads constructor(
                 }
             }
         }
-
-        image.close()
     }
 
-    private fun ByteBuffer.toByteArray(): ByteArray {
+    /**
+     * Copies the buffer into a byte array that is reused for all frames of the same size.
+     * Only accessed by the camera executor.
+     */
+    private fun ByteBuffer.copyToFrameBuffer(): ByteArray {
         rewind()
-        val data = ByteArray(remaining())
+        val data = frameBuffer?.takeIf { it.size == remaining() } ?: ByteArray(remaining())
         get(data)
+        frameBuffer = data
         return data
     }
 
@@ -343,6 +365,15 @@ class BarcodeScannerView @JvmOverloads constructor(
         fun onBarcodeDetected(barcode: Barcode?)
     }
 
+    fun interface DecodeListener {
+
+        /**
+         * @param decodeTimeMs the time the [BarcodeDetector] needed for the frame
+         * @param barcode the detected barcode, or null if no barcode was detected
+         */
+        fun onFrameDecoded(decodeTimeMs: Long, barcode: Barcode?)
+    }
+
     private companion object {
 
         const val IMAGE_WIDTH = 720
@@ -7,53 +7,34 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Looper;
-import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.view.WindowManager;
 
 import androidx.appcompat.widget.AppCompatImageView;
 
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.MultiFormatWriter;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
-import com.google.zxing.qrcode.encoder.ByteMatrix;
-import com.google.zxing.qrcode.encoder.Encoder;
-import com.google.zxing.qrcode.encoder.QRCode;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Future;
 
 import io.snabble.sdk.BarcodeFormat;
 import io.snabble.sdk.ui.R;
 import io.snabble.sdk.ui.utils.UIUtils;
-import io.snabble.sdk.utils.Dispatch;
 
 public class BarcodeView extends AppCompatImageView {
     private static int attachCount = 0;
 
     private String text;
-    private String generatedText;
+    private Bitmap renderedBitmap;
     private BarcodeFormat format;
 
-    private int width;
-    private int height;
+    private BarcodeRenderer.Request renderRequest;
+    private Future<?> renderFuture;
 
     private boolean isNumberDisplayEnabled = true;
     private boolean adjustBrightness = true;
     private boolean animateBarcode = true;
     private boolean removeQuietZone = false;
 
-    private Handler uiHandler;
     private int backgroundColor;
 
     public BarcodeView(Context context) {
@@ -72,7 +53,9 @@ public class BarcodeView extends AppCompatImageView {
     }
 
     private void init(Context context, AttributeSet attrs) {
-        uiHandler = new Handler(Looper.getMainLooper());
+        if (!isInEditMode()) {
+            BarcodeRenderer.register(context);
+        }
 
         if (attrs != null) {
             TypedArray arr = context.getTheme().obtainStyledAttributes(
@@ -134,12 +117,26 @@ public class BarcodeView extends AppCompatImageView {
             throw new IllegalStateException("No format set!");
         }
 
-        if (code != null && code.length() > 0 && !code.equals(text)) {
+        if (code != null && code.length() > 0 && (!code.equals(text) || renderedBitmap != null)) {
             text = code;
+            renderedBitmap = null;
             generate();
         }
     }
 
+    /**
+     * Shows a barcode that was already rendered, e.g. by a {@link QrCodeBatchRenderer#renderQrCodes},
+     * instead of generating it. The bitmap is shown until {@link #setText(String)} is called again.
+     */
+    public void setRenderedBarcode(String code, Bitmap bitmap) {
+        cancelRendering();
+        text = code;
+        renderRequest = null;
+        renderedBitmap = bitmap;
+        setAlpha(1.0f);
+        setImageBitmap(bitmap);
+    }
+
     public void setAnimateBarcode(boolean animate) {
         animateBarcode = animate;
     }
@@ -169,231 +166,99 @@ public class BarcodeView extends AppCompatImageView {
     }
 
     private void generate() {
+        if (renderedBitmap != null) {
+            return;
+        }
+
         final int w = getWidth();
         final int h = getHeight();
 
         if (text != null && w > 0 && h > 0) {
-            if (!text.equals(generatedText) || width != w || height != h) {
-                width = w;
-                height = h;
-                generatedText = text;
-
-                Dispatch.background(() -> {
-                    MultiFormatWriter writer = new MultiFormatWriter();
-                    try {
-                        int paddingWidth = getPaddingRight() + getPaddingLeft();
-                        int paddingHeight = getPaddingBottom() + getPaddingTop();
-
-                        int border = dp2px(8);
-                        boolean isDarkMode = (getResources().getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
-                        Map<EncodeHintType, String> hints = null;
-
-                        // Remove the quite zone of the QR code we have enough space in the light mode
-                        if ((format == BarcodeFormat.QR_CODE && !isDarkMode) || removeQuietZone) {
-                            hints = new HashMap<>();
-                            hints.put(EncodeHintType.MARGIN, "0");
-                            border = 0;
-                        }
-
-                        int tw = w - paddingWidth;
-                        int th = h - paddingHeight;
-
-                        BitMatrix bm = writer.encode(text, ZXingHelper.toZXingFormat(format), tw, th, hints);
-                        int[] pixels = new int[w * h];
-
-                        int[] rect = bm.getEnclosingRectangle();
-                        int left = rect[0];
-                        int top = rect[1];
-                        int right = left + rect[2];
-                        int bottom = top + rect[3];
-
-                        // Handle the quiet zone for QR-Codes correctly: The fixed default border of
-                        // 8dp would create a too small white border. Here we calculate the element
-                        // width aka multiplier of the QRCodeWriter.renderResult(...)
-                        if (format == BarcodeFormat.QR_CODE && isDarkMode) {
-                            int quietZone = 4;
-
-                            QRCode code = Encoder.encode(text, ErrorCorrectionLevel.L, null);
-                            ByteMatrix input = code.getMatrix();
-                            int inputWidth = input.getWidth();
-                            int inputHeight = input.getHeight();
-                            int qrWidth = inputWidth + (quietZone * 2);
-                            int qrHeight = inputHeight + (quietZone * 2);
-                            int outputWidth = Math.max(tw, qrWidth);
-                            int outputHeight = Math.max(th, qrHeight);
-
-                            border = quietZone * Math.min(outputWidth / qrWidth, outputHeight / qrHeight);
-                        }
-
-                        int startX = left - border;
-                        int startY = top - border;
-                        int endX = right + border;
-                        int endY = bottom + border;
-
-                        // DATA-MATRIX and PDF_417 codes are not scaled
-                        // See https://github.com/zxing/zxing/issues/836
-                        if (format == BarcodeFormat.DATA_MATRIX || format == BarcodeFormat.PDF_417) {
-                            float dw = (float) tw / (float) bm.getWidth();
-                            float dh = (float) th / (float) bm.getHeight();
-
-                            for (int y = 0; y < th; y++) {
-                                final int stride = y * tw;
-                                final int ay = (int) ((float) y / dh);
-
-                                for (int x = 0; x < tw; x++) {
-                                    int ax = (int) ((float) x / dw);
-                                    int bgColor = backgroundColor;
-
-                                    if (ax > startX && ay > startY && ax < endX && ay < endY) {
-                                        bgColor = Color.WHITE;
-                                    }
-
-                                    pixels[x + stride] = bm.get(ax, ay) ? Color.BLACK : bgColor;
-                                }
-                            }
-                        } else {
-                            for (int y = 0; y < th; y++) {
-                                final int stride = y * tw;
-                                for (int x = 0; x < tw; x++) {
-                                    int bgColor = backgroundColor;
-
-                                    if (x > startX && y > startY && x < endX && y < endY) {
-                                        bgColor = Color.WHITE;
-                                    }
-
-                                    pixels[x + stride] = bm.get(x, y) ? Color.BLACK : bgColor;
-                                }
-                            }
-                        }
-
-                        Bitmap bitmap = Bitmap.createBitmap(pixels, tw, th, Bitmap.Config.ARGB_8888);
-
-                        if (isNumberDisplayEnabled) {
-                            if (format == BarcodeFormat.EAN_13) {
-                                bitmap = drawEan13Text(bm, bitmap);
-                            }
-                        }
-
-                        final Bitmap finalBitmap = bitmap;
-
-                        uiHandler.post(() -> {
-                            if (animateBarcode) {
-                                setAlpha(0.0f);
-                                setImageBitmap(finalBitmap);
-                                animate().alpha(1)
-                                        .setDuration(200)
-                                        // strange behaviour:
-                                        // if the view is out of bounds, we need to set
-                                        // the alpha directly after the animation, or else
-                                        // the alpha value stays at 0
-                                        .setListener(new Animator.AnimatorListener() {
-                                            @Override
-                                            public void onAnimationStart(Animator animation) {
-
-                                            }
-
-                                            @Override
-                                            public void onAnimationEnd(Animator animation) {
-                                                setAlpha(1.0f);
-                                            }
-
-                                            @Override
-                                            public void onAnimationCancel(Animator animation) {
-
-                                            }
-
-                                            @Override
-                                            public void onAnimationRepeat(Animator animation) {
-
-                                            }
-                                        })
-                                        .start();
-                            } else {
-                                setImageBitmap(finalBitmap);
-                            }
-                        });
-                    } catch (WriterException e) {
-                        uiHandler.post(() -> {
-                            width = 0;
-                            height = 0;
-                            generatedText = null;
-                            setImageBitmap(null);
-                        });
-                    }
-                });
+            boolean isDarkMode = (getResources().getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK) == Configuration.UI_MODE_NIGHT_YES;
+            BarcodeRenderer.Request request = new BarcodeRenderer.Request(
+                    text,
+                    format,
+                    w - getPaddingLeft() - getPaddingRight(),
+                    h - getPaddingTop() - getPaddingBottom(),
+                    backgroundColor,
+                    isDarkMode,
+                    removeQuietZone,
+                    isNumberDisplayEnabled,
+                    getResources().getDisplayMetrics().density);
+
+            if (request.equals(renderRequest)) {
+                return;
             }
-        } else {
-            width = 0;
-            height = 0;
-            generatedText = null;
-            setImageBitmap(null);
-        }
-    }
-
-    private Bitmap drawEan13Text(BitMatrix bm, Bitmap barcodeBitmap) {
-        Bitmap bitmap = Bitmap.createBitmap(
-                barcodeBitmap.getWidth(),
-                barcodeBitmap.getHeight(),
-                Bitmap.Config.ARGB_8888);
-
-        int[] rect = bm.getEnclosingRectangle();
 
-        int left = rect[0];
-        int top = rect[1];
-        int bottom = top + rect[3];
-        int oneBitWidth = rect[2] / 95;
+            cancelRendering();
+            renderRequest = request;
 
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawBitmap(barcodeBitmap, 0, 0, null);
-
-        Paint backgroundPaint = new Paint();
-        if (Color.alpha(backgroundColor) == 0) {
-            backgroundPaint.setColor(Color.WHITE);
-        } else {
-            backgroundPaint.setColor(backgroundColor);
-        }
-
-        TextPaint textPaint = new TextPaint();
-        textPaint.setColor(Color.BLACK);
-        textPaint.setTextSize(dp2px(14));
-        textPaint.setAntiAlias(true);
-
-        Rect bounds = new Rect();
-
-        String part1 = text.substring(0, 1);
-        String part2 = text.substring(1, 7);
-        String part3 = text.substring(7);
+            // already rendered barcodes are shown immediately, e.g. when a list item is bound again
+            Bitmap cachedBitmap = BarcodeRenderer.getCached(request);
+            if (cachedBitmap != null) {
+                setAlpha(1.0f);
+                setImageBitmap(cachedBitmap);
+                return;
+            }
 
-        //digit 1
-        textPaint.getTextBounds(part1, 0, part1.length(), bounds);
-        int x = left - bounds.width() - dp2px(6);
+            renderFuture = BarcodeRenderer.render(request, bitmap -> {
+                if (renderedBitmap != null || request != renderRequest) {
+                    // replaced by an already rendered barcode or a newer request in the meantime
+                    return;
+                }
 
-        canvas.drawRect(x, top, left, bottom, backgroundPaint);
-        canvas.drawText(part1, x + dp2px(3), bottom, textPaint);
+                renderFuture = null;
+
+                if (bitmap == null) {
+                    renderRequest = null;
+                    setImageBitmap(null);
+                } else if (animateBarcode) {
+                    setAlpha(0.0f);
+                    setImageBitmap(bitmap);
+                    animate().alpha(1)
+                            .setDuration(200)
+                            // strange behaviour:
+                            // if the view is out of bounds, we need to set
+                            // the alpha directly after the animation, or else
+                            // the alpha value stays at 0
+                            .setListener(new Animator.AnimatorListener() {
+                                @Override
+                                public void onAnimationStart(Animator animation) {
 
-        //digits 2 - 7
-        textPaint.getTextBounds(part2, 0, part2.length(), bounds);
-        x = left + oneBitWidth * 3;
-        int w = oneBitWidth * 7 * 6;
+                                }
 
-        int dp1 = dp2px(1);
+                                @Override
+                                public void onAnimationEnd(Animator animation) {
+                                    setAlpha(1.0f);
+                                }
 
-        canvas.drawRect(x, bottom - bounds.height() - dp1, x + w, bottom, backgroundPaint);
-        canvas.drawText(part2, x + w / 2 - bounds.width() / 2, bottom, textPaint);
+                                @Override
+                                public void onAnimationCancel(Animator animation) {
 
-        //digits 8 - 13
-        textPaint.getTextBounds(part3, 0, part3.length(), bounds);
-        x = x + w + oneBitWidth * 5;
+                                }
 
-        canvas.drawRect(x, bottom - bounds.height() - dp1, x + w, bottom, backgroundPaint);
-        canvas.drawText(part3, x + w / 2 - bounds.width() / 2, bottom, textPaint);
+                                @Override
+                                public void onAnimationRepeat(Animator animation) {
 
-        return bitmap;
+                                }
+                            })
+                            .start();
+                } else {
+                    setImageBitmap(bitmap);
+                }
+            });
+        } else {
+            cancelRendering();
+            renderRequest = null;
+            setImageBitmap(null);
+        }
     }
 
-    private int dp2px(float dp) {
-        float density = getResources().getDisplayMetrics().density;
-        return Math.round(dp * density);
+    private void cancelRendering() {
+        if (renderFuture != null) {
+            renderFuture.cancel(true);
+            renderFuture = null;
+        }
     }
 
     /**
@@ -2,6 +2,10 @@ package io.snabble.sdk.ui.scanner;
 
 import io.snabble.sdk.utils.Logger;
 
+/**
+ * @deprecated Resets on every mismatching read, use {@link BarcodeConsensusFilter} instead.
+ */
+@Deprecated
 public class FalsePositiveFilter {
     private final int repeatsNeeded;
     private Barcode lastBarcode;
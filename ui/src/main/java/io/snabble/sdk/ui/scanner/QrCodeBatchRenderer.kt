@@ -0,0 +1,151 @@
+package io.snabble.sdk.ui.scanner
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import com.google.zxing.WriterException
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel
+import com.google.zxing.qrcode.encoder.Encoder
+import io.snabble.sdk.utils.Dispatch
+import io.snabble.sdk.utils.Logger
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Renders a list of QR codes at once, e.g. all codes of an offline checkout.
+ *
+ * The codes are encoded and rendered in parallel on the worker pool of the [BarcodeRenderer], reusing
+ * the pixel buffers of its workers. Rendered bitmaps are kept in its cache, so that codes rendered
+ * again at the same size, e.g. when the view is laid out again, are not rendered twice.
+ *
+ * The bitmaps contain black modules on white, including a white quiet zone. They are rendered as
+ * ARGB_8888 and not as ALPHA_8, since the quiet zone needs to stay white when the code is shown on a
+ * dark background.
+ */
+internal object QrCodeBatchRenderer {
+
+    fun interface BatchCallback {
+        /**
+         * Called on the main thread with the bitmaps in the order of the codes, null for codes that
+         * could not be encoded
+         */
+        fun onRendered(bitmaps: List<Bitmap?>)
+    }
+
+    /**
+     * A running batch, which can be cancelled
+     */
+    class Task internal constructor() {
+        private val futures = ArrayList<Future<*>>()
+
+        @Volatile
+        var isCancelled = false
+            private set
+
+        internal fun add(future: Future<*>) = synchronized(futures) { futures.add(future) }
+
+        /**
+         * Cancels the rendering, the callback is not called afterwards
+         */
+        fun cancel() {
+            isCancelled = true
+            synchronized(futures) {
+                futures.forEach { it.cancel(true) }
+                futures.clear()
+            }
+        }
+    }
+
+    // black modules on white including the quiet zone, as large as possible within size x size
+    internal data class QrCodeRequest(val code: String, val size: Int)
+
+    /**
+     * Renders a list of QR codes in the background and calls the callback on the main thread.
+     *
+     * The codes are rendered in parallel and nothing waits for them, the callback is called by the
+     * worker that finishes the last code.
+     *
+     * @param size the maximum width and height of the bitmaps in pixels, the bitmaps are as large as
+     * possible while keeping all modules the same size
+     * @return a task which can be used to cancel the rendering
+     */
+    @JvmStatic
+    fun renderQrCodes(codes: List<String>, size: Int, callback: BatchCallback): Task {
+        val task = Task()
+        if (codes.isEmpty() || size <= 0) {
+            Dispatch.mainThread { callback.onRendered(codes.map { null }) }
+            return task
+        }
+
+        val bitmaps = arrayOfNulls<Bitmap>(codes.size)
+        val remaining = AtomicInteger(codes.size)
+        val cache = BarcodeRenderer.cache
+
+        codes.forEachIndexed { index, code ->
+            task.add(BarcodeRenderer.renderExecutor.submit {
+                if (!task.isCancelled) {
+                    val request = QrCodeRequest(code, size)
+                    bitmaps[index] = cache[request] ?: try {
+                        renderQrCode(request)?.also { cache.put(request, it) }
+                    } catch (e: WriterException) {
+                        Logger.e("Could not encode qr code: %s", e.message)
+                        null
+                    }
+                }
+
+                // the decrement makes the bitmaps of all other workers visible to the last one
+                if (remaining.decrementAndGet() == 0 && !task.isCancelled) {
+                    val result = bitmaps.toList()
+                    Dispatch.mainThread {
+                        if (!task.isCancelled) {
+                            callback.onRendered(result)
+                        }
+                    }
+                }
+            })
+        }
+
+        return task
+    }
+
+    /**
+     * Removes the bitmaps of the codes rendered at the given size from the cache, other cached
+     * barcodes are kept. Bitmaps that are still shown are not affected.
+     */
+    @JvmStatic
+    fun evict(codes: List<String>, size: Int) {
+        codes.forEach { BarcodeRenderer.cache.remove(QrCodeRequest(it, size)) }
+    }
+
+    private fun renderQrCode(request: QrCodeRequest): Bitmap? {
+        val quietZone = BarcodeRenderer.QR_QUIET_ZONE
+        val matrix = Encoder.encode(request.code, ErrorCorrectionLevel.L, null).matrix
+
+        val modules = matrix.width + quietZone * 2
+        val scale = request.size / modules
+        if (scale < 1) {
+            return null
+        }
+
+        val dimension = modules * scale
+        val pixels = BarcodeRenderer.obtainPixels(dimension * dimension)
+
+        pixels.fill(Color.WHITE, 0, dimension * dimension)
+        val offset = quietZone * scale
+        for (y in 0 until matrix.height) {
+            for (x in 0 until matrix.width) {
+                if (matrix.get(x, y).toInt() == 1) {
+                    val left = offset + x * scale
+                    val top = offset + y * scale
+                    for (row in top until top + scale) {
+                        val start = row * dimension + left
+                        pixels.fill(Color.BLACK, start, start + scale)
+                    }
+                }
+            }
+        }
+
+        val bitmap = Bitmap.createBitmap(dimension, dimension, Bitmap.Config.ARGB_8888)
+        bitmap.setPixels(pixels, 0, dimension, 0, 0, dimension, dimension)
+        return bitmap
+    }
+}
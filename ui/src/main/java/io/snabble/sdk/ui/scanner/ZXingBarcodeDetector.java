@@ -17,42 +17,121 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.snabble.sdk.BarcodeFormat;
 import io.snabble.sdk.utils.Logger;
 
+/**
+ * Barcode detector using ZXing.
+ * <p>
+ * Each frame is decoded in both orientations, and 1D and 2D formats are decoded by separate
+ * readers. Those passes run in parallel on a shared, bounded worker pool and the frame is done as
+ * soon as one of them found a barcode.
+ * <p>
+ * Every pass decodes its own copy of the detection rect, so passes that are still running when
+ * {@link #detect} returns never read the frame, which the caller may already overwrite.
+ */
 @KeepName
 public class ZXingBarcodeDetector implements BarcodeDetector {
-    private byte[] cropBuffer = null;
-    private MultiFormatReader multiFormatReader;
-    private final FalsePositiveFilter falsePositiveFilter = new FalsePositiveFilter();
+    private static final int WORKER_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadPoolExecutor decodeExecutor = createDecodeExecutor();
+
+    private final BarcodeConsensusFilter consensusFilter = new BarcodeConsensusFilter();
+    private final ConcurrentLinkedQueue<byte[]> cropBufferPool = new ConcurrentLinkedQueue<>();
+
+    private volatile List<DecodePass> decodePasses = new ArrayList<>();
+    private volatile long lastDecodeTimeMs;
+
+    private static ThreadPoolExecutor createDecodeExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ZXingDecoder-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Override
     public void setup(List<BarcodeFormat> barcodeFormats) {
-        Map<DecodeHintType, Object> hints = new HashMap<>();
-        multiFormatReader = new MultiFormatReader();
+        List<com.google.zxing.BarcodeFormat> linearFormats = new ArrayList<>();
+        List<com.google.zxing.BarcodeFormat> matrixFormats = new ArrayList<>();
 
-        List<com.google.zxing.BarcodeFormat> formats = new ArrayList<>();
         for (BarcodeFormat barcodeFormat : barcodeFormats) {
-            formats.add(ZXingHelper.toZXingFormat(barcodeFormat));
+            com.google.zxing.BarcodeFormat format = ZXingHelper.toZXingFormat(barcodeFormat);
+            if (format == null) {
+                continue;
+            }
+
+            if (isMatrixFormat(format)) {
+                matrixFormats.add(format);
+            } else {
+                linearFormats.add(format);
+            }
+        }
+
+        List<DecodePass> passes = new ArrayList<>();
+        if (!linearFormats.isEmpty()) {
+            passes.add(new DecodePass(linearFormats, false));
+            passes.add(new DecodePass(linearFormats, true));
+        }
+
+        if (!matrixFormats.isEmpty()) {
+            passes.add(new DecodePass(matrixFormats, false));
+
+            // QR codes, Data Matrix and Aztec codes are found in any orientation
+            if (matrixFormats.contains(com.google.zxing.BarcodeFormat.PDF_417)) {
+                passes.add(new DecodePass(matrixFormats, true));
+            }
         }
 
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
-        hints.put(DecodeHintType.TRY_HARDER, null);
-        multiFormatReader.setHints(hints);
+        decodePasses = passes;
+    }
+
+    private static boolean isMatrixFormat(com.google.zxing.BarcodeFormat format) {
+        switch (format) {
+            case QR_CODE:
+            case DATA_MATRIX:
+            case PDF_417:
+            case AZTEC:
+                return true;
+            default:
+                return false;
+        }
     }
 
     @Override
     public void reset() {
-        falsePositiveFilter.reset();
+        consensusFilter.reset();
+    }
+
+    /**
+     * @return the time in milliseconds it took to decode the last frame
+     */
+    public long getLastDecodeTimeMs() {
+        return lastDecodeTimeMs;
     }
 
     @Override
     public Barcode detect(byte[] data, int width, int height, int bitsPerPixel, Rect detectionRect, int displayOrientation) {
-        Result result = detectInternal(data, width, bitsPerPixel, detectionRect, displayOrientation, false);
-        if (result == null) {
-            result = detectInternal(data, width, bitsPerPixel, detectionRect, displayOrientation, true);
-        }
+        long start = System.nanoTime();
+        Result result = decode(data, width, bitsPerPixel, new Rect(detectionRect));
+        lastDecodeTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
 
         if (result != null) {
             if (result.getText() == null) {
@@ -73,9 +152,9 @@ public class ZXingBarcodeDetector implements BarcodeDetector {
 
             Barcode barcode = new Barcode(format, result.getText(), result.getTimestamp());
 
-            Barcode filtered = falsePositiveFilter.filter(barcode);
+            Barcode filtered = consensusFilter.filter(barcode);
             if (filtered != null) {
-                Logger.d("Detected barcode: " + barcode);
+                Logger.d("Detected barcode: %s (%d ms)", barcode, lastDecodeTimeMs);
                 return filtered;
             }
         }
@@ -83,25 +162,75 @@ public class ZXingBarcodeDetector implements BarcodeDetector {
         return null;
     }
 
-    private Result detectInternal(byte[] data, int width, int bitsPerPixel, Rect detectionRect, int displayOrientation, boolean rotate) {
-        byte[] buf = getRotatedData(data, width, bitsPerPixel, detectionRect, displayOrientation, rotate);
+    private Result decode(byte[] data, int width, int bitsPerPixel, Rect detectionRect) {
+        List<DecodePass> passes = decodePasses;
+        if (passes.isEmpty()) {
+            return null;
+        }
 
-        int tWidth = detectionRect.width();
-        int tHeight = detectionRect.height();
+        int size = detectionRect.width() * detectionRect.height() * bitsPerPixel / 8;
+
+        if (passes.size() == 1) {
+            DecodePass pass = passes.get(0);
+            byte[] buf = acquireCropBuffer(size);
+            getRotatedData(buf, data, width, detectionRect, pass.rotate);
+            return detectInternal(pass, buf, detectionRect);
+        }
 
-        if (rotate) {
-            int tmp = tWidth;
-            tWidth = tHeight;
-            tHeight = tmp;
+        CompletionService<Result> completionService = new ExecutorCompletionService<>(decodeExecutor);
+        List<Future<Result>> futures = new ArrayList<>(passes.size());
+        for (DecodePass pass : passes) {
+            // copied on this thread, the frame is not read anymore once this method returns
+            byte[] buf = acquireCropBuffer(size);
+            getRotatedData(buf, data, width, detectionRect, pass.rotate);
+            futures.add(completionService.submit(() -> detectInternal(pass, buf, detectionRect)));
         }
 
-        LuminanceSource luminanceSource = new PlanarYUVLuminanceSource(buf, tWidth, tHeight,
-                0, 0, tWidth, tHeight, false);
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Result result = completionService.take().get();
+                if (result != null) {
+                    return result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.e("Zxing Internal Error: %s", e.getCause());
+        } finally {
+            // passes of this frame that did not start yet are not needed anymore, the crop buffers
+            // of those are not returned to the pool, since a running pass may still use its buffer
+            for (Future<Result> future : futures) {
+                future.cancel(false);
+            }
+        }
 
-        Binarizer binarizer = new HybridBinarizer(luminanceSource);
-        BinaryBitmap binaryBitmap = new BinaryBitmap(binarizer);
+        return null;
+    }
+
+    /**
+     * Decodes the detection rect, which was already copied into the crop buffer in the orientation
+     * of the pass. The crop buffer is returned to the pool afterwards.
+     */
+    private Result detectInternal(DecodePass pass, byte[] buf, Rect detectionRect) {
+        MultiFormatReader multiFormatReader = pass.acquireReader();
 
         try {
+            int tWidth = detectionRect.width();
+            int tHeight = detectionRect.height();
+
+            if (pass.rotate) {
+                int tmp = tWidth;
+                tWidth = tHeight;
+                tHeight = tmp;
+            }
+
+            LuminanceSource luminanceSource = new PlanarYUVLuminanceSource(buf, tWidth, tHeight,
+                    0, 0, tWidth, tHeight, false);
+
+            Binarizer binarizer = new HybridBinarizer(luminanceSource);
+            BinaryBitmap binaryBitmap = new BinaryBitmap(binarizer);
+
             return multiFormatReader.decodeWithState(binaryBitmap);
         } catch (ReaderException e) {
             // could not detect a barcode, ignore
@@ -110,19 +239,26 @@ public class ZXingBarcodeDetector implements BarcodeDetector {
             Logger.e("Zxing Internal Error: %s", e.toString());
         } finally {
             multiFormatReader.reset();
+            pass.releaseReader(multiFormatReader);
+            cropBufferPool.offer(buf);
         }
 
         return null;
     }
 
-    private byte[] getRotatedData(byte[] data, int width, int bitsPerPixel, Rect detectionRect, int displayOrientation, boolean rotate90deg) {
-        int size = detectionRect.width() * detectionRect.height() * bitsPerPixel / 8;
-        if (cropBuffer == null || cropBuffer.length != size) {
-            cropBuffer = new byte[size];
+    private byte[] acquireCropBuffer(int size) {
+        byte[] buf;
+        while ((buf = cropBufferPool.poll()) != null) {
+            if (buf.length == size) {
+                return buf;
+            }
+            // buffers of a different size are from a previous detection rect, let them go
         }
 
-        byte[] buf = cropBuffer;
+        return new byte[size];
+    }
 
+    private static void getRotatedData(byte[] buf, byte[] data, int width, Rect detectionRect, boolean rotate90deg) {
         int left = detectionRect.left;
         int top = detectionRect.top;
         int right = detectionRect.right;
@@ -140,12 +276,37 @@ public class ZXingBarcodeDetector implements BarcodeDetector {
             }
         } else {
             for (int y = top; y < bottom; y++) {
-                for (int x = left; x < right; x++) {
-                    buf[(x - left) + (y - top) * tWidth] = data[x + y * width];
-                }
+                System.arraycopy(data, left + y * width, buf, (y - top) * tWidth, tWidth);
             }
         }
+    }
+
+    /**
+     * A set of formats decoded in one orientation. Readers are pooled, since a {@link MultiFormatReader}
+     * can only be used by one thread at a time.
+     */
+    private static class DecodePass {
+        private final Map<DecodeHintType, Object> hints = new HashMap<>();
+        private final ConcurrentLinkedQueue<MultiFormatReader> readers = new ConcurrentLinkedQueue<>();
+        final boolean rotate;
 
-        return buf;
+        DecodePass(List<com.google.zxing.BarcodeFormat> formats, boolean rotate) {
+            this.rotate = rotate;
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+            hints.put(DecodeHintType.TRY_HARDER, null);
+        }
+
+        MultiFormatReader acquireReader() {
+            MultiFormatReader reader = readers.poll();
+            if (reader == null) {
+                reader = new MultiFormatReader();
+                reader.setHints(hints);
+            }
+            return reader;
+        }
+
+        void releaseReader(MultiFormatReader reader) {
+            readers.offer(reader);
+        }
     }
 }
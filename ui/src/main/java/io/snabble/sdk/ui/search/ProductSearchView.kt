@@ -127,6 +127,14 @@ open class ProductSearchView @JvmOverloads constructor(
                 onSearchUpdated()
                 requestLayout()
             }
+
+            override fun onItemRangeInserted(positionStart: Int, itemCount: Int) = onChanged()
+
+            override fun onItemRangeRemoved(positionStart: Int, itemCount: Int) = onChanged()
+
+            override fun onItemRangeChanged(positionStart: Int, itemCount: Int) = onChanged()
+
+            override fun onItemRangeMoved(fromPosition: Int, toPosition: Int, itemCount: Int) = onChanged()
         })
         addCodeAsIs.setOnClickListener { showScannerWithCode(lastSearchQuery) }
         recyclerView.adapter = searchableProductAdapter
@@ -7,6 +7,7 @@ import android.text.SpannableStringBuilder
 import android.view.LayoutInflater
 import android.view.ViewGroup
 import android.widget.TextView
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import io.snabble.sdk.Product
 import io.snabble.sdk.Snabble
@@ -15,6 +16,8 @@ import io.snabble.sdk.ui.utils.highlight
 import io.snabble.sdk.ui.utils.setTextOrHide
 import io.snabble.sdk.utils.Dispatch
 import io.snabble.sdk.utils.StringNormalizer
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 class SearchableProductAdapter : RecyclerView.Adapter<SearchableProductAdapter.ProductViewHolder>() {
     enum class SearchType {
@@ -23,9 +26,15 @@ class SearchableProductAdapter : RecyclerView.Adapter<SearchableProductAdapter.P
 
     private var productSelectedListener: OnProductSelectedListener? = null
     private var searchType = SearchType.BARCODE
-    private var cursor: Cursor? = null
     private var cancellationSignal: CancellationSignal? = null
-    private var itemCount = 0
+    private var products: List<Product> = emptyList()
+    private var totalCount = 0
+    private var generation = 0
+    private var isLoadingPage = false
+
+    // only accessed on the search executor
+    private var cursor: Cursor? = null
+
     var showBarcode = true
     private var searchQuery = ""
     private val project = requireNotNull(Snabble.checkedInProject.value)
@@ -88,47 +97,155 @@ class SearchableProductAdapter : RecyclerView.Adapter<SearchableProductAdapter.P
     }
 
     override fun onBindViewHolder(holder: ProductViewHolder, position: Int) {
-        cursor!!.moveToPosition(position)
-        val product = productDatabase.productAtCursor(cursor)
-        holder.bindTo(product, searchQuery)
+        holder.bindTo(products[position], searchQuery)
+
+        if (position >= products.size - PREFETCH_DISTANCE) {
+            loadNextPage()
+        }
     }
 
     fun search(searchQuery: String?) {
         cancellationSignal?.cancel()
-        cancellationSignal = CancellationSignal()
-        if (searchQuery != null && searchQuery.isNotEmpty()) {
-            val normalizedSearchQuery = StringNormalizer.normalize(searchQuery)
-            Dispatch.background {
-                try {
-                    val newCursor = if (searchType == SearchType.BARCODE) {
-                        productDatabase.searchByCode(normalizedSearchQuery, cancellationSignal)
+        val signal = CancellationSignal()
+        cancellationSignal = signal
+
+        val searchGeneration = ++generation
+        val oldProducts = products
+        val oldSearchQuery = this.searchQuery
+        val newSearchQuery = searchQuery.orEmpty()
+        val type = searchType
+
+        // the shown products stay until the first page of the new search replaces them, but no more
+        // pages of the old search are loaded, their offsets would not match the new cursor
+        totalCount = products.size
+        isLoadingPage = false
+
+        searchExecutor.execute {
+            try {
+                cursor?.close()
+                cursor = null
+
+                var count = 0
+                var firstPage = emptyList<Product>()
+                if (newSearchQuery.isNotEmpty()) {
+                    val normalizedSearchQuery = StringNormalizer.normalize(newSearchQuery)
+                    val newCursor = if (type == SearchType.BARCODE) {
+                        productDatabase.searchByCode(normalizedSearchQuery, signal)
                     } else {
-                        productDatabase.searchByFoldedName(normalizedSearchQuery, cancellationSignal)
+                        productDatabase.searchByFoldedName(normalizedSearchQuery, signal)
                     }
+                    cursor = newCursor
+
                     if (newCursor != null) {
-                        val count = newCursor.count
-                        Dispatch.mainThread {
-                            if (cursor?.isClosed == false) {
-                                cursor?.close()
-                            }
-                            cursor = newCursor
-                            itemCount = count
-                            this.searchQuery = searchQuery
-                            notifyDataSetChanged()
-                        }
+                        count = newCursor.count
+                        firstPage = productDatabase.productsAtCursor(newCursor, 0, PAGE_SIZE, signal)
+                    }
+                }
+
+                if (signal.isCanceled) {
+                    return@execute
+                }
+
+                val diff = DiffUtil.calculateDiff(
+                    ProductDiffCallback(oldProducts, firstPage, oldSearchQuery == newSearchQuery)
+                )
+
+                Dispatch.mainThread {
+                    if (searchGeneration == generation) {
+                        products = firstPage
+                        totalCount = count
+                        this.searchQuery = newSearchQuery
+                        diff.dispatchUpdatesTo(this)
+                    }
+                }
+            } catch (e: OperationCanceledException) {
+            }
+        }
+    }
+
+    private fun loadNextPage() {
+        if (isLoadingPage || products.size >= totalCount) return
+
+        isLoadingPage = true
+        val signal = cancellationSignal
+        val pageGeneration = generation
+        val offset = products.size
+
+        searchExecutor.execute {
+            val page = try {
+                cursor?.let { productDatabase.productsAtCursor(it, offset, PAGE_SIZE, signal) }.orEmpty()
+            } catch (e: OperationCanceledException) {
+                emptyList()
+            }
+
+            Dispatch.mainThread {
+                if (pageGeneration == generation && offset == products.size) {
+                    isLoadingPage = false
+                    if (page.isNotEmpty()) {
+                        products = products + page
+                        notifyItemRangeInserted(offset, page.size)
+                    } else {
+                        // nothing more to load, e.g. because the query was cancelled
+                        totalCount = products.size
                     }
-                } catch (e: OperationCanceledException) {
                 }
             }
-        } else {
-            itemCount = 0
-            notifyDataSetChanged()
         }
     }
 
-    override fun getItemCount() = itemCount
+    override fun getItemCount() = products.size
+
+    override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView)
+
+        cancellationSignal?.cancel()
+        cancellationSignal = null
+        generation++
+        isLoadingPage = false
+        totalCount = products.size
+
+        searchExecutor.execute {
+            cursor?.close()
+            cursor = null
+        }
+    }
 
     fun setOnProductSelectedListener(productSelectedListener: OnProductSelectedListener?) {
         this.productSelectedListener = productSelectedListener
     }
-}
\ No newline at end of file
+
+    /**
+     * Compares the shown page with the one of a new search. If the search query changed,
+     * all rows are rebound to update the highlighted part of the code.
+     */
+    private class ProductDiffCallback(
+        private val oldProducts: List<Product>,
+        private val newProducts: List<Product>,
+        private val sameSearchQuery: Boolean
+    ) : DiffUtil.Callback() {
+
+        override fun getOldListSize() = oldProducts.size
+
+        override fun getNewListSize() = newProducts.size
+
+        override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int) =
+            oldProducts[oldItemPosition].sku == newProducts[newItemPosition].sku
+
+        override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+            val oldProduct = oldProducts[oldItemPosition]
+            val newProduct = newProducts[newItemPosition]
+            return sameSearchQuery
+                    && oldProduct.name == newProduct.name
+                    && oldProduct.scannableCodes.map { it.lookupCode } == newProduct.scannableCodes.map { it.lookupCode }
+        }
+    }
+
+    private companion object {
+
+        const val PAGE_SIZE = 20
+        const val PREFETCH_DISTANCE = 10
+
+        // searches and page loads share one cursor, so they run one after the other
+        val searchExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+    }
+}
@@ -45,7 +45,10 @@ fun Context.requireFragmentActivity() =
 fun ImageView.loadAsset(assets: Assets, name: String) {
     val randomUUID = UUID.randomUUID().toString()
     setTag(R.id.snabble_asset_load_id, randomUUID)
-    assets.get(name) { bitmap: Bitmap? ->
+    // wrapping views and views that are not laid out yet get the asset in its original size
+    val targetWidth = if (layoutParams?.width == ViewGroup.LayoutParams.WRAP_CONTENT) 0 else width
+    val targetHeight = if (layoutParams?.height == ViewGroup.LayoutParams.WRAP_CONTENT) 0 else height
+    assets.get(name, Assets.Type.SVG, targetWidth, targetHeight, false) { bitmap: Bitmap? ->
         if (getTag(R.id.snabble_asset_load_id) === randomUUID) {
             setImageBitmap(bitmap)
         }
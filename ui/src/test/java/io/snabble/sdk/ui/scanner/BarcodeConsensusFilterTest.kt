@@ -0,0 +1,133 @@
+package io.snabble.sdk.ui.scanner
+
+import io.kotest.core.spec.style.FreeSpec
+import io.kotest.matchers.nulls.shouldBeNull
+import io.kotest.matchers.nulls.shouldNotBeNull
+import io.kotest.matchers.shouldBe
+import io.snabble.sdk.BarcodeFormat
+
+class BarcodeConsensusFilterTest : FreeSpec({
+
+    fun ean13(text: String, timestamp: Long) = Barcode(BarcodeFormat.EAN_13, text, timestamp)
+
+    val code = "4006381333931"
+    val misread = "4012345000009"
+    val otherMisread = "4012345000016"
+
+    "A filter requiring 2 votes" - {
+
+        "should not accept a single read" {
+            val filter = BarcodeConsensusFilter(2)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+        }
+
+        "should accept a barcode w/ the majority of the votes" {
+            val filter = BarcodeConsensusFilter(2)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.filter(ean13(misread, 150)).shouldBeNull()
+            filter.filter(ean13(code, 200))?.text shouldBe code
+        }
+
+        "should not accept a barcode once its votes left the window" {
+            val filter = BarcodeConsensusFilter(2, 1000)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.filter(ean13(code, 1200)).shouldBeNull()
+            filter.filter(ean13(code, 1300))?.text shouldBe code
+        }
+
+        "should not accept a barcode after a reset" {
+            val filter = BarcodeConsensusFilter(2)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.reset()
+            filter.filter(ean13(code, 200)).shouldBeNull()
+        }
+
+        "should not accept a barcode w/ enough votes on a tie" {
+            val filter = BarcodeConsensusFilter(2)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.filter(ean13(misread, 150)).shouldBeNull()
+            filter.filter(ean13(otherMisread, 200)).shouldBeNull()
+            filter.filter(ean13(code, 250)).shouldBeNull()
+            filter.filter(ean13(code, 300))?.text shouldBe code
+        }
+    }
+
+    "A filter requiring 3 votes" - {
+
+        "should accept the first barcode to win the vote after a tie" {
+            val filter = BarcodeConsensusFilter(3)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.filter(ean13(misread, 150)).shouldBeNull()
+            filter.filter(ean13(code, 200)).shouldBeNull()
+            filter.filter(ean13(misread, 250)).shouldBeNull()
+            filter.filter(ean13(code, 300))?.text shouldBe code
+        }
+    }
+
+    "The required votes" - {
+
+        val filter = BarcodeConsensusFilter(2)
+
+        "should be lower for 2D codes" {
+            filter.requiredVotes(BarcodeFormat.QR_CODE) shouldBe 1
+            filter.requiredVotes(BarcodeFormat.DATA_MATRIX) shouldBe 1
+            filter.requiredVotes(BarcodeFormat.PDF_417) shouldBe 1
+        }
+
+        "should be higher for Code 39 and Code 128" {
+            filter.requiredVotes(BarcodeFormat.CODE_39) shouldBe 3
+            filter.requiredVotes(BarcodeFormat.CODE_128) shouldBe 3
+        }
+
+        "should be the given ones for codes w/ a check digit" {
+            filter.requiredVotes(BarcodeFormat.EAN_13) shouldBe 2
+            filter.requiredVotes(BarcodeFormat.EAN_8) shouldBe 2
+            filter.requiredVotes(BarcodeFormat.ITF_14) shouldBe 2
+        }
+
+        "should accept a QR code on the first read" {
+            BarcodeConsensusFilter(2).filter(Barcode(BarcodeFormat.QR_CODE, "snabble", 100)).shouldNotBeNull()
+        }
+    }
+
+    "A barcode w/ an invalid check digit" - {
+
+        "should be rejected for EAN-13" {
+            val filter = BarcodeConsensusFilter(1)
+
+            filter.filter(ean13("4006381333932", 100)).shouldBeNull()
+            filter.filter(ean13("400638133393", 150)).shouldBeNull()
+            filter.filter(ean13(code, 200)).shouldNotBeNull()
+        }
+
+        "should be rejected for EAN-8" {
+            val filter = BarcodeConsensusFilter(1)
+
+            filter.filter(Barcode(BarcodeFormat.EAN_8, "96385075", 100)).shouldBeNull()
+            filter.filter(Barcode(BarcodeFormat.EAN_8, "96385074", 150)).shouldNotBeNull()
+        }
+
+        "should be rejected for ITF-14" {
+            val filter = BarcodeConsensusFilter(1)
+
+            filter.filter(Barcode(BarcodeFormat.ITF_14, "00012345600013", 100)).shouldBeNull()
+            filter.filter(Barcode(BarcodeFormat.ITF_14, "0001234560001A", 150)).shouldBeNull()
+            filter.filter(Barcode(BarcodeFormat.ITF_14, "00012345600012", 200)).shouldNotBeNull()
+        }
+
+        "should not count as a vote" {
+            val filter = BarcodeConsensusFilter(2)
+
+            filter.filter(ean13(code, 100)).shouldBeNull()
+            filter.filter(ean13("4006381333932", 150)).shouldBeNull()
+            filter.filter(ean13("4006381333932", 175)).shouldBeNull()
+            filter.filter(ean13(code, 200))?.text shouldBe code
+        }
+    }
+})
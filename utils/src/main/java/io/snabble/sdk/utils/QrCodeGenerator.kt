@@ -26,16 +26,15 @@ class QrCodeGenerator {
         val width = bitMapMatrix.width
         val height = bitMapMatrix.height
 
-        val pixels = IntArray(width * height)
+        // written row by row, so only one row of pixels is allocated instead of the whole code
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val row = IntArray(width)
         for (y in 0 until height) {
             for (x in 0 until width) {
-                pixels[y * width + x] =
-                    if (bitMapMatrix.get(x, y)) Color.BLACK else Color.TRANSPARENT
+                row[x] = if (bitMapMatrix.get(x, y)) Color.BLACK else Color.TRANSPARENT
             }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1)
         }
-
-        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
         return bitmap
     }
 